@@ -166,7 +166,16 @@ public interface Apollo {
 	* In the JDBC world, you could compare this to ResultSet or ResultSetMetaData
 	*/
 	public static interface Tuple {
+		/**
+		* The ordered list of columns.  For a model (a blank tuple) this is all there is.
+		*/
+		public String[] getColumnNames();
 
+		/**
+		* Get the value of the column, which will be a Long, Double, String, byte[] or null.
+		* Throws IllegalArgumentException if the column is not part of this tuple.
+		*/
+		public Object get(String column);
 	}
 
 	//=============================================================
@@ -269,8 +278,142 @@ public interface Apollo {
 
 	}
 	//============================================================================
+	/**
+	* The RelationManager creates and drops indexes, shows how SQLite will run a relation, and
+	* gives advice about which indexes are missing.
+	*
+	* Every index must be created explicitly.  The advice comes from watching the queries that
+	* are run, see IndexAdvisor.
+	*/
 	public static interface RelationManager {
-		//to be defined.  Includes creating and dropping tables and views and indexes
+		public void createIndex(Index ix) throws RelationException;
+
+		//this does nothing if there is no index by that name
+		public void dropIndex(String indexName) throws RelationException;
+
+		/**
+		* The indexes on the relation, with their SQL as SQLite stores it.  Indexes that SQLite
+		* creates by itself for UNIQUE and PRIMARY KEY constraints have no SQL.
+		*/
+		public Index[] listIndexes(String relationName) throws RelationException;
+
+		/**
+		* The lines of EXPLAIN QUERY PLAN for the relation, like
+		*	SEARCH orders USING INDEX idx_orders_customer (customer_id=?)
+		*/
+		public String[] explain(Relation r) throws RelationException;
+
+		/**
+		* Indexes that would help the slow or frequent queries seen so far, best first.
+		*/
+		public Advice[] advise() throws RelationException;
+	}
+	//============================================================================
+	/**
+	* An Index is built by chaining the methods, like Condition:
+	*		new Index("idx_orders_open","orders").on("customer_id","date DESC")
+	*			.include("total").where(Condition.where("status",Verb.EQ,"open"))
+	*
+	* include() adds columns after the key columns, so a query that only needs those columns can
+	* be answered from the index without reading the table (a covering index).  where() makes it
+	* a partial index of just the rows that match.  Its values are written into the SQL, because
+	* SQLite doesn't allow parameters in CREATE INDEX.
+	*/
+	public static class Index implements Serializable {
+		private final static long serialVersionUID=1L;
+		final String name;
+		final String relation;
+		final java.util.List<String> columns=new java.util.ArrayList<String>();
+		final java.util.List<String> included=new java.util.ArrayList<String>();
+		boolean unique=false;
+		Condition where;
+		//set when the index was read from the database
+		String sql;
+
+		public Index(String name, String relation) {
+			if (name==null || name.length()==0) {throw new IllegalArgumentException("index name is required");}
+			if (relation==null || relation.length()==0) {throw new IllegalArgumentException("relation is required");}
+			this.name=name;
+			this.relation=relation;
+		}
+
+		//the key columns, in order.  A column may end with " DESC" or " ASC"
+		public Index on(String... cols) {
+			for (String c: cols) {columns.add(c);}
+			return this;
+		}
+
+		public Index include(String... cols) {
+			for (String c: cols) {included.add(c);}
+			return this;
+		}
+
+		public Index unique() {
+			unique=true;
+			return this;
+		}
+
+		public Index where(Condition c) {
+			where=c;
+			return this;
+		}
+
+		public String getName() {return name;}
+		public String getRelation() {return relation;}
+		public String[] getColumns() {return columns.toArray(new String[columns.size()]);}
+		public String[] getIncluded() {return included.toArray(new String[included.size()]);}
+		public boolean isUnique() {return unique;}
+		public boolean isPartial() {return where!=null || (sql!=null && sql.toUpperCase().contains(" WHERE "));}
+
+		//the SQL it was created with, if it was read from the database
+		public String getSQL() {return sql;}
+
+		public String toString() {
+			return (sql!=null)?sql:name+" ON "+relation+" "+columns+(included.isEmpty()?"":" INCLUDE "+included)
+				+(where==null?"":" WHERE "+where);
+		}
+	}
+	//============================================================================
+	/**
+	* A suggested index, with the query it would help and an estimate of how much.
+	*/
+	public static class Advice implements Serializable {
+		private final static long serialVersionUID=1L;
+		final Index index;
+		final String query;
+		//the EXPLAIN QUERY PLAN line that showed the problem
+		final String reason;
+		final long executions;
+		final double averageMillis;
+		//rows read per execution now, and with the index
+		final double rowsBefore;
+		final double rowsAfter;
+
+		public Advice(Index index,String query,String reason,long executions,double averageMillis,double rowsBefore,double rowsAfter) {
+			this.index=index;
+			this.query=query;
+			this.reason=reason;
+			this.executions=executions;
+			this.averageMillis=averageMillis;
+			this.rowsBefore=rowsBefore;
+			this.rowsAfter=rowsAfter;
+		}
+
+		public Index getIndex() {return index;}
+		public String getQuery() {return query;}
+		public String getReason() {return reason;}
+		public long getExecutions() {return executions;}
+		public double getAverageMillis() {return averageMillis;}
+
+		//rows that would not be read, over all the executions seen so far
+		public double getBenefit() {
+			return (rowsBefore-rowsAfter)*executions;
+		}
+
+		public String toString() {
+			return index+" for "+query+" ("+reason+", "+executions+" runs, avg "+averageMillis
+				+" ms, rows "+Math.round(rowsBefore)+" -> "+Math.round(rowsAfter)+")";
+		}
 	}
 	//============================================================================
 	//a key is just the tablename/id combination
@@ -298,19 +441,234 @@ public interface Apollo {
 	//	a SelectCondition, which will compare to a value
 	//and a JoinCondition, which will compare columns in two different relations
 	//this is the where clause
-	public static class Condition {
-		//to be determined
+	/**
+	* A Condition is a tree.  A leaf holds a single Expression, and a branch joins
+	* two or more Conditions with AND or OR.  For example:
+	*		Condition.where("state",Verb.EQ,"MI").and(Condition.where("balance",Verb.GTE,100))
+	*
+	* The values are never put into the SQL.  They are bound as parameters, so two conditions
+	* that differ only in their values have the same shape and compile to the same statement.
+	*/
+	public static class Condition implements Serializable {
+		private final static long serialVersionUID=1L;
+		public static enum Connector {AND, OR}
+
+		//a leaf has an expression, a branch has a connector and terms
+		final Expression expression;
+		final Connector connector;
+		final Condition[] terms;
+
+		public Condition(Expression e) {
+			if (e==null) {throw new IllegalArgumentException("expression is null");}
+			expression=e;
+			connector=null;
+			terms=null;
+		}
+
+		private Condition(Connector c, Condition[] t) {
+			if (t==null || t.length==0) {throw new IllegalArgumentException("no terms for "+c);}
+			expression=null;
+			connector=c;
+			terms=t.clone();
+		}
 
-		//a condition is made up of one or more expressions
-		//with boolean connector AND
+		//shortcut for new Condition(new Expression(column,verb,value))
+		public static Condition where(String column, Verb verb, Object value) {
+			return new Condition(new Expression(column,verb,value));
+		}
+
+		//shortcut for IS_NULL and NOT_NULL, which don't have a value
+		public static Condition where(String column, Verb verb) {
+			return new Condition(new Expression(column,verb,null));
+		}
+
+		public static Condition all(Condition... c) {
+			return c.length==1?c[0]:new Condition(Connector.AND,c);
+		}
+
+		public static Condition any(Condition... c) {
+			return c.length==1?c[0]:new Condition(Connector.OR,c);
+		}
+
+		public Condition and(Condition c) {
+			return all(this,c);
+		}
+
+		public Condition or(Condition c) {
+			return any(this,c);
+		}
+
+		public boolean isLeaf() {
+			return expression!=null;
+		}
+
+		public Expression getExpression() {return expression;}
+		public Connector getConnector() {return connector;}
+		public Condition[] getTerms() {return terms==null?null:terms.clone();}
+
+		/**
+		* Write this condition as SQL with ? placeholders, and add the values to params in the
+		* same order.  Branches are always put in parentheses so precedence doesn't matter.
+		*/
+		public void toSQL(StringBuilder sql, java.util.List<Object> params) {
+			toSQL(sql,params,null);
+		}
+
+		/**
+		* The same, but column names are looked up in the map (by lower case name) to get the sql
+		* for the column, like "c"."name" in a join.  Names not in the map are just quoted.
+		*/
+		public void toSQL(StringBuilder sql, java.util.List<Object> params, java.util.Map<String,String> names) {
+			if (expression!=null) {
+				expression.toSQL(sql,params,names);
+				return;
+			}
+			sql.append('(');
+			for (int i=0;i<terms.length;i++) {
+				if (i>0) {sql.append(' ').append(connector).append(' ');}
+				terms[i].toSQL(sql,params,names);
+			}
+			sql.append(')');
+		}
+
+		//add every column this condition refers to, including Column values
+		public void columns(java.util.Set<String> names) {
+			if (expression!=null) {
+				names.add(expression.subject);
+				if (expression.object instanceof Column) {
+					names.add(((Column)expression.object).name);
+				}
+			} else {
+				for (Condition c: terms) {c.columns(names);}
+			}
+		}
+
+		public String toString() {
+			StringBuilder sb=new StringBuilder();
+			java.util.List<Object> params=new java.util.ArrayList<Object>();
+			toSQL(sb,params);
+			return sb.toString()+" "+params;
+		}
+	}
+	//=======================================================
+	/**
+	* A reference to a column, used as the object of an Expression to compare two columns.
+	* This is how a join condition is written:
+	*		Condition.where("orders.customer_id",Verb.EQ,new Column("customer.id"))
+	*/
+	public static class Column implements Serializable {
+		private final static long serialVersionUID=1L;
+		final String name;
+
+		public Column(String name) {
+			if (name==null || name.length()==0) {throw new IllegalArgumentException("column name is required");}
+			this.name=name;
+		}
+
+		public String getName() {return name;}
+
+		public String toString() {return name;}
+	}
+	//=======================================================
+	/**
+	* The comparison operators.  IN and NOT_IN take an array or a Collection, IS_NULL and
+	* NOT_NULL take no value.
+	*/
+	public static enum Verb {
+		EQ("="), NE("<>"), LT("<"), LTE("<="), GT(">"), GTE(">="),
+		IN("IN"), NOT_IN("NOT IN"), IS_NULL("IS NULL"), NOT_NULL("IS NOT NULL");
+
+		final String sql;
+		Verb(String s) {sql=s;}
+		public String getSQL() {return sql;}
 	}
 	//=======================================================
-	//commented out because we haven't referenced it yet
-	//public static class Expression {
-	//
-	//	an expression will have a subject, verb, and object
-	// where verb is something like: EQ,NE,GTE,LT and maybe IN, NOT_IN
-	//}
+	/**
+	* An expression has a subject, verb, and object, like "balance GTE 100".  The subject is
+	* a column name and the object is a value.
+	*
+	* Comparing to null with EQ or NE is not allowed, because in SQL it never matches.  Use
+	* IS_NULL or NOT_NULL instead.
+	*/
+	public static class Expression implements Serializable {
+		private final static long serialVersionUID=1L;
+		final String subject;
+		final Verb verb;
+		final Object object;
+		//for IN and NOT_IN
+		final Object[] list;
+
+		public Expression(String column, Verb v, Object value) {
+			if (column==null || column.length()==0) {throw new IllegalArgumentException("column is required");}
+			if (v==null) {throw new IllegalArgumentException("verb is required");}
+			subject=column;
+			verb=v;
+			if (v==Verb.IS_NULL || v==Verb.NOT_NULL) {
+				object=null;
+				list=null;
+			} else if (v==Verb.IN || v==Verb.NOT_IN) {
+				object=null;
+				if (value instanceof Object[]) {
+					list=((Object[])value).clone();
+				} else if (value instanceof java.util.Collection) {
+					list=((java.util.Collection<?>)value).toArray();
+				} else {
+					throw new IllegalArgumentException(v+" requires an array or Collection");
+				}
+				for (Object o: list) {
+					if (o==null) {throw new IllegalArgumentException(v+" list contains null");}
+				}
+			} else {
+				if (value==null) {throw new IllegalArgumentException("use IS_NULL or NOT_NULL to compare "+column+" to null");}
+				object=value;
+				list=null;
+			}
+		}
+
+		public String getSubject() {return subject;}
+		public Verb getVerb() {return verb;}
+		public Object getObject() {return list!=null?list.clone():object;}
+
+		public void toSQL(StringBuilder sql, java.util.List<Object> params) {
+			toSQL(sql,params,null);
+		}
+
+		public void toSQL(StringBuilder sql, java.util.List<Object> params, java.util.Map<String,String> names) {
+			String col=column(subject,names);
+			switch (verb) {
+				case IS_NULL:
+				case NOT_NULL:
+					sql.append(col).append(' ').append(verb.sql);
+					break;
+				case IN:
+				case NOT_IN:
+					if (list.length==0) {
+						//nothing is IN an empty list
+						sql.append(verb==Verb.IN?"0":"1");
+						break;
+					}
+					sql.append(col).append(' ').append(verb.sql).append(" (");
+					for (int i=0;i<list.length;i++) {
+						sql.append(i==0?"?":",?");
+						params.add(list[i]);
+					}
+					sql.append(')');
+					break;
+				default:
+					if (object instanceof Column) {
+						sql.append(col).append(verb.sql).append(column(((Column)object).name,names));
+					} else {
+						sql.append(col).append(verb.sql).append('?');
+						params.add(object);
+					}
+			}
+		}
+
+		static String column(String name, java.util.Map<String,String> names) {
+			String s=(names==null)?null:names.get(name.toLowerCase());
+			return (s!=null)?s:'"'+org.sqlite.SQLite.escapeIdentifier(name)+'"';
+		}
+	}
 	//=============================================================================
 	/**
 	* Transaction is basically metadata about a transaction.  You can do a transaction
@@ -388,6 +746,7 @@ public interface Apollo {
 		/**
 		* close the connection when done.  Will throw an exception only if the pointer passed in
 		* is null or if it is not an org.sqlite.SQLite.SQLite3 pointer.
+		* Close it with Plan.close(), so the cached statements don't keep it open.
 		*/
 		public void close(com.sun.jna.PointerType connection) throws RelationException;
 
@@ -0,0 +1,337 @@
+package nathanvander.apollo;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.sun.jna.Pointer;
+import org.sqlite.SQLite;
+import org.sqlite.SQLite.SQLite3;
+import org.sqlite.SQLite.Stmt;
+import nathanvander.apollo.Apollo.Advice;
+import nathanvander.apollo.Apollo.Index;
+import nathanvander.apollo.Apollo.RelationException;
+
+/**
+* IndexAdvisor watches the queries run by PlanCursor.  When a query is slow (SLOW_NANOS) or
+* frequent (FREQUENT runs), it records EXPLAIN QUERY PLAN for it once, and looks for two things:
+*	SCAN orders						the whole table is read
+*	USE TEMP B-TREE FOR ORDER BY	the rows are sorted after they are read
+*
+* For a scan, the columns the WHERE clause compares with = or IN come first in the suggested
+* index, then one column compared with <, >, <= or >=.  The benefit is estimated with the same
+* statistics JoinPlanner uses: the rows read now (the whole table) against the rows the index would
+* read, times the number of runs.  It is only an estimate.  Check it with RelationManager.explain()
+* after creating the index.
+*
+* If AUTO_CREATE is true, an index whose benefit is more than AUTO_MIN_BENEFIT rows is created as
+* soon as it is found.  It is off by default, because an index makes every insert slower.
+*
+* The DataStore server's selectWhere() and view() queries are watched by apollo.server.IndexAdvisor.
+*/
+public class IndexAdvisor {
+	public static long SLOW_NANOS=50L*1000*1000;
+	public static int FREQUENT=100;
+	public final static int MAX_QUERIES=1000;
+	public static boolean AUTO_CREATE=false;
+	public static double AUTO_MIN_BENEFIT=1000000;
+
+	//"table"."column" op, with an optional column on the right side for a join
+	private final static Pattern TERM=Pattern.compile(
+		"(?:\"((?:[^\"]|\"\")+)\"\\.)?\"((?:[^\"]|\"\")+)\"\\s*(<=|>=|<>|=|<|>|NOT IN|IN|IS NOT NULL|IS NULL)\\s*(?:(?:\"((?:[^\"]|\"\")+)\"\\.)?\"((?:[^\"]|\"\")+)\")?");
+	private final static Pattern ALIAS=Pattern.compile("\"((?:[^\"]|\"\")+)\" AS \"((?:[^\"]|\"\")+)\"");
+	private final static Pattern SCAN=Pattern.compile("^SCAN (?:TABLE )?(\\S+)(?: AS (\\S+))?");
+
+	static class Query {
+		final SQLite3 db;
+		final String sql;
+		Object[] params;
+		long count;
+		long nanos;
+		String[] plan;
+
+		Query(SQLite3 db,String sql) {
+			this.db=db;
+			this.sql=sql;
+		}
+	}
+
+	private final static LinkedHashMap<String,Query> queries=new LinkedHashMap<String,Query>(64,0.75f,true) {
+		protected boolean removeEldestEntry(Map.Entry<String,Query> eldest) {
+			return size()>MAX_QUERIES;
+		}
+	};
+
+	private static String key(SQLite3 db,String sql) {
+		return Pointer.nativeValue(db.getPointer())+":"+sql;
+	}
+
+	/**
+	* Called by PlanCursor when it is closed, with the time spent stepping.
+	*/
+	static void record(Plan p,Object[] params,long nanos) {
+		//the catalog queries are not worth advice
+		if (p.sql.contains("sqlite_") || p.sql.contains("pragma_")) {
+			return;
+		}
+		Query q;
+		synchronized (queries) {
+			String k=key(p.db,p.sql);
+			q=queries.get(k);
+			if (q==null) {
+				q=new Query(p.db,p.sql);
+				queries.put(k,q);
+			}
+			q.count++;
+			q.nanos+=nanos;
+			q.params=params;
+			if (q.plan!=null || (nanos<SLOW_NANOS && q.count<FREQUENT)) {
+				return;
+			}
+		}
+		try {
+			String[] plan=explain(p.db,p.sql,params);
+			synchronized (queries) {
+				q.plan=plan;
+			}
+		} catch (RelationException x) {
+			System.out.println("warning: can't explain "+p.sql+": "+x);
+			return;
+		}
+		if (AUTO_CREATE) {
+			for (Advice a: advise(q)) {
+				if (a.getBenefit()>=AUTO_MIN_BENEFIT) {
+					try {
+						new SQLRelationManager(p.db).createIndex(a.getIndex());
+						System.out.println("created "+a);
+					} catch (RelationException x) {
+						System.out.println("warning: can't create "+a.getIndex()+": "+x);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	* The detail column of EXPLAIN QUERY PLAN, indented two spaces for each level.
+	*/
+	static String[] explain(SQLite3 db,String sql,Object[] params) throws RelationException {
+		Stmt s=Stmt.prepare(db,"EXPLAIN QUERY PLAN "+sql);
+		if (s==null) {
+			throw new RelationException(Stmt.errmsg(db)+" in "+sql,Stmt.errcode(db));
+		}
+		try {
+			for (int i=0;i<params.length;i++) {
+				s.bind(i+1,params[i]);
+			}
+			List<String> lines=new ArrayList<String>();
+			Map<Long,Integer> depth=new HashMap<Long,Integer>();
+			int rc;
+			while ((rc=s.step())==SQLite.SQLITE_ROW) {
+				long id=((Number)s.column(0)).longValue();
+				Integer d=depth.get(((Number)s.column(1)).longValue());
+				int level=(d==null)?0:d+1;
+				depth.put(id,level);
+				StringBuilder sb=new StringBuilder();
+				for (int i=0;i<level;i++) {sb.append("  ");}
+				lines.add(sb.append(s.column(3)).toString());
+			}
+			if (rc!=SQLite.SQLITE_DONE) {
+				throw new RelationException(Stmt.errmsg(db)+" in "+sql,rc);
+			}
+			return lines.toArray(new String[lines.size()]);
+		} finally {
+			s.finish();
+		}
+	}
+
+	/**
+	* The advice for every query on the connection that has been explained, best first.  The same
+	* index suggested for more than one query is listed once, with the runs added together.
+	*/
+	static Advice[] advise(SQLite3 db) {
+		List<Query> list=new ArrayList<Query>();
+		synchronized (queries) {
+			for (Query q: queries.values()) {
+				if (q.db.getPointer().equals(db.getPointer()) && q.plan!=null) {
+					list.add(q);
+				}
+			}
+		}
+		Map<String,Advice> merged=new LinkedHashMap<String,Advice>();
+		for (Query q: list) {
+			for (Advice a: advise(q)) {
+				String k=a.getIndex().toString();
+				Advice b=merged.get(k);
+				if (b==null || b.getBenefit()<a.getBenefit()) {
+					if (b!=null) {
+						a=new Advice(a.index,a.query,a.reason,a.executions+b.executions,a.averageMillis,a.rowsBefore,a.rowsAfter);
+					}
+					merged.put(k,a);
+				}
+			}
+		}
+		List<Advice> result=new ArrayList<Advice>(merged.values());
+		Collections.sort(result,new Comparator<Advice>() {
+			public int compare(Advice a,Advice b) {
+				return Double.compare(b.getBenefit(),a.getBenefit());
+			}
+		});
+		return result.toArray(new Advice[result.size()]);
+	}
+
+	//the advice for one query
+	static List<Advice> advise(Query q) {
+		List<Advice> advice=new ArrayList<Advice>();
+		String[] plan;
+		long count;
+		double avg;
+		synchronized (queries) {
+			plan=q.plan;
+			count=q.count;
+			avg=q.nanos/1e6/q.count;
+		}
+		Map<String,String> aliases=new HashMap<String,String>();
+		Matcher m=ALIAS.matcher(q.sql);
+		while (m.find()) {
+			aliases.put(unquote(m.group(2)).toLowerCase(),unquote(m.group(1)));
+		}
+		for (String line: plan) {
+			String detail=line.trim();
+			Matcher s=SCAN.matcher(detail);
+			if (s.find()) {
+				String name=(s.group(2)!=null)?s.group(2):s.group(1);
+				String table=aliases.containsKey(name.toLowerCase())?aliases.get(name.toLowerCase()):s.group(1);
+				if (table.startsWith("sqlite_") || table.equals("CONSTANT") || table.equals("SUBQUERY")) {
+					continue;
+				}
+				Advice a=forScan(q,table,name,detail,count,avg);
+				if (a!=null) {advice.add(a);}
+			} else if (detail.startsWith("USE TEMP B-TREE FOR ORDER BY") && aliases.isEmpty()) {
+				Advice a=forSort(q,detail,count,avg);
+				if (a!=null) {advice.add(a);}
+			}
+		}
+		return advice;
+	}
+
+	private static Advice forScan(Query q,String table,String name,String detail,long count,double avg) {
+		JoinPlanner.TableStats ts=JoinPlanner.stats(q.db,table);
+		if (ts.rows<=0) {return null;}
+		//only the WHERE clause has conditions
+		int w=q.sql.indexOf(" WHERE ");
+		if (w<0) {return null;}
+		String where=q.sql.substring(w);
+		int o=where.indexOf(" ORDER BY ");
+		if (o>=0) {where=where.substring(0,o);}
+		boolean qualified=q.sql.contains("\""+name+"\".");
+		List<String> eq=new ArrayList<String>();
+		String range=null;
+		double selectivity=1;
+		Matcher m=TERM.matcher(where);
+		while (m.find()) {
+			String op=m.group(3);
+			//the column on the left, then on the right of a join condition
+			for (int side=0;side<2;side++) {
+				String qual=unquote(m.group(side==0?1:4));
+				String col=unquote(m.group(side==0?2:5));
+				if (col==null) {continue;}
+				if (qualified && (qual==null || !qual.equalsIgnoreCase(name))) {continue;}
+				if (side==1 && !op.equals("=")) {continue;}
+				if (op.equals("=") || op.equals("IN") || op.equals("IS NULL")) {
+					if (!eq.contains(col)) {
+						eq.add(col);
+						selectivity*=ts.distinct(col)>0?1/ts.distinct(col):JoinPlanner.EQ;
+					}
+				} else if (range==null && (op.equals("<") || op.equals(">") || op.equals("<=") || op.equals(">="))) {
+					range=col;
+				}
+			}
+		}
+		if (range!=null && !eq.contains(range)) {
+			selectivity*=JoinPlanner.RANGE;
+		} else {
+			range=null;
+		}
+		if (eq.isEmpty() && range==null) {return null;}
+		Index ix=new Index(indexName(table,eq,range),table);
+		for (String c: eq) {ix.on(c);}
+		if (range!=null) {ix.on(range);}
+		double before=ts.rows;
+		double after=ts.rows*selectivity+Math.log(ts.rows+1)/Math.log(2);
+		if (after>=before) {return null;}
+		return new Advice(ix,q.sql,detail,count,avg,before,after);
+	}
+
+	private static Advice forSort(Query q,String detail,long count,double avg) {
+		int o=q.sql.indexOf(" ORDER BY ");
+		Matcher f=Pattern.compile(" FROM \"((?:[^\"]|\"\")+)\"").matcher(q.sql);
+		if (o<0 || !f.find()) {return null;}
+		String table=unquote(f.group(1));
+		JoinPlanner.TableStats ts=JoinPlanner.stats(q.db,table);
+		if (ts.rows<=1) {return null;}
+		List<String> cols=new ArrayList<String>();
+		Matcher m=Pattern.compile("\"((?:[^\"]|\"\")+)\"( DESC| ASC)?").matcher(q.sql.substring(o));
+		while (m.find()) {
+			cols.add(unquote(m.group(1))+(m.group(2)==null?"":m.group(2)));
+		}
+		if (cols.isEmpty()) {return null;}
+		Index ix=new Index(indexName(table,cols,null),table);
+		for (String c: cols) {ix.on(c);}
+		//sorting n rows is about n log n, reading them in order is n
+		double n=ts.rows;
+		return new Advice(ix,q.sql,detail,count,avg,n*Math.log(n)/Math.log(2),n);
+	}
+
+	static String indexName(String table,List<String> cols,String range) {
+		StringBuilder sb=new StringBuilder("auto_").append(table);
+		for (String c: cols) {sb.append('_').append(c.split(" ")[0]);}
+		if (range!=null) {sb.append('_').append(range);}
+		return sb.toString();
+	}
+
+	private static String unquote(String s) {
+		return (s==null)?null:s.replace("\"\"","\"");
+	}
+
+	/**
+	* Forget the plans of the queries on the connection, so they are explained again.  Called
+	* when an index is created or dropped.
+	*/
+	static void forget(SQLite3 db) {
+		synchronized (queries) {
+			Iterator<Query> it=queries.values().iterator();
+			while (it.hasNext()) {
+				Query q=it.next();
+				if (q.db.getPointer().equals(db.getPointer())) {
+					q.plan=null;
+				}
+			}
+		}
+	}
+
+	/**
+	* Forget the queries on the connection.  Called by Plan.close().
+	*/
+	static void release(SQLite3 db) {
+		synchronized (queries) {
+			Iterator<Query> it=queries.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().db.getPointer().equals(db.getPointer())) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	public static void clear() {
+		synchronized (queries) {
+			queries.clear();
+		}
+	}
+}
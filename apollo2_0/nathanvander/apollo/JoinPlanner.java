@@ -0,0 +1,303 @@
+package nathanvander.apollo;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import com.sun.jna.Pointer;
+import org.sqlite.SQLite.SQLite3;
+import nathanvander.apollo.Apollo.Column;
+import nathanvander.apollo.Apollo.Condition;
+import nathanvander.apollo.Apollo.Expression;
+import nathanvander.apollo.Apollo.RelationException;
+import nathanvander.apollo.Apollo.Verb;
+
+/**
+* JoinPlanner decides the order of the tables in a join.
+*
+* It estimates how many rows each table gives after its own conditions, and how much each join
+* condition cuts down the rows, then builds the join greedily: start with the smallest table,
+* and keep adding the table that is connected by a join condition and gives the fewest rows.
+*
+* The numbers come from sqlite_stat1 if ANALYZE has been run, otherwise from count(*).  The
+* order is only forced with CROSS JOIN when every table in the join is in sqlite_stat1, so the
+* estimates are from real statistics.  Otherwise the selectivities below are guesses, and SQLite's
+* own planner, which knows which columns have indexes, does better, so the tables are listed in
+* this order with JOIN and SQLite is free to change it.
+*
+* The selectivity rules are the usual ones: an EQ on a column is avg rows per value divided by
+* rows if sqlite_stat1 has an index on it, otherwise 1/10; a range is 1/3; a join on equal
+* columns is 1/max(distinct values) and the join column is assumed to be a key if nothing is known.
+*/
+public class JoinPlanner {
+	//how long to keep the statistics for a table, in milliseconds
+	public final static long STATS_MAX_AGE=60000;
+	final static double EQ=0.1;
+	final static double RANGE=1.0/3;
+	final static double NULL=0.1;
+
+	private final static Map<String,TableStats> stats=new HashMap<String,TableStats>();
+
+	//the join order, by source index
+	static class Order {
+		final int[] sources;
+		final double rows;
+		final boolean forced;
+		Order(int[] s,double r,boolean f) {sources=s;rows=r;forced=f;}
+	}
+
+	static class TableStats {
+		final long rows;
+		//average rows per value of the first column of an index, from sqlite_stat1
+		final Map<String,Long> perValue;
+		//true if the numbers are from sqlite_stat1
+		final boolean analyzed;
+		final long time;
+
+		TableStats(long rows,Map<String,Long> perValue,boolean analyzed) {
+			this.rows=Math.max(rows,1);
+			this.perValue=perValue;
+			this.analyzed=analyzed;
+			this.time=System.currentTimeMillis();
+		}
+
+		//the number of distinct values, or 0 if not known
+		double distinct(String column) {
+			if ("rowid".equalsIgnoreCase(column)) {return rows;}
+			Long avg=perValue.get(column.toLowerCase());
+			return (avg==null)?0:rows/(double)Math.max(avg.longValue(),1);
+		}
+	}
+
+	/**
+	* Plan the join order for the relation.
+	*/
+	static Order plan(SQLRelation r) {
+		int n=r.sources.length;
+		SQLite3 db=r.db;
+		TableStats[] ts=new TableStats[n];
+		double[] est=new double[n];
+		for (int i=0;i<n;i++) {
+			ts[i]=stats(db,r.sources[i].table);
+			est[i]=ts[i].rows;
+		}
+
+		//apply the conditions on a single table, and keep the join conditions for later
+		SQLRelation.Filter[] joins=new SQLRelation.Filter[r.filters.length];
+		int nj=0;
+		for (SQLRelation.Filter f: r.filters) {
+			Set<Integer> s=f.sources();
+			if (s.size()==1) {
+				int k=s.iterator().next();
+				est[k]*=selectivity(f.condition,f.scope,ts);
+			} else if (s.size()>1) {
+				joins[nj++]=f;
+			}
+		}
+		for (int i=0;i<n;i++) {
+			est[i]=Math.max(est[i],1);
+		}
+
+		int[] order=new int[n];
+		boolean[] placed=new boolean[n];
+		boolean[] applied=new boolean[nj];
+		int first=0;
+		for (int i=1;i<n;i++) {
+			if (est[i]<est[first]) {first=i;}
+		}
+		order[0]=first;
+		placed[first]=true;
+		double card=est[first];
+
+		for (int step=1;step<n;step++) {
+			int best=-1;
+			double bestCard=0;
+			boolean bestConnected=false;
+			for (int j=0;j<n;j++) {
+				if (placed[j]) {continue;}
+				double sel=1;
+				boolean connected=false;
+				for (int k=0;k<nj;k++) {
+					if (!applied[k] && ready(joins[k],placed,j)) {
+						sel*=selectivity(joins[k].condition,joins[k].scope,ts);
+						connected=true;
+					}
+				}
+				double c=Math.max(card*est[j]*sel,1);
+				//a table connected by a join condition always beats a cross product
+				if (best<0 || (connected && !bestConnected) || (connected==bestConnected && c<bestCard)) {
+					best=j;
+					bestCard=c;
+					bestConnected=connected;
+				}
+			}
+			placed[best]=true;
+			for (int k=0;k<nj;k++) {
+				if (!applied[k] && ready(joins[k],placed,-1)) {applied[k]=true;}
+			}
+			order[step]=best;
+			card=bestCard;
+		}
+		boolean analyzed=true;
+		for (int i=0;i<n;i++) {
+			analyzed&=ts[i].analyzed;
+		}
+		return new Order(order,card,analyzed);
+	}
+
+	//true if every table the filter uses is placed, or is j
+	private static boolean ready(SQLRelation.Filter f,boolean[] placed,int j) {
+		for (int s: f.sources()) {
+			if (!placed[s] && s!=j) {return false;}
+		}
+		return true;
+	}
+
+	/**
+	* Estimate the fraction of rows that match the condition.
+	*/
+	static double selectivity(Condition c,Map<String,SQLRelation.ColRef> scope,TableStats[] ts) {
+		if (!c.isLeaf()) {
+			Condition[] terms=c.getTerms();
+			if (c.getConnector()==Condition.Connector.AND) {
+				double s=1;
+				for (Condition t: terms) {s*=selectivity(t,scope,ts);}
+				return s;
+			} else {
+				double none=1;
+				for (Condition t: terms) {none*=1-selectivity(t,scope,ts);}
+				return 1-none;
+			}
+		}
+		Expression e=c.getExpression();
+		SQLRelation.ColRef ref=scope.get(e.getSubject().toLowerCase());
+		if (ref==null) {return 1;}
+		TableStats t=ts[ref.source];
+		Object o=e.getObject();
+		double eq=equality(t,ref.column);
+		switch (e.getVerb()) {
+			case EQ:
+				if (o instanceof Column) {
+					SQLRelation.ColRef other=scope.get(((Column)o).getName().toLowerCase());
+					if (other==null) {return EQ;}
+					TableStats u=ts[other.source];
+					double d1=t.distinct(ref.column);
+					double d2=u.distinct(other.column);
+					//assume the join column is a key if nothing is known
+					if (d1==0) {d1=(d2==0)?Math.max(t.rows,u.rows):t.rows;}
+					if (d2==0) {d2=u.rows;}
+					return 1/Math.max(Math.max(d1,d2),1);
+				}
+				return eq;
+			case NE:
+				return 1-eq;
+			case LT: case LTE: case GT: case GTE:
+				return RANGE;
+			case IN:
+				return Math.min(1,((Object[])o).length*eq);
+			case NOT_IN:
+				return Math.max(0.1,1-((Object[])o).length*eq);
+			case IS_NULL:
+				return NULL;
+			case NOT_NULL:
+				return 1-NULL;
+		}
+		return 1;
+	}
+
+	private static double equality(TableStats t,String column) {
+		double d=t.distinct(column);
+		return (d>0)?1/d:EQ;
+	}
+
+	//------------------------------------------
+	/**
+	* Get the statistics for the table, from the cache if they are recent enough.
+	*/
+	static TableStats stats(SQLite3 db,String table) {
+		String key=Pointer.nativeValue(db.getPointer())+":"+table.toLowerCase();
+		synchronized (stats) {
+			TableStats t=stats.get(key);
+			if (t!=null && System.currentTimeMillis()-t.time<STATS_MAX_AGE) {return t;}
+		}
+		TableStats t=load(db,table);
+		synchronized (stats) {
+			stats.put(key,t);
+		}
+		return t;
+	}
+
+	//forget the statistics, for example after ANALYZE or a big load
+	public static void clearStats() {
+		synchronized (stats) {
+			stats.clear();
+		}
+	}
+
+	//forget the statistics of the connection.  Called by Plan.close()
+	static void release(SQLite3 db) {
+		String prefix=Pointer.nativeValue(db.getPointer())+":";
+		synchronized (stats) {
+			Iterator<String> it=stats.keySet().iterator();
+			while (it.hasNext()) {
+				if (it.next().startsWith(prefix)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	private static TableStats load(SQLite3 db,String table) {
+		long rows=-1;
+		Map<String,Long> perValue=new HashMap<String,Long>();
+		if (hasStat1(db)) {
+			try {
+				for (Row r: query(db,"SELECT idx,stat FROM sqlite_stat1 WHERE tbl=?",new String[]{"idx","stat"},table)) {
+					String[] nums=((String)r.get(1)).split(" ");
+					//the first number is the rows in the index, which is fewer than the table for a
+					//partial index, so the largest is the table
+					rows=Math.max(rows,Long.parseLong(nums[0]));
+					String idx=(String)r.get(0);
+					if (idx!=null && nums.length>1) {
+						for (Row c: query(db,"SELECT name FROM pragma_index_info(?) WHERE seqno=0",new String[]{"name"},idx)) {
+							if (c.get(0)!=null) {perValue.put(((String)c.get(0)).toLowerCase(),Long.parseLong(nums[1]));}
+						}
+					}
+				}
+			} catch (Exception x) {
+				System.out.println("warning: can't read sqlite_stat1 for "+table+": "+x);
+			}
+		}
+		boolean analyzed=rows>=0;
+		if (rows<0) {
+			try {
+				for (Row r: query(db,"SELECT count(*) FROM "+SQLRelation.quote(table),new String[]{"count"})) {
+					rows=((Number)r.get(0)).longValue();
+				}
+			} catch (RelationException x) {
+				System.out.println("warning: can't count "+table+": "+x);
+			}
+		}
+		return new TableStats(rows,perValue,analyzed);
+	}
+
+	static boolean hasStat1(SQLite3 db) {
+		try {
+			return query(db,"SELECT 1 FROM sqlite_master WHERE type='table' AND name='sqlite_stat1'",new String[]{"x"}).length>0;
+		} catch (RelationException x) {
+			return false;
+		}
+	}
+
+	//run a small query and return all the rows
+	static Row[] query(SQLite3 db,String sql,String[] columns,Object... params) throws RelationException {
+		java.util.List<Row> rows=new java.util.ArrayList<Row>();
+		PlanCursor c=new PlanCursor(Plan.get(db,sql,columns),params);
+		try {
+			c.open();
+			while (c.hasNext()) {rows.add((Row)c.next());}
+		} finally {
+			c.close();
+		}
+		return rows.toArray(new Row[rows.size()]);
+	}
+}
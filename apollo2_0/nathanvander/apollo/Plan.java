@@ -0,0 +1,146 @@
+package nathanvander.apollo;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import com.sun.jna.Pointer;
+import org.sqlite.SQLite;
+import org.sqlite.SQLite.SQLite3;
+import org.sqlite.SQLite.Stmt;
+import nathanvander.apollo.Apollo.RelationException;
+
+/**
+* A Plan is a compiled SELECT on one connection: the sql with ? placeholders, the columns it
+* returns, and a prepared statement that can be reused.
+*
+* Because the values of a Condition are always bound as parameters, the sql only depends on the
+* shape of the relation (which table, which columns, which verbs and connectors).  Derived
+* relations with the same shape get the same Plan from the cache, so SQLite parses and plans the
+* query once and after that it is just reset and bind.
+*
+* The cache is a LRU map.  A plan keeps one idle statement; if two cursors use the same plan at
+* the same time, the second one prepares its own statement and finalizes it on close.
+*
+* Statements hold the connection open, so close a connection with Plan.close(db).  It finalizes
+* the connection's statements first, and forgets everything cached for it, because the next
+* connection may get the same pointer.
+*/
+public class Plan {
+	public final static int MAX_PLANS=256;
+
+	private final static LinkedHashMap<String,Plan> cache=new LinkedHashMap<String,Plan>(64,0.75f,true) {
+		protected boolean removeEldestEntry(Map.Entry<String,Plan> eldest) {
+			if (size()>MAX_PLANS) {
+				eldest.getValue().discard();
+				return true;
+			}
+			return false;
+		}
+	};
+	private static long hits=0;
+	private static long misses=0;
+
+	final SQLite3 db;
+	final String sql;
+	final String[] columns;
+	private Stmt idle;
+	private boolean discarded=false;
+
+	private Plan(SQLite3 db,String sql,String[] columns) {
+		this.db=db;
+		this.sql=sql;
+		this.columns=columns;
+	}
+
+	//the cache key includes the connection, because statements belong to a connection
+	private static String key(SQLite3 db,String sql) {
+		return Pointer.nativeValue(db.getPointer())+":"+sql;
+	}
+
+	/**
+	* Get the cached plan for the sql on this connection, or create it.
+	*/
+	public static synchronized Plan get(SQLite3 db,String sql,String[] columns) {
+		String k=key(db,sql);
+		Plan p=cache.get(k);
+		if (p!=null) {
+			hits++;
+			return p;
+		}
+		misses++;
+		p=new Plan(db,sql,columns);
+		cache.put(k,p);
+		return p;
+	}
+
+	/**
+	* Finalize and forget every plan on this connection.
+	*/
+	public static synchronized void release(SQLite3 db) {
+		String prefix=Pointer.nativeValue(db.getPointer())+":";
+		Iterator<Map.Entry<String,Plan>> it=cache.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String,Plan> e=it.next();
+			if (e.getKey().startsWith(prefix)) {
+				e.getValue().discard();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	* Release the plans on the connection and close it.
+	*/
+	public static void close(SQLite3 db) throws RelationException {
+		release(db);
+		IndexAdvisor.release(db);
+		JoinPlanner.release(db);
+		int rc=Stmt.closeConnection(db);
+		if (rc!=SQLite.SQLITE_OK) {
+			throw new RelationException("can't close the connection: "+Stmt.errmsg(db),rc);
+		}
+	}
+
+	public static synchronized String stats() {
+		return "plans="+cache.size()+" hits="+hits+" misses="+misses;
+	}
+
+	public String getSQL() {return sql;}
+
+	public String[] getColumnNames() {return columns.clone();}
+
+	/**
+	* Get a statement to run.  This is the idle one if nobody is using it.
+	*/
+	synchronized Stmt checkout() throws RelationException {
+		if (idle!=null) {
+			Stmt s=idle;
+			idle=null;
+			return s;
+		}
+		Stmt s=Stmt.prepare(db,sql);
+		if (s==null) {
+			throw new RelationException(Stmt.errmsg(db)+" in "+sql,Stmt.errcode(db));
+		}
+		return s;
+	}
+
+	/**
+	* Give the statement back when the cursor is closed.
+	*/
+	synchronized void checkin(Stmt s) {
+		s.reset();
+		if (idle==null && !discarded) {
+			idle=s;
+		} else {
+			s.finish();
+		}
+	}
+
+	private synchronized void discard() {
+		discarded=true;
+		if (idle!=null) {
+			idle.finish();
+			idle=null;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package nathanvander.apollo;
+import org.sqlite.SQLite;
+import org.sqlite.SQLite.Stmt;
+import nathanvander.apollo.Apollo.Cursor;
+import nathanvander.apollo.Apollo.RelationException;
+import nathanvander.apollo.Apollo.Tuple;
+
+/**
+* A Cursor over a compiled Plan.  The parameters are bound in open(), and every row is
+* returned as a Row with the plan's columns.  Don't forget to close it, because that gives the
+* statement back to the plan.
+*/
+public class PlanCursor implements Cursor {
+	final Plan plan;
+	final Object[] params;
+	private Stmt stmt;
+	//true if step() returned a row that next() hasn't taken yet
+	private boolean loaded=false;
+	private boolean done=false;
+	//time spent in step(), for the IndexAdvisor
+	private long nanos;
+
+	public PlanCursor(Plan p,Object[] params) {
+		plan=p;
+		this.params=params;
+	}
+
+	public void open() throws RelationException {
+		if (stmt!=null) {throw new RelationException("cursor is already open",RelationException.OTHER);}
+		stmt=plan.checkout();
+		for (int i=0;i<params.length;i++) {
+			int rc=stmt.bind(i+1,params[i]);
+			if (rc!=SQLite.SQLITE_OK) {
+				close();
+				throw new RelationException("error binding parameter "+(i+1)+" in "+plan.sql,rc);
+			}
+		}
+	}
+
+	public boolean hasNext() throws RelationException {
+		if (stmt==null) {throw new RelationException("cursor is not open",RelationException.OTHER);}
+		if (loaded) {return true;}
+		if (done) {return false;}
+		long t=System.nanoTime();
+		int rc=stmt.step();
+		nanos+=System.nanoTime()-t;
+		if (rc==SQLite.SQLITE_ROW) {
+			loaded=true;
+		} else if (rc==SQLite.SQLITE_DONE) {
+			done=true;
+		} else {
+			throw new RelationException(Stmt.errmsg(plan.db)+" in "+plan.sql,rc);
+		}
+		return loaded;
+	}
+
+	public Tuple next() throws RelationException {
+		if (!hasNext()) {throw new RelationException("no more rows",RelationException.OTHER);}
+		Object[] values=new Object[plan.columns.length];
+		for (int i=0;i<values.length;i++) {
+			values[i]=stmt.column(i);
+		}
+		loaded=false;
+		return new Row(plan.columns,values);
+	}
+
+	public void close() {
+		if (stmt!=null) {
+			plan.checkin(stmt);
+			stmt=null;
+			IndexAdvisor.record(plan,params,nanos);
+		}
+	}
+}
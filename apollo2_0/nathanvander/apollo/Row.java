@@ -0,0 +1,62 @@
+package nathanvander.apollo;
+import nathanvander.apollo.Apollo.Tuple;
+
+/**
+* Row is the dynamic Tuple.  It is just the ordered column names and a value for each one.
+* Relations that are created on the fly (projections, joins) return these, because there is no
+* class with public fields to fill in.
+*
+* A Row without values is a model: it shows the columns and nothing else.
+*/
+public class Row implements Tuple, java.io.Serializable {
+	private final static long serialVersionUID=1L;
+	final String[] columns;
+	final Object[] values;
+
+	//create a model with just the column names
+	public Row(String... columns) {
+		this(columns,null);
+	}
+
+	public Row(String[] columns, Object[] values) {
+		if (columns==null) {throw new IllegalArgumentException("columns is null");}
+		if (values!=null && values.length!=columns.length) {
+			throw new IllegalArgumentException("expected "+columns.length+" values but got "+values.length);
+		}
+		this.columns=columns.clone();
+		this.values=(values==null)?new Object[columns.length]:values;
+	}
+
+	public String[] getColumnNames() {
+		return columns.clone();
+	}
+
+	public Object get(String column) {
+		return values[indexOf(column)];
+	}
+
+	//get the value by position, starting at 0
+	public Object get(int i) {
+		return values[i];
+	}
+
+	public int size() {
+		return columns.length;
+	}
+
+	int indexOf(String column) {
+		for (int i=0;i<columns.length;i++) {
+			if (columns[i].equalsIgnoreCase(column)) {return i;}
+		}
+		throw new IllegalArgumentException(column+" is not a column of this tuple");
+	}
+
+	public String toString() {
+		StringBuilder sb=new StringBuilder("{");
+		for (int i=0;i<columns.length;i++) {
+			if (i>0) {sb.append(", ");}
+			sb.append(columns[i]).append('=').append(values[i]);
+		}
+		return sb.append('}').toString();
+	}
+}
@@ -0,0 +1,409 @@
+package nathanvander.apollo;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.sun.jna.Pointer;
+import org.sqlite.SQLite;
+import org.sqlite.SQLite.SQLite3;
+import org.sqlite.SQLite.Stmt;
+import nathanvander.apollo.Apollo.Condition;
+import nathanvander.apollo.Apollo.Cursor;
+import nathanvander.apollo.Apollo.Key;
+import nathanvander.apollo.Apollo.Relation;
+import nathanvander.apollo.Apollo.RelationException;
+import nathanvander.apollo.Apollo.Transaction;
+import nathanvander.apollo.Apollo.Tuple;
+
+/**
+* SQLRelation is a Relation over a table or view, and the derived relations made from it
+* with project(), select() and join().
+*
+* A derived relation doesn't run anything.  It just remembers the tables (sources), the
+* columns and the conditions, so a chain like
+*		r.select(c1).project(t).select(c2)
+* folds into one statement:
+*		SELECT "a","b" FROM "table" WHERE c1 AND c2
+* and the filtering is done by SQLite, not in Java.  The values in the conditions are bound as
+* parameters, so relations with the same shape share a cached Plan.
+*
+* A join puts the sources of both relations together, and JoinPlanner decides the order of
+* the tables.  The columns of a joined relation keep their names unless both sides have the same
+* name, in which case they are called "table.column".  In a self-join the right side is
+* called by the name of the join, like "manager.id".
+*
+* These relations are read-only.  Changes go through a Transaction, which is not part of this.
+*/
+public class SQLRelation implements Relation {
+	final SQLite3 db;
+	final String name;
+	final Source[] sources;
+	//the columns of this relation, in order, with a qualified name and where they come from
+	final String[] columns;
+	final String[] qualified;
+	final ColRef[] refs;
+	final Filter[] filters;
+
+	//=====================================
+	//a table or view in the FROM clause
+	static class Source {
+		final String table;
+		Source(String t) {table=t;}
+	}
+
+	//a column of one of the sources
+	static class ColRef {
+		final int source;
+		final String column;
+		ColRef(int s,String c) {source=s;column=c;}
+		ColRef shift(int n) {return new ColRef(source+n,column);}
+	}
+
+	//a condition, with the columns it uses resolved when select() or join() was called
+	static class Filter {
+		final Condition condition;
+		final Map<String,ColRef> scope;
+		Filter(Condition c,Map<String,ColRef> m) {condition=c;scope=m;}
+
+		Filter shift(int n) {
+			Map<String,ColRef> m=new HashMap<String,ColRef>();
+			for (Map.Entry<String,ColRef> e: scope.entrySet()) {
+				m.put(e.getKey(),e.getValue().shift(n));
+			}
+			return new Filter(condition,m);
+		}
+
+		//the sources this filter uses.  More than one makes it a join condition.
+		Set<Integer> sources() {
+			Set<Integer> s=new LinkedHashSet<Integer>();
+			for (ColRef r: scope.values()) {s.add(r.source);}
+			return s;
+		}
+	}
+	//=====================================
+
+	/**
+	* Create a relation for the table or view.  The connection comes from Kernel.login() or
+	* directly from SQLite.
+	*/
+	public SQLRelation(SQLite3 db,String tableName) throws RelationException {
+		if (db==null) {throw new RelationException("connection is null",RelationException.OTHER);}
+		this.db=db;
+		this.name=tableName;
+		this.sources=new Source[]{new Source(tableName)};
+		this.filters=new Filter[0];
+		//prepare without stepping, just to get the column names
+		String sql="SELECT * FROM "+quote(tableName);
+		Stmt s=Stmt.prepare(db,sql);
+		if (s==null) {
+			throw new RelationException(Stmt.errmsg(db)+" in "+sql,Stmt.errcode(db));
+		}
+		try {
+			columns=new String[s.columnCount()];
+			qualified=new String[columns.length];
+			refs=new ColRef[columns.length];
+			for (int i=0;i<columns.length;i++) {
+				columns[i]=s.columnName(i);
+				qualified[i]=tableName+"."+columns[i];
+				refs[i]=new ColRef(0,columns[i]);
+			}
+		} finally {
+			s.finish();
+		}
+	}
+
+	//a derived relation
+	private SQLRelation(SQLite3 db,String name,Source[] sources,String[] columns,String[] qualified,ColRef[] refs,Filter[] filters) {
+		this.db=db;
+		this.name=name;
+		this.sources=sources;
+		this.columns=columns;
+		this.qualified=qualified;
+		this.refs=refs;
+		this.filters=filters;
+	}
+
+	static String quote(String identifier) {
+		return '"'+SQLite.escapeIdentifier(identifier)+'"';
+	}
+
+	public boolean isWriteable() {
+		return false;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Tuple getModel() {
+		return new Row(columns);
+	}
+
+	/**
+	* Count the rows with SELECT count(*).  This doesn't throw an exception, so it returns -1 if
+	* the query fails.
+	*/
+	public int getRows() {
+		List<Object> params=new ArrayList<Object>();
+		String sql="SELECT count(*)"+fromWhere(params);
+		PlanCursor c=new PlanCursor(Plan.get(db,sql,new String[]{"count"}),params.toArray());
+		try {
+			c.open();
+			return c.hasNext()?((Number)((Row)c.next()).get(0)).intValue():0;
+		} catch (RelationException x) {
+			System.out.println("warning: getRows() on "+name+" failed: "+x);
+			return -1;
+		} finally {
+			c.close();
+		}
+	}
+
+	//----------------------------
+	/**
+	* Keep only the columns in the tuple, in the tuple's order.  Every column must be in this
+	* relation already.
+	*/
+	public Relation project(Tuple t) throws RelationException {
+		if (t==null) {throw new RelationException("tuple is null",RelationException.OTHER);}
+		String[] names=t.getColumnNames();
+		if (names.length==0) {throw new RelationException("projection has no columns",RelationException.OTHER);}
+		String[] cols=new String[names.length];
+		String[] q=new String[names.length];
+		ColRef[] r=new ColRef[names.length];
+		Set<Integer> seen=new LinkedHashSet<Integer>();
+		for (int i=0;i<names.length;i++) {
+			int k=resolve(names[i]);
+			if (!seen.add(k)) {throw new RelationException(names[i]+" is in the projection twice",RelationException.OTHER);}
+			cols[i]=columns[k];
+			q[i]=qualified[k];
+			r[i]=refs[k];
+		}
+		return new SQLRelation(db,name,sources,cols,q,r,filters);
+	}
+
+	/**
+	* Keep only the rows that match the condition.  This is ANDed with any condition already
+	* on this relation.  The condition can only use columns of this relation.
+	*/
+	public Relation select(Condition c) throws RelationException {
+		if (c==null) {throw new RelationException("condition is null",RelationException.OTHER);}
+		return new SQLRelation(db,name,sources,columns,qualified,refs,append(filters,filter(c)));
+	}
+
+	/**
+	* Join this relation with r.  Both must be SQLRelations on the same connection.  The
+	* condition compares columns with Column values, for example:
+	*		orders.join(customer,Condition.where("customer_id",Verb.EQ,new Column("customer.id")),"orders_customer")
+	*/
+	public Relation join(Relation r,Condition c,String name) throws RelationException {
+		if (!(r instanceof SQLRelation)) {
+			throw new RelationException("can only join relations from the same database",RelationException.OTHER);
+		}
+		SQLRelation right=(SQLRelation)r;
+		if (Pointer.nativeValue(db.getPointer())!=Pointer.nativeValue(right.db.getPointer())) {
+			throw new RelationException("can only join relations on the same connection",RelationException.OTHER);
+		}
+		if (c==null) {throw new RelationException("join condition is null",RelationException.OTHER);}
+		if (name==null || name.length()==0) {throw new RelationException("join needs a name",RelationException.OTHER);}
+
+		int n=sources.length;
+		Source[] s=new Source[n+right.sources.length];
+		System.arraycopy(sources,0,s,0,n);
+		System.arraycopy(right.sources,0,s,n,right.sources.length);
+
+		//qualified names of the right side that are already on the left get the join's name
+		String[] rq=right.qualified.clone();
+		for (int j=0;j<rq.length;j++) {
+			if (indexOf(qualified,rq[j])>=0) {rq[j]=name+"."+right.refs[j].column;}
+		}
+
+		int m=columns.length+right.columns.length;
+		String[] cols=new String[m];
+		String[] q=new String[m];
+		ColRef[] refs2=new ColRef[m];
+		for (int i=0;i<columns.length;i++) {
+			cols[i]=(indexOf(right.columns,columns[i])>=0)?qualified[i]:columns[i];
+			q[i]=qualified[i];
+			refs2[i]=refs[i];
+		}
+		for (int j=0;j<right.columns.length;j++) {
+			int k=columns.length+j;
+			cols[k]=(indexOf(columns,right.columns[j])>=0)?rq[j]:right.columns[j];
+			q[k]=rq[j];
+			refs2[k]=right.refs[j].shift(n);
+		}
+		for (int i=0;i<m;i++) {
+			for (int j=i+1;j<m;j++) {
+				if (cols[i].equalsIgnoreCase(cols[j])) {
+					throw new RelationException("column "+cols[i]+" is on both sides of "+name,RelationException.OTHER);
+				}
+			}
+		}
+
+		Filter[] f=new Filter[filters.length+right.filters.length];
+		System.arraycopy(filters,0,f,0,filters.length);
+		for (int j=0;j<right.filters.length;j++) {
+			f[filters.length+j]=right.filters[j].shift(n);
+		}
+		SQLRelation joined=new SQLRelation(db,name,s,cols,q,refs2,f);
+		return new SQLRelation(db,name,s,cols,q,refs2,append(f,joined.filter(c)));
+	}
+
+	//resolve the columns of the condition against this relation
+	private Filter filter(Condition c) throws RelationException {
+		Set<String> used=new LinkedHashSet<String>();
+		c.columns(used);
+		Map<String,ColRef> scope=new HashMap<String,ColRef>();
+		for (String s: used) {
+			scope.put(s.toLowerCase(),refs[resolve(s)]);
+		}
+		return new Filter(c,scope);
+	}
+
+	private static Filter[] append(Filter[] a,Filter f) {
+		Filter[] b=new Filter[a.length+1];
+		System.arraycopy(a,0,b,0,a.length);
+		b[a.length]=f;
+		return b;
+	}
+
+	private static int indexOf(String[] a,String s) {
+		for (int i=0;i<a.length;i++) {
+			if (a[i].equalsIgnoreCase(s)) {return i;}
+		}
+		return -1;
+	}
+
+	//find the column by name or qualified name, ignoring case like SQLite does
+	private int resolve(String column) throws RelationException {
+		int k=indexOf(columns,column);
+		if (k<0) {k=indexOf(qualified,column);}
+		if (k<0) {
+			for (ColRef r: refs) {
+				if (r.column.equalsIgnoreCase(column)) {
+					throw new RelationException(column+" is ambiguous in "+name+", use table.column",RelationException.OTHER);
+				}
+			}
+			throw new RelationException(column+" is not a column of "+name,RelationException.OTHER);
+		}
+		return k;
+	}
+
+	//-------------------------------
+	/**
+	* Compile this relation into one SELECT statement.  The values to bind are added to params.
+	*/
+	public String toSQL(List<Object> params) {
+		String[] alias=aliases();
+		StringBuilder sql=new StringBuilder("SELECT ");
+		for (int i=0;i<columns.length;i++) {
+			if (i>0) {sql.append(',');}
+			sql.append(columnSQL(refs[i],alias));
+			if (!columns[i].equals(refs[i].column)) {
+				sql.append(" AS ").append(quote(columns[i]));
+			}
+		}
+		return sql.append(fromWhere(params)).toString();
+	}
+
+	//the FROM and WHERE clauses
+	private String fromWhere(List<Object> params) {
+		String[] alias=aliases();
+		StringBuilder sql=new StringBuilder(" FROM ");
+		if (sources.length==1) {
+			sql.append(quote(sources[0].table));
+		} else {
+			JoinPlanner.Order order=JoinPlanner.plan(this);
+			String keyword=order.forced?" CROSS JOIN ":" JOIN ";
+			for (int i=0;i<order.sources.length;i++) {
+				int k=order.sources[i];
+				if (i>0) {sql.append(keyword);}
+				sql.append(quote(sources[k].table));
+				if (!alias[k].equals(sources[k].table)) {
+					sql.append(" AS ").append(quote(alias[k]));
+				}
+			}
+		}
+		for (int i=0;i<filters.length;i++) {
+			sql.append(i==0?" WHERE ":" AND ");
+			Map<String,String> names=new HashMap<String,String>();
+			for (Map.Entry<String,ColRef> e: filters[i].scope.entrySet()) {
+				names.put(e.getKey(),columnSQL(e.getValue(),alias));
+			}
+			filters[i].condition.toSQL(sql,params,names);
+		}
+		return sql.toString();
+	}
+
+	//a table used twice needs an alias
+	private String[] aliases() {
+		String[] a=new String[sources.length];
+		for (int i=0;i<a.length;i++) {
+			a[i]=sources[i].table;
+			for (int j=0;j<i;j++) {
+				if (sources[j].table.equalsIgnoreCase(a[i])) {
+					a[i]=sources[i].table+"_"+(i+1);
+					break;
+				}
+			}
+		}
+		return a;
+	}
+
+	private String columnSQL(ColRef r,String[] alias) {
+		if (sources.length==1) {
+			return quote(r.column);
+		}
+		return quote(alias[r.source])+"."+quote(r.column);
+	}
+
+	public Cursor getCursor() throws RelationException {
+		List<Object> params=new ArrayList<Object>();
+		String sql=toSQL(params);
+		return new PlanCursor(Plan.get(db,sql,columns),params.toArray());
+	}
+
+	/**
+	* Get the row by rowid, if it is part of this relation.  Returns null if not found.
+	* This doesn't work on a join, because a joined row doesn't have a single key.
+	*/
+	public Tuple get(Key k) throws RelationException {
+		if (sources.length>1) {throw new RelationException(name+" is a join, it has no keys",RelationException.OTHER);}
+		if (k==null || !sources[0].table.equalsIgnoreCase(k.tableName)) {
+			throw new RelationException("key is not for "+name,RelationException.OTHER);
+		}
+		Map<String,ColRef> scope=new HashMap<String,ColRef>();
+		scope.put("rowid",new ColRef(0,"rowid"));
+		Filter byId=new Filter(Condition.where("rowid",Apollo.Verb.EQ,k.rowid),scope);
+		SQLRelation r=new SQLRelation(db,name,sources,columns,qualified,refs,append(filters,byId));
+		List<Object> params=new ArrayList<Object>();
+		String sql=r.toSQL(params);
+		PlanCursor c=new PlanCursor(Plan.get(db,sql,columns),params.toArray());
+		try {
+			c.open();
+			return c.hasNext()?c.next():null;
+		} finally {
+			c.close();
+		}
+	}
+
+	//-------------------------------
+	public Key insert(Transaction tx,Tuple t) throws RelationException {
+		throw new RelationException(name+" is read-only",RelationException.OTHER);
+	}
+
+	public void update(Transaction tx,Tuple old,Tuple nu) throws RelationException {
+		throw new RelationException(name+" is read-only",RelationException.OTHER);
+	}
+
+	public void delete(Transaction tx,Tuple old) throws RelationException {
+		throw new RelationException(name+" is read-only",RelationException.OTHER);
+	}
+
+	public String toString() {
+		List<Object> params=new ArrayList<Object>();
+		return toSQL(params)+" "+params;
+	}
+}
@@ -0,0 +1,183 @@
+package nathanvander.apollo;
+import java.util.ArrayList;
+import java.util.List;
+import org.sqlite.SQLite;
+import org.sqlite.SQLite.SQLite3;
+import org.sqlite.SQLite.Stmt;
+import nathanvander.apollo.Apollo.Advice;
+import nathanvander.apollo.Apollo.Index;
+import nathanvander.apollo.Apollo.Relation;
+import nathanvander.apollo.Apollo.RelationException;
+import nathanvander.apollo.Apollo.RelationManager;
+
+/**
+* The RelationManager for a SQLite connection.
+*
+* SQLite has no INCLUDE clause, so the included columns of a covering index are added after the
+* key columns.  That works the same way for reading, it just makes the index a little bigger.
+* When the index is read back with listIndexes(), they are all key columns.
+*/
+public class SQLRelationManager implements RelationManager {
+	final SQLite3 db;
+
+	public SQLRelationManager(SQLite3 db) {
+		this.db=db;
+	}
+
+	public void createIndex(Index ix) throws RelationException {
+		if (ix.columns.isEmpty()) {
+			throw new RelationException("index "+ix.name+" has no columns",RelationException.OTHER);
+		}
+		StringBuilder sql=new StringBuilder("CREATE ");
+		if (ix.unique) {sql.append("UNIQUE ");}
+		sql.append("INDEX IF NOT EXISTS ").append(SQLRelation.quote(ix.name))
+			.append(" ON ").append(SQLRelation.quote(ix.relation)).append(" (");
+		List<String> cols=new ArrayList<String>(ix.columns);
+		cols.addAll(ix.included);
+		for (int i=0;i<cols.size();i++) {
+			if (i>0) {sql.append(',');}
+			String c=cols.get(i).trim();
+			String order="";
+			String upper=c.toUpperCase();
+			if (upper.endsWith(" DESC") || upper.endsWith(" ASC")) {
+				int sp=c.lastIndexOf(' ');
+				order=upper.substring(sp);
+				c=c.substring(0,sp).trim();
+			}
+			sql.append(SQLRelation.quote(c)).append(order);
+		}
+		sql.append(')');
+		if (ix.where!=null) {
+			List<Object> params=new ArrayList<Object>();
+			StringBuilder w=new StringBuilder();
+			ix.where.toSQL(w,params);
+			sql.append(" WHERE ").append(inline(w.toString(),params));
+		}
+		exec(db,sql.toString());
+		changed();
+	}
+
+	public void dropIndex(String indexName) throws RelationException {
+		exec(db,"DROP INDEX IF EXISTS "+SQLRelation.quote(indexName));
+		changed();
+	}
+
+	//the statistics and plans were for the old indexes
+	private void changed() {
+		JoinPlanner.clearStats();
+		IndexAdvisor.forget(db);
+	}
+
+	public Index[] listIndexes(String relationName) throws RelationException {
+		List<Index> list=new ArrayList<Index>();
+		for (Object[] row: query("SELECT name,\"unique\" FROM pragma_index_list(?)",relationName)) {
+			Index ix=new Index((String)row[0],relationName);
+			ix.unique=((Number)row[1]).longValue()!=0;
+			for (Object[] col: query("SELECT name,desc FROM pragma_index_xinfo(?) WHERE key=1 ORDER BY seqno",ix.name)) {
+				//an expression has no name
+				String c=(col[0]==null)?"(expression)":(String)col[0];
+				ix.on(((Number)col[1]).longValue()!=0?c+" DESC":c);
+			}
+			for (Object[] s: query("SELECT sql FROM sqlite_master WHERE type='index' AND name=?",ix.name)) {
+				ix.sql=(String)s[0];
+			}
+			list.add(ix);
+		}
+		return list.toArray(new Index[list.size()]);
+	}
+
+	public String[] explain(Relation r) throws RelationException {
+		if (!(r instanceof SQLRelation)) {
+			throw new RelationException("can't explain "+r.getClass().getName(),RelationException.OTHER);
+		}
+		List<Object> params=new ArrayList<Object>();
+		String sql=((SQLRelation)r).toSQL(params);
+		return IndexAdvisor.explain(db,sql,params.toArray());
+	}
+
+	public Advice[] advise() throws RelationException {
+		return IndexAdvisor.advise(db);
+	}
+
+	//-------------------------------
+	/**
+	* Put the values in place of the ? marks, for SQL that can't have parameters.  A ? inside a
+	* quoted name is left alone.
+	*/
+	static String inline(String sql,List<Object> params) throws RelationException {
+		StringBuilder sb=new StringBuilder();
+		int p=0;
+		char quote=0;
+		for (int i=0;i<sql.length();i++) {
+			char c=sql.charAt(i);
+			if (quote==0 && (c=='"' || c=='\'')) {
+				quote=c;
+			} else if (c==quote) {
+				quote=0;
+			} else if (quote==0 && c=='?') {
+				if (p>=params.size()) {
+					throw new RelationException("missing value in "+sql,RelationException.OTHER);
+				}
+				sb.append(literal(params.get(p++)));
+				continue;
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	static String literal(Object v) throws RelationException {
+		if (v==null) {
+			return "NULL";
+		} else if (v instanceof Boolean) {
+			return ((Boolean)v).booleanValue()?"1":"0";
+		} else if (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte
+				|| v instanceof Double || v instanceof Float) {
+			return v.toString();
+		} else if (v instanceof byte[]) {
+			throw new RelationException("a blob can't be used in an index condition",RelationException.OTHER);
+		} else {
+			return "'"+v.toString().replace("'","''")+"'";
+		}
+	}
+
+	private List<Object[]> query(String sql,Object param) throws RelationException {
+		Stmt s=Stmt.prepare(db,sql);
+		if (s==null) {
+			throw new RelationException(Stmt.errmsg(db)+" in "+sql,Stmt.errcode(db));
+		}
+		try {
+			s.bind(1,param);
+			List<Object[]> rows=new ArrayList<Object[]>();
+			int rc;
+			while ((rc=s.step())==SQLite.SQLITE_ROW) {
+				Object[] row=new Object[s.columnCount()];
+				for (int i=0;i<row.length;i++) {
+					row[i]=s.column(i);
+				}
+				rows.add(row);
+			}
+			if (rc!=SQLite.SQLITE_DONE) {
+				throw new RelationException(Stmt.errmsg(db)+" in "+sql,rc);
+			}
+			return rows;
+		} finally {
+			s.finish();
+		}
+	}
+
+	static void exec(SQLite3 db,String sql) throws RelationException {
+		Stmt s=Stmt.prepare(db,sql);
+		if (s==null) {
+			throw new RelationException(Stmt.errmsg(db)+" in "+sql,Stmt.errcode(db));
+		}
+		try {
+			int rc=s.step();
+			if (rc!=SQLite.SQLITE_DONE && rc!=SQLite.SQLITE_ROW) {
+				throw new RelationException(Stmt.errmsg(db)+" in "+sql,rc);
+			}
+		} finally {
+			s.finish();
+		}
+	}
+}
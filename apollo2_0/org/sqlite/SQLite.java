@@ -915,6 +915,120 @@ public static class ZeroBlob {
 	}
 }
 
+/**
+ * A thin wrapper around a prepared statement, so code outside this package can run a
+ * compiled SELECT without reaching for the natives directly.  Methods return the SQLite result
+ * codes and leave it to the caller to decide what an error means.
+ */
+public static class Stmt {
+	private final SQLite3Stmt pStmt;
+
+	private Stmt(SQLite3Stmt p) {
+		pStmt = p;
+	}
+
+	/**
+	 * Prepare the sql on the connection.  Returns null if it fails; the reason is in
+	 * sqlite3_errmsg, see {@link #errmsg(SQLite3)}.
+	 */
+	public static Stmt prepare(SQLite3 pDb, String sql) {
+		PointerByReference ppStmt = new PointerByReference();
+		PointerByReference pTail = new PointerByReference();
+		int rc = sqlite3_prepare_v2(pDb, nativeString(sql), -1, ppStmt, pTail);
+		if (rc != SQLITE_OK || ppStmt.getValue() == null) {
+			return null;
+		}
+		return new Stmt(new SQLite3Stmt(ppStmt.getValue()));
+	}
+
+	public static String errmsg(SQLite3 pDb) {
+		return sqlite3_errmsg(pDb);
+	}
+
+	public static int errcode(SQLite3 pDb) {
+		return sqlite3_errcode(pDb);
+	}
+
+	/**
+	 * Close the connection with sqlite3_close_v2.  A statement that hasn't been finalized keeps
+	 * it open as a zombie until it is, so finalize them first.
+	 */
+	public static int closeConnection(SQLite3 pDb) {
+		return sqlite3_close_v2(pDb);
+	}
+
+	/**
+	 * Bind by class: null, Integer/Long/Short/Byte, Float/Double, Boolean as 0/1, byte[],
+	 * otherwise the toString() value as text.  The index starts at 1.
+	 */
+	public int bind(int i, Object v) {
+		if (v == null) {
+			return sqlite3_bind_null(pStmt, i);
+		} else if (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte) {
+			return sqlite3_bind_int64(pStmt, i, ((Number) v).longValue());
+		} else if (v instanceof Double || v instanceof Float) {
+			return sqlite3_bind_double(pStmt, i, ((Number) v).doubleValue());
+		} else if (v instanceof Boolean) {
+			return sqlite3_bind_int64(pStmt, i, ((Boolean) v).booleanValue() ? 1 : 0);
+		} else if (v instanceof byte[]) {
+			byte[] b = (byte[]) v;
+			return sqlite3_bind_blob(pStmt, i, b, b.length, SQLITE_TRANSIENT);
+		} else {
+			return sqlite3_bind_text(pStmt, i, v.toString(), -1, SQLITE_TRANSIENT);
+		}
+	}
+
+	//returns SQLITE_ROW, SQLITE_DONE or an error code
+	public int step() {
+		return sqlite3_step(pStmt);
+	}
+
+	public int reset() {
+		return sqlite3_reset(pStmt);
+	}
+
+	public int columnCount() {
+		return sqlite3_column_count(pStmt);
+	}
+
+	public String columnName(int iCol) {
+		return sqlite3_column_name(pStmt, iCol);
+	}
+
+	/**
+	 * Read column iCol of the current row as the closest Java type: Long, Double, String,
+	 * byte[] or null.
+	 */
+	public Object column(int iCol) {
+		switch (sqlite3_column_type(pStmt, iCol)) {
+			case ColTypes.SQLITE_INTEGER:
+				return sqlite3_column_int64(pStmt, iCol);
+			case ColTypes.SQLITE_FLOAT:
+				return sqlite3_column_double(pStmt, iCol);
+			case ColTypes.SQLITE_NULL:
+				return null;
+			case ColTypes.SQLITE_BLOB:
+				int n = sqlite3_column_bytes(pStmt, iCol);
+				Pointer p = sqlite3_column_blob(pStmt, iCol);
+				return p == null ? new byte[0] : p.getByteArray(0, n);
+			default:
+				return sqlite3_column_text(pStmt, iCol);
+		}
+	}
+
+	public int finish() {
+		return sqlite3_finalize(pStmt);
+	}
+}
+
+public static interface ColTypes {
+	int SQLITE_INTEGER = 1;
+	int SQLITE_FLOAT = 2;
+	int SQLITE_TEXT = 3;
+	int SQLITE_BLOB = 4;
+	int SQLITE_NULL = 5;
+}
+
 //end added code
 //=====================
 }
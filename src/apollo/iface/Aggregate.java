@@ -0,0 +1,179 @@
+package apollo.iface;
+import apollo.util.RowCodec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+* An Aggregate describes a query like
+*	SELECT customer, count(*) AS n, sum(total) AS amount FROM orders
+*		WHERE date>=? GROUP BY customer HAVING amount>? ORDER BY amount DESC LIMIT 10
+* which is run on the server with DataStore.aggregate().  Only the result rows come back,
+* instead of every row in the table.
+*
+* Build it by chaining the methods:
+*	new Aggregate("orders").groupBy("customer").count("n").sum("total","amount")
+*		.where("date>=?","2017-01-01").having("amount>?",1000).orderBy("amount DESC").limit(10)
+*
+* Table and column names must be plain identifiers.  The where, having and orderBy clauses are
+* SQL, like the where clause of selectWhere(), but use ? for the values so they are bound and
+* not pasted into the SQL.
+*/
+public class Aggregate implements java.io.Serializable {
+	private final static long serialVersionUID=1L;
+	public final static int COUNT=1;
+	public final static int SUM=2;
+	public final static int MIN=3;
+	public final static int MAX=4;
+	public final static int AVG=5;
+	public final static int COUNT_DISTINCT=6;
+
+	public String tableName;
+	public ArrayList<String> groupBy=new ArrayList<String>();
+	//one entry in each for every measure
+	public ArrayList<Integer> functions=new ArrayList<Integer>();
+	//the column, or null for count(*)
+	public ArrayList<String> columns=new ArrayList<String>();
+	public ArrayList<String> aliases=new ArrayList<String>();
+	public String where;
+	public Object[] whereParams;
+	public String having;
+	public Object[] havingParams;
+	public String orderBy;
+	//0 means no limit
+	public int limit;
+
+	public Aggregate(String tableName) {
+		this.tableName=tableName;
+	}
+
+	//the table (or view) of the DataObject or ViewObject
+	public Aggregate(DataObject d) {
+		this((d instanceof ViewObject)?((ViewObject)d).getViewName():d.getTableName());
+	}
+
+	public Aggregate groupBy(String column) {
+		groupBy.add(column);
+		return this;
+	}
+
+	//count(*)
+	public Aggregate count(String alias) {
+		return measure(COUNT,null,alias);
+	}
+
+	public Aggregate count(String column,String alias) {
+		return measure(COUNT,column,alias);
+	}
+
+	public Aggregate countDistinct(String column,String alias) {
+		return measure(COUNT_DISTINCT,column,alias);
+	}
+
+	public Aggregate sum(String column,String alias) {
+		return measure(SUM,column,alias);
+	}
+
+	public Aggregate min(String column,String alias) {
+		return measure(MIN,column,alias);
+	}
+
+	public Aggregate max(String column,String alias) {
+		return measure(MAX,column,alias);
+	}
+
+	public Aggregate avg(String column,String alias) {
+		return measure(AVG,column,alias);
+	}
+
+	public Aggregate measure(int function,String column,String alias) {
+		functions.add(function);
+		columns.add(column);
+		aliases.add(alias);
+		return this;
+	}
+
+	public Aggregate where(String clause,Object... params) {
+		where=clause;
+		whereParams=params;
+		return this;
+	}
+
+	public Aggregate having(String clause,Object... params) {
+		having=clause;
+		havingParams=params;
+		return this;
+	}
+
+	public Aggregate orderBy(String clause) {
+		orderBy=clause;
+		return this;
+	}
+
+	public Aggregate limit(int n) {
+		limit=n;
+		return this;
+	}
+
+	//-----------------------------------------------
+	//a compact form, used by NIO
+	public byte[] encode() throws IOException {
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		DataOutputStream out=new DataOutputStream(bos);
+		AggregateResult.writeValue(out,tableName);
+		writeStrings(out,groupBy);
+		RowCodec.writeVarInt(out,functions.size());
+		for (int i=0;i<functions.size();i++) {
+			RowCodec.writeVarInt(out,functions.get(i));
+			AggregateResult.writeValue(out,columns.get(i));
+			AggregateResult.writeValue(out,aliases.get(i));
+		}
+		AggregateResult.writeValue(out,where);
+		AggregateResult.writeValues(out,whereParams);
+		AggregateResult.writeValue(out,having);
+		AggregateResult.writeValues(out,havingParams);
+		AggregateResult.writeValue(out,orderBy);
+		RowCodec.writeVarInt(out,limit);
+		out.close();
+		return bos.toByteArray();
+	}
+
+	public static Aggregate decode(byte[] b) throws IOException {
+		DataInputStream in=new DataInputStream(new ByteArrayInputStream(b));
+		Aggregate a=new Aggregate((String)AggregateResult.readValue(in));
+		a.groupBy=readStrings(in);
+		int n=RowCodec.readVarInt(in);
+		for (int i=0;i<n;i++) {
+			int f=RowCodec.readVarInt(in);
+			a.measure(f,(String)AggregateResult.readValue(in),(String)AggregateResult.readValue(in));
+		}
+		a.where=(String)AggregateResult.readValue(in);
+		a.whereParams=AggregateResult.readValues(in);
+		a.having=(String)AggregateResult.readValue(in);
+		a.havingParams=AggregateResult.readValues(in);
+		a.orderBy=(String)AggregateResult.readValue(in);
+		a.limit=RowCodec.readVarInt(in);
+		return a;
+	}
+
+	private static void writeStrings(DataOutput out,ArrayList<String> list) throws IOException {
+		RowCodec.writeVarInt(out,list.size());
+		for (String s: list) {
+			RowCodec.writeString(out,s);
+		}
+	}
+
+	private static ArrayList<String> readStrings(DataInput in) throws IOException {
+		int n=RowCodec.readVarInt(in);
+		ArrayList<String> list=new ArrayList<String>(n);
+		for (int i=0;i<n;i++) {
+			list.add(RowCodec.readString(in));
+		}
+		return list;
+	}
+}
@@ -0,0 +1,161 @@
+package apollo.iface;
+import apollo.util.RowCodec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+* The rows returned by DataStore.aggregate().  columns has the group by columns first, then
+* the measures, by their aliases.  Every value is a Long, Double, String or null, whatever
+* SQLite returned.
+*
+* It is serialized compactly: the column names once, then a type byte and the packed value for
+* each cell.
+*/
+public class AggregateResult implements java.io.Serializable {
+	private final static long serialVersionUID=1L;
+	final static int NULL=0;
+	final static int LONG=1;
+	final static int DOUBLE=2;
+	final static int STRING=3;
+
+	public transient String[] columns;
+	public transient Object[][] rows;
+
+	public AggregateResult(String[] columns,Object[][] rows) {
+		this.columns=columns;
+		this.rows=rows;
+	}
+
+	public int size() {
+		return rows.length;
+	}
+
+	//the index of the column, or -1
+	public int indexOf(String column) {
+		for (int i=0;i<columns.length;i++) {
+			if (columns[i].equalsIgnoreCase(column)) {return i;}
+		}
+		return -1;
+	}
+
+	public Object get(int row,String column) {
+		int i=indexOf(column);
+		if (i<0) {throw new IllegalArgumentException(column+" is not in the result");}
+		return rows[row][i];
+	}
+
+	//the value as a number, 0 if it is null
+	public double getDouble(int row,String column) {
+		Object o=get(row,column);
+		return (o==null)?0:((Number)o).doubleValue();
+	}
+
+	public long getLong(int row,String column) {
+		Object o=get(row,column);
+		return (o==null)?0:((Number)o).longValue();
+	}
+
+	//-----------------------------------------------
+	public byte[] encode() throws IOException {
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		DataOutputStream out=new DataOutputStream(bos);
+		RowCodec.writeVarInt(out,columns.length);
+		for (String c: columns) {
+			RowCodec.writeString(out,c);
+		}
+		RowCodec.writeVarInt(out,rows.length);
+		for (Object[] r: rows) {
+			for (Object o: r) {
+				writeValue(out,o);
+			}
+		}
+		out.close();
+		return bos.toByteArray();
+	}
+
+	public static AggregateResult decode(byte[] b) throws IOException {
+		DataInputStream in=new DataInputStream(new ByteArrayInputStream(b));
+		String[] cols=new String[RowCodec.readVarInt(in)];
+		for (int i=0;i<cols.length;i++) {
+			cols[i]=RowCodec.readString(in);
+		}
+		Object[][] rows=new Object[RowCodec.readVarInt(in)][];
+		for (int i=0;i<rows.length;i++) {
+			rows[i]=new Object[cols.length];
+			for (int j=0;j<cols.length;j++) {
+				rows[i][j]=readValue(in);
+			}
+		}
+		return new AggregateResult(cols,rows);
+	}
+
+	/**
+	* Write a value the way SQLite will see it when it is bound: whole numbers as Long,
+	* Float and Double as Double, and anything else as its String.
+	*/
+	public static void writeValue(DataOutput out,Object o) throws IOException {
+		if (o==null) {
+			out.writeByte(NULL);
+		} else if (o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte) {
+			out.writeByte(LONG);
+			RowCodec.writeVarLong(out,((Number)o).longValue());
+		} else if (o instanceof Double || o instanceof Float) {
+			out.writeByte(DOUBLE);
+			out.writeDouble(((Number)o).doubleValue());
+		} else {
+			out.writeByte(STRING);
+			RowCodec.writeString(out,o.toString());
+		}
+	}
+
+	public static Object readValue(DataInput in) throws IOException {
+		int t=in.readUnsignedByte();
+		switch (t) {
+			case NULL: return null;
+			case LONG: return RowCodec.readVarLong(in);
+			case DOUBLE: return in.readDouble();
+			case STRING: return RowCodec.readString(in);
+		}
+		throw new IOException("unknown value type "+t);
+	}
+
+	//a null array is written as a count of 0
+	public static void writeValues(DataOutput out,Object[] values) throws IOException {
+		int n=(values==null)?0:values.length;
+		RowCodec.writeVarInt(out,n);
+		for (int i=0;i<n;i++) {
+			writeValue(out,values[i]);
+		}
+	}
+
+	public static Object[] readValues(DataInput in) throws IOException {
+		Object[] values=new Object[RowCodec.readVarInt(in)];
+		for (int i=0;i<values.length;i++) {
+			values[i]=readValue(in);
+		}
+		return values;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		byte[] b=encode();
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		byte[] b=new byte[in.readInt()];
+		in.readFully(b);
+		AggregateResult r=decode(b);
+		columns=r.columns;
+		rows=r.rows;
+	}
+}
@@ -0,0 +1,18 @@
+package apollo.iface;
+
+/**
+* The result of Transaction.executeBatch().  There is one entry in each array for every
+* Operation, in the same order.
+*	keys[i] is the Key of an insert, and null for an update or delete
+*	counts[i] is the number of rows changed
+*/
+public class BatchResult implements java.io.Serializable {
+	private final static long serialVersionUID=1L;
+	public Key[] keys;
+	public int[] counts;
+
+	public BatchResult(Key[] keys,int[] counts) {
+		this.keys=keys;
+		this.counts=counts;
+	}
+}
@@ -16,11 +16,25 @@ public interface Cursor extends Remote {
 	public String getSql() throws RemoteException;
 	public void open() throws RemoteException, DataStoreException, Unauthorized;
 
+	/**
+	* Turn on read-ahead.  This must be called before open().  The server will read up to
+	* rows ahead in a background thread, so they are ready when you ask for them.  Use 0 to
+	* turn it off, which is the default.
+	*/
+	public void setReadAhead(int rows) throws RemoteException;
+
 	//the hasNext() method actually loads the object, so don't skip it
 	public boolean hasNext() throws RemoteException, DataStoreException;
 
 	//this retrieves the next object.  use in confunction with hasNext();
 	public DataObject next() throws RemoteException, DataStoreException;
 
+	/**
+	* Return up to max rows in one call, instead of calling hasNext() and next() for every row.
+	* The batch may be smaller than max if the rows are big.  Check RowBatch.endOfData
+	* to see if there are more.
+	*/
+	public RowBatch nextBatch(int max) throws RemoteException, DataStoreException;
+
 	public void close() throws RemoteException;
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package apollo.iface;
 import java.rmi.*;
 import apollo.util.Credentials;
+import apollo.util.Session;
 
 /**
 * A DataStore is a simplified view of a Database.
@@ -22,10 +23,22 @@ import apollo.util.Credentials;
 *  - new types are allowed on DataObject fields.  See the notes there.
 *
 * Update 1/25/2017.  Updated to use semi-secure kernel.
+*
+* 1.31: added Cursor.nextBatch() to return many rows in one call.
+* 1.32: added Cursor.setReadAhead() so the server can read rows before they are asked for.
+* 1.33: added Transaction.executeBatch() and executeAndCommit().
+* 1.34: added subscribe() and unsubscribe() for cache invalidation.
+* 1.35: transactions and cursors are unexported when finished, and expire if abandoned.
+* 1.36: added login() and logout() for session tokens.
+* 1.37: added selectPage() for keyset pagination.
+* 1.38: added aggregate() and exists().
+* 1.39: added export() and exportToFile() for CSV and JSON Lines.
+* 1.40: Transaction.createView() stores a MaterializedView in a table and keeps it up to date.
+* 1.41: added search() for the full-text index of a Searchable.
 */
 public interface DataStore extends Remote {
 	//this is the version
-	public final static float VERSION = 1.30F;
+	public final static float VERSION = 1.41F;
 
 	/**
 	* Get the version of the underlying SQLite library.
@@ -73,6 +86,15 @@ public interface DataStore extends Remote {
 	public Cursor selectAll(Credentials user,DataObject d,int limit,int offset) throws RemoteException,
 		DataStoreException, Unauthorized;
 
+	/**
+	* Like selectAll, but a page at a time, in the order of the index().  Pass null to get the
+	* first page, then pass Page.next to get the one after it, until next is null.  Deep pages are
+	* as fast as the first one, unlike OFFSET.  The server cuts a limit over its maximum, 1000 by
+	* default, down to that.
+	*/
+	public Page selectPage(Credentials user,DataObject d,int limit,String continuation) throws RemoteException,
+		DataStoreException, Unauthorized;
+
 	/**
 	* Return the data specified by the view.  The view object must be created first
 	*/
@@ -84,4 +106,53 @@ public interface DataStore extends Remote {
 	*/
 	public Cursor selectWhere(Credentials user,DataObject d,String whereClause) throws RemoteException, DataStoreException, Unauthorized;
 
+	/**
+	* Run count, sum, min, max, avg or count distinct on a table or view, with optional group by
+	* and having, and return just the results.  See Aggregate.
+	*/
+	public AggregateResult aggregate(Credentials user,Aggregate a) throws RemoteException, DataStoreException, Unauthorized;
+
+	/**
+	* Return true if any row in the table matches the where clause, which may use ? for the params.
+	* This stops at the first match, so it is much faster than counting.
+	*/
+	public boolean exists(Credentials user,String tableName,String whereClause,Object[] params) throws RemoteException, DataStoreException, Unauthorized;
+
+	/**
+	* Find the rows of a Searchable that match the FTS5 query, like "moon AND landing", best match
+	* first.  If objects is false, only the keys and snippets are returned.  See SearchHit.
+	*/
+	public SearchHit[] search(Credentials user,Searchable d,String query,int limit,boolean objects) throws RemoteException, DataStoreException, Unauthorized;
+
+	/**
+	* Stream the rows of a table or view, with an optional where clause like selectWhere(), as
+	* CSV or JSON Lines.  See ExportStream.
+	*/
+	public ExportStream export(Credentials user,DataObject d,String whereClause,int format) throws RemoteException, DataStoreException, Unauthorized;
+
+	/**
+	* Export the rows to a file on the server, in the export directory, and return the number of
+	* rows.  fileName is just a name, with no path.
+	*/
+	public long exportToFile(Credentials user,DataObject d,String whereClause,int format,String fileName) throws RemoteException, DataStoreException, Unauthorized;
+
+	/**
+	* Ask to be told about rows that other transactions change, so a client cache can drop them.
+	* The listener is called after each commit.  See InvalidationListener.
+	*/
+	public void subscribe(Credentials user,InvalidationListener l) throws RemoteException, DataStoreException, Unauthorized;
+
+	public void unsubscribe(Credentials user,InvalidationListener l) throws RemoteException;
+
+	/**
+	* Check the password once and return a Session, which can be used in place of the Credentials
+	* in every other call.  The server checks a Session in memory, without looking up the user.
+	*/
+	public Session login(Credentials user) throws RemoteException, DataStoreException, Unauthorized;
+
+	/**
+	* End the session.  It can't be used after this.
+	*/
+	public void logout(Session s) throws RemoteException, DataStoreException;
+
 }
\ No newline at end of file
@@ -0,0 +1,33 @@
+package apollo.iface;
+import java.rmi.*;
+
+/**
+* An ExportStream returns a table, view or selectWhere() as CSV or JSON Lines, in chunks of bytes.
+* It is returned by DataStore.export().  The rows are encoded on the server straight from SQLite,
+* without making a DataObject for each one, so it is much faster than a Cursor for a big export.
+*
+* Write each chunk as it comes:
+*	ExportStream s=ds.export(user,new Event(),null,ExportStream.CSV);
+*	byte[] b;
+*	while ((b=s.read())!=null) {
+*		out.write(b);
+*	}
+*	s.close();
+*
+* The chunks are UTF-8 and end on a row boundary, except that a very long row may be split.
+* The stream is closed by itself at the end, but call close() if you stop early.
+*/
+public interface ExportStream extends Remote {
+	//with a header row of the column names.  Fields are quoted as in RFC 4180, and null is empty
+	public final static int CSV=1;
+	//one JSON object per line.  Numbers are numbers, and null is null
+	public final static int JSONL=2;
+
+	//the next chunk, or null when there are no more rows
+	public byte[] read() throws RemoteException, DataStoreException;
+
+	//the number of rows encoded so far
+	public long getRows() throws RemoteException;
+
+	public void close() throws RemoteException;
+}
@@ -0,0 +1,13 @@
+package apollo.iface;
+import java.rmi.*;
+
+/**
+* A client that caches DataObjects can subscribe one of these to hear about rows that were
+* changed by other clients.  It is called after the transaction that changed them commits.
+*
+* A Key with rowid 0 means the whole table changed, for example when it was dropped or when
+* so many rows changed that it wasn't worth listing them.
+*/
+public interface InvalidationListener extends Remote {
+	public void invalidated(Key[] keys) throws RemoteException;
+}
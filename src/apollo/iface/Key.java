@@ -1,12 +1,51 @@
 package apollo.iface;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
-public class Key implements java.io.Serializable {
+/**
+* Key is Externalizable so it is sent as just the table name and rowid, without the
+* field descriptions that default serialization adds.
+*/
+public class Key implements java.io.Externalizable {
 	public String tableName;
 	public long rowid;
 
+	//needed by Externalizable
+	public Key() {}
+
 	//constructor for ease of use
 	public Key(String tn, long k) {
 		tableName=tn;
 		rowid=k;
 	}
-}
\ No newline at end of file
+
+	//so Keys can be used in a HashMap
+	public boolean equals(Object o) {
+		if (!(o instanceof Key)) {return false;}
+		Key k=(Key)o;
+		return rowid==k.rowid && (tableName==null?k.tableName==null:tableName.equals(k.tableName));
+	}
+
+	public int hashCode() {
+		return (tableName==null?0:tableName.hashCode())*31+(int)(rowid^(rowid>>>32));
+	}
+
+	public String toString() {
+		return tableName+":"+rowid;
+	}
+
+	//a boolean first, because writeUTF() can't write a null
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeBoolean(tableName!=null);
+		if (tableName!=null) {
+			out.writeUTF(tableName);
+		}
+		out.writeLong(rowid);
+	}
+
+	public void readExternal(ObjectInput in) throws IOException {
+		tableName=in.readBoolean()?in.readUTF():null;
+		rowid=in.readLong();
+	}
+}
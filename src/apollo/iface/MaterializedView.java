@@ -0,0 +1,19 @@
+package apollo.iface;
+
+/**
+* A MaterializedView is a ViewObject whose rows are stored in a table, so reading it is a scan
+* of rows that were already computed, instead of running the query every time.
+*
+* Create it with Transaction.createView() and read it with DataStore.view(), just like a plain
+* view.  The server keeps the rows up to date as the source table changes:
+*	- a filter and projection of one table, like
+*		SELECT rowid, name, date FROM Event WHERE date>'2015-01-01'
+*	  is updated row by row when the transaction commits
+*	- a GROUP BY of one table with count, sum, min, max or avg is updated one group at a time
+*	- anything else, like ORDER BY, LIMIT or a join, is rebuilt in the background, at most
+*	  once every few seconds, after one of its tables changes.  Until then it returns the old rows.
+*
+* There is nothing more to implement.  The interface just marks the view as materialized.
+*/
+public interface MaterializedView extends ViewObject {
+}
@@ -0,0 +1,36 @@
+package apollo.iface;
+
+/**
+* One insert, update or delete, to be run with Transaction.executeBatch().  Use the static
+* methods to create them.
+*/
+public class Operation implements java.io.Serializable {
+	private final static long serialVersionUID=1L;
+	public final static int INSERT=1;
+	public final static int UPDATE=2;
+	public final static int DELETE=3;
+
+	public int type;
+	//the old state, used for update and delete
+	public DataObject old;
+	//the new state, used for insert and update
+	public DataObject nu;
+
+	public Operation(int type,DataObject old,DataObject nu) {
+		this.type=type;
+		this.old=old;
+		this.nu=nu;
+	}
+
+	public static Operation insert(DataObject d) {
+		return new Operation(INSERT,null,d);
+	}
+
+	public static Operation update(DataObject old,DataObject nu) {
+		return new Operation(UPDATE,old,nu);
+	}
+
+	public static Operation delete(DataObject old) {
+		return new Operation(DELETE,old,null);
+	}
+}
@@ -0,0 +1,95 @@
+package apollo.iface;
+import apollo.util.Compression;
+import apollo.util.RowCodec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+* A list of Operations for Transaction.executeBatch() that is sent with RowCodec, and compressed
+* if it is at least compressAbove bytes.  Use it in place of an ArrayList for big loads:
+*	OperationList ops=new OperationList(Compression.threshold(session));
+*	ops.add(Operation.insert(d));
+*	tx.executeBatch(ops);
+*
+* Any other List still works, it is just sent with default serialization.
+*/
+public class OperationList extends AbstractList<Operation> implements RandomAccess, java.io.Serializable {
+	private final static long serialVersionUID=1L;
+	private transient ArrayList<Operation> ops=new ArrayList<Operation>();
+	//0 means don't compress
+	public int compressAbove;
+
+	public OperationList() {
+		this(0);
+	}
+
+	public OperationList(int compressAbove) {
+		this.compressAbove=compressAbove;
+	}
+
+	public Operation get(int i) {return ops.get(i);}
+
+	public int size() {return ops.size();}
+
+	public Operation set(int i,Operation op) {return ops.set(i,op);}
+
+	public void add(int i,Operation op) {ops.add(i,op);}
+
+	public Operation remove(int i) {return ops.remove(i);}
+
+	/**
+	* Encode any list of operations.  This is also used by NIO.
+	*/
+	public static byte[] encode(List<Operation> ops,int compressAbove) throws IOException {
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		DataOutputStream dos=new DataOutputStream(bos);
+		RowCodec.Writer w=new RowCodec.Writer();
+		RowCodec.writeVarInt(dos,ops.size());
+		for (int i=0;i<ops.size();i++) {
+			Operation op=ops.get(i);
+			dos.writeByte(op.type);
+			w.write(dos,op.old);
+			w.write(dos,op.nu);
+		}
+		dos.close();
+		return Compression.pack(bos.toByteArray(),compressAbove);
+	}
+
+	public static OperationList decode(byte[] block) throws IOException {
+		DataInputStream in=new DataInputStream(new ByteArrayInputStream(Compression.unpack(block)));
+		RowCodec.Reader r=new RowCodec.Reader();
+		int n=RowCodec.readVarInt(in);
+		OperationList list=new OperationList();
+		list.ops.ensureCapacity(n);
+		for (int i=0;i<n;i++) {
+			int type=in.readByte();
+			DataObject old=r.read(in);
+			DataObject nu=r.read(in);
+			list.ops.add(new Operation(type,old,nu));
+		}
+		return list;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		byte[] b=encode(ops,compressAbove);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		byte[] b=new byte[in.readInt()];
+		in.readFully(b);
+		ops=decode(b).ops;
+	}
+}
@@ -0,0 +1,15 @@
+package apollo.iface;
+
+/**
+* One page from DataStore.selectPage().  next is the continuation token for the following page,
+* or null if this is the last one.  The token is opaque; just pass it back.
+*/
+public class Page extends RowBatch {
+	private final static long serialVersionUID=1L;
+	public String next;
+
+	public Page(DataObject[] rows,String next) {
+		super(rows,next==null,rows.length);
+		this.next=next;
+	}
+}
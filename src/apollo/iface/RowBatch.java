@@ -0,0 +1,74 @@
+package apollo.iface;
+import apollo.util.Compression;
+import apollo.util.RowCodec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+* A RowBatch is a group of rows returned by Cursor.nextBatch().  This saves a round trip
+* for every row, which is the main cost when the client is far away from the server.
+*
+* endOfData is true when the cursor has no more rows.  The batch may still have rows in it,
+* so always read them before checking the flag.
+*
+* suggestedSize is the number of rows the server thinks it should send on the next call,
+* based on the size of the rows it has seen so far.  The client doesn't have to use it.
+*
+* The rows are serialized with RowCodec instead of the default, so the schema of the
+* DataObject is sent once per batch instead of as a full java object graph for every row.
+* If compressAbove is set, and the encoded rows are at least that big, they are also compressed.
+* The server sets it from the session, see Compression.
+*/
+public class RowBatch implements java.io.Serializable {
+	private final static long serialVersionUID=1L;
+	public transient DataObject[] rows;
+	public boolean endOfData;
+	public int suggestedSize;
+	//0 means don't compress
+	public transient int compressAbove=0;
+
+	public RowBatch(DataObject[] rows,boolean endOfData,int suggestedSize) {
+		this.rows=rows;
+		this.endOfData=endOfData;
+		this.suggestedSize=suggestedSize;
+	}
+
+	public int size() {
+		return rows.length;
+	}
+
+	/**
+	* The rows, encoded with RowCodec and compressed if needed.  This is also used by NIO.
+	*/
+	public byte[] encodeRows() throws IOException {
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		DataOutputStream dos=new DataOutputStream(bos);
+		RowCodec.writeRows(dos,rows);
+		dos.close();
+		return Compression.pack(bos.toByteArray(),compressAbove);
+	}
+
+	public static DataObject[] decodeRows(byte[] block) throws IOException {
+		byte[] raw=Compression.unpack(block);
+		return RowCodec.readRows(new DataInputStream(new ByteArrayInputStream(raw)));
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		byte[] b=encodeRows();
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		byte[] b=new byte[in.readInt()];
+		in.readFully(b);
+		rows=decodeRows(b);
+	}
+}
@@ -0,0 +1,26 @@
+package apollo.iface;
+
+/**
+* One row found by DataStore.search().  The hits are returned best first.
+*
+* rank is the bm25() score from SQLite.  It is negative, and a smaller number is a better match.
+* snippet is a few words around the best match, with the matched words in [brackets].
+* object is null if search() was asked for keys only.
+*/
+public class SearchHit implements java.io.Serializable {
+	private final static long serialVersionUID=1L;
+	public Key key;
+	public double rank;
+	public String snippet;
+	public DataObject object;
+
+	public SearchHit(Key key,double rank,String snippet) {
+		this.key=key;
+		this.rank=rank;
+		this.snippet=snippet;
+	}
+
+	public String toString() {
+		return key+" "+rank+" "+snippet;
+	}
+}
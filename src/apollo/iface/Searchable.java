@@ -0,0 +1,18 @@
+package apollo.iface;
+
+/**
+* A Searchable is a DataObject with a full-text index on some of its String and TextArea
+* fields.  Transaction.createTable() creates the index, and triggers keep it up to date on every
+* insert, update and delete, so there is nothing else to do.  Use DataStore.search() to find rows
+* by the words in them, which is much faster than WHERE notes LIKE '%word%' on a big table.
+*
+* The index is an SQLite FTS5 table called _fts_<table> that doesn't store the text again, it
+* reads it from the table.  If searchFields() changes, the next createTable() rebuilds it.
+*/
+public interface Searchable extends DataObject {
+
+	/**
+	* The fields to index.  Each must be a String or a java.awt.TextArea.
+	*/
+	public String[] searchFields();
+}
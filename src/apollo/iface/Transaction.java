@@ -1,9 +1,13 @@
 package apollo.iface;
 import java.rmi.*;
+import java.util.List;
 
 /**
 * A Transaction is used to make changes to the database.  This is run in its own connection, so you can have multiple
 * transactions at once.
+*
+* A Transaction is used once.  After commit() or rollback() the server unexports it, and one that
+* isn't used for a couple of minutes is rolled back.
 */
 public interface Transaction extends Remote {
 	/**
@@ -53,6 +57,20 @@ public interface Transaction extends Remote {
 	*/
 	public void delete(DataObject old)  throws RemoteException,DataStoreException;
 
+	/**
+	* Run all the inserts, updates and deletes in one call.  Inserts into the same table use
+	* one prepared statement.  If one fails, the exception says which one, and the earlier ones
+	* have still been done, so you will usually want to roll back.
+	*/
+	public BatchResult executeBatch(List<Operation> ops) throws RemoteException,DataStoreException;
+
+	/**
+	* This does begin(), executeBatch() and commit() in one call, so the file is locked only
+	* while the batch runs on the server.  If anything fails, it is rolled back.  Don't call begin()
+	* first; if the transaction has already begun, this throws and the transaction is left as it is.
+	*/
+	public BatchResult executeAndCommit(List<Operation> ops) throws RemoteException,DataStoreException, Unauthorized;
+
 	public void createView(ViewObject v) throws RemoteException,DataStoreException;
 
 	public void dropView(ViewObject v) throws RemoteException,DataStoreException;
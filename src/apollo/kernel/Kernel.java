@@ -12,6 +12,14 @@ import com.sun.jna.ptr.PointerByReference;
 import java.math.BigInteger;
 import java.util.Random;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import apollo.util.Session;
 
 /**
 * Kernel is the heart of the system.  This is used to get a ConnectionHandle.
@@ -27,6 +35,13 @@ public class Kernel {
 	//this is a cache of username to password to speed up validation
 	Hashtable cred=new Hashtable();
 
+	//sessions are signed with a key that is made new every time the server starts,
+	//so sessions don't survive a restart
+	public static long SESSION_MILLIS=8*60*60*1000L;
+	private byte[] sessionKey;
+	private AtomicLong sessionCounter=new AtomicLong();
+	private ConcurrentHashMap<Long,SessionInfo> sessions=new ConcurrentHashMap<Long,SessionInfo>();
+
 	/** Return the singleton object.
 	*/
 	public static Kernel instance() throws DataStoreException {
@@ -58,6 +73,9 @@ public class Kernel {
 		//for better or worse, this isn't a generic database anymore
 		filename="apollo.sqlite";
 
+		sessionKey=new byte[32];
+		new SecureRandom().nextBytes(sessionKey);
+		sessionCounter.set(new SecureRandom().nextInt(1000000));
         init();
 	}
 
@@ -153,10 +171,17 @@ public class Kernel {
 			return false;
 		}
 
+		if (c instanceof Session) {
+			return validateSession((Session)c);
+		}
+		if (c.password==null) {
+			return false;
+		}
+
 		//next, try to find it in the cache
 		String pw=(String)cred.get(c.username);
 		if (pw!=null) {
-			if (c.password.equals(pw)) {
+			if (MessageDigest.isEqual(getByteArray(c.password),getByteArray(pw))) {
 				return true;
 			} else {
 				//wrong password
@@ -185,6 +210,89 @@ public class Kernel {
 		return valid;
 	}
 
+	//-----------------------------------------
+	//sessions
+
+	/**
+	* Check the password and return a signed Session that can be used instead of it
+	* until it expires.
+	*/
+	public Session createSession(Credentials c) throws DataStoreException, Unauthorized {
+		if (c instanceof Session || !validate(c)) {
+			throw new Unauthorized("wrong password");
+		}
+		removeExpiredSessions();
+		long id=sessionCounter.incrementAndGet();
+		long expires=System.currentTimeMillis()+SESSION_MILLIS;
+		sessions.put(id,new SessionInfo(id,c.username,expires));
+		return new Session(c.username,id,expires,sign(id,c.username,expires));
+	}
+
+	/**
+	* The session can't be used after this.
+	*/
+	public void endSession(Session s) {
+		if (s!=null && validateSession(s)) {
+			sessions.remove(s.id);
+		}
+	}
+
+	//this is all in memory.  The signature is compared in constant time
+	private boolean validateSession(Session s) {
+		if (s.username==null || s.signature==null) {
+			return false;
+		}
+		String expected=sign(s.id,s.username,s.expires);
+		if (!MessageDigest.isEqual(getByteArray(expected),getByteArray(s.signature))) {
+			return false;
+		}
+		SessionInfo info=sessions.get(s.id);
+		if (info==null) {
+			//ended, or from before a restart
+			return false;
+		}
+		if (s.isExpired()) {
+			sessions.remove(s.id);
+			return false;
+		}
+		info.calls.incrementAndGet();
+		info.lastUsed=System.currentTimeMillis();
+		return true;
+	}
+
+	private String sign(long id,String username,long expires) {
+		try {
+			Mac mac=Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(sessionKey,"HmacSHA256"));
+			byte[] b=mac.doFinal(getByteArray(id+":"+username+":"+expires));
+			return new BigInteger(1,b).toString(16);
+		} catch (Exception x) {
+			//HmacSHA256 is in every JRE
+			throw new IllegalStateException(x.toString());
+		}
+	}
+
+	private void removeExpiredSessions() {
+		long now=System.currentTimeMillis();
+		Iterator<SessionInfo> it=sessions.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().expires<now) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	* The sessions that are open, with their counts.  Only root can see them.
+	*/
+	public SessionInfo[] listSessions(Credentials admin) throws DataStoreException {
+		if (!validateRoot(admin)) {
+			return null;
+		}
+		removeExpiredSessions();
+		return sessions.values().toArray(new SessionInfo[0]);
+	}
+
 	public boolean validateRoot(Credentials root) throws DataStoreException {
 		if (root==null) {return false;}
 		if (!root.username.equals("root")) {
@@ -0,0 +1,31 @@
+package apollo.kernel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* The server's record of a session, used for accounting.  The counts are updated every time
+* the session is validated, which is once per connection.
+*/
+public class SessionInfo {
+	public final long id;
+	public final String username;
+	public final long created;
+	public final long expires;
+	final AtomicLong calls=new AtomicLong();
+	volatile long lastUsed;
+
+	SessionInfo(long id,String username,long expires) {
+		this.id=id;
+		this.username=username;
+		this.expires=expires;
+		created=System.currentTimeMillis();
+		lastUsed=created;
+	}
+
+	public long getCalls() {return calls.get();}
+
+	public long getLastUsed() {return lastUsed;}
+
+	public String toString() {
+		return "session #"+id+" user="+username+" calls="+calls.get()+" idle="+(System.currentTimeMillis()-lastUsed)+"ms";
+	}
+}
@@ -0,0 +1,476 @@
+package apollo.net;
+import apollo.iface.*;
+import apollo.server.CursorObject;
+import apollo.server.DataStoreEngine;
+import apollo.server.Exporter;
+import apollo.server.Invalidations;
+import apollo.server.NativeGate;
+import apollo.server.TransactionObject;
+import apollo.kernel.Kernel;
+import apollo.util.Credentials;
+import apollo.util.Session;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* The Dispatcher runs requests that come in over the binary protocol.  It doesn't know anything
+* about sockets, so the same code is used by any transport.  The transport reads a frame, and
+* calls dispatch() with a Reply to send the answer back.
+*
+* Requests that don't use a handle run on the pool right away, in any order.  Requests on a handle
+* go through a SerialQueue for that handle, so they run one at a time in the order they came in.
+*
+* The Transaction and Cursor objects are used directly, they are not exported to RMI.
+*/
+public class Dispatcher {
+	private static AtomicLong nextHandle=new AtomicLong();
+
+	private DataStoreEngine engine;
+	private Executor pool;
+	private NativeGate gate;
+
+	//used by the transport to send the reply
+	public interface Reply {
+		public void send(ByteBuffer b);
+	}
+
+	/**
+	* This holds the Transactions and Cursors for one client connection.  They are
+	* closed when the client disconnects.
+	*/
+	public static class Client {
+		ConcurrentHashMap<Long,Object> handles=new ConcurrentHashMap<Long,Object>();
+		ConcurrentHashMap<Long,SerialQueue> queues=new ConcurrentHashMap<Long,SerialQueue>();
+		//used to push invalidations to the client
+		volatile Reply reply;
+		InvalidationListener listener;
+
+		public int getOpenHandles() {
+			return handles.size();
+		}
+	}
+
+	/**
+	* Run tasks one at a time on the pool, in the order they were added.
+	*/
+	static class SerialQueue implements Runnable {
+		private ArrayDeque<Runnable> tasks=new ArrayDeque<Runnable>();
+		private boolean running=false;
+		private Executor pool;
+
+		SerialQueue(Executor pool) {
+			this.pool=pool;
+		}
+
+		synchronized void execute(Runnable r) {
+			tasks.add(r);
+			if (!running) {
+				running=true;
+				pool.execute(this);
+			}
+		}
+
+		public void run() {
+			while (true) {
+				Runnable r;
+				synchronized (this) {
+					r=tasks.poll();
+					if (r==null) {
+						running=false;
+						return;
+					}
+				}
+				r.run();
+			}
+		}
+	}
+
+	public Dispatcher(DataStoreEngine engine,Executor pool) {
+		this.engine=engine;
+		this.pool=pool;
+	}
+
+	/**
+	* With a gate, each request must get a permit before it runs, which limits how many are in
+	* sqlite at once.  Use this when the pool runs virtual threads.
+	*/
+	public Dispatcher(DataStoreEngine engine,Executor pool,NativeGate gate) {
+		this(engine,pool);
+		this.gate=gate;
+	}
+
+	public NativeGate getGate() {return gate;}
+
+	public Client newClient() {
+		return new Client();
+	}
+
+	/**
+	* Run the request in the frame, which starts with the requestId.  The reply is sent
+	* when it is done, which may be after this returns.
+	*/
+	public void dispatch(final Client c,ByteBuffer frame,final Reply r) {
+		c.reply=r;
+		final Payload p=new Payload(frame);
+		Runnable task=new Runnable() {
+			public void run() {
+				if (gate==null) {
+					r.send(handle(c,p));
+					return;
+				}
+				ByteBuffer reply;
+				long entered;
+				try {
+					entered=gate.enter();
+				} catch (InterruptedException x) {
+					r.send(error(p.getRequestId(),"interrupted"));
+					return;
+				}
+				try {
+					reply=handle(c,p);
+				} finally {
+					gate.exit(entered);
+				}
+				r.send(reply);
+			}
+		};
+		if (Protocol.isHandleOp(p.getCode())) {
+			if (frame.remaining()<8) {
+				r.send(error(p.getRequestId(),"operation "+p.getCode()+" is missing its handle"));
+				return;
+			}
+			//peek at the handle without moving the position
+			long h=frame.getLong(frame.position());
+			queue(c,h).execute(task);
+		} else {
+			pool.execute(task);
+		}
+	}
+
+	private SerialQueue queue(Client c,long h) {
+		SerialQueue q=c.queues.get(h);
+		if (q==null) {
+			q=new SerialQueue(pool);
+			SerialQueue q2=c.queues.putIfAbsent(h,q);
+			if (q2!=null) {q=q2;}
+		}
+		return q;
+	}
+
+	/**
+	* The client went away.  Roll back any open transactions and close any open cursors and exports.
+	*/
+	public void disconnect(final Client c) {
+		unsubscribe(c);
+		Iterator<Long> it=c.handles.keySet().iterator();
+		while (it.hasNext()) {
+			final long h=it.next();
+			queue(c,h).execute(new Runnable() {
+				public void run() {
+					Object o=c.handles.remove(h);
+					c.queues.remove(h);
+					try {
+						if (o instanceof TransactionObject) {
+							((TransactionObject)o).rollback();
+						} else if (o instanceof CursorObject) {
+							((CursorObject)o).close();
+						} else if (o instanceof Exporter) {
+							((Exporter)o).close();
+						}
+					} catch (Exception x) {
+						//the transaction may not have begun, or it was already closed
+					}
+				}
+			});
+		}
+	}
+
+	//push invalidations to the client as frames with requestId 0
+	private synchronized void subscribe(final Client c) {
+		if (c.listener!=null) {return;}
+		c.listener=new InvalidationListener() {
+			public void invalidated(Key[] keys) {
+				Message m=new Message(0,Protocol.INVALIDATE);
+				m.putInt(keys.length);
+				for (int i=0;i<keys.length;i++) {
+					m.putKey(keys[i]);
+				}
+				c.reply.send(m.finish());
+			}
+		};
+		Invalidations.instance().subscribe(c.listener);
+	}
+
+	private synchronized void unsubscribe(Client c) {
+		if (c.listener!=null) {
+			Invalidations.instance().unsubscribe(c.listener);
+			c.listener=null;
+		}
+	}
+
+	private long register(Client c,Object o) {
+		long h=nextHandle.incrementAndGet();
+		c.handles.put(h,o);
+		return h;
+	}
+
+	//release the handle after it is finished
+	private void release(Client c,long h) {
+		c.handles.remove(h);
+		c.queues.remove(h);
+	}
+
+	/**
+	* Do the work and build the reply.  This never throws, errors are sent back to the client.
+	*/
+	ByteBuffer handle(Client c,Payload p) {
+		int id=p.getRequestId();
+		byte op=p.getCode();
+		try {
+			if (Protocol.isExportOp(op)) {
+				return exportOp(c,p);
+			} else if (Protocol.isCursorOp(op)) {
+				return cursorOp(c,p);
+			} else if (Protocol.isHandleOp(op)) {
+				return transactionOp(c,p);
+			}
+			Message m=new Message(id,Protocol.OK);
+			Credentials user=null;
+			if (op!=Protocol.LIB_VERSION && op!=Protocol.DB_FILENAME) {
+				user=p.getCredentials();
+			}
+			switch (op) {
+				case Protocol.LIB_VERSION:
+					m.putInt(engine.getLibVersionNumber());
+					break;
+				case Protocol.DB_FILENAME:
+					m.putString(engine.getDatabaseFileName());
+					break;
+				case Protocol.CREATE_TRANSACTION:
+					m.putLong(register(c,new TransactionObject(user)));
+					break;
+				case Protocol.LIST_TABLES:
+					m.putStrings(engine.listTables(user));
+					break;
+				case Protocol.GET:
+					m.putDataObject(engine.get(user,p.getKey()));
+					break;
+				case Protocol.ROWS:
+					m.putInt(engine.rows(user,p.getString()));
+					break;
+				case Protocol.SELECT_PAGE: {
+					DataObject d=p.getDataObject();
+					int limit=p.getInt();
+					Page page=engine.selectPage(user,d,limit,p.getString());
+					m.putBatch(page);
+					m.putString(page.next);
+					break;
+				}
+				case Protocol.SELECT_ALL: {
+					DataObject d=p.getDataObject();
+					int limit=p.getInt();
+					int offset=p.getInt();
+					m.putLong(register(c,new CursorObject(user,d,limit,offset)));
+					break;
+				}
+				case Protocol.SELECT_WHERE: {
+					DataObject d=p.getDataObject();
+					m.putLong(register(c,new CursorObject(user,d,p.getString())));
+					break;
+				}
+				case Protocol.AGGREGATE:
+					m.putAggregateResult(engine.aggregate(user,p.getAggregate()));
+					break;
+				case Protocol.EXISTS: {
+					String table=p.getString();
+					String where=p.getString();
+					m.putBoolean(engine.exists(user,table,where,p.getValues()));
+					break;
+				}
+				case Protocol.SEARCH: {
+					DataObject d=p.getDataObject();
+					String query=p.getString();
+					int limit=p.getInt();
+					m.putSearchHits(engine.search(user,(Searchable)d,query,limit,p.getBoolean()));
+					break;
+				}
+				case Protocol.EXPORT: {
+					DataObject d=p.getDataObject();
+					String where=p.getString();
+					m.putLong(register(c,new Exporter(user,d,where,p.getInt())));
+					break;
+				}
+				case Protocol.EXPORT_FILE: {
+					DataObject d=p.getDataObject();
+					String where=p.getString();
+					int format=p.getInt();
+					m.putLong(engine.exportToFile(user,d,where,format,p.getString()));
+					break;
+				}
+				case Protocol.VIEW:
+					m.putLong(register(c,new CursorObject(user,(ViewObject)p.getDataObject())));
+					break;
+				case Protocol.SUBSCRIBE:
+					if (!Kernel.instance().validate(user)) {
+						throw new Unauthorized("wrong password");
+					}
+					subscribe(c);
+					break;
+				case Protocol.UNSUBSCRIBE:
+					unsubscribe(c);
+					break;
+				case Protocol.LOGIN:
+					m.putCredentials(engine.login(user));
+					break;
+				case Protocol.LOGOUT:
+					if (user instanceof Session) {
+						engine.logout((Session)user);
+					}
+					break;
+				default:
+					return error(id,"unknown operation "+op);
+			}
+			return m.finish();
+		} catch (DataStoreException dx) {
+			return new Message(id,Protocol.DATASTORE_ERROR).putString(dx.getMessage()).putInt(dx.getErrCode()).finish();
+		} catch (Unauthorized ux) {
+			return new Message(id,Protocol.UNAUTHORIZED).putString(ux.getMessage()).finish();
+		} catch (Throwable x) {
+			//even an OutOfMemoryError, so the client gets its reply and the worker goes on
+			return error(id,x.getClass().getName()+": "+x.getMessage());
+		}
+	}
+
+	private ByteBuffer error(int id,String msg) {
+		return new Message(id,Protocol.ERROR).putString(msg).finish();
+	}
+
+	private ByteBuffer transactionOp(Client c,Payload p) throws Exception {
+		long h=p.getLong();
+		Object o=c.handles.get(h);
+		if (!(o instanceof TransactionObject)) {
+			return error(p.getRequestId(),"unknown transaction handle "+h);
+		}
+		TransactionObject tx=(TransactionObject)o;
+		Message m=new Message(p.getRequestId(),Protocol.OK);
+		switch (p.getCode()) {
+			case Protocol.TX_ID:
+				m.putLong(tx.getID());
+				break;
+			case Protocol.BEGIN:
+				tx.begin();
+				break;
+			case Protocol.COMMIT:
+				release(c,h);
+				tx.commit();
+				break;
+			case Protocol.ROLLBACK:
+				release(c,h);
+				tx.rollback();
+				break;
+			case Protocol.CREATE_TABLE:
+				tx.createTable(p.getDataObject());
+				break;
+			case Protocol.DROP_TABLE:
+				tx.dropTable(p.getDataObject());
+				break;
+			case Protocol.INSERT:
+				m.putKey(tx.insert(p.getDataObject()));
+				break;
+			case Protocol.UPDATE: {
+				DataObject old=p.getDataObject();
+				tx.update(old,p.getDataObject());
+				break;
+			}
+			case Protocol.DELETE:
+				tx.delete(p.getDataObject());
+				break;
+			case Protocol.CREATE_VIEW:
+				tx.createView((ViewObject)p.getDataObject());
+				break;
+			case Protocol.DROP_VIEW:
+				tx.dropView((ViewObject)p.getDataObject());
+				break;
+			case Protocol.EXECUTE_BATCH:
+				m.putBatchResult(tx.executeBatch(p.getOperations()));
+				break;
+			case Protocol.EXECUTE_AND_COMMIT:
+				release(c,h);
+				m.putBatchResult(tx.executeAndCommit(p.getOperations()));
+				break;
+			default:
+				return error(p.getRequestId(),"unknown operation "+p.getCode());
+		}
+		return m.finish();
+	}
+
+	private ByteBuffer cursorOp(Client c,Payload p) throws Exception {
+		long h=p.getLong();
+		Object o=c.handles.get(h);
+		if (!(o instanceof CursorObject)) {
+			return error(p.getRequestId(),"unknown cursor handle "+h);
+		}
+		CursorObject cx=(CursorObject)o;
+		Message m=new Message(p.getRequestId(),Protocol.OK);
+		switch (p.getCode()) {
+			case Protocol.GET_SQL:
+				m.putString(cx.getSql());
+				break;
+			case Protocol.OPEN:
+				cx.open();
+				break;
+			case Protocol.SET_READ_AHEAD:
+				cx.setReadAhead(p.getInt());
+				break;
+			case Protocol.HAS_NEXT:
+				m.putBoolean(cx.hasNext());
+				break;
+			case Protocol.NEXT:
+				m.putDataObject(cx.next());
+				break;
+			case Protocol.NEXT_BATCH:
+				m.putBatch(cx.nextBatch(p.getInt()));
+				break;
+			case Protocol.CLOSE:
+				release(c,h);
+				cx.close();
+				break;
+			default:
+				return error(p.getRequestId(),"unknown operation "+p.getCode());
+		}
+		return m.finish();
+	}
+
+	private ByteBuffer exportOp(Client c,Payload p) throws Exception {
+		long h=p.getLong();
+		Object o=c.handles.get(h);
+		if (!(o instanceof Exporter)) {
+			return error(p.getRequestId(),"unknown export handle "+h);
+		}
+		Exporter x=(Exporter)o;
+		Message m=new Message(p.getRequestId(),Protocol.OK);
+		switch (p.getCode()) {
+			case Protocol.EXPORT_READ: {
+				byte[] b=x.read();
+				if (b==null) {
+					//it closed itself at the end
+					release(c,h);
+				}
+				m.putBytes(b);
+				m.putLong(x.getRows());
+				break;
+			}
+			case Protocol.EXPORT_CLOSE:
+				release(c,h);
+				x.close();
+				break;
+			default:
+				return error(p.getRequestId(),"unknown operation "+p.getCode());
+		}
+		return m.finish();
+	}
+}
\ No newline at end of file
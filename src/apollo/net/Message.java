@@ -0,0 +1,233 @@
+package apollo.net;
+import apollo.iface.Aggregate;
+import apollo.iface.AggregateResult;
+import apollo.iface.BatchResult;
+import apollo.iface.DataObject;
+import apollo.iface.Key;
+import apollo.iface.Operation;
+import apollo.iface.OperationList;
+import apollo.iface.RowBatch;
+import apollo.iface.SearchHit;
+import apollo.util.Credentials;
+import apollo.util.Session;
+import apollo.util.RowCodec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+* A Message is a frame being written.  The header is written by the constructor, then the
+* payload is added with the put methods, and finish() fills in the length.  The buffer grows
+* as needed.
+*
+* Strings are written as an int length and UTF-8 bytes, with -1 for null.
+*
+* DataObjects are written with RowCodec.  The codec is shared by the whole Message, so
+* the schema of a class is written once per frame, no matter how many rows use it.
+*/
+public class Message {
+	private ByteBuffer buf;
+	private RowCodec.Writer codec;
+
+	public Message(int requestId,byte code) {
+		buf=ByteBuffer.allocate(256);
+		buf.putInt(0);	//length, filled in by finish()
+		buf.putInt(requestId);
+		buf.put(code);
+	}
+
+	private void ensure(int n) {
+		if (buf.remaining()<n) {
+			int size=Math.max(buf.capacity()*2,buf.position()+n);
+			ByteBuffer b2=ByteBuffer.allocate(size);
+			buf.flip();
+			b2.put(buf);
+			buf=b2;
+		}
+	}
+
+	public Message putByte(byte b) {
+		ensure(1);
+		buf.put(b);
+		return this;
+	}
+
+	public Message putBoolean(boolean b) {
+		return putByte(b?(byte)1:(byte)0);
+	}
+
+	public Message putInt(int i) {
+		ensure(4);
+		buf.putInt(i);
+		return this;
+	}
+
+	public Message putLong(long l) {
+		ensure(8);
+		buf.putLong(l);
+		return this;
+	}
+
+	public Message putBytes(byte[] b) {
+		if (b==null) {
+			return putInt(-1);
+		}
+		putInt(b.length);
+		ensure(b.length);
+		buf.put(b);
+		return this;
+	}
+
+	public Message putString(String s) {
+		if (s==null) {
+			return putInt(-1);
+		}
+		return putBytes(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public Message putStrings(String[] sa) {
+		if (sa==null) {
+			return putInt(-1);
+		}
+		putInt(sa.length);
+		for (int i=0;i<sa.length;i++) {
+			putString(sa[i]);
+		}
+		return this;
+	}
+
+	//0 for null, 1 for Credentials, 2 for a Session
+	public Message putCredentials(Credentials c) {
+		if (c==null) {
+			return putByte((byte)0);
+		}
+		if (c instanceof Session) {
+			Session s=(Session)c;
+			putByte((byte)2);
+			putString(s.username);
+			putLong(s.id);
+			putLong(s.expires);
+			putString(s.signature);
+			//not signed, it is only a preference
+			putInt(s.compressAbove);
+			return this;
+		}
+		putByte((byte)1);
+		putString(c.username);
+		putString(c.email);
+		putString(c.password);
+		return this;
+	}
+
+	public Message putKey(Key k) {
+		if (k==null) {
+			return putBoolean(false);
+		}
+		putBoolean(true);
+		putString(k.tableName);
+		putLong(k.rowid);
+		return this;
+	}
+
+	public Message putDataObject(DataObject d) {
+		if (codec==null) {
+			codec=new RowCodec.Writer();
+		}
+		try {
+			ByteArrayOutputStream bos=new ByteArrayOutputStream();
+			DataOutputStream dos=new DataOutputStream(bos);
+			codec.write(dos,d);
+			dos.close();
+			return putBytes(bos.toByteArray());
+		} catch (java.io.IOException x) {
+			throw new IllegalStateException(x.getClass().getName()+": "+x.getMessage()+" when writing "+d.getClass().getName());
+		}
+	}
+
+	//the rows are one block, compressed if the batch asks for it
+	public Message putBatch(RowBatch b) {
+		try {
+			putBytes(b.encodeRows());
+		} catch (java.io.IOException x) {
+			throw new IllegalStateException(x.getClass().getName()+": "+x.getMessage()+" when writing a batch");
+		}
+		putBoolean(b.endOfData);
+		putInt(b.suggestedSize);
+		return this;
+	}
+
+	public Message putOperations(List<Operation> ops) {
+		int compressAbove=0;
+		if (ops instanceof OperationList) {
+			compressAbove=((OperationList)ops).compressAbove;
+		}
+		try {
+			return putBytes(OperationList.encode(ops,compressAbove));
+		} catch (java.io.IOException x) {
+			throw new IllegalStateException(x.getClass().getName()+": "+x.getMessage()+" when writing operations");
+		}
+	}
+
+	public Message putBatchResult(BatchResult r) {
+		putInt(r.keys.length);
+		for (int i=0;i<r.keys.length;i++) {
+			putKey(r.keys[i]);
+			putInt(r.counts[i]);
+		}
+		return this;
+	}
+
+	public Message putSearchHits(SearchHit[] hits) {
+		putInt(hits.length);
+		for (SearchHit h: hits) {
+			putKey(h.key);
+			putLong(Double.doubleToLongBits(h.rank));
+			putString(h.snippet);
+			putBoolean(h.object!=null);
+			if (h.object!=null) {
+				putDataObject(h.object);
+			}
+		}
+		return this;
+	}
+
+	public Message putAggregate(Aggregate a) {
+		try {
+			return putBytes(a.encode());
+		} catch (java.io.IOException x) {
+			throw new IllegalStateException(x.getClass().getName()+": "+x.getMessage()+" when writing an aggregate");
+		}
+	}
+
+	public Message putAggregateResult(AggregateResult r) {
+		try {
+			return putBytes(r.encode());
+		} catch (java.io.IOException x) {
+			throw new IllegalStateException(x.getClass().getName()+": "+x.getMessage()+" when writing an aggregate result");
+		}
+	}
+
+	//values to bind, typed the way AggregateResult writes them
+	public Message putValues(Object[] values) {
+		try {
+			ByteArrayOutputStream bos=new ByteArrayOutputStream();
+			DataOutputStream dos=new DataOutputStream(bos);
+			AggregateResult.writeValues(dos,values);
+			dos.close();
+			return putBytes(bos.toByteArray());
+		} catch (java.io.IOException x) {
+			throw new IllegalStateException(x.getClass().getName()+": "+x.getMessage()+" when writing values");
+		}
+	}
+
+	/**
+	* Fill in the length and return the buffer, ready to be written.
+	*/
+	public ByteBuffer finish() {
+		buf.putInt(0,buf.position()-4);
+		buf.flip();
+		return buf;
+	}
+}
@@ -0,0 +1,527 @@
+package apollo.net;
+import apollo.iface.*;
+import apollo.util.Credentials;
+import apollo.util.Session;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Path;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* NioClient is the client library for NioServer.  It implements DataStore, so code written for the
+* RMI stub works with this too.  The Transactions and Cursors it returns are small proxies that send
+* the handle with every call.
+*
+* One socket is shared by all the threads that use this.  Requests are written as soon as they are
+* made, and a reader thread matches up the replies by requestId, so many threads can have requests
+* in flight at once.  Use send() directly if you want to pipeline requests from one thread.
+*
+* Network errors are thrown as RemoteException, the same as RMI, and so is no reply in TIMEOUT ms.
+*/
+public class NioClient implements DataStore {
+	private ByteChannel ch;
+	private Object writeLock=new Object();
+	private AtomicInteger nextId=new AtomicInteger();
+	private ConcurrentHashMap<Integer,CompletableFuture<Payload>> waiting=new ConcurrentHashMap<Integer,CompletableFuture<Payload>>();
+	private volatile boolean closed=false;
+	//how long call() waits for a reply
+	public static long TIMEOUT=5*60*1000;
+	private Thread reader;
+	//local listeners for invalidations pushed by the server
+	private CopyOnWriteArrayList<InvalidationListener> listeners=new CopyOnWriteArrayList<InvalidationListener>();
+
+	public NioClient(String host,int port) throws IOException {
+		this(open(host,port));
+	}
+
+	private static SocketChannel open(String host,int port) throws IOException {
+		SocketChannel sc=SocketChannel.open(new InetSocketAddress(host,port));
+		sc.socket().setTcpNoDelay(true);
+		return sc;
+	}
+
+	/**
+	* Connect to a NioServer listening on a unix domain socket, see NioServer.defaultSocketFile().
+	*/
+	public NioClient(Path socketFile) throws IOException {
+		this(SocketChannel.open(UnixDomainSocketAddress.of(socketFile)));
+	}
+
+	/**
+	* Use any connected channel that carries the same frames, like a ShmChannel.
+	*/
+	public NioClient(ByteChannel ch) {
+		this.ch=ch;
+		reader=new Thread(new Runnable() {
+			public void run() {
+				readLoop();
+			}
+		},"nio-client-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	* Start a new request.  Add the payload, then pass it to send() or call().
+	*/
+	public Message request(byte op) {
+		return new Message(nextId.incrementAndGet(),op);
+	}
+
+	/**
+	* Send the request and return right away.  The future is completed when the reply comes in.
+	*/
+	public CompletableFuture<Payload> send(Message m) {
+		ByteBuffer b=m.finish();
+		int id=b.getInt(4);
+		CompletableFuture<Payload> f=new CompletableFuture<Payload>();
+		if (closed) {
+			f.completeExceptionally(new IOException("connection is closed"));
+			return f;
+		}
+		waiting.put(id,f);
+		try {
+			synchronized (writeLock) {
+				while (b.hasRemaining()) {
+					ch.write(b);
+				}
+			}
+		} catch (IOException x) {
+			waiting.remove(id);
+			f.completeExceptionally(x);
+		}
+		return f;
+	}
+
+	/**
+	* Send the request and wait for the reply, at most TIMEOUT milliseconds.
+	*/
+	public Payload call(Message m) throws RemoteException {
+		CompletableFuture<Payload> f=send(m);
+		try {
+			return f.get(TIMEOUT,TimeUnit.MILLISECONDS);
+		} catch (InterruptedException x) {
+			throw new RemoteException("interrupted while waiting for reply");
+		} catch (ExecutionException x) {
+			throw new RemoteException("request failed",x.getCause());
+		} catch (TimeoutException x) {
+			waiting.values().remove(f);
+			throw new RemoteException("no reply in "+TIMEOUT+" ms");
+		}
+	}
+
+	private void readLoop() {
+		ByteBuffer len=ByteBuffer.allocate(4);
+		try {
+			while (!closed) {
+				len.clear();
+				readFully(len);
+				int n=len.getInt(0);
+				if (n<Protocol.HEADER-4 || n>Protocol.MAX_FRAME) {
+					throw new IOException("bad frame length "+n);
+				}
+				ByteBuffer frame=ByteBuffer.allocate(n);
+				readFully(frame);
+				frame.flip();
+				Payload p=new Payload(frame);
+				if (p.getRequestId()==0 && p.getCode()==Protocol.INVALIDATE) {
+					invalidated(p);
+					continue;
+				}
+				CompletableFuture<Payload> f=waiting.remove(p.getRequestId());
+				if (f!=null) {
+					f.complete(p);
+				}
+			}
+		} catch (IOException x) {
+			if (!closed) {
+				System.out.println("warning: NioClient lost connection: "+x.getMessage());
+			}
+		} catch (RuntimeException x) {
+			//a frame that can't be read.  The ones after it can't be trusted either
+			System.out.println("warning: NioClient closing after a bad frame: "+x);
+		}
+		close();
+		//nothing else is coming, so fail everyone who is waiting
+		Iterator<CompletableFuture<Payload>> it=waiting.values().iterator();
+		while (it.hasNext()) {
+			it.next().completeExceptionally(new IOException("connection closed"));
+			it.remove();
+		}
+	}
+
+	private void invalidated(Payload p) {
+		Key[] keys=p.getKeys();
+		Iterator<InvalidationListener> it=listeners.iterator();
+		while (it.hasNext()) {
+			try {
+				it.next().invalidated(keys);
+			} catch (Exception x) {
+				System.out.println("warning: invalidation listener threw "+x);
+			}
+		}
+	}
+
+	private void readFully(ByteBuffer b) throws IOException {
+		while (b.hasRemaining()) {
+			if (ch.read(b)<0) {
+				throw new IOException("end of stream");
+			}
+		}
+	}
+
+	public void close() {
+		closed=true;
+		try {
+			ch.close();
+		} catch (IOException x) {
+			//already closed
+		}
+	}
+
+	//-------------------------------------------------------
+	//check the status of a reply.  Use checkAuthorized() for methods that throw Unauthorized
+	static void check(Payload p) throws RemoteException, DataStoreException {
+		switch (p.getCode()) {
+			case Protocol.OK:
+				return;
+			case Protocol.DATASTORE_ERROR: {
+				String msg=p.getString();
+				throw new DataStoreException(msg,p.getInt());
+			}
+			case Protocol.UNAUTHORIZED:
+				throw new RemoteException("unauthorized: "+p.getString());
+			default:
+				throw new RemoteException(p.getString());
+		}
+	}
+
+	static void checkAuthorized(Payload p) throws RemoteException, DataStoreException, Unauthorized {
+		if (p.getCode()==Protocol.UNAUTHORIZED) {
+			throw new Unauthorized(p.getString());
+		}
+		check(p);
+	}
+
+	//======================================================
+	//DataStore
+	public int getLibVersionNumber() throws RemoteException {
+		Payload p=call(request(Protocol.LIB_VERSION));
+		try {
+			check(p);
+		} catch (DataStoreException dx) {
+			throw new RemoteException(dx.toString());
+		}
+		return p.getInt();
+	}
+
+	public String getDatabaseFileName() throws RemoteException, DataStoreException {
+		Payload p=call(request(Protocol.DB_FILENAME));
+		check(p);
+		return p.getString();
+	}
+
+	public Transaction createTransaction(Credentials user) throws RemoteException,DataStoreException, Unauthorized {
+		Payload p=call(request(Protocol.CREATE_TRANSACTION).putCredentials(user));
+		checkAuthorized(p);
+		return new NioTransaction(p.getLong());
+	}
+
+	public String[] listTables(Credentials user) throws RemoteException,DataStoreException, Unauthorized {
+		Payload p=call(request(Protocol.LIST_TABLES).putCredentials(user));
+		checkAuthorized(p);
+		return p.getStrings();
+	}
+
+	public DataObject get(Credentials user,Key k) throws RemoteException,DataStoreException, Unauthorized {
+		Payload p=call(request(Protocol.GET).putCredentials(user).putKey(k));
+		checkAuthorized(p);
+		return p.getDataObject();
+	}
+
+	public int rows(Credentials user,String tableName) throws RemoteException,DataStoreException, Unauthorized {
+		Payload p=call(request(Protocol.ROWS).putCredentials(user).putString(tableName));
+		checkAuthorized(p);
+		return p.getInt();
+	}
+
+	public Cursor selectAll(Credentials user,DataObject d) throws RemoteException, DataStoreException, Unauthorized {
+		return selectAll(user,d,100,0);
+	}
+
+	public Cursor selectAll(Credentials user,DataObject d,int limit,int offset) throws RemoteException,
+		DataStoreException, Unauthorized {
+		Payload p=call(request(Protocol.SELECT_ALL).putCredentials(user).putDataObject(d).putInt(limit).putInt(offset));
+		checkAuthorized(p);
+		return new NioCursor(p.getLong());
+	}
+
+	public Page selectPage(Credentials user,DataObject d,int limit,String continuation) throws RemoteException,
+		DataStoreException, Unauthorized {
+		Payload p=call(request(Protocol.SELECT_PAGE).putCredentials(user).putDataObject(d).putInt(limit).putString(continuation));
+		checkAuthorized(p);
+		RowBatch b=p.getBatch();
+		return new Page(b.rows,p.getString());
+	}
+
+	public Cursor view(Credentials user,ViewObject v) throws RemoteException, DataStoreException, Unauthorized {
+		Payload p=call(request(Protocol.VIEW).putCredentials(user).putDataObject(v));
+		checkAuthorized(p);
+		return new NioCursor(p.getLong());
+	}
+
+	public Cursor selectWhere(Credentials user,DataObject d,String whereClause) throws RemoteException, DataStoreException, Unauthorized {
+		Payload p=call(request(Protocol.SELECT_WHERE).putCredentials(user).putDataObject(d).putString(whereClause));
+		checkAuthorized(p);
+		return new NioCursor(p.getLong());
+	}
+
+	public AggregateResult aggregate(Credentials user,Aggregate a) throws RemoteException, DataStoreException, Unauthorized {
+		Payload p=call(request(Protocol.AGGREGATE).putCredentials(user).putAggregate(a));
+		checkAuthorized(p);
+		return p.getAggregateResult();
+	}
+
+	public boolean exists(Credentials user,String tableName,String whereClause,Object[] params) throws RemoteException, DataStoreException, Unauthorized {
+		Payload p=call(request(Protocol.EXISTS).putCredentials(user).putString(tableName).putString(whereClause).putValues(params));
+		checkAuthorized(p);
+		return p.getBoolean();
+	}
+
+	public SearchHit[] search(Credentials user,Searchable d,String query,int limit,boolean objects) throws RemoteException, DataStoreException, Unauthorized {
+		Payload p=call(request(Protocol.SEARCH).putCredentials(user).putDataObject(d).putString(query)
+			.putInt(limit).putBoolean(objects));
+		checkAuthorized(p);
+		return p.getSearchHits();
+	}
+
+	public ExportStream export(Credentials user,DataObject d,String whereClause,int format) throws RemoteException, DataStoreException, Unauthorized {
+		Payload p=call(request(Protocol.EXPORT).putCredentials(user).putDataObject(d).putString(whereClause).putInt(format));
+		checkAuthorized(p);
+		return new NioExport(p.getLong());
+	}
+
+	public long exportToFile(Credentials user,DataObject d,String whereClause,int format,String fileName) throws RemoteException, DataStoreException, Unauthorized {
+		Payload p=call(request(Protocol.EXPORT_FILE).putCredentials(user).putDataObject(d).putString(whereClause)
+			.putInt(format).putString(fileName));
+		checkAuthorized(p);
+		return p.getLong();
+	}
+
+	/**
+	* The listener is kept here, and the server is asked to push invalidations on this socket.
+	*/
+	public void subscribe(Credentials user,InvalidationListener l) throws RemoteException, DataStoreException, Unauthorized {
+		if (listeners.isEmpty()) {
+			Payload p=call(request(Protocol.SUBSCRIBE).putCredentials(user));
+			checkAuthorized(p);
+		}
+		listeners.addIfAbsent(l);
+	}
+
+	public void unsubscribe(Credentials user,InvalidationListener l) throws RemoteException {
+		listeners.remove(l);
+		if (listeners.isEmpty()) {
+			Payload p=call(request(Protocol.UNSUBSCRIBE).putCredentials(user));
+			try {
+				check(p);
+			} catch (DataStoreException dx) {
+				throw new RemoteException(dx.toString());
+			}
+		}
+	}
+
+	public Session login(Credentials user) throws RemoteException, DataStoreException, Unauthorized {
+		Payload p=call(request(Protocol.LOGIN).putCredentials(user));
+		checkAuthorized(p);
+		return (Session)p.getCredentials();
+	}
+
+	public void logout(Session s) throws RemoteException, DataStoreException {
+		check(call(request(Protocol.LOGOUT).putCredentials(s)));
+	}
+
+	//======================================================
+	/**
+	* A Transaction on the server, known by its handle.
+	*/
+	class NioTransaction implements Transaction {
+		long handle;
+
+		NioTransaction(long h) {
+			handle=h;
+		}
+
+		private Payload tx(byte op,DataObject d) throws RemoteException, DataStoreException {
+			Message m=request(op).putLong(handle);
+			if (d!=null) {m.putDataObject(d);}
+			Payload p=call(m);
+			check(p);
+			return p;
+		}
+
+		public long getID() throws RemoteException {
+			try {
+				return tx(Protocol.TX_ID,null).getLong();
+			} catch (DataStoreException dx) {
+				throw new RemoteException(dx.toString());
+			}
+		}
+
+		public void begin() throws RemoteException, DataStoreException, Unauthorized {
+			Payload p=call(request(Protocol.BEGIN).putLong(handle));
+			checkAuthorized(p);
+		}
+
+		public void commit() throws RemoteException, DataStoreException {
+			tx(Protocol.COMMIT,null);
+		}
+
+		public void rollback() throws RemoteException, DataStoreException {
+			tx(Protocol.ROLLBACK,null);
+		}
+
+		public void createTable(DataObject d) throws RemoteException,DataStoreException {
+			tx(Protocol.CREATE_TABLE,d);
+		}
+
+		public void dropTable(DataObject d) throws RemoteException,DataStoreException {
+			tx(Protocol.DROP_TABLE,d);
+		}
+
+		public Key insert(DataObject d) throws RemoteException,DataStoreException {
+			return tx(Protocol.INSERT,d).getKey();
+		}
+
+		public void update(DataObject old,DataObject nu) throws RemoteException,DataStoreException {
+			Payload p=call(request(Protocol.UPDATE).putLong(handle).putDataObject(old).putDataObject(nu));
+			check(p);
+		}
+
+		public void delete(DataObject old)  throws RemoteException,DataStoreException {
+			tx(Protocol.DELETE,old);
+		}
+
+		public BatchResult executeBatch(List<Operation> ops) throws RemoteException,DataStoreException {
+			Payload p=call(request(Protocol.EXECUTE_BATCH).putLong(handle).putOperations(ops));
+			check(p);
+			return p.getBatchResult();
+		}
+
+		public BatchResult executeAndCommit(List<Operation> ops) throws RemoteException,DataStoreException, Unauthorized {
+			Payload p=call(request(Protocol.EXECUTE_AND_COMMIT).putLong(handle).putOperations(ops));
+			checkAuthorized(p);
+			return p.getBatchResult();
+		}
+
+		public void createView(ViewObject v) throws RemoteException,DataStoreException {
+			tx(Protocol.CREATE_VIEW,v);
+		}
+
+		public void dropView(ViewObject v) throws RemoteException,DataStoreException {
+			tx(Protocol.DROP_VIEW,v);
+		}
+	}
+
+	//======================================================
+	/**
+	* A Cursor on the server, known by its handle.
+	*/
+	class NioCursor implements Cursor {
+		long handle;
+
+		NioCursor(long h) {
+			handle=h;
+		}
+
+		private Payload cx(Message m) throws RemoteException, DataStoreException {
+			Payload p=call(m);
+			check(p);
+			return p;
+		}
+
+		public String getSql() throws RemoteException {
+			try {
+				return cx(request(Protocol.GET_SQL).putLong(handle)).getString();
+			} catch (DataStoreException dx) {
+				throw new RemoteException(dx.toString());
+			}
+		}
+
+		public void open() throws RemoteException, DataStoreException, Unauthorized {
+			Payload p=call(request(Protocol.OPEN).putLong(handle));
+			checkAuthorized(p);
+		}
+
+		public void setReadAhead(int rows) throws RemoteException {
+			try {
+				cx(request(Protocol.SET_READ_AHEAD).putLong(handle).putInt(rows));
+			} catch (DataStoreException dx) {
+				throw new RemoteException(dx.toString());
+			}
+		}
+
+		public boolean hasNext() throws RemoteException, DataStoreException {
+			return cx(request(Protocol.HAS_NEXT).putLong(handle)).getBoolean();
+		}
+
+		public DataObject next() throws RemoteException, DataStoreException {
+			return cx(request(Protocol.NEXT).putLong(handle)).getDataObject();
+		}
+
+		public RowBatch nextBatch(int max) throws RemoteException, DataStoreException {
+			return cx(request(Protocol.NEXT_BATCH).putLong(handle).putInt(max)).getBatch();
+		}
+
+		public void close() throws RemoteException {
+			try {
+				cx(request(Protocol.CLOSE).putLong(handle));
+			} catch (DataStoreException dx) {
+				throw new RemoteException(dx.toString());
+			}
+		}
+	}
+
+	//-----------------------------------------------
+	class NioExport implements ExportStream {
+		long handle;
+		long rows;
+
+		NioExport(long h) {
+			handle=h;
+		}
+
+		public byte[] read() throws RemoteException, DataStoreException {
+			Payload p=call(request(Protocol.EXPORT_READ).putLong(handle));
+			check(p);
+			byte[] b=p.getBytes();
+			rows=p.getLong();
+			return b;
+		}
+
+		public long getRows() {
+			return rows;
+		}
+
+		public void close() throws RemoteException {
+			try {
+				check(call(request(Protocol.EXPORT_CLOSE).putLong(handle)));
+			} catch (DataStoreException dx) {
+				throw new RemoteException(dx.toString());
+			}
+		}
+	}
+}
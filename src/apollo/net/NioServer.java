@@ -0,0 +1,362 @@
+package apollo.net;
+import apollo.iface.DataStoreException;
+import apollo.kernel.Kernel;
+import apollo.server.DataStoreEngine;
+import apollo.server.Exports;
+import apollo.server.NativeGate;
+import apollo.util.Credentials;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+* NioServer is a second front end to the DataStoreEngine, using the binary protocol in Protocol
+* instead of RMI.  One thread runs the Selector for all the connections, and the requests are
+* run by the Dispatcher on a pool of worker threads.  So a thousand idle clients cost a thousand
+* sockets, not a thousand threads.
+*
+* RMI is still available.  main() starts both.
+*
+* The requests can also run on virtual threads, one per request, so thousands of clients with
+* requests blocked in sqlite don't need thousands of platform threads.  See Workers and NativeGate.
+*/
+public class NioServer implements Runnable {
+	public final static int DEFAULT_PORT=1100;
+	public static int WORKER_THREADS=32;
+	//in virtual mode, how many requests can be in sqlite at once
+	public static int NATIVE_PERMITS=Runtime.getRuntime().availableProcessors()*2;
+	public static int STATS_SECONDS=60;
+	public static String SOCKET_PERMISSIONS="rw-rw----";
+	//for the directory of the unix socket.  Add group x to let the group connect
+	public static String DIRECTORY_PERMISSIONS="rwx------";
+
+	private Selector selector;
+	private ServerSocketChannel server;
+	private Dispatcher dispatcher;
+	private ConcurrentLinkedQueue<Conn> wantWrite=new ConcurrentLinkedQueue<Conn>();
+	private volatile boolean running=true;
+	private Thread thread;
+	private int port=-1;
+	//set for a unix domain socket, deleted on stop
+	private Path socketFile;
+
+	/**
+	* One of these for every client socket.  The read buffer holds partial frames until the
+	* rest comes in.  Replies are queued by the workers and written by the selector thread.
+	*/
+	class Conn implements Dispatcher.Reply {
+		SocketChannel ch;
+		SelectionKey key;
+		ByteBuffer in=ByteBuffer.allocate(64*1024);
+		ConcurrentLinkedQueue<ByteBuffer> out=new ConcurrentLinkedQueue<ByteBuffer>();
+		Dispatcher.Client client;
+
+		Conn(SocketChannel ch) {
+			this.ch=ch;
+			client=dispatcher.newClient();
+		}
+
+		public void send(ByteBuffer b) {
+			out.add(b);
+			wantWrite.add(this);
+			selector.wakeup();
+		}
+	}
+
+	public NioServer(Dispatcher d,int port) throws IOException {
+		this(d,new InetSocketAddress(port));
+		this.port=port;
+	}
+
+	/**
+	* Listen on a TCP address or a UnixDomainSocketAddress.  A unix socket file is only usable by
+	* the owner and group of the server process, so the file permissions control who can connect.
+	*
+	* The socket must be in a directory that only this user can write to, so nobody else can put
+	* their own socket there or replace ours.  The directory is created with DIRECTORY_PERMISSIONS
+	* if it isn't there.  A shared directory like /tmp is refused.
+	*/
+	public NioServer(Dispatcher d,SocketAddress address) throws IOException {
+		dispatcher=d;
+		selector=Selector.open();
+		if (address instanceof UnixDomainSocketAddress) {
+			Path path=((UnixDomainSocketAddress)address).getPath().toAbsolutePath();
+			privateDirectory(path.getParent());
+			//left over from a server that didn't shut down
+			Files.deleteIfExists(path);
+			server=ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			server.bind(address);
+			socketFile=path;
+			try {
+				Files.setPosixFilePermissions(path,PosixFilePermissions.fromString(SOCKET_PERMISSIONS));
+			} catch (UnsupportedOperationException x) {
+				//not a posix file system
+			}
+		} else {
+			server=ServerSocketChannel.open();
+			server.bind(address);
+		}
+		server.configureBlocking(false);
+		server.register(selector,SelectionKey.OP_ACCEPT);
+	}
+
+	public void start() {
+		thread=new Thread(this,"nio-server");
+		thread.start();
+	}
+
+	public void stop() {
+		running=false;
+		selector.wakeup();
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+				//turn on OP_WRITE for connections with replies waiting
+				Conn w;
+				while ((w=wantWrite.poll())!=null) {
+					if (w.key.isValid()) {
+						w.key.interestOps(SelectionKey.OP_READ|SelectionKey.OP_WRITE);
+					}
+				}
+				Iterator<SelectionKey> it=selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key=it.next();
+					it.remove();
+					if (!key.isValid()) {continue;}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Conn c=(Conn)key.attachment();
+					try {
+						if (key.isReadable()) {
+							read(c);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write(c);
+						}
+					} catch (IOException x) {
+						close(c);
+					} catch (RuntimeException x) {
+						//a bad frame from one client mustn't stop the server
+						System.out.println("warning: "+x.getClass().getName()+" from a client, closing it: "+x.getMessage());
+						close(c);
+					}
+				}
+			} catch (IOException x) {
+				System.out.println("warning: "+x.getClass().getName()+" in NioServer: "+x.getMessage());
+			}
+		}
+		try {
+			selector.close();
+			server.close();
+			if (socketFile!=null) {
+				Files.deleteIfExists(socketFile);
+			}
+		} catch (IOException x) {
+			//we are going away anyway
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel ch=server.accept();
+		if (ch==null) {return;}
+		ch.configureBlocking(false);
+		if (socketFile==null) {
+			ch.socket().setTcpNoDelay(true);
+		}
+		Conn c=new Conn(ch);
+		c.key=ch.register(selector,SelectionKey.OP_READ,c);
+	}
+
+	//read what is there and dispatch every complete frame
+	private void read(Conn c) throws IOException {
+		int n=c.ch.read(c.in);
+		if (n<0) {
+			close(c);
+			return;
+		}
+		c.in.flip();
+		while (c.in.remaining()>=4) {
+			int len=c.in.getInt(c.in.position());
+			if (len<Protocol.HEADER-4 || len>Protocol.MAX_FRAME) {
+				throw new IOException("bad frame length "+len);
+			}
+			if (c.in.remaining()<4+len) {
+				if (c.in.capacity()<4+len) {
+					//make room for the whole frame
+					ByteBuffer b2=ByteBuffer.allocate(4+len);
+					b2.put(c.in);
+					c.in=b2;
+					return;
+				}
+				break;
+			}
+			c.in.getInt();
+			ByteBuffer frame=ByteBuffer.allocate(len);
+			int limit=c.in.limit();
+			c.in.limit(c.in.position()+len);
+			frame.put(c.in);
+			c.in.limit(limit);
+			frame.flip();
+			dispatcher.dispatch(c.client,frame,c);
+		}
+		c.in.compact();
+	}
+
+	private void write(Conn c) throws IOException {
+		ByteBuffer b;
+		while ((b=c.out.peek())!=null) {
+			c.ch.write(b);
+			if (b.hasRemaining()) {
+				//the socket is full, try again later
+				return;
+			}
+			c.out.poll();
+		}
+		c.key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void close(Conn c) {
+		c.key.cancel();
+		try {
+			c.ch.close();
+		} catch (IOException x) {
+			//already closed
+		}
+		dispatcher.disconnect(c.client);
+	}
+
+	public Dispatcher getDispatcher() {return dispatcher;}
+
+	//-1 for a unix domain socket
+	public int getPort() {return port;}
+
+	/**
+	* The default path for the unix domain socket, in a directory of its own for this user in the
+	* temp directory.
+	*/
+	public static Path defaultSocketFile() {
+		return Paths.get(System.getProperty("java.io.tmpdir"),"apollo-"+System.getProperty("user.name"),"apollo.sock");
+	}
+
+	//create the directory, or check that the one that is there belongs to us and nobody else can write to it.
+	//Also used by ShmChannel and ShmServer
+	static void privateDirectory(Path dir) throws IOException {
+		PosixFileAttributes a;
+		try {
+			if (!Files.exists(dir,LinkOption.NOFOLLOW_LINKS)) {
+				Files.createDirectories(dir,PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(DIRECTORY_PERMISSIONS)));
+				//the umask may have taken some away
+				Files.setPosixFilePermissions(dir,PosixFilePermissions.fromString(DIRECTORY_PERMISSIONS));
+			}
+			a=Files.readAttributes(dir,PosixFileAttributes.class,LinkOption.NOFOLLOW_LINKS);
+		} catch (UnsupportedOperationException x) {
+			//not a posix file system
+			Files.createDirectories(dir);
+			return;
+		}
+		if (!a.isDirectory()) {
+			throw new IOException(dir+" is not a directory");
+		}
+		if (!a.owner().getName().equals(System.getProperty("user.name"))) {
+			throw new IOException(dir+" belongs to "+a.owner().getName()+", not "+System.getProperty("user.name"));
+		}
+		Set<PosixFilePermission> p=a.permissions();
+		if (p.contains(PosixFilePermission.GROUP_WRITE) || p.contains(PosixFilePermission.OTHERS_WRITE)) {
+			throw new IOException("other users can write to "+dir+", use a private directory");
+		}
+	}
+
+	/**
+	* Create and start a server in the given mode, see Workers.  In virtual mode the requests get
+	* a NativeGate with NATIVE_PERMITS permits.
+	*/
+	public static NioServer start(DataStoreEngine engine,int port,String mode) throws IOException {
+		Dispatcher d;
+		if (Workers.VIRTUAL.equals(mode) && Workers.hasVirtualThreads()) {
+			Workers.reserveCarriers(NATIVE_PERMITS);
+			d=new Dispatcher(engine,Workers.create(mode,WORKER_THREADS),new NativeGate(NATIVE_PERMITS));
+		} else {
+			d=new Dispatcher(engine,Workers.create(Workers.PLATFORM,WORKER_THREADS));
+		}
+		NioServer ns=new NioServer(d,port);
+		ns.start();
+		return ns;
+	}
+
+	//print the gate and export numbers every STATS_SECONDS
+	private void startStats() {
+		if (STATS_SECONDS<=0) {return;}
+		Thread t=new Thread("nio-stats") {
+			public void run() {
+				while (running) {
+					try {
+						Thread.sleep(STATS_SECONDS*1000L);
+					} catch (InterruptedException x) {
+						return;
+					}
+					if (dispatcher.getGate()!=null) {
+						System.out.println(dispatcher.getGate().stats());
+					}
+					System.out.println(Exports.stats());
+					System.out.println(TunedSocketFactory.getDefault().getServerStats());
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	//======================================================================
+	//start the DataStoreEngine with both RMI and NIO
+	//use -Dapollo.threads=virtual to run the requests on virtual threads
+	//-Dapollo.socket=true (or a path) to listen on a unix domain socket too
+	//and -Dapollo.shm=true to accept shared memory clients
+	public static void main(String[] args) throws DataStoreException, IOException {
+		int port=(args.length<1)?DEFAULT_PORT:Integer.parseInt(args[0]);
+		String mode=System.getProperty("apollo.threads",Workers.PLATFORM);
+		String publicKey=Kernel.instance().getPublicKey();
+		Credentials root=Credentials.encrypt(publicKey,"root",null,1234);
+
+		//this also binds it to the RMI registry
+		DataStoreEngine engine=(DataStoreEngine)DataStoreEngine.create(root);
+		NioServer ns=start(engine,port,mode);
+		ns.startStats();
+		//same-host clients can also use a unix domain socket or shared memory, with the same dispatcher
+		String sock=System.getProperty("apollo.socket");
+		if (sock!=null) {
+			Path path=sock.equals("true")?defaultSocketFile():Paths.get(sock);
+			NioServer uds=new NioServer(ns.getDispatcher(),UnixDomainSocketAddress.of(path));
+			uds.start();
+			System.out.println("NioServer listening on "+path);
+		}
+		if (Boolean.getBoolean("apollo.shm")) {
+			ShmServer shm=new ShmServer(ns.getDispatcher(),ShmChannel.defaultDirectory());
+			shm.start();
+			System.out.println("ShmServer watching "+shm.getDirectory());
+		}
+		System.out.println("NioServer listening on port "+port+" with "
+			+(ns.getDispatcher().getGate()==null?WORKER_THREADS+" worker threads":"virtual threads"));
+	}
+}
@@ -0,0 +1,214 @@
+package apollo.net;
+import apollo.iface.Aggregate;
+import apollo.iface.AggregateResult;
+import apollo.iface.BatchResult;
+import apollo.iface.DataObject;
+import apollo.iface.Key;
+import apollo.iface.Operation;
+import apollo.iface.OperationList;
+import apollo.iface.RowBatch;
+import apollo.iface.SearchHit;
+import apollo.util.Credentials;
+import apollo.util.Session;
+import apollo.util.RowCodec;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+* A Payload reads a frame that was written by Message.  The header has already been read
+* when this is created, so the first get is the first thing after the code.
+*/
+public class Payload {
+	private ByteBuffer buf;
+	private int requestId;
+	private byte code;
+	private RowCodec.Reader codec;
+
+	/**
+	* The buffer starts with the requestId.  The length has already been taken off.
+	*/
+	public Payload(ByteBuffer b) {
+		buf=b;
+		requestId=buf.getInt();
+		code=buf.get();
+	}
+
+	public int getRequestId() {return requestId;}
+	public byte getCode() {return code;}
+
+	public byte getByte() {
+		return buf.get();
+	}
+
+	public boolean getBoolean() {
+		return buf.get()!=0;
+	}
+
+	public int getInt() {
+		return buf.getInt();
+	}
+
+	public long getLong() {
+		return buf.getLong();
+	}
+
+	/**
+	* Read a count of items that each take at least min bytes.  The count comes from the client,
+	* which may not have logged in yet, so it is checked against the rest of the frame before
+	* anything is allocated.  A negative count is returned as is, for null.
+	*/
+	private int getCount(int min) {
+		int n=buf.getInt();
+		if (n>buf.remaining()/min) {
+			throw new IllegalStateException("count "+n+" is more than the "+buf.remaining()+" bytes left in the frame");
+		}
+		return n;
+	}
+
+	public byte[] getBytes() {
+		int n=getCount(1);
+		if (n<0) {return null;}
+		byte[] b=new byte[n];
+		buf.get(b);
+		return b;
+	}
+
+	public String getString() {
+		byte[] b=getBytes();
+		if (b==null) {return null;}
+		return new String(b,StandardCharsets.UTF_8);
+	}
+
+	public String[] getStrings() {
+		int n=getCount(4);
+		if (n<0) {return null;}
+		String[] sa=new String[n];
+		for (int i=0;i<n;i++) {
+			sa[i]=getString();
+		}
+		return sa;
+	}
+
+	public Credentials getCredentials() {
+		byte kind=getByte();
+		if (kind==0) {return null;}
+		if (kind==2) {
+			String u=getString();
+			long id=getLong();
+			long expires=getLong();
+			Session s=new Session(u,id,expires,getString());
+			s.compressAbove=getInt();
+			return s;
+		}
+		String u=getString();
+		String e=getString();
+		String p=getString();
+		return new Credentials(u,e,p);
+	}
+
+	public Key getKey() {
+		if (!getBoolean()) {return null;}
+		String tn=getString();
+		long rowid=getLong();
+		return new Key(tn,rowid);
+	}
+
+	public Key[] getKeys() {
+		//each key is at least its null flag
+		int n=getCount(1);
+		if (n<0) {
+			throw new IllegalStateException("bad key count "+n);
+		}
+		Key[] keys=new Key[n];
+		for (int i=0;i<keys.length;i++) {
+			keys[i]=getKey();
+		}
+		return keys;
+	}
+
+	public DataObject getDataObject() {
+		if (codec==null) {
+			codec=new RowCodec.Reader();
+		}
+		byte[] b=getBytes();
+		try {
+			return codec.read(new DataInputStream(new ByteArrayInputStream(b)));
+		} catch (Exception x) {
+			throw new IllegalStateException(x.getClass().getName()+": "+x.getMessage()+" when reading a DataObject");
+		}
+	}
+
+	public RowBatch getBatch() {
+		DataObject[] rows;
+		try {
+			rows=RowBatch.decodeRows(getBytes());
+		} catch (java.io.IOException x) {
+			throw new IllegalStateException(x.getClass().getName()+": "+x.getMessage()+" when reading a batch");
+		}
+		boolean end=getBoolean();
+		int suggested=getInt();
+		return new RowBatch(rows,end,suggested);
+	}
+
+	public List<Operation> getOperations() {
+		try {
+			return OperationList.decode(getBytes());
+		} catch (java.io.IOException x) {
+			throw new IllegalStateException(x.getClass().getName()+": "+x.getMessage()+" when reading operations");
+		}
+	}
+
+	public BatchResult getBatchResult() {
+		//a null key and its count
+		int n=getCount(5);
+		Key[] keys=new Key[n];
+		int[] counts=new int[n];
+		for (int i=0;i<n;i++) {
+			keys[i]=getKey();
+			counts[i]=getInt();
+		}
+		return new BatchResult(keys,counts);
+	}
+
+	public SearchHit[] getSearchHits() {
+		//a null key, the rank, a null snippet and no object
+		int n=getCount(14);
+		SearchHit[] hits=new SearchHit[n];
+		for (int i=0;i<n;i++) {
+			Key k=getKey();
+			double rank=Double.longBitsToDouble(getLong());
+			hits[i]=new SearchHit(k,rank,getString());
+			if (getBoolean()) {
+				hits[i].object=getDataObject();
+			}
+		}
+		return hits;
+	}
+
+	public Aggregate getAggregate() {
+		try {
+			return Aggregate.decode(getBytes());
+		} catch (java.io.IOException x) {
+			throw new IllegalStateException(x.getClass().getName()+": "+x.getMessage()+" when reading an aggregate");
+		}
+	}
+
+	public AggregateResult getAggregateResult() {
+		try {
+			return AggregateResult.decode(getBytes());
+		} catch (java.io.IOException x) {
+			throw new IllegalStateException(x.getClass().getName()+": "+x.getMessage()+" when reading an aggregate result");
+		}
+	}
+
+	public Object[] getValues() {
+		try {
+			return AggregateResult.readValues(new DataInputStream(new ByteArrayInputStream(getBytes())));
+		} catch (java.io.IOException x) {
+			throw new IllegalStateException(x.getClass().getName()+": "+x.getMessage()+" when reading values");
+		}
+	}
+}
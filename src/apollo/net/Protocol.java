@@ -0,0 +1,97 @@
+package apollo.net;
+
+/**
+* This is the binary protocol used by NioServer and NioClient.  It is an alternative to RMI,
+* which needs a registry, distributed garbage collection, and a thread for every connection.
+*
+* Every message is a frame:
+*	int length		the number of bytes after this int
+*	int requestId	chosen by the client, and copied into the reply
+*	byte code		the operation in a request, or the status in a reply
+*	payload
+*
+* The client can send many requests without waiting for the replies (pipelining), and the
+* replies can come back in any order (multiplexing).  The requestId is used to match them up.
+* Requests on the same Transaction or Cursor are always run in the order they were sent.
+*
+* Operations on a Transaction or Cursor start the payload with a long handle, which was returned
+* by the request that created it.  Everything else about the payload is in Message and Payload.
+*/
+public class Protocol {
+	//frames bigger than this are refused, so a bad length doesn't eat all the memory
+	public final static int MAX_FRAME=64*1024*1024;
+	//length + requestId + code
+	public final static int HEADER=9;
+
+	//DataStore operations
+	public final static byte LIB_VERSION=1;
+	public final static byte DB_FILENAME=2;
+	public final static byte CREATE_TRANSACTION=3;
+	public final static byte LIST_TABLES=4;
+	public final static byte GET=5;
+	public final static byte ROWS=6;
+	public final static byte SELECT_ALL=7;
+	public final static byte SELECT_WHERE=8;
+	public final static byte VIEW=9;
+	public final static byte SUBSCRIBE=10;
+	public final static byte UNSUBSCRIBE=11;
+	public final static byte LOGIN=12;
+	public final static byte LOGOUT=13;
+	public final static byte SELECT_PAGE=14;
+	public final static byte AGGREGATE=15;
+	public final static byte EXISTS=16;
+	public final static byte EXPORT_FILE=17;
+	public final static byte EXPORT=18;
+	public final static byte SEARCH=19;
+
+	//Transaction operations.  These all start with the handle
+	public final static byte TX_ID=20;
+	public final static byte BEGIN=21;
+	public final static byte COMMIT=22;
+	public final static byte ROLLBACK=23;
+	public final static byte CREATE_TABLE=24;
+	public final static byte DROP_TABLE=25;
+	public final static byte INSERT=26;
+	public final static byte UPDATE=27;
+	public final static byte DELETE=28;
+	public final static byte CREATE_VIEW=29;
+	public final static byte DROP_VIEW=30;
+	public final static byte EXECUTE_BATCH=31;
+	public final static byte EXECUTE_AND_COMMIT=32;
+
+	//Cursor operations.  These all start with the handle
+	public final static byte GET_SQL=40;
+	public final static byte OPEN=41;
+	public final static byte SET_READ_AHEAD=42;
+	public final static byte HAS_NEXT=43;
+	public final static byte NEXT=44;
+	public final static byte NEXT_BATCH=45;
+	public final static byte CLOSE=46;
+
+	//ExportStream operations.  These all start with the handle
+	public final static byte EXPORT_READ=50;
+	public final static byte EXPORT_CLOSE=51;
+
+	//reply status
+	public final static byte OK=0;
+	public final static byte DATASTORE_ERROR=1;		//followed by message and error code
+	public final static byte UNAUTHORIZED=2;		//followed by message
+	public final static byte ERROR=3;				//followed by message
+
+	//the server sends this on its own, with requestId 0, to a client that has subscribed.
+	//it is followed by an int count and the keys
+	public final static byte INVALIDATE=5;
+
+	//true if the operation starts with a handle
+	public static boolean isHandleOp(byte op) {
+		return op>=TX_ID;
+	}
+
+	public static boolean isCursorOp(byte op) {
+		return op>=GET_SQL && op<EXPORT_READ;
+	}
+
+	public static boolean isExportOp(byte op) {
+		return op>=EXPORT_READ;
+	}
+}
@@ -0,0 +1,339 @@
+package apollo.net;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+* ShmChannel is a connection between two processes on the same machine through a memory-mapped
+* file, normally under /dev/shm, so the bytes never go through the TCP stack.  It is a ByteChannel,
+* so NioClient and the Dispatcher use it with the same frames as a socket.
+*
+* The file has a control area and two ring buffers, one for each direction.  Each ring has a head
+* (bytes written) and a tail (bytes read), which only ever go up.  The writer copies in bytes and
+* then publishes the new head with a release store; the reader sees it with an acquire load, and
+* publishes the tail the same way.  There is one writer and one reader per ring, so no locks are
+* shared between the processes.
+*
+* There is no futex or other kernel signal between the processes.  A thread that has to wait spins
+* for a while, then yields, then parks for a short time that grows up to MAX_PARK_NANOS, and checks
+* again.  So a busy connection has almost no latency, and an idle one uses almost no cpu.
+*
+* A client creates the file with connect(), and ShmServer picks it up and attaches to it.  The
+* requests and replies, with the Credentials, are in the file, so it is created with
+* FILE_PERMISSIONS, in a directory that belongs to this user, checked the same way as the
+* directory of NioServer's unix socket.  The client and server must run as the same user.
+*/
+public class ShmChannel implements ByteChannel {
+	public final static int MAGIC=0x41505348;	//APSH
+	public static int DEFAULT_CAPACITY=4*1024*1024;	//for each direction, must be a power of 2
+	public static int SPINS=2000;
+	public static int YIELDS=50;
+	public static long MAX_PARK_NANOS=1000000;
+	public static long CONNECT_TIMEOUT=5000;
+	public static String FILE_PERMISSIONS="rw-------";
+
+	//control area
+	final static int CAPACITY=4;
+	final static int CLIENT_CLOSED=8;
+	final static int SERVER_CLOSED=16;
+	final static int SERVER_ATTACHED=24;
+	final static int CLIENT_PID=32;
+	final static int SERVER_PID=40;
+	//each counter gets its own cache line
+	final static int UP_HEAD=64;		//client to server
+	final static int UP_TAIL=128;
+	final static int DOWN_HEAD=192;		//server to client
+	final static int DOWN_TAIL=256;
+	final static int DATA=512;
+
+	//atomic access to longs in the mapped file
+	private final static VarHandle LONGS=MethodHandles.byteBufferViewVarHandle(long[].class,ByteOrder.nativeOrder());
+
+	private static AtomicInteger counter=new AtomicInteger();
+
+	private File file;
+	private RandomAccessFile raf;
+	private MappedByteBuffer map;
+	private boolean server;
+	private int capacity;
+	private Ring in;
+	private Ring out;
+	private volatile boolean closed=false;
+	private long lastPeerCheck=0;
+
+	//=========================================
+	/**
+	* One direction.  The data is capacity bytes starting at data, and the counters are in the
+	* control area.
+	*/
+	class Ring {
+		final int headOff;
+		final int tailOff;
+		final ByteBuffer data;
+
+		Ring(int headOff,int tailOff,int dataOff) {
+			this.headOff=headOff;
+			this.tailOff=tailOff;
+			ByteBuffer b=map.duplicate();
+			b.position(dataOff);
+			b.limit(dataOff+capacity);
+			data=b.slice();
+		}
+
+		//blocks until every byte is written
+		int write(ByteBuffer src) throws IOException {
+			int total=src.remaining();
+			int idle=0;
+			while (src.hasRemaining()) {
+				long head=(long)LONGS.getAcquire(map,headOff);
+				long tail=(long)LONGS.getAcquire(map,tailOff);
+				int free=capacity-(int)(head-tail);
+				if (free==0) {
+					checkOpen();
+					idle=idle(idle);
+					continue;
+				}
+				idle=0;
+				int n=Math.min(free,src.remaining());
+				int pos=(int)(head&(capacity-1));
+				int first=Math.min(n,capacity-pos);
+				copy(src,pos,first);
+				if (first<n) {
+					copy(src,0,n-first);
+				}
+				LONGS.setRelease(map,headOff,head+n);
+			}
+			return total;
+		}
+
+		private void copy(ByteBuffer src,int pos,int n) {
+			ByteBuffer d=data.duplicate();
+			d.position(pos);
+			int limit=src.limit();
+			src.limit(src.position()+n);
+			d.put(src);
+			src.limit(limit);
+		}
+
+		//blocks until at least one byte is read.  Returns -1 if the other side closed
+		int read(ByteBuffer dst) throws IOException {
+			int idle=0;
+			while (true) {
+				long head=(long)LONGS.getAcquire(map,headOff);
+				long tail=(long)LONGS.getAcquire(map,tailOff);
+				int avail=(int)(head-tail);
+				if (avail==0) {
+					if (closed) {throw new ClosedChannelException();}
+					if (peerClosed()) {return -1;}
+					idle=idle(idle);
+					continue;
+				}
+				int n=Math.min(avail,dst.remaining());
+				int pos=(int)(tail&(capacity-1));
+				int first=Math.min(n,capacity-pos);
+				ByteBuffer s=data.duplicate();
+				s.position(pos);
+				s.limit(pos+first);
+				dst.put(s);
+				if (first<n) {
+					s.clear();
+					s.limit(n-first);
+					dst.put(s);
+				}
+				LONGS.setRelease(map,tailOff,tail+n);
+				return n;
+			}
+		}
+	}
+
+	//spin, then yield, then park for longer and longer
+	private int idle(int idle) {
+		if (idle<SPINS) {
+			Thread.onSpinWait();
+		} else if (idle<SPINS+YIELDS) {
+			Thread.yield();
+		} else {
+			int shift=Math.min(idle-SPINS-YIELDS,20);
+			LockSupport.parkNanos(Math.min(MAX_PARK_NANOS,1000L<<shift));
+		}
+		return idle+1;
+	}
+
+	//=========================================
+	private ShmChannel(File file,boolean server,int capacity) throws IOException {
+		this.file=file;
+		this.server=server;
+		raf=new RandomAccessFile(file,"rw");
+		if (!server) {
+			raf.setLength(DATA+2L*capacity);
+		} else if (raf.length()<DATA) {
+			raf.close();
+			file.delete();
+			throw new IOException("not a shared memory channel: "+file);
+		}
+		map=raf.getChannel().map(FileChannel.MapMode.READ_WRITE,0,raf.length());
+		map.order(ByteOrder.nativeOrder());
+		if (server) {
+			if (map.getInt(0)!=MAGIC) {
+				close();
+				throw new IOException("not a shared memory channel: "+file);
+			}
+			//the file comes from the client, so check it before using it
+			capacity=map.getInt(CAPACITY);
+			if (Integer.bitCount(capacity)!=1 || DATA+2L*capacity>raf.length()) {
+				close();
+				throw new IOException("bad capacity "+capacity+" in "+file);
+			}
+		}
+		this.capacity=capacity;
+		Ring up=new Ring(UP_HEAD,UP_TAIL,DATA);
+		Ring down=new Ring(DOWN_HEAD,DOWN_TAIL,DATA+capacity);
+		in=server?up:down;
+		out=server?down:up;
+	}
+
+	/**
+	* The directory for the files, /dev/shm/apollo-<user> if there is a /dev/shm.
+	*/
+	public static File defaultDirectory() {
+		String name="apollo-"+System.getProperty("user.name");
+		File shm=new File("/dev/shm");
+		if (shm.isDirectory()) {
+			return new File(shm,name);
+		}
+		return new File(System.getProperty("java.io.tmpdir"),name+"-shm");
+	}
+
+	public static ShmChannel connect() throws IOException {
+		return connect(defaultDirectory(),DEFAULT_CAPACITY);
+	}
+
+	/**
+	* Create a channel file in dir and wait for the server to attach to it.
+	*/
+	public static ShmChannel connect(File dir,int capacity) throws IOException {
+		if (Integer.bitCount(capacity)!=1) {
+			throw new IllegalArgumentException("capacity must be a power of 2");
+		}
+		NioServer.privateDirectory(dir.toPath());
+		String name="c-"+ProcessHandle.current().pid()+"-"+counter.incrementAndGet();
+		File tmp=new File(dir,name+".tmp");
+		try {
+			//fails if it is already there
+			Files.createFile(tmp.toPath(),PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(FILE_PERMISSIONS)));
+		} catch (UnsupportedOperationException x) {
+			//not a posix file system
+			Files.createFile(tmp.toPath());
+		}
+		ShmChannel c=new ShmChannel(tmp,false,capacity);
+		c.map.putInt(CAPACITY,capacity);
+		c.map.putLong(CLIENT_PID,ProcessHandle.current().pid());
+		c.map.putInt(0,MAGIC);
+		c.map.force();
+		//the server only sees the file once it is complete
+		File ring=new File(dir,name+".ring");
+		if (!tmp.renameTo(ring)) {
+			c.close();
+			throw new IOException("unable to create "+ring);
+		}
+		c.file=ring;
+		long deadline=System.currentTimeMillis()+CONNECT_TIMEOUT;
+		while ((long)LONGS.getAcquire(c.map,SERVER_ATTACHED)==0) {
+			if (System.currentTimeMillis()>deadline) {
+				c.close();
+				throw new IOException("no ShmServer is listening in "+dir);
+			}
+			LockSupport.parkNanos(MAX_PARK_NANOS);
+		}
+		return c;
+	}
+
+	/**
+	* Used by ShmServer when a client's file appears.
+	*/
+	static ShmChannel attach(File f) throws IOException {
+		ShmChannel c=new ShmChannel(f,true,0);
+		c.map.putLong(SERVER_PID,ProcessHandle.current().pid());
+		LONGS.setRelease(c.map,SERVER_ATTACHED,1L);
+		return c;
+	}
+
+	public File getFile() {return file;}
+
+	//-----------------------------------------
+	public int read(ByteBuffer dst) throws IOException {
+		if (!dst.hasRemaining()) {return 0;}
+		return in.read(dst);
+	}
+
+	/**
+	* Only one thread can write at a time, so this is synchronized.
+	*/
+	public synchronized int write(ByteBuffer src) throws IOException {
+		checkOpen();
+		return out.write(src);
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		if (peerClosed()) {
+			throw new IOException("the other side closed the connection");
+		}
+	}
+
+	//the flag is set on a clean close.  If the other process died, its pid is checked once a second
+	private boolean peerClosed() {
+		if ((long)LONGS.getAcquire(map,server?CLIENT_CLOSED:SERVER_CLOSED)!=0) {
+			return true;
+		}
+		long now=System.currentTimeMillis();
+		if (now-lastPeerCheck<1000) {
+			return false;
+		}
+		lastPeerCheck=now;
+		long pid=map.getLong(server?CLIENT_PID:SERVER_PID);
+		if (pid==0) {return false;}
+		Optional<ProcessHandle> h=ProcessHandle.of(pid);
+		return !(h.isPresent() && h.get().isAlive());
+	}
+
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	* Tell the other side, and delete the file.  Either side deletes it, so it doesn't stay in
+	* /dev/shm if the other one died.  The other side's mapping still works after that.
+	*
+	* The file isn't unmapped here.  Java can only unmap a buffer safely when it is garbage
+	* collected, and the reader thread may still be looking at it.
+	*/
+	public void close() {
+		if (closed) {return;}
+		closed=true;
+		try {
+			if (map.getInt(0)==MAGIC) {
+				LONGS.setRelease(map,server?SERVER_CLOSED:CLIENT_CLOSED,1L);
+			}
+			raf.close();
+		} catch (IOException x) {
+			//closing anyway
+		}
+		file.delete();
+	}
+}
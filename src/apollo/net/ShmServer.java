@@ -0,0 +1,144 @@
+package apollo.net;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+* ShmServer accepts same-host clients through ShmChannel files, and runs their requests with the
+* same Dispatcher as NioServer.  It watches the directory for new .ring files, attaches to each one,
+* and starts a thread that reads its frames.  The replies are written by the worker threads.
+* The directory must belong to this user and nobody else may write to it, see ShmChannel.
+*
+* Client side:
+*	DataStore ds=new NioClient(ShmChannel.connect());
+*/
+public class ShmServer implements Runnable {
+	private Dispatcher dispatcher;
+	private File dir;
+	private WatchService watcher;
+	private volatile boolean running=true;
+
+	public ShmServer(Dispatcher d,File dir) throws IOException {
+		dispatcher=d;
+		this.dir=dir;
+		NioServer.privateDirectory(dir.toPath());
+		//files left by clients of an earlier server can't be used
+		File[] old=dir.listFiles();
+		if (old!=null) {
+			for (File f:old) {
+				if (f.getName().endsWith(".ring") || f.getName().endsWith(".tmp")) {
+					f.delete();
+				}
+			}
+		}
+		watcher=FileSystems.getDefault().newWatchService();
+		dir.toPath().register(watcher,StandardWatchEventKinds.ENTRY_CREATE);
+	}
+
+	public void start() {
+		Thread t=new Thread(this,"shm-server");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public void stop() {
+		running=false;
+		try {
+			watcher.close();
+		} catch (IOException x) {
+			//stopping anyway
+		}
+	}
+
+	public File getDirectory() {return dir;}
+
+	public void run() {
+		while (running) {
+			WatchKey key;
+			try {
+				key=watcher.take();
+			} catch (Exception x) {
+				//closed or interrupted
+				return;
+			}
+			for (WatchEvent<?> ev:key.pollEvents()) {
+				if (ev.kind()!=StandardWatchEventKinds.ENTRY_CREATE) {continue;}
+				Path p=(Path)ev.context();
+				if (p.toString().endsWith(".ring")) {
+					accept(new File(dir,p.toString()));
+				}
+			}
+			key.reset();
+		}
+	}
+
+	private void accept(File f) {
+		final ShmChannel ch;
+		try {
+			ch=ShmChannel.attach(f);
+		} catch (IOException x) {
+			System.out.println("warning: unable to attach to "+f+": "+x.getMessage());
+			return;
+		} catch (RuntimeException x) {
+			//a bad file mustn't stop the watcher thread
+			System.out.println("warning: unable to attach to "+f+": "+x);
+			return;
+		}
+		Thread t=new Thread("shm-conn "+f.getName()) {
+			public void run() {
+				serve(ch);
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	//read frames until the client goes away
+	private void serve(final ShmChannel ch) {
+		Dispatcher.Client client=dispatcher.newClient();
+		Dispatcher.Reply reply=new Dispatcher.Reply() {
+			public void send(ByteBuffer b) {
+				try {
+					ch.write(b);
+				} catch (IOException x) {
+					//the client is gone, the reader will notice
+				}
+			}
+		};
+		ByteBuffer len=ByteBuffer.allocate(4);
+		try {
+			while (running) {
+				len.clear();
+				if (!readFully(ch,len)) {break;}
+				int n=len.getInt(0);
+				if (n<Protocol.HEADER-4 || n>Protocol.MAX_FRAME) {
+					throw new IOException("bad frame length "+n);
+				}
+				ByteBuffer frame=ByteBuffer.allocate(n);
+				if (!readFully(ch,frame)) {break;}
+				frame.flip();
+				dispatcher.dispatch(client,frame,reply);
+			}
+		} catch (IOException x) {
+			System.out.println("warning: "+x.getMessage()+" on "+ch.getFile().getName());
+		} catch (RuntimeException x) {
+			System.out.println("warning: "+x.getClass().getName()+": "+x.getMessage()+" on "+ch.getFile().getName());
+		}
+		ch.close();
+		dispatcher.disconnect(client);
+	}
+
+	//false at the end of the stream
+	private static boolean readFully(ShmChannel ch,ByteBuffer b) throws IOException {
+		while (b.hasRemaining()) {
+			if (ch.read(b)<0) {return false;}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,53 @@
+package apollo.net;
+
+/**
+* The socket options used by TunedSocketFactory.  This is sent to the client inside every stub, so
+* both sides use the same settings.  0 means leave the system default.
+*
+* The defaults can be set with system properties on the server:
+*	apollo.rmi.nodelay, apollo.rmi.keepalive, apollo.rmi.sndbuf, apollo.rmi.rcvbuf,
+*	apollo.rmi.timeout (milliseconds), apollo.rmi.compress
+*/
+public class SocketOptions implements java.io.Serializable {
+	//fixed, because the client and server may be compiled separately
+	private final static long serialVersionUID=1L;
+
+	public boolean tcpNoDelay=true;
+	public boolean keepAlive=true;
+	public int sendBuffer=0;
+	public int receiveBuffer=0;
+	public int soTimeout=0;
+	//deflate the streams.  Only worth it on slow links
+	public boolean compress=false;
+
+	public static SocketOptions fromSystemProperties() {
+		SocketOptions o=new SocketOptions();
+		o.tcpNoDelay=Boolean.parseBoolean(System.getProperty("apollo.rmi.nodelay","true"));
+		o.keepAlive=Boolean.parseBoolean(System.getProperty("apollo.rmi.keepalive","true"));
+		o.sendBuffer=Integer.getInteger("apollo.rmi.sndbuf",0);
+		o.receiveBuffer=Integer.getInteger("apollo.rmi.rcvbuf",0);
+		o.soTimeout=Integer.getInteger("apollo.rmi.timeout",0);
+		o.compress=Boolean.getBoolean("apollo.rmi.compress");
+		return o;
+	}
+
+	//RMI reuses connections only for factories that are equal
+	public boolean equals(Object x) {
+		if (!(x instanceof SocketOptions)) {return false;}
+		SocketOptions o=(SocketOptions)x;
+		return tcpNoDelay==o.tcpNoDelay && keepAlive==o.keepAlive && sendBuffer==o.sendBuffer
+			&& receiveBuffer==o.receiveBuffer && soTimeout==o.soTimeout && compress==o.compress;
+	}
+
+	public int hashCode() {
+		int h=(tcpNoDelay?1:0)+(keepAlive?2:0)+(compress?4:0);
+		h=h*31+sendBuffer;
+		h=h*31+receiveBuffer;
+		return h*31+soTimeout;
+	}
+
+	public String toString() {
+		return "nodelay="+tcpNoDelay+" keepalive="+keepAlive+" sndbuf="+sendBuffer+" rcvbuf="+receiveBuffer
+			+" timeout="+soTimeout+" compress="+compress;
+	}
+}
@@ -0,0 +1,55 @@
+package apollo.net;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Counters for the sockets made by a TunedSocketFactory, kept separately for the client and server
+* side of each factory name.  The bytes are counted as they go over the wire, after compression.  A round trip is counted
+* each time a socket reads after it has written, which for RMI is once per remote call.
+*/
+public class SocketStats {
+	private static ConcurrentHashMap<String,SocketStats> all=new ConcurrentHashMap<String,SocketStats>();
+
+	final String name;
+	final AtomicLong connections=new AtomicLong();
+	final AtomicLong open=new AtomicLong();
+	final AtomicLong bytesRead=new AtomicLong();
+	final AtomicLong bytesWritten=new AtomicLong();
+	final AtomicLong roundTrips=new AtomicLong();
+
+	private SocketStats(String name) {
+		this.name=name;
+	}
+
+	public static SocketStats get(String name) {
+		SocketStats s=all.get(name);
+		if (s==null) {
+			all.putIfAbsent(name,new SocketStats(name));
+			s=all.get(name);
+		}
+		return s;
+	}
+
+	public static SocketStats[] getAll() {
+		return all.values().toArray(new SocketStats[0]);
+	}
+
+	public String getName() {return name;}
+
+	//opened since the start
+	public long getConnections() {return connections.get();}
+
+	//open right now
+	public long getOpen() {return open.get();}
+
+	public long getBytesRead() {return bytesRead.get();}
+
+	public long getBytesWritten() {return bytesWritten.get();}
+
+	public long getRoundTrips() {return roundTrips.get();}
+
+	public String toString() {
+		return name+": connections="+connections.get()+" open="+open.get()+" read="+bytesRead.get()
+			+" written="+bytesWritten.get()+" round trips="+roundTrips.get();
+	}
+}
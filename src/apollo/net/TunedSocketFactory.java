@@ -0,0 +1,203 @@
+package apollo.net;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+* RMI socket factory with settable socket options, optional compression, and counters.  It is both
+* the client and the server factory, so export with the same one for both:
+*	TunedSocketFactory f=TunedSocketFactory.getDefault();
+*	UnicastRemoteObject.exportObject(obj,0,f,f);
+*
+* The client factory is serialized into the stub, so the client makes its sockets with the same
+* options, and compresses if the server does.  Stubs with equal factories share connections.
+*/
+public class TunedSocketFactory implements RMIClientSocketFactory, RMIServerSocketFactory, java.io.Serializable {
+	private final static long serialVersionUID=1L;
+	private static TunedSocketFactory defaultFactory;
+
+	private final String name;
+	private final SocketOptions options;
+
+	public TunedSocketFactory(String name,SocketOptions options) {
+		this.name=name;
+		this.options=options;
+	}
+
+	/**
+	* The factory used for the DataStore and every Transaction and Cursor, with the options
+	* from the system properties.
+	*/
+	public synchronized static TunedSocketFactory getDefault() {
+		if (defaultFactory==null) {
+			defaultFactory=new TunedSocketFactory("datastore",SocketOptions.fromSystemProperties());
+		}
+		return defaultFactory;
+	}
+
+	public SocketOptions getOptions() {return options;}
+
+	public SocketStats getClientStats() {return SocketStats.get("client:"+name);}
+
+	public SocketStats getServerStats() {return SocketStats.get("server:"+name);}
+
+	public Socket createSocket(String host,int port) throws IOException {
+		TunedSocket s=new TunedSocket(getClientStats());
+		try {
+			configure(s);
+			s.connect(new java.net.InetSocketAddress(host,port));
+		} catch (IOException x) {
+			s.close();
+			throw x;
+		}
+		s.opened();
+		return s;
+	}
+
+	public ServerSocket createServerSocket(int port) throws IOException {
+		return new TunedServerSocket(port);
+	}
+
+	private void configure(Socket s) throws IOException {
+		s.setTcpNoDelay(options.tcpNoDelay);
+		s.setKeepAlive(options.keepAlive);
+		if (options.sendBuffer>0) {s.setSendBufferSize(options.sendBuffer);}
+		if (options.receiveBuffer>0) {s.setReceiveBufferSize(options.receiveBuffer);}
+		if (options.soTimeout>0) {s.setSoTimeout(options.soTimeout);}
+	}
+
+	public boolean equals(Object x) {
+		if (!(x instanceof TunedSocketFactory)) {return false;}
+		TunedSocketFactory f=(TunedSocketFactory)x;
+		return name.equals(f.name) && options.equals(f.options);
+	}
+
+	public int hashCode() {
+		return name.hashCode()*31+options.hashCode();
+	}
+
+	//=========================================
+	class TunedServerSocket extends ServerSocket {
+		TunedServerSocket(int port) throws IOException {
+			super(port);
+			if (options.receiveBuffer>0) {
+				setReceiveBufferSize(options.receiveBuffer);
+			}
+		}
+
+		public Socket accept() throws IOException {
+			TunedSocket s=new TunedSocket(getServerStats());
+			implAccept(s);
+			configure(s);
+			s.opened();
+			return s;
+		}
+	}
+
+	/**
+	* A socket that counts its bytes and round trips, and compresses if the options say so.
+	*/
+	class TunedSocket extends Socket {
+		private final SocketStats stats;
+		private InputStream in;
+		private OutputStream out;
+		private boolean closed=false;
+		//true after a write, so the next read is a new round trip
+		private volatile boolean wrote=false;
+
+		TunedSocket(SocketStats stats) {
+			this.stats=stats;
+		}
+
+		void opened() {
+			stats.connections.incrementAndGet();
+			stats.open.incrementAndGet();
+		}
+
+		public synchronized InputStream getInputStream() throws IOException {
+			if (in==null) {
+				InputStream i=new CountingInputStream(super.getInputStream());
+				if (options.compress) {
+					i=new InflaterInputStream(i,new java.util.zip.Inflater(),8192);
+				}
+				in=i;
+			}
+			return in;
+		}
+
+		public synchronized OutputStream getOutputStream() throws IOException {
+			if (out==null) {
+				OutputStream o=new CountingOutputStream(super.getOutputStream());
+				if (options.compress) {
+					//sync flush, so every RMI flush() sends what it has
+					o=new DeflaterOutputStream(o,new Deflater(Deflater.BEST_SPEED),8192,true);
+				}
+				out=o;
+			}
+			return out;
+		}
+
+		public synchronized void close() throws IOException {
+			if (!closed) {
+				closed=true;
+				if (isConnected()) {
+					stats.open.decrementAndGet();
+				}
+			}
+			super.close();
+		}
+
+		class CountingInputStream extends FilterInputStream {
+			CountingInputStream(InputStream in) {
+				super(in);
+			}
+
+			public int read() throws IOException {
+				int b=super.read();
+				if (b>=0) {count(1);}
+				return b;
+			}
+
+			public int read(byte[] b,int off,int len) throws IOException {
+				int n=super.read(b,off,len);
+				if (n>0) {count(n);}
+				return n;
+			}
+
+			private void count(int n) {
+				stats.bytesRead.addAndGet(n);
+				if (wrote) {
+					wrote=false;
+					stats.roundTrips.incrementAndGet();
+				}
+			}
+		}
+
+		class CountingOutputStream extends FilterOutputStream {
+			CountingOutputStream(OutputStream out) {
+				super(out);
+			}
+
+			public void write(int b) throws IOException {
+				out.write(b);
+				stats.bytesWritten.incrementAndGet();
+				wrote=true;
+			}
+
+			public void write(byte[] b,int off,int len) throws IOException {
+				out.write(b,off,len);
+				stats.bytesWritten.addAndGet(len);
+				wrote=true;
+			}
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package apollo.net;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+* Creates the executor that runs the requests for NioServer.  There are two modes:
+*	platform - a fixed pool of WORKER_THREADS threads, the default
+*	virtual - a new virtual thread for each request
+*
+* Virtual threads need java 21.  They are found by reflection, so this still compiles and runs on
+* older versions, and falls back to the platform pool there.  In virtual mode the Dispatcher should
+* be given a NativeGate, because the sqlite calls pin their carrier threads.
+*/
+public class Workers {
+	public final static String PLATFORM="platform";
+	public final static String VIRTUAL="virtual";
+
+	/**
+	* Returns a virtual thread executor, or null if this java doesn't have them.
+	*/
+	public static ExecutorService virtualThreads() {
+		try {
+			Method m=Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)m.invoke(null);
+		} catch (Exception x) {
+			return null;
+		}
+	}
+
+	public static boolean hasVirtualThreads() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException x) {
+			return false;
+		}
+	}
+
+	public static ExecutorService create(String mode,int threads) {
+		if (VIRTUAL.equals(mode)) {
+			ExecutorService vt=virtualThreads();
+			if (vt!=null) {
+				return vt;
+			}
+			System.out.println("warning: virtual threads need java 21, using "+threads+" platform threads");
+		}
+		return Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	* In virtual mode, the scheduler needs a carrier for every permit of the NativeGate plus one for
+	* each cpu, so pinned requests don't starve the others.  This only works before the first
+	* virtual thread is started.
+	*/
+	public static void reserveCarriers(int permits) {
+		if (System.getProperty("jdk.virtualThreadScheduler.parallelism")==null) {
+			int n=Runtime.getRuntime().availableProcessors()+permits;
+			System.setProperty("jdk.virtualThreadScheduler.parallelism",String.valueOf(n));
+			System.setProperty("jdk.virtualThreadScheduler.maxPoolSize",String.valueOf(Math.max(256,n)));
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package apollo.server;
+import apollo.iface.Aggregate;
+import apollo.iface.AggregateResult;
+import apollo.iface.DataStoreException;
+import apollo.iface.Unauthorized;
+import apollo.util.Credentials;
+import java.util.ArrayList;
+
+/**
+* Aggregation runs DataStore.aggregate() and exists().  The Aggregate is compiled to one SELECT
+* with GROUP BY, so SQLite does the work and only the result rows are returned.  The values in the
+* where and having clauses are always bound.
+*
+* Table, column and alias names are checked to be plain identifiers, because they are put in
+* the SQL.
+*/
+class Aggregation {
+	//more rows than this is a report, not an aggregate.  Use a cursor instead
+	public static int MAX_ROWS=100000;
+
+	/**
+	* The SQL for the aggregate.  The parameters to bind are added to params.
+	*/
+	static String sql(Aggregate a,ArrayList<Object> params) throws DataStoreException {
+		check(a.tableName);
+		if (a.functions.size()==0 && a.groupBy.size()==0) {
+			throw new DataStoreException("aggregate on "+a.tableName+" has no measures",0);
+		}
+		StringBuilder sb=new StringBuilder("SELECT ");
+		boolean first=true;
+		for (String g: a.groupBy) {
+			check(g);
+			if (!first) {sb.append(",");}
+			sb.append(g);
+			first=false;
+		}
+		for (int i=0;i<a.functions.size();i++) {
+			String col=a.columns.get(i);
+			String alias=a.aliases.get(i);
+			if (col!=null) {check(col);}
+			if (alias!=null) {check(alias);}
+			if (!first) {sb.append(",");}
+			sb.append(function(a.functions.get(i),col));
+			if (alias!=null) {sb.append(" AS "+alias);}
+			first=false;
+		}
+		sb.append(" FROM "+a.tableName);
+		if (a.where!=null) {
+			sb.append(" WHERE "+a.where);
+			add(params,a.whereParams);
+		}
+		if (a.groupBy.size()>0) {
+			sb.append(" GROUP BY "+String.join(",",a.groupBy));
+		}
+		if (a.having!=null) {
+			sb.append(" HAVING "+a.having);
+			add(params,a.havingParams);
+		}
+		if (a.orderBy!=null) {
+			sb.append(" ORDER BY "+a.orderBy);
+		}
+		if (a.limit>0) {
+			sb.append(" LIMIT "+a.limit);
+		}
+		return sb.toString();
+	}
+
+	private static String function(int f,String col) throws DataStoreException {
+		switch (f) {
+			case Aggregate.COUNT: return (col==null)?"count(*)":"count("+col+")";
+			case Aggregate.COUNT_DISTINCT: return "count(DISTINCT "+required(col,f)+")";
+			case Aggregate.SUM: return "sum("+required(col,f)+")";
+			case Aggregate.MIN: return "min("+required(col,f)+")";
+			case Aggregate.MAX: return "max("+required(col,f)+")";
+			case Aggregate.AVG: return "avg("+required(col,f)+")";
+		}
+		throw new DataStoreException("unknown aggregate function "+f,0);
+	}
+
+	private static String required(String col,int f) throws DataStoreException {
+		if (col==null) {throw new DataStoreException("aggregate function "+f+" needs a column",0);}
+		return col;
+	}
+
+	private static void add(ArrayList<Object> params,Object[] values) {
+		if (values!=null) {
+			for (Object o: values) {params.add(o);}
+		}
+	}
+
+	//a plain identifier: letters, digits and underscores, not starting with a digit
+	static void check(String name) throws DataStoreException {
+		if (name==null || name.length()==0) {
+			throw new DataStoreException("name is missing",0);
+		}
+		for (int i=0;i<name.length();i++) {
+			char c=name.charAt(i);
+			boolean ok=(c=='_') || (c>='a' && c<='z') || (c>='A' && c<='Z') || (i>0 && c>='0' && c<='9');
+			if (!ok) {
+				throw new DataStoreException("invalid name: "+name,0);
+			}
+		}
+	}
+
+	static AggregateResult run(Credentials user,Aggregate a) throws DataStoreException, Unauthorized {
+		ArrayList<Object> params=new ArrayList<Object>();
+		String sql=sql(a,params);
+		Connection conn=new Connection(user);
+		Statement st=null;
+		try {
+			st=new Statement(conn,sql);
+			for (int i=0;i<params.size();i++) {
+				st.bind(i+1,params.get(i));
+			}
+			int n=st.getColumnCount();
+			String[] cols=new String[n];
+			for (int j=0;j<n;j++) {
+				cols[j]=st.getColumnName(j);
+			}
+			ArrayList<Object[]> rows=new ArrayList<Object[]>();
+			while (st.step()) {
+				if (rows.size()==MAX_ROWS) {
+					throw new DataStoreException("aggregate on "+a.tableName+" returned more than "+MAX_ROWS+" rows",0);
+				}
+				Object[] r=new Object[n];
+				for (int j=0;j<n;j++) {
+					r[j]=value(st,j);
+				}
+				rows.add(r);
+			}
+			return new AggregateResult(cols,rows.toArray(new Object[rows.size()][]));
+		} finally {
+			if (st!=null) {st.close();}
+			conn.close();
+		}
+	}
+
+	//the value as SQLite has it: integer, real, text or null
+	static Object value(Statement st,int j) {
+		switch (st.getColumnType(j)) {
+			case 1: return st.getLong(j);
+			case 2: return st.getDouble(j);
+			case 5: return null;
+			default: return st.getString(j);
+		}
+	}
+
+	/**
+	* True if any row matches.  SQLite stops at the first one.
+	*/
+	static boolean exists(Credentials user,String tableName,String where,Object[] params) throws DataStoreException, Unauthorized {
+		check(tableName);
+		String sql="SELECT EXISTS(SELECT 1 FROM "+tableName+(where==null?"":" WHERE "+where)+")";
+		Connection conn=new Connection(user);
+		Statement st=null;
+		try {
+			st=new Statement(conn,sql);
+			if (params!=null) {
+				for (int i=0;i<params.length;i++) {
+					st.bind(i+1,params[i]);
+				}
+			}
+			return st.step() && st.getInt(0)==1;
+		} finally {
+			if (st!=null) {st.close();}
+			conn.close();
+		}
+	}
+}
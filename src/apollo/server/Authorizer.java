@@ -0,0 +1,83 @@
+package apollo.server;
+import com.sun.jna.Pointer;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.win32.W32APIOptions;
+import com.sun.jna.Callback;
+import apollo.iface.ConnectionHandle;
+import java.util.TreeSet;
+
+/**
+** ^The sqlite3_set_authorizer() interface registers a callback function
+** that is invoked while SQL statements are being compiled by sqlite3_prepare().
+** The callback is told each table and column that the statement reads.
+*
+* This is used by ResultCache to find the tables a query depends on.  The callback only
+* watches, it always returns SQLITE_OK.
+*/
+public class Authorizer {
+	public final static int SQLITE_OK = 0;
+	public final static int SQLITE_PRAGMA = 19;
+	public final static int SQLITE_READ = 20;
+	public final static int SQLITE_FUNCTION = 31;
+
+	//functions that don't always return the same thing, so the result can't be cached
+	private final static String[] VOLATILE={"random","randomblob","changes","total_changes",
+		"last_insert_rowid","date","time","datetime","julianday","strftime","unixepoch",
+		//the CURRENT_DATE, CURRENT_TIME and CURRENT_TIMESTAMP keywords are reported as functions
+		"current_date","current_time","current_timestamp"};
+
+	public interface AuthorizerCallback extends Callback {
+		/**
+		* For SQLITE_READ, arg1 is the table and arg2 the column.  For SQLITE_FUNCTION, arg2 is
+		* the function name.  inner is the view or trigger the access is coming from, if any.
+		*/
+		public int callback(Pointer userData, int action, String arg1, String arg2, String dbname, String inner);
+	}
+
+	public static SQLITE_API api;
+	static {
+		api=Native.load("sqlite3",SQLITE_API.class,W32APIOptions.DEFAULT_OPTIONS);
+	}
+
+	//use null to remove it
+	public static int set(ConnectionHandle ch,AuthorizerCallback cb) {
+		return api.sqlite3_set_authorizer(ch.getPointer(),cb,null);
+	}
+
+	/**
+	* Collects the tables and views read by the statements prepared while it is set.
+	* Table names are lower case, because SQLite doesn't care.
+	*/
+	public static class Reads implements AuthorizerCallback {
+		public TreeSet<String> tables=new TreeSet<String>();
+		//true if the statement uses a pragma or a function like random() or date('now')
+		public boolean isVolatile=false;
+
+		public int callback(Pointer userData, int action, String arg1, String arg2, String dbname, String inner) {
+			if (action==SQLITE_READ) {
+				if (arg1!=null) {tables.add(arg1.toLowerCase());}
+				if (inner!=null) {tables.add(inner.toLowerCase());}
+			} else if (action==SQLITE_PRAGMA) {
+				isVolatile=true;
+			} else if (action==SQLITE_FUNCTION && arg2!=null) {
+				for (String f: VOLATILE) {
+					if (f.equalsIgnoreCase(arg2)) {isVolatile=true;}
+				}
+			}
+			return SQLITE_OK;
+		}
+	}
+
+	//------------------------------------------------------
+	public interface SQLITE_API extends Library {
+		/**
+		* SQLITE_API int sqlite3_set_authorizer(
+		*  sqlite3*,
+		*  int (*xAuth)(void*,int,const char*,const char*,const char*,const char*),
+		*  void *pUserData
+		* );
+		*/
+		public int sqlite3_set_authorizer(Pointer psqlite3,AuthorizerCallback f,Pointer udp);
+	}
+}
@@ -95,6 +95,16 @@ public class Connection {
 		return closed;
 	}
 
+	/**
+	* Cause any statement running on this connection to stop as soon as it can.  This is
+	* safe to call from another thread.  The statement will fail with SQLITE_INTERRUPT.
+	*/
+	public void interrupt() {
+		if (!closed) {
+			api.sqlite3_interrupt(handle.getPointer());
+		}
+	}
+
 	//this keeps giving errors and I don't like it
 	public void close() {
 		int rc=api.sqlite3_close_v2(handle.getPointer());
@@ -146,6 +156,9 @@ public class Connection {
 
 		//int sqlite3_libversion_number(void);
 		public int sqlite3_libversion_number();
+
+		//void sqlite3_interrupt(sqlite3*);
+		public void sqlite3_interrupt(Pointer psqlite3);
 	}
 
 }
\ No newline at end of file
@@ -2,24 +2,63 @@ package apollo.server;
 import apollo.iface.*;
 import java.rmi.*;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import apollo.util.DateYMD;
 import apollo.util.DateYM;
 import java.awt.TextArea;
 import java.awt.Choice;
 import apollo.util.Credentials;
+import apollo.util.Compression;
+import apollo.kernel.Kernel;
+import java.rmi.server.Unreferenced;
 
 
 /**
 * This creates its own Connection in the open() method, which is closed upon closing the cursor
+*
+* When it is exported, it is unexported on close, or when it hasn't been used for Exports.CURSOR_LEASE.
+*
+* The rows of view() and selectWhere() are kept in the ResultCache when they have all been read.
+* If they are already there, open() doesn't open a Connection, and the rows come from the cache.
 */
 
-public class CursorObject implements Cursor {
+public class CursorObject implements Cursor, Exports.Leased, Unreferenced {
 	Credentials user;
 	Connection conn;
 	Statement stmt;
 	DataObject d;
 	ViewObject v;
 	String sql;
+	//bound in open(), if there are any
+	Object[] params;
+
+	//true if hasNext() has stepped to a row that next() hasn't read yet
+	boolean pending=false;
+	//rough count of the bytes in the last row read, and the average so far.  These are written
+	//by the ReadAhead worker and read by suggestedSize() in the client's thread
+	volatile int rowBytes;
+	volatile long totalBytes;
+	volatile long totalRows;
+
+	//a batch stops growing when it gets to about this many bytes, so big rows
+	//don't make one huge message
+	public static int BATCH_BYTES=256*1024;
+	public static int MAX_BATCH=5000;
+
+	//if this is more than 0, open() starts a ReadAhead worker with this many rows
+	int readAheadRows=0;
+	ReadAhead ahead;
+
+	volatile long lastUsed=System.currentTimeMillis();
+	boolean closed=false;
+
+	//true for the queries that can use the ResultCache
+	boolean cacheable=false;
+	//the rows, if they were in the cache, and the next one to return
+	DataObject[] cached;
+	int position;
+	//records the rows for the cache, if they weren't there
+	ResultCache.Recorder recorder;
 
 	//use for a select all
 	public CursorObject(Credentials user,DataObject d,int limit,int offset) throws DataStoreException {
@@ -45,6 +84,7 @@ public class CursorObject implements Cursor {
 		//this just uses a regular data object
 		//this.sql=v.getSQL();
 		this.sql="SELECT * FROM "+v.getViewName();
+		cacheable=true;
 	}
 
 	//this can also be called on a ViewObject, if the ViewObject has defined the getTableName()
@@ -55,6 +95,15 @@ public class CursorObject implements Cursor {
 		this.d=d;
 		String sql="SELECT * FROM "+d.getTableName()+" "+whereClause;
 		this.sql=sql;
+		cacheable=true;
+	}
+
+	//use for a query with parameters, like the ones from Seek
+	CursorObject(Credentials user,DataObject d,String sql,Object[] params) {
+		this.user=user;
+		this.d=d;
+		this.sql=sql;
+		this.params=params;
 	}
 
 	public String getSql() throws RemoteException {
@@ -65,17 +114,171 @@ public class CursorObject implements Cursor {
 	//but we want to make opening the connection separate from constructing it to make
 	//sure it is in its own thread, separate from that of the parent
 	public void open() throws RemoteException, DataStoreException, Unauthorized {
+		lastUsed=System.currentTimeMillis();
+		String key=null;
+		if (cacheable && ResultCache.ENABLED) {
+			key=ResultCache.key((d!=null)?d.getClass():v.getClass(),sql,params);
+			cached=ResultCache.instance().get(key);
+			if (cached!=null) {
+				//the password is still checked, as it is by the Connection
+				if (!Kernel.instance().validate(user)) {
+					cached=null;
+					throw new Unauthorized("wrong password");
+				}
+				return;
+			}
+		}
 		conn=new Connection(user);
-		stmt=new Statement(conn,sql);
+		if (key==null) {
+			stmt=new Statement(conn,sql);
+		} else {
+			//watch the statement being prepared to see what it reads
+			Authorizer.Reads reads=new Authorizer.Reads();
+			Authorizer.set(conn.getHandle(),reads);
+			try {
+				stmt=new Statement(conn,sql);
+			} finally {
+				Authorizer.set(conn.getHandle(),null);
+			}
+			if (!reads.isVolatile && reads.tables.size()>0) {
+				recorder=new ResultCache.Recorder(key,reads.tables.toArray(new String[reads.tables.size()]));
+			}
+		}
+		if (params!=null) {
+			for (int i=0;i<params.length;i++) {
+				stmt.bind(i+1,params[i]);
+			}
+		}
+		if (readAheadRows>0) {
+			ahead=new ReadAhead(this,readAheadRows);
+			ahead.start();
+		}
+	}
+
+	public void setReadAhead(int rows) throws RemoteException {
+		readAheadRows=rows;
 	}
 
 	public boolean hasNext() throws RemoteException, DataStoreException {
-		return stmt.step();
+		lastUsed=System.currentTimeMillis();
+		if (cached!=null) {
+			return position<cached.length;
+		}
+		boolean more;
+		try {
+			if (ahead!=null) {
+				more=ahead.hasNext();
+			} else {
+				pending=stmt.step();
+				more=pending;
+			}
+		} catch (DataStoreException dx) {
+			//the rows so far aren't the whole answer, so they mustn't be cached
+			recorder=null;
+			throw dx;
+		}
+		if (!more && recorder!=null) {
+			recorder.finish();
+		}
+		return more;
 	}
 
 	//return the DataObject or ViewObject
-	//this code was taken from DataStoreEngine.get, and probably can be combined with it in a refactor
 	public DataObject next() throws RemoteException, DataStoreException {
+		lastUsed=System.currentTimeMillis();
+		if (cached!=null) {
+			return cached[position++];
+		}
+		DataObject o;
+		try {
+			if (ahead!=null) {
+				o=ahead.next();
+			} else {
+				pending=false;
+				o=readRow();
+			}
+		} catch (DataStoreException dx) {
+			recorder=null;
+			throw dx;
+		}
+		if (recorder!=null) {
+			recorder.add(o);
+		}
+		return o;
+	}
+
+	/**
+	* Step through up to max rows and return them all at once.  This stops early if the
+	* batch gets bigger than BATCH_BYTES.  Don't mix this with next(), except that a row
+	* loaded by hasNext() will be the first one in the batch.
+	*/
+	public RowBatch nextBatch(int max) throws RemoteException, DataStoreException {
+		lastUsed=System.currentTimeMillis();
+		if (max<1) {max=1;}
+		if (max>MAX_BATCH) {max=MAX_BATCH;}
+		if (cached!=null) {
+			ArrayList<DataObject> rows=new ArrayList<DataObject>();
+			while (rows.size()<max && position<cached.length) {
+				rows.add(cached[position++]);
+			}
+			return batch(rows,position==cached.length);
+		}
+		try {
+			if (ahead!=null) {
+				//take what the worker has ready
+				ArrayList<DataObject> ready=ahead.drain(max,BATCH_BYTES);
+				return batch(ready,ahead.isFinished());
+			}
+			ArrayList<DataObject> rows=new ArrayList<DataObject>();
+			long bytes=0;
+			boolean end=false;
+			while (rows.size()<max && bytes<BATCH_BYTES) {
+				if (!pending && !stmt.step()) {
+					end=true;
+					break;
+				}
+				pending=false;
+				rows.add(readRow());
+				bytes+=rowBytes;
+			}
+			return batch(rows,end);
+		} catch (DataStoreException dx) {
+			recorder=null;
+			throw dx;
+		}
+	}
+
+	//compressed if the session asked for it.  end is true only when the statement ran to the
+	//end without an error, so only then are the rows stored in the cache
+	private RowBatch batch(ArrayList<DataObject> rows,boolean end) {
+		if (recorder!=null && cached==null) {
+			for (DataObject o: rows) {
+				recorder.add(o);
+			}
+			if (end) {
+				recorder.finish();
+			}
+		}
+		RowBatch b=new RowBatch(rows.toArray(new DataObject[rows.size()]),end,suggestedSize());
+		b.compressAbove=Compression.threshold(user);
+		return b;
+	}
+
+	//how many rows fit in BATCH_BYTES, based on what we have seen so far
+	protected int suggestedSize() {
+		long rows=totalRows;
+		if (rows==0) {return 100;}
+		long avg=totalBytes/rows;
+		if (avg<1) {avg=1;}
+		long n=BATCH_BYTES/avg;
+		if (n<1) {n=1;}
+		if (n>MAX_BATCH) {n=MAX_BATCH;}
+		return (int)n;
+	}
+
+	//map the current row of the statement into a new DataObject or ViewObject
+	//this code was taken from DataStoreEngine.get, and probably can be combined with it in a refactor
+	protected DataObject readRow() throws DataStoreException {
 		//first, create the object that will be used to return the data
 		Object o=null;
 		Class klaz=null;
@@ -94,6 +297,8 @@ public class CursorObject implements Cursor {
 
 		//get number of columns
 		int cols=stmt.getColumnCount();
+		//start with a little overhead for the object itself
+		int bytes=16;
 		//System.out.println("DEBUG: CursorObject col count="+cols);
 		for (int j=0;j<cols;j++) {
 			//get the column name
@@ -104,10 +309,12 @@ public class CursorObject implements Cursor {
 				Field f=klaz.getDeclaredField(colName);
 				f.setAccessible(true);  //turn off security checks
 				String ft=f.getType().getName();
+				bytes+=8;
 
 				//this needs more types
 				if (ft.equals("java.lang.String")) {
 					String v=stmt.getString(j);
+					if (v!=null) {bytes+=v.length();}
 					if (v!=null) {
 						//this causes a problem when the string is null
 						//i don't know why
@@ -133,6 +340,7 @@ public class CursorObject implements Cursor {
 				} else if (ft.equals("java.awt.TextArea")) {
 					String text=stmt.getString(j);
 					if (text!=null) {
+						bytes+=text.length();
 						java.awt.TextArea ta=new java.awt.TextArea(text,3,40,TextArea.SCROLLBARS_VERTICAL_ONLY);
 						ta.setName(colName);
 						f.set(o,ta);
@@ -182,12 +390,52 @@ public class CursorObject implements Cursor {
 			}
 
 		}	//end for
+		rowBytes=bytes;
+		totalBytes+=bytes;
+		totalRows++;
 		return (DataObject)o;
 	}
 
 
 	public void close() throws RemoteException {
-		stmt.close();
-		conn.close();
+		Exports.unexport(this);
+		synchronized (this) {
+			if (closed) {return;}
+			closed=true;
+		}
+		if (ahead!=null && !ahead.close()) {
+			//the worker is still stepping, so leave the statement and connection
+			//for the finalizers rather than pull them out from under it
+			return;
+		}
+		//it may never have been opened
+		if (stmt!=null) {
+			stmt.close();
+			IndexAdvisor.record(conn,sql,params,stmt.getStepNanos());
+		}
+		if (conn!=null) {conn.close();}
+	}
+
+	//------------------------------------
+	//used by Exports
+	public long getLastUsed() {return lastUsed;}
+
+	public long getLease() {return Exports.CURSOR_LEASE;}
+
+	public void expire() {
+		if (conn!=null) {
+			//stop a statement that is still running
+			conn.interrupt();
+		}
+		try {
+			close();
+		} catch (RemoteException x) {
+			//not thrown locally
+		}
+	}
+
+	//called by RMI when no client has a reference any more
+	public void unreferenced() {
+		Exports.expire(this);
 	}
 }
\ No newline at end of file
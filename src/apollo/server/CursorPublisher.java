@@ -0,0 +1,185 @@
+package apollo.server;
+import apollo.iface.DataObject;
+import apollo.iface.DataStoreException;
+import apollo.iface.ViewObject;
+import apollo.util.Credentials;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* CursorPublisher lets server-side code, like an exporter, read a query as a stream:
+*	CursorPublisher.selectWhere(user,new Event(),"WHERE date>'2016-01-01'").subscribe(mySubscriber);
+*
+* SQLite is stepped only when the subscriber asks for rows with request(n), so a slow subscriber
+* never makes rows pile up in memory.  The cursor is opened when the first rows are requested, and
+* it is closed, with its statement and connection, when the rows run out, on an error, or as soon
+* as the subscriber cancels.
+*
+* The rows are read and delivered on a thread from the executor, one drain at a time, so the
+* subscriber's methods are never called at the same time.  The default executor is a shared pool of
+* daemon threads, because the sqlite calls block.
+*
+* Each publisher wraps one cursor, so it can only be subscribed to once.
+*/
+public class CursorPublisher implements Flow.Publisher<DataObject> {
+	private static ExecutorService defaultExecutor=Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t=new Thread(r,"cursor-publisher");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final CursorObject cursor;
+	private final Executor executor;
+	private final AtomicBoolean subscribed=new AtomicBoolean(false);
+
+	public CursorPublisher(CursorObject cursor) {
+		this(cursor,defaultExecutor);
+	}
+
+	public CursorPublisher(CursorObject cursor,Executor executor) {
+		this.cursor=cursor;
+		this.executor=executor;
+	}
+
+	//-----------------------------------------
+	//the same queries as DataStore
+	public static CursorPublisher selectAll(Credentials user,DataObject d,int limit,int offset) throws DataStoreException {
+		return new CursorPublisher(new CursorObject(user,d,limit,offset));
+	}
+
+	public static CursorPublisher selectWhere(Credentials user,DataObject d,String whereClause) {
+		return new CursorPublisher(new CursorObject(user,d,whereClause));
+	}
+
+	public static CursorPublisher view(Credentials user,ViewObject v) {
+		return new CursorPublisher(new CursorObject(user,v));
+	}
+
+	public void subscribe(Flow.Subscriber<? super DataObject> s) {
+		if (s==null) {
+			throw new NullPointerException("subscriber");
+		}
+		RowSubscription sub=new RowSubscription(s);
+		if (!subscribed.compareAndSet(false,true)) {
+			//the spec says onSubscribe must come before onError
+			s.onSubscribe(sub);
+			sub.fail(new IllegalStateException("a CursorPublisher can only be subscribed to once"));
+			return;
+		}
+		s.onSubscribe(sub);
+	}
+
+	//=========================================
+	class RowSubscription implements Flow.Subscription, Runnable {
+		private final Flow.Subscriber<? super DataObject> subscriber;
+		private final AtomicLong demand=new AtomicLong();
+		//more than 0 while a drain is scheduled or running
+		private final AtomicInteger wip=new AtomicInteger();
+		private volatile boolean cancelled=false;
+		private volatile Throwable badRequest;
+		//only touched by the drain
+		private boolean opened=false;
+		private boolean done=false;
+
+		RowSubscription(Flow.Subscriber<? super DataObject> s) {
+			subscriber=s;
+		}
+
+		public void request(long n) {
+			if (n<=0) {
+				badRequest=new IllegalArgumentException("request("+n+") must be positive");
+			} else {
+				//add, but don't overflow
+				long d;
+				do {
+					d=demand.get();
+					if (d==Long.MAX_VALUE) {break;}
+				} while (!demand.compareAndSet(d,(Long.MAX_VALUE-d<n)?Long.MAX_VALUE:d+n));
+			}
+			schedule();
+		}
+
+		public void cancel() {
+			cancelled=true;
+			schedule();
+		}
+
+		private void schedule() {
+			if (wip.getAndIncrement()==0) {
+				executor.execute(this);
+			}
+		}
+
+		//run by the executor.  Only one of these runs at a time for a subscription
+		public void run() {
+			int missed=1;
+			while (true) {
+				drain();
+				missed=wip.addAndGet(-missed);
+				if (missed==0) {return;}
+			}
+		}
+
+		private void drain() {
+			if (done) {return;}
+			if (cancelled) {
+				finish();
+				return;
+			}
+			if (badRequest!=null) {
+				fail(badRequest);
+				return;
+			}
+			try {
+				while (demand.get()>0 && !cancelled) {
+					if (!opened) {
+						opened=true;
+						cursor.open();
+					}
+					if (!cursor.hasNext()) {
+						finish();
+						subscriber.onComplete();
+						return;
+					}
+					DataObject row=cursor.next();
+					if (demand.get()!=Long.MAX_VALUE) {
+						demand.decrementAndGet();
+					}
+					subscriber.onNext(row);
+				}
+				if (cancelled) {
+					finish();
+				}
+			} catch (Exception x) {
+				fail(x);
+			}
+		}
+
+		void fail(Throwable t) {
+			if (done) {return;}
+			finish();
+			subscriber.onError(t);
+		}
+
+		//close the cursor, which releases the statement and connection
+		private void finish() {
+			if (done) {return;}
+			done=true;
+			if (opened) {
+				try {
+					cursor.close();
+				} catch (Exception x) {
+					System.out.println("warning: "+x+" closing cursor for publisher");
+				}
+			}
+		}
+	}
+}
@@ -1,4 +1,5 @@
 package apollo.server;
+import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
@@ -6,10 +7,14 @@ import java.rmi.server.UnicastRemoteObject;
 import apollo.iface.*;
 import java.lang.reflect.Field;
 import java.security.Permission;
+import java.util.ArrayList;
 import apollo.util.DateYMD;
 import apollo.util.DateYM;
 import apollo.util.Credentials;
+import apollo.util.Session;
+import apollo.util.Compression;
 import apollo.kernel.Kernel;
+import apollo.net.TunedSocketFactory;
 import java.math.BigDecimal;
 import java.awt.TextArea;
 import java.awt.Choice;
@@ -18,10 +23,17 @@ import java.awt.Choice;
 * This is the main class.  Because of SQLITE_BUSY result codes, every sql call needs its own transaction.
 */
 public class DataStoreEngine implements DataStore {
+	//false in embedded mode, where transactions and cursors are returned directly
+	private boolean export=true;
 
 	//this doesn't throw RemoteException because it can't be accessed remotely
 	//the root credentials are used only to install the new classes
 	public DataStoreEngine(Credentials root) throws DataStoreException, Unauthorized {
+		this(root,true);
+	}
+
+	public DataStoreEngine(Credentials root,boolean export) throws DataStoreException, Unauthorized {
+		this.export=export;
 
 		//initialize the MasterClass and Audit objects
 		Connection c=new Connection(root);
@@ -52,8 +64,8 @@ public class DataStoreEngine implements DataStore {
 	*/
 	public Transaction createTransaction(Credentials user) throws RemoteException,DataStoreException {
 		TransactionObject tx=new TransactionObject(user);
-		//we are not returning the transaction object, just its stub
-		Transaction stub =(Transaction)UnicastRemoteObject.exportObject(tx,0);
+		//we are not returning the transaction object, just its stub, unless this is embedded
+		Transaction stub =(Transaction)publish(tx);
 		return stub;
 	}
 
@@ -243,29 +255,115 @@ public class DataStoreEngine implements DataStore {
 	public Cursor selectAll(Credentials user,DataObject d,int limit,int offset) throws RemoteException,
 		DataStoreException {
 		CursorObject cx=new CursorObject(user,d,limit,offset);
-		//we are not returning the transaction object, just its stub
-		Cursor stub =(Cursor)UnicastRemoteObject.exportObject(cx,0);
+		//we are not returning the cursor object, just its stub, unless this is embedded
+		Cursor stub =(Cursor)publish(cx);
 		return stub;
 	}
 
+	/**
+	* Keyset pagination.  Each page seeks to where the last one ended on the idx_ index, so
+	* it costs the same no matter how deep it is.  See Seek.
+	*/
+	public Page selectPage(Credentials user,DataObject d,int limit,String continuation) throws RemoteException,
+		DataStoreException, Unauthorized {
+		if (limit<=0) {limit=Seek.DEFAULT_LIMIT;}
+		if (limit>Seek.MAX_LIMIT) {limit=Seek.MAX_LIMIT;}
+		Seek seek=new Seek(d);
+		Object[] after=(continuation==null)?null:seek.decode(continuation);
+		ArrayList<Object> params=new ArrayList<Object>();
+		String sql=seek.sql(after,limit,params);
+		CursorObject cx=new CursorObject(user,d,sql,params.toArray());
+		ArrayList<DataObject> rows=new ArrayList<DataObject>();
+		Object[] last=null;
+		boolean more=false;
+		try {
+			cx.open();
+			while (cx.hasNext()) {
+				if (rows.size()==limit) {
+					//the extra row, so there is another page
+					more=true;
+					break;
+				}
+				last=seek.values(cx.stmt);
+				rows.add(cx.next());
+			}
+		} finally {
+			cx.close();
+		}
+		Page p=new Page(rows.toArray(new DataObject[rows.size()]),more?seek.encode(last):null);
+		p.compressAbove=Compression.threshold(user);
+		return p;
+	}
+
 	public Cursor selectWhere(Credentials user,DataObject d,String whereClause) throws RemoteException, DataStoreException {
 		CursorObject cx=new CursorObject(user,d,whereClause);
-		//we are not returning the transaction object, just its stub
-		Cursor stub =(Cursor)UnicastRemoteObject.exportObject(cx,0);
+		//we are not returning the cursor object, just its stub, unless this is embedded
+		Cursor stub =(Cursor)publish(cx);
 		return stub;
 	}
 
+	public AggregateResult aggregate(Credentials user,Aggregate a) throws RemoteException, DataStoreException, Unauthorized {
+		return Aggregation.run(user,a);
+	}
+
+	public boolean exists(Credentials user,String tableName,String whereClause,Object[] params) throws RemoteException, DataStoreException, Unauthorized {
+		return Aggregation.exists(user,tableName,whereClause,params);
+	}
+
+	public SearchHit[] search(Credentials user,Searchable d,String query,int limit,boolean objects) throws RemoteException, DataStoreException, Unauthorized {
+		return FullText.search(user,d,query,limit,objects);
+	}
+
+	public ExportStream export(Credentials user,DataObject d,String whereClause,int format) throws RemoteException, DataStoreException, Unauthorized {
+		Exporter x=new Exporter(user,d,whereClause,format);
+		return (ExportStream)publish(x);
+	}
+
+	public long exportToFile(Credentials user,DataObject d,String whereClause,int format,String fileName) throws RemoteException, DataStoreException, Unauthorized {
+		Exporter.checkFileName(fileName);
+		return new Exporter(user,d,whereClause,format).toFile(fileName);
+	}
+
 	/**
 	* Return the data specified by the view.
 	*/
 	public Cursor view(Credentials user,ViewObject v) throws RemoteException, DataStoreException {
 		CursorObject cx=new CursorObject(user,v);
-		//we are not returning the transaction object, just its stub
-		Cursor stub =(Cursor)UnicastRemoteObject.exportObject(cx,0);
+		//we are not returning the cursor object, just its stub, unless this is embedded
+		Cursor stub =(Cursor)publish(cx);
 		return stub;
 	}
 
 
+	//export the object and return its stub, unless this is embedded
+	private Remote publish(Exports.Leased o) throws RemoteException {
+		if (export) {
+			return Exports.export(o);
+		}
+		return (Remote)o;
+	}
+
+	public boolean isEmbedded() {return !export;}
+
+	public void subscribe(Credentials user,InvalidationListener l) throws RemoteException, DataStoreException, Unauthorized {
+		if (!Kernel.instance().validate(user)) {
+			throw new Unauthorized("wrong password");
+		}
+		Invalidations.instance().subscribe(l);
+	}
+
+	public void unsubscribe(Credentials user,InvalidationListener l) throws RemoteException {
+		Invalidations.instance().unsubscribe(l);
+	}
+
+	public Session login(Credentials user) throws RemoteException, DataStoreException, Unauthorized {
+		return Kernel.instance().createSession(user);
+	}
+
+	public void logout(Session s) throws RemoteException, DataStoreException {
+		Kernel.instance().endSession(s);
+	}
+
 	//======================================================================
 	//start up the Engine and bind it to the registry
     public static void main(String[] args) throws DataStoreException {
@@ -281,6 +379,19 @@ public class DataStoreEngine implements DataStore {
 		DataStore ds=create(root);
 	}
 
+	/**
+	* Create a DataStore for use in this process only.  Nothing is exported to RMI, so there are
+	* no sockets and no serialization: the Transactions and Cursors are the server objects
+	* themselves, and DataObjects are passed by reference.  Don't change a DataObject after passing
+	* it to insert() or update() until the call returns.
+	*
+	* This can be called along with create(), for example if some clients are in the same process
+	* and others are remote.
+	*/
+	public static DataStoreEngine embedded(Credentials root) throws DataStoreException, Unauthorized {
+		return new DataStoreEngine(root,false);
+	}
+
 	/**
 	* Create a new DataSource and export it to the RMI registry.
 	* Don't call this more than once per process.  If you need another handle,
@@ -294,6 +405,12 @@ public class DataStoreEngine implements DataStore {
 			}
 		);
 
+		//the registry only accepts stubs with classes its filter allows, and the stubs carry
+		//a TunedSocketFactory.  A registry in another process needs this property too
+		if (System.getProperty("sun.rmi.registry.registryFilter")==null) {
+			System.setProperty("sun.rmi.registry.registryFilter","apollo.net.TunedSocketFactory;apollo.net.SocketOptions");
+		}
+
 		//start rmi registry
 		try {
 			LocateRegistry.createRegistry(1099);
@@ -306,11 +423,12 @@ public class DataStoreEngine implements DataStore {
         try {
             String name = "DataStore";
             DataStore ds = new DataStoreEngine(root);
+            TunedSocketFactory f = TunedSocketFactory.getDefault();
             DataStore stub =
-                (DataStore)UnicastRemoteObject.exportObject(ds, 0);
+                (DataStore)UnicastRemoteObject.exportObject(ds, 0, f, f);
             Registry registry = LocateRegistry.getRegistry();
             registry.rebind(name, stub);
-            System.out.println("DataStoreEngine bound to RMI Registry as '"+name+"'");
+            System.out.println("DataStoreEngine bound to RMI Registry as '"+name+"' with "+f.getOptions());
             return ds;
         } catch (Exception e) {
             System.err.println("fatal DatabaseStore exception:");
@@ -0,0 +1,419 @@
+package apollo.server;
+import apollo.iface.DataObject;
+import apollo.iface.DataStoreException;
+import apollo.iface.ExportStream;
+import apollo.iface.Unauthorized;
+import apollo.iface.ViewObject;
+import apollo.util.Credentials;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.rmi.RemoteException;
+import java.rmi.server.Unreferenced;
+
+/**
+* Exporter runs DataStore.export() and exportToFile().  It steps the statement and writes each
+* column as SQLite has it into a buffer.  No DataObject or String is made for the rows, so the
+* export runs about as fast as SQLite can read.  Text is stored as ISO-8859-1 bytes (see
+* Connection), so text with a byte above 127 is re-encoded as UTF-8.  Plain ASCII is copied.
+*
+* exportToFile() fills a big direct buffer and writes it with a FileChannel.  The file goes in
+* EXPORT_DIR, and the name must be a plain file name, because it comes from the client.  It is
+* written to a .part file, which is renamed when it is complete.
+*
+* export() returns the rows in chunks of up to CHUNK_BYTES, which end on a row boundary.  It is leased like a Cursor.  To
+* compress a remote export, turn on compression in TunedSocketFactory.
+*/
+public class Exporter implements ExportStream, Exports.Leased, Unreferenced {
+	public static int CHUNK_BYTES=256*1024;
+	public static int FILE_BUFFER=1024*1024;
+	public static String EXPORT_DIR=System.getProperty("apollo.export.dir",
+		System.getProperty("java.io.tmpdir")+File.separator+"apollo-export");
+
+	private final static byte[] HEX="0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	private final static byte[] NULL="null".getBytes(StandardCharsets.US_ASCII);
+
+	final Credentials user;
+	final String sql;
+	final int format;
+	Connection conn;
+	Statement stmt;
+	//the column names, already encoded for the format
+	byte[][] names;
+	int columns;
+	long rows;
+
+	//the row being encoded.  If it didn't all fit in the last buffer, the rest starts at sent
+	byte[] row=new byte[1024];
+	int length;
+	int sent;
+	boolean header;
+	boolean finished;
+	boolean closed;
+
+	volatile long lastUsed=System.currentTimeMillis();
+
+	/**
+	* The statement is prepared here, so a bad where clause or password fails right away.
+	* The where clause is used like the one in selectWhere(), and may be null.
+	*/
+	public Exporter(Credentials user,DataObject d,String whereClause,int format) throws DataStoreException, Unauthorized {
+		if (format!=CSV && format!=JSONL) {
+			throw new DataStoreException("unknown export format "+format,0);
+		}
+		String table=(d instanceof ViewObject)?((ViewObject)d).getViewName():d.getTableName();
+		Aggregation.check(table);
+		this.user=user;
+		this.format=format;
+		this.sql="SELECT * FROM "+table+(whereClause==null?"":" "+whereClause);
+		conn=new Connection(user);
+		try {
+			stmt=new Statement(conn,sql);
+		} catch (DataStoreException dx) {
+			conn.close();
+			throw dx;
+		}
+		columns=stmt.getColumnCount();
+		names=new byte[columns][];
+		for (int j=0;j<columns;j++) {
+			byte[] b=stmt.getColumnName(j).getBytes(StandardCharsets.UTF_8);
+			length=0;
+			if (format==CSV) {
+				csv(b);
+			} else {
+				json(b);
+			}
+			names[j]=new byte[length];
+			System.arraycopy(row,0,names[j],0,length);
+		}
+		length=0;
+		header=(format==CSV);
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	/**
+	* Fill the buffer with as many whole rows as fit.  A row is only split if it is bigger than
+	* the buffer.  Returns false when there is nothing more to write, which may be with some bytes
+	* already in the buffer.
+	*
+	* It holds the lock, so release() can't close the statement while it is being stepped.
+	*/
+	synchronized boolean fill(ByteBuffer buf) throws DataStoreException {
+		while (buf.hasRemaining()) {
+			if (sent==length) {
+				if (!next()) {
+					return false;
+				}
+				if (length>buf.remaining() && buf.position()>0) {
+					//it goes at the start of the next buffer
+					return true;
+				}
+			}
+			int n=Math.min(length-sent,buf.remaining());
+			buf.put(row,sent,n);
+			sent+=n;
+		}
+		return true;
+	}
+
+	//encode the header or the next row.  False at the end
+	private boolean next() throws DataStoreException {
+		length=0;
+		sent=0;
+		if (header) {
+			header=false;
+			for (int j=0;j<columns;j++) {
+				if (j>0) {put((byte)',');}
+				put(names[j]);
+			}
+			put((byte)'\n');
+			return true;
+		}
+		if (finished) {
+			return false;
+		}
+		if (!stmt.step()) {
+			finished=true;
+			release();
+			return false;
+		}
+		if (format==CSV) {
+			csvRow();
+		} else {
+			jsonRow();
+		}
+		rows++;
+		return true;
+	}
+
+	private void csvRow() {
+		for (int j=0;j<columns;j++) {
+			if (j>0) {put((byte)',');}
+			int type=stmt.getColumnType(j);
+			if (type==5) {
+				continue;
+			}
+			byte[] b=stmt.getTextBytes(j);
+			if (type==3) {
+				csv(utf8(b));
+			} else if (type==4) {
+				hex(b);
+			} else {
+				put(b);
+			}
+		}
+		put((byte)'\n');
+	}
+
+	private void jsonRow() {
+		put((byte)'{');
+		for (int j=0;j<columns;j++) {
+			if (j>0) {put((byte)',');}
+			put(names[j]);
+			put((byte)':');
+			int type=stmt.getColumnType(j);
+			if (type==5 || (type==2 && !isFinite(stmt.getDouble(j)))) {
+				//JSON has no infinity
+				put(NULL);
+				continue;
+			}
+			byte[] b=stmt.getTextBytes(j);
+			if (type==3) {
+				json(utf8(b));
+			} else if (type==4) {
+				put((byte)'"');
+				hex(b);
+				put((byte)'"');
+			} else {
+				put(b);
+			}
+		}
+		put((byte)'}');
+		put((byte)'\n');
+	}
+
+	private static boolean isFinite(double x) {
+		return !Double.isInfinite(x) && !Double.isNaN(x);
+	}
+
+	//ISO-8859-1 text as UTF-8.  Only a byte above 127 is different
+	private static byte[] utf8(byte[] b) {
+		for (byte c: b) {
+			if (c<0) {
+				return new String(b,StandardCharsets.ISO_8859_1).getBytes(StandardCharsets.UTF_8);
+			}
+		}
+		return b;
+	}
+
+	//a CSV field.  It is quoted if it has a comma, quote or line break, and quotes are doubled
+	private void csv(byte[] b) {
+		boolean quote=false;
+		for (byte c: b) {
+			if (c==',' || c=='"' || c=='\n' || c=='\r') {
+				quote=true;
+				break;
+			}
+		}
+		if (!quote) {
+			put(b);
+			return;
+		}
+		put((byte)'"');
+		for (byte c: b) {
+			if (c=='"') {put((byte)'"');}
+			put(c);
+		}
+		put((byte)'"');
+	}
+
+	//a JSON string.  UTF-8 bytes above 127 are copied as they are
+	private void json(byte[] b) {
+		put((byte)'"');
+		for (byte c: b) {
+			if (c=='"' || c=='\\') {
+				put((byte)'\\');
+				put(c);
+			} else if (c=='\n') {
+				put((byte)'\\');
+				put((byte)'n');
+			} else if (c=='\r') {
+				put((byte)'\\');
+				put((byte)'r');
+			} else if (c=='\t') {
+				put((byte)'\\');
+				put((byte)'t');
+			} else if (c>=0 && c<0x20) {
+				put((byte)'\\');
+				put((byte)'u');
+				put((byte)'0');
+				put((byte)'0');
+				put(HEX[c>>4]);
+				put(HEX[c&15]);
+			} else {
+				put(c);
+			}
+		}
+		put((byte)'"');
+	}
+
+	//a blob, as hex
+	private void hex(byte[] b) {
+		for (byte c: b) {
+			put(HEX[(c>>4)&15]);
+			put(HEX[c&15]);
+		}
+	}
+
+	private void put(byte c) {
+		if (length==row.length) {
+			grow(1);
+		}
+		row[length++]=c;
+	}
+
+	private void put(byte[] b) {
+		if (length+b.length>row.length) {
+			grow(b.length);
+		}
+		System.arraycopy(b,0,row,length,b.length);
+		length+=b.length;
+	}
+
+	private void grow(int n) {
+		byte[] bigger=new byte[Math.max(row.length*2,length+n)];
+		System.arraycopy(row,0,bigger,0,length);
+		row=bigger;
+	}
+
+	//--------------------------------------------
+	/**
+	* Write everything to the file in EXPORT_DIR, replacing it if it is there, and return the
+	* number of rows.  This closes the exporter.
+	*/
+	public long toFile(String fileName) throws DataStoreException {
+		Path dir=Paths.get(EXPORT_DIR);
+		Path part=null;
+		try {
+			checkFileName(fileName);
+			Files.createDirectories(dir);
+			part=dir.resolve(fileName+".part");
+			FileChannel ch=FileChannel.open(part,StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING,StandardOpenOption.WRITE);
+			try {
+				ByteBuffer buf=ByteBuffer.allocateDirect(FILE_BUFFER);
+				boolean more=true;
+				while (more) {
+					more=fill(buf);
+					buf.flip();
+					while (buf.hasRemaining()) {
+						ch.write(buf);
+					}
+					buf.clear();
+				}
+			} finally {
+				ch.close();
+			}
+			Files.move(part,dir.resolve(fileName),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+			part=null;
+			return rows;
+		} catch (IOException x) {
+			throw new DataStoreException(x.getClass().getName()+": "+x.getMessage()+" when exporting to "+fileName,0);
+		} finally {
+			if (part!=null) {
+				try {
+					Files.deleteIfExists(part);
+				} catch (IOException x) {
+					//leave it
+				}
+			}
+			release();
+		}
+	}
+
+	//just a name, with no directory in it
+	static void checkFileName(String name) throws DataStoreException {
+		if (name==null || name.length()==0 || name.startsWith(".")
+			|| name.indexOf('/')>=0 || name.indexOf('\\')>=0 || name.indexOf(':')>=0) {
+			throw new DataStoreException("invalid export file name: "+name,0);
+		}
+	}
+
+	//--------------------------------------------
+	//ExportStream
+	public byte[] read() throws RemoteException, DataStoreException {
+		lastUsed=System.currentTimeMillis();
+		ByteBuffer buf=ByteBuffer.allocate(CHUNK_BYTES);
+		boolean more;
+		synchronized (this) {
+			if (closed) {
+				throw new DataStoreException("export is closed",0);
+			}
+			more=fill(buf);
+		}
+		if (!more && buf.position()==0) {
+			close();
+			return null;
+		}
+		byte[] b=new byte[buf.position()];
+		buf.flip();
+		buf.get(b);
+		return b;
+	}
+
+	public void close() throws RemoteException {
+		Exports.unexport(this);
+		synchronized (this) {
+			if (closed) {return;}
+			closed=true;
+		}
+		release();
+	}
+
+	//close the statement and connection as soon as the rows run out
+	private synchronized void release() {
+		if (stmt!=null) {
+			stmt.close();
+			stmt=null;
+		}
+		if (conn!=null) {
+			conn.close();
+			conn=null;
+		}
+		finished=true;
+	}
+
+	//------------------------------------
+	//used by Exports
+	public long getLastUsed() {return lastUsed;}
+
+	public long getLease() {return Exports.CURSOR_LEASE;}
+
+	public void expire() {
+		Connection c=conn;
+		if (c!=null) {
+			//stop a statement that is still running
+			c.interrupt();
+		}
+		try {
+			close();
+		} catch (RemoteException x) {
+			//not thrown locally
+		}
+	}
+
+	//called by RMI when no client has a reference any more
+	public void unreferenced() {
+		Exports.expire(this);
+	}
+}
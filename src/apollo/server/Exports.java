@@ -0,0 +1,227 @@
+package apollo.server;
+import apollo.net.TunedSocketFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.rmi.server.Unreferenced;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Exports keeps track of the Transaction and Cursor objects that DataStoreEngine exports to RMI.
+* Before, they stayed exported, with their connections, until DGC noticed the client was gone.
+*
+* They are exported with TunedSocketFactory, the same as the DataStore, so they share its
+* connections and counters.
+*
+* Now an object is unexported as soon as it is finished: a cursor when it is closed, and a
+* transaction when it commits or rolls back.  An object that hasn't been called for longer than
+* its lease is assumed to be abandoned.  A background thread expires it, which rolls back the
+* transaction or closes the cursor, and then unexports it.  DGC's unreferenced() does the same.
+*
+* What is exported is a Proxy for the object, which counts the calls that are running.  An object
+* is never expired in the middle of a call, so a long insert or next() can't have its statement
+* closed under it by another thread.  The lease starts again when the call returns.  Once it is
+* expired, a late call gets a NoSuchObjectException.
+*
+* The counters can be read at any time to watch for leaks.
+*/
+public class Exports implements Runnable {
+	//in milliseconds.  A transaction holds the write lock, so it gets a shorter lease
+	public static long TRANSACTION_LEASE=2*60*1000;
+	public static long CURSOR_LEASE=10*60*1000;
+	public static long REAP_INTERVAL=30*1000;
+
+	/**
+	* Implemented by the objects that are exported.  This isn't a remote interface.
+	*/
+	interface Leased {
+		//the time of the last call from the client
+		long getLastUsed();
+		long getLease();
+		//roll back or close, whatever is needed to release the connection
+		void expire();
+	}
+
+	/**
+	* The exported proxy for an object.  It passes each call on to the object, and counts it.
+	*/
+	private static class Export implements InvocationHandler {
+		final Leased o;
+		Remote proxy;
+		//the calls running now, or -1 once it is expired
+		final AtomicInteger calls=new AtomicInteger();
+		volatile long returned=System.currentTimeMillis();
+
+		Export(Leased o) {
+			this.o=o;
+		}
+
+		public Object invoke(Object p,Method m,Object[] args) throws Throwable {
+			//unreferenced() expires the object itself, so it isn't counted
+			boolean counted=m.getDeclaringClass()!=Object.class && m.getDeclaringClass()!=Unreferenced.class;
+			if (counted) {
+				enter();
+			}
+			try {
+				return m.invoke(o,args);
+			} catch (InvocationTargetException x) {
+				throw x.getCause();
+			} finally {
+				if (counted) {
+					returned=System.currentTimeMillis();
+					calls.decrementAndGet();
+				}
+			}
+		}
+
+		private void enter() throws NoSuchObjectException {
+			while (true) {
+				int n=calls.get();
+				if (n<0) {
+					throw new NoSuchObjectException(o.getClass().getSimpleName()+" has expired");
+				}
+				if (calls.compareAndSet(n,n+1)) {
+					return;
+				}
+			}
+		}
+
+		long idle(long now) {
+			return now-Math.max(o.getLastUsed(),returned);
+		}
+	}
+
+	private static ConcurrentHashMap<Leased,Export> live=new ConcurrentHashMap<Leased,Export>();
+	private static AtomicLong exported=new AtomicLong();
+	private static AtomicLong unexported=new AtomicLong();
+	private static AtomicLong expired=new AtomicLong();
+	private static Thread reaper;
+
+	/**
+	* Export the object and return its stub.
+	*/
+	public static Remote export(Leased o) throws RemoteException {
+		TunedSocketFactory f=TunedSocketFactory.getDefault();
+		Export e=new Export(o);
+		e.proxy=(Remote)Proxy.newProxyInstance(o.getClass().getClassLoader(),remoteInterfaces(o.getClass()),e);
+		Remote stub=UnicastRemoteObject.exportObject(e.proxy,0,f,f);
+		live.put(o,e);
+		exported.incrementAndGet();
+		startReaper();
+		return stub;
+	}
+
+	//the remote interfaces of the class, and Unreferenced so DGC still tells the object
+	private static Class<?>[] remoteInterfaces(Class<?> c) {
+		ArrayList<Class<?>> list=new ArrayList<Class<?>>();
+		for (Class<?> i: c.getInterfaces()) {
+			if (Remote.class.isAssignableFrom(i) || i==Unreferenced.class) {
+				list.add(i);
+			}
+		}
+		return list.toArray(new Class<?>[list.size()]);
+	}
+
+	/**
+	* Unexport the object if it was exported.  It is fine to call this more than once, or for an
+	* object that was never exported, like the ones used by the NIO Dispatcher.
+	*/
+	public static void unexport(Leased o) {
+		Export e=live.remove(o);
+		if (e==null) {
+			return;
+		}
+		unexported.incrementAndGet();
+		try {
+			//force it, because this is usually called from inside a call to the object itself
+			UnicastRemoteObject.unexportObject(e.proxy,true);
+		} catch (NoSuchObjectException x) {
+			//already gone
+		}
+	}
+
+	/**
+	* Release the object's connection and unexport it.  An object that is in the middle of a call
+	* is left alone.  The reaper will try again after the call returns.
+	*/
+	public static void expire(Leased o) {
+		Export e=live.get(o);
+		if (e==null || !e.calls.compareAndSet(0,-1)) {
+			return;
+		}
+		expired.incrementAndGet();
+		try {
+			o.expire();
+		} catch (RuntimeException x) {
+			System.out.println("warning: "+x+" while expiring "+o);
+		}
+		unexport(o);
+	}
+
+	private synchronized static void startReaper() {
+		if (reaper==null) {
+			reaper=new Thread(new Exports(),"export reaper");
+			reaper.setDaemon(true);
+			reaper.start();
+		}
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(REAP_INTERVAL);
+			} catch (InterruptedException x) {
+				return;
+			}
+			long now=System.currentTimeMillis();
+			Iterator<Leased> it=live.keySet().iterator();
+			while (it.hasNext()) {
+				Leased o=it.next();
+				Export e=live.get(o);
+				if (e!=null && e.calls.get()==0 && e.idle(now)>o.getLease()) {
+					System.out.println("expiring abandoned "+o.getClass().getSimpleName());
+					expire(o);
+				}
+			}
+		}
+	}
+
+	//=========================================
+	//counters
+	public static int getLiveTransactions() {
+		return count(TransactionObject.class);
+	}
+
+	public static int getLiveCursors() {
+		return count(CursorObject.class);
+	}
+
+	private static int count(Class<?> c) {
+		int n=0;
+		Iterator<Leased> it=live.keySet().iterator();
+		while (it.hasNext()) {
+			if (c.isInstance(it.next())) {n++;}
+		}
+		return n;
+	}
+
+	public static long getExported() {return exported.get();}
+
+	public static long getUnexported() {return unexported.get();}
+
+	public static long getExpired() {return expired.get();}
+
+	public static String stats() {
+		return "live transactions="+getLiveTransactions()+", live cursors="+getLiveCursors()
+			+", exported="+getExported()+", unexported="+getUnexported()+", expired="+getExpired();
+	}
+}
@@ -0,0 +1,197 @@
+package apollo.server;
+import apollo.iface.DataObject;
+import apollo.iface.DataStoreException;
+import apollo.iface.Key;
+import apollo.iface.SearchHit;
+import apollo.iface.Searchable;
+import apollo.iface.Unauthorized;
+import apollo.util.Credentials;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+* FullText keeps the FTS5 index of a Searchable table and runs DataStore.search().
+*
+* The index is an external content table:
+*	CREATE VIRTUAL TABLE _fts_Note USING fts5(title,body,content='Note',content_rowid='rowid')
+* so the text is only stored once, in the table.  Three triggers on the table keep it up to
+* date.  They run inside the statement that changes the row, so the index is right for every
+* insert, update, delete and batch, and a rollback undoes both.
+*
+* search() runs the MATCH on the index, ordered by rank, and only reads the rows it returns.
+* The query is FTS5 syntax, like
+*	apollo AND (moon OR landing)
+*	"exact phrase"
+*	title:report
+*	launch*
+*/
+class FullText {
+	public static int DEFAULT_LIMIT=20;
+	public static int MAX_LIMIT=1000;
+	//the words in a snippet, at most 64
+	public static int SNIPPET_TOKENS=16;
+	public static String MATCH_START="[";
+	public static String MATCH_END="]";
+	public static String ELLIPSIS="...";
+
+	//the name of the index for the table
+	static String name(String table) {
+		return "_fts_"+table;
+	}
+
+	/**
+	* Create the index and triggers if they don't exist, and fill the index from the rows already
+	* in the table.  If the fields have changed, the old index is dropped first.  Called by
+	* TransactionObject.createTable().
+	*/
+	static void create(Connection conn,Searchable d) throws DataStoreException {
+		String table=d.getTableName();
+		String fts=name(table);
+		Aggregation.check(table);
+		String[] fields=d.searchFields();
+		if (fields==null || fields.length==0) {
+			throw new DataStoreException(table+" has no search fields",0);
+		}
+		for (String f: fields) {
+			Aggregation.check(f);
+			String ft;
+			try {
+				ft=d.getClass().getField(f).getType().getName();
+			} catch (NoSuchFieldException x) {
+				throw new DataStoreException("search field "+f+" is not in "+table,0);
+			}
+			if (!ft.equals("java.lang.String") && !ft.equals("java.awt.TextArea")) {
+				throw new DataStoreException("search field "+f+" in "+table+" is a "+ft+", not a String or TextArea",0);
+			}
+		}
+		String[] old=columns(conn,fts);
+		if (old!=null) {
+			if (String.join(",",old).equalsIgnoreCase(String.join(",",fields))) {
+				return;
+			}
+			drop(conn,table);
+		}
+		String cols=String.join(",",fields);
+		String newCols=prefixed("new.",fields);
+		String oldCols=prefixed("old.",fields);
+		conn.exec("CREATE VIRTUAL TABLE "+fts+" USING fts5("+cols+",content='"+table+"',content_rowid='rowid')");
+		conn.exec("CREATE TRIGGER "+fts+"_ai AFTER INSERT ON "+table+" BEGIN "
+			+"INSERT INTO "+fts+"(rowid,"+cols+") VALUES (new.rowid,"+newCols+"); END");
+		conn.exec("CREATE TRIGGER "+fts+"_ad AFTER DELETE ON "+table+" BEGIN "
+			+"INSERT INTO "+fts+"("+fts+",rowid,"+cols+") VALUES ('delete',old.rowid,"+oldCols+"); END");
+		//only when the text changes, so updating other fields doesn't touch the index
+		conn.exec("CREATE TRIGGER "+fts+"_au AFTER UPDATE OF rowid,"+cols+" ON "+table+" BEGIN "
+			+"INSERT INTO "+fts+"("+fts+",rowid,"+cols+") VALUES ('delete',old.rowid,"+oldCols+"); "
+			+"INSERT INTO "+fts+"(rowid,"+cols+") VALUES (new.rowid,"+newCols+"); END");
+		conn.exec("INSERT INTO "+fts+"("+fts+") VALUES ('rebuild')");
+	}
+
+	/**
+	* Drop the index and its triggers, if there are any.  Called by TransactionObject.dropTable().
+	*/
+	static void drop(Connection conn,String table) throws DataStoreException {
+		String fts=name(table);
+		conn.exec("DROP TRIGGER IF EXISTS "+fts+"_ai");
+		conn.exec("DROP TRIGGER IF EXISTS "+fts+"_ad");
+		conn.exec("DROP TRIGGER IF EXISTS "+fts+"_au");
+		conn.exec("DROP TABLE IF EXISTS "+fts);
+	}
+
+	private static String prefixed(String prefix,String[] fields) {
+		StringBuilder sb=new StringBuilder();
+		for (int i=0;i<fields.length;i++) {
+			if (i>0) {sb.append(',');}
+			sb.append(prefix).append(fields[i]);
+		}
+		return sb.toString();
+	}
+
+	//the columns of the index, or null if there isn't one
+	private static String[] columns(Connection conn,String fts) throws DataStoreException {
+		Statement st=new Statement(conn,"SELECT name FROM sqlite_master WHERE type='table' AND name='"+fts+"'");
+		boolean exists=st.step();
+		st.close();
+		if (!exists) {return null;}
+		ArrayList<String> cols=new ArrayList<String>();
+		st=new Statement(conn,"PRAGMA table_info("+fts+")");
+		while (st.step()) {
+			cols.add(st.getString(1));
+		}
+		st.close();
+		return cols.toArray(new String[cols.size()]);
+	}
+
+	/**
+	* Search the table for the query, best match first.  If objects is false, only the keys,
+	* ranks and snippets are returned, and the rows aren't read.
+	*/
+	static SearchHit[] search(Credentials user,Searchable d,String query,int limit,boolean objects) throws DataStoreException, Unauthorized {
+		String table=d.getTableName();
+		String fts=name(table);
+		Aggregation.check(table);
+		if (query==null || query.trim().length()==0) {
+			throw new DataStoreException("search query is empty",0);
+		}
+		if (limit<=0) {limit=DEFAULT_LIMIT;}
+		if (limit>MAX_LIMIT) {limit=MAX_LIMIT;}
+		ArrayList<SearchHit> hits=new ArrayList<SearchHit>();
+		Connection conn=new Connection(user);
+		Statement st=null;
+		try {
+			if (columns(conn,fts)==null) {
+				throw new DataStoreException(table+" has no full-text index.  Create the table with a Searchable",0);
+			}
+			st=new Statement(conn,"SELECT rowid,rank,snippet("+fts+",-1,?,?,?,?) FROM "+fts
+				+" WHERE "+fts+" MATCH ? ORDER BY rank LIMIT ?");
+			st.bind(1,MATCH_START);
+			st.bind(2,MATCH_END);
+			st.bind(3,ELLIPSIS);
+			st.bind(4,Math.min(SNIPPET_TOKENS,64));
+			st.bind(5,query);
+			st.bind(6,limit);
+			try {
+				while (st.step()) {
+					hits.add(new SearchHit(new Key(table,st.getLong(0)),st.getDouble(1),Materialized.text(st,2)));
+				}
+			} catch (DataStoreException dx) {
+				//the error from step() doesn't say, but it is almost always the query syntax
+				throw new DataStoreException("can't search "+table+" for "+query+", check the query syntax",dx.getErrCode());
+			}
+		} finally {
+			if (st!=null) {st.close();}
+			conn.close();
+		}
+		if (objects && hits.size()>0) {
+			read(user,d,hits);
+		}
+		return hits.toArray(new SearchHit[hits.size()]);
+	}
+
+	//read the rows of the hits by rowid.  A row deleted since the search is left null
+	private static void read(Credentials user,Searchable d,ArrayList<SearchHit> hits) throws DataStoreException, Unauthorized {
+		HashMap<Long,SearchHit> byId=new HashMap<Long,SearchHit>();
+		StringBuilder sql=new StringBuilder("SELECT * FROM "+d.getTableName()+" WHERE rowid IN (");
+		Object[] params=new Object[hits.size()];
+		for (int i=0;i<params.length;i++) {
+			SearchHit h=hits.get(i);
+			sql.append(i==0?"?":",?");
+			params[i]=h.key.rowid;
+			byId.put(h.key.rowid,h);
+		}
+		sql.append(")");
+		CursorObject cx=new CursorObject(user,d,sql.toString(),params);
+		try {
+			cx.open();
+			while (cx.hasNext()) {
+				DataObject o=cx.next();
+				SearchHit h=byId.get(o.getID());
+				if (h!=null) {h.object=o;}
+			}
+		} catch (java.rmi.RemoteException x) {
+			//not thrown locally
+			throw new DataStoreException(x.toString(),0);
+		} finally {
+			try {cx.close();} catch (java.rmi.RemoteException x) {}
+		}
+	}
+}
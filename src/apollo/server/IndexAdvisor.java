@@ -0,0 +1,307 @@
+package apollo.server;
+import apollo.iface.DataStoreException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+* IndexAdvisor watches the queries run by CursorObject, which are the selectWhere(), view() and
+* Seek queries of the DataStore.  It works like the Apollo 2.0 IndexAdvisor, which only sees
+* PlanCursor queries.  When a query is slow (SLOW_NANOS) or frequent (FREQUENT runs), it records
+* EXPLAIN QUERY PLAN for it once, on the cursor's connection, and looks for two things:
+*	SCAN Event						the whole table is read
+*	USE TEMP B-TREE FOR ORDER BY	the rows are sorted after they are read
+* Queries that differ only in their string and number literals are counted as one.
+*
+* For a scan, the columns the WHERE clause compares with = or IN come first in the suggested
+* index, then one column compared with <, >, <=, >= or BETWEEN.  Only the real columns of the
+* table are used.  The advice is sorted by the time the query has taken so far.
+*
+* It only gives advice.  It doesn't create the index, because an index makes every insert slower.
+* Check the plan again after creating it.
+*/
+public class IndexAdvisor {
+	public static boolean ENABLED=!"false".equals(System.getProperty("apollo.index.advisor"));
+	public static long SLOW_NANOS=50L*1000*1000;
+	public static int FREQUENT=100;
+	public final static int MAX_QUERIES=1000;
+
+	//a column and the operator after it.  The string literals are taken out first
+	private final static Pattern TERM=Pattern.compile(
+		"([A-Za-z_][A-Za-z0-9_]*)\\s*(<=|>=|==|=|<|>|\\bIN\\b|\\bIS\\s+NULL\\b|\\bBETWEEN\\b)",Pattern.CASE_INSENSITIVE);
+	private final static Pattern LITERAL=Pattern.compile("'(?:[^']|'')*'");
+	private final static Pattern NUMBER=Pattern.compile("(?<![A-Za-z0-9_.])[0-9]+(?:\\.[0-9]+)?(?![A-Za-z0-9_.])");
+	private final static Pattern WHERE=Pattern.compile("\\bWHERE\\b",Pattern.CASE_INSENSITIVE);
+	private final static Pattern FROM=Pattern.compile("\\bFROM\\s+([A-Za-z_][A-Za-z0-9_]*)",Pattern.CASE_INSENSITIVE);
+	private final static Pattern SCAN=Pattern.compile("^SCAN (?:TABLE )?(\\S+)");
+	private final static Pattern ORDER=Pattern.compile("\\bORDER\\s+BY\\b(.*?)(?:\\bLIMIT\\b|$)",Pattern.CASE_INSENSITIVE);
+
+	static class Query {
+		final String sql;
+		final String table;
+		long count;
+		long nanos;
+		String[] plan;
+		//the CREATE INDEX and the plan line that called for it
+		List<String[]> found=new ArrayList<String[]>();
+		long rows;
+
+		Query(String sql,String table) {
+			this.sql=sql;
+			this.table=table;
+		}
+	}
+
+	/**
+	* A suggested index.  sql is the CREATE INDEX statement.
+	*/
+	public static class Advice {
+		public final String sql;
+		public final String query;
+		public final String reason;
+		public final long runs;
+		public final double averageMillis;
+		//about the number of rows in the table
+		public final long rows;
+
+		Advice(String sql,String query,String reason,long runs,double averageMillis,long rows) {
+			this.sql=sql;
+			this.query=query;
+			this.reason=reason;
+			this.runs=runs;
+			this.averageMillis=averageMillis;
+			this.rows=rows;
+		}
+
+		public double getTotalMillis() {
+			return runs*averageMillis;
+		}
+
+		public String toString() {
+			return sql+"  -- "+reason+" in "+query+", "+runs+" runs, "
+				+String.format("%.1f",averageMillis)+" ms each, about "+rows+" rows";
+		}
+	}
+
+	private final static LinkedHashMap<String,Query> queries=new LinkedHashMap<String,Query>(64,0.75f,true) {
+		protected boolean removeEldestEntry(Map.Entry<String,Query> eldest) {
+			return size()>MAX_QUERIES;
+		}
+	};
+
+	/**
+	* Called by CursorObject when it is closed, with the time spent stepping.  The connection is
+	* still open.
+	*/
+	static void record(Connection conn,String sql,Object[] params,long nanos) {
+		if (!ENABLED || sql.contains("sqlite_") || sql.contains("_fts_")) {
+			return;
+		}
+		Matcher f=FROM.matcher(sql);
+		if (!f.find()) {return;}
+		//the same query with other values in it is counted together
+		String shape=shape(sql);
+		Query q;
+		synchronized (queries) {
+			q=queries.get(shape);
+			if (q==null) {
+				q=new Query(shape,f.group(1));
+				queries.put(shape,q);
+			}
+			q.count++;
+			q.nanos+=nanos;
+			if (q.plan!=null || (nanos<SLOW_NANOS && q.count<FREQUENT)) {
+				return;
+			}
+			//so another cursor doesn't explain it at the same time
+			q.plan=new String[0];
+		}
+		try {
+			String[] plan=explain(conn,sql,params);
+			List<String[]> found=advise(conn,q,plan);
+			long rows=found.isEmpty()?0:rows(conn,q.table);
+			synchronized (queries) {
+				q.plan=plan;
+				q.found=found;
+				q.rows=rows;
+			}
+		} catch (DataStoreException x) {
+			System.out.println("warning: can't explain "+sql+": "+x.getMessage());
+		}
+	}
+
+	//the SQL with its string and number literals changed to ?
+	static String shape(String sql) {
+		return NUMBER.matcher(LITERAL.matcher(sql).replaceAll("?")).replaceAll("?");
+	}
+
+	/**
+	* The detail column of EXPLAIN QUERY PLAN.
+	*/
+	static String[] explain(Connection conn,String sql,Object[] params) throws DataStoreException {
+		Statement st=new Statement(conn,"EXPLAIN QUERY PLAN "+sql);
+		try {
+			if (params!=null) {
+				for (int i=0;i<params.length;i++) {
+					st.bind(i+1,params[i]);
+				}
+			}
+			ArrayList<String> lines=new ArrayList<String>();
+			while (st.step()) {
+				lines.add(st.getString(3));
+			}
+			return lines.toArray(new String[lines.size()]);
+		} finally {
+			st.close();
+		}
+	}
+
+	//the indexes for one query
+	private static List<String[]> advise(Connection conn,Query q,String[] plan) throws DataStoreException {
+		ArrayList<String[]> list=new ArrayList<String[]>();
+		HashSet<String> columns=null;
+		for (String detail: plan) {
+			Matcher s=SCAN.matcher(detail.trim());
+			boolean scan=s.find() && s.group(1).equalsIgnoreCase(q.table);
+			boolean sort=detail.trim().startsWith("USE TEMP B-TREE FOR ORDER BY");
+			if (!scan && !sort) {continue;}
+			if (columns==null) {
+				columns=columns(conn,q.table);
+			}
+			List<String> cols=scan?whereColumns(q.sql,columns):orderColumns(q.sql,columns);
+			if (cols.isEmpty()) {continue;}
+			StringBuilder name=new StringBuilder("auto_").append(q.table);
+			for (String c: cols) {
+				name.append('_').append(c.split(" ")[0]);
+			}
+			String create="CREATE INDEX IF NOT EXISTS "+name+" ON "+q.table+"("+String.join(",",cols)+")";
+			list.add(new String[] {create,detail.trim()});
+		}
+		return list;
+	}
+
+	//the = and IN columns, then one range column
+	static List<String> whereColumns(String sql,HashSet<String> columns) {
+		ArrayList<String> eq=new ArrayList<String>();
+		String range=null;
+		String s=LITERAL.matcher(sql).replaceAll("?");
+		Matcher w=WHERE.matcher(s);
+		if (!w.find()) {return eq;}
+		s=s.substring(w.start());
+		Matcher o=ORDER.matcher(s);
+		if (o.find()) {
+			s=s.substring(0,o.start());
+		}
+		Matcher m=TERM.matcher(s);
+		while (m.find()) {
+			String col=m.group(1);
+			if (!columns.contains(col.toLowerCase())) {continue;}
+			String op=m.group(2).toUpperCase();
+			if (op.equals("=") || op.equals("==") || op.equals("IN") || op.startsWith("IS")) {
+				if (!eq.contains(col)) {eq.add(col);}
+			} else if (range==null) {
+				range=col;
+			}
+		}
+		if (range!=null && !eq.contains(range)) {
+			eq.add(range);
+		}
+		return eq;
+	}
+
+	//the ORDER BY columns, with DESC if they have it
+	static List<String> orderColumns(String sql,HashSet<String> columns) {
+		ArrayList<String> cols=new ArrayList<String>();
+		Matcher o=ORDER.matcher(LITERAL.matcher(sql).replaceAll("?"));
+		if (!o.find()) {return cols;}
+		for (String term: o.group(1).split(",")) {
+			String[] words=term.trim().split("\\s+");
+			if (!columns.contains(words[0].toLowerCase())) {
+				//an expression can't be indexed this simply
+				return new ArrayList<String>();
+			}
+			boolean desc=words.length>1 && words[1].equalsIgnoreCase("DESC");
+			cols.add(desc?words[0]+" DESC":words[0]);
+		}
+		return cols;
+	}
+
+	private static HashSet<String> columns(Connection conn,String table) throws DataStoreException {
+		HashSet<String> set=new HashSet<String>();
+		Statement st=new Statement(conn,"PRAGMA table_info("+table+")");
+		try {
+			while (st.step()) {
+				set.add(st.getString(1).toLowerCase());
+			}
+		} finally {
+			st.close();
+		}
+		return set;
+	}
+
+	//max(rowid) is found from the end of the table, so it is quick
+	private static long rows(Connection conn,String table) throws DataStoreException {
+		Statement st=new Statement(conn,"SELECT max(rowid) FROM "+table);
+		try {
+			return st.step()?st.getLong(0):0;
+		} finally {
+			st.close();
+		}
+	}
+
+	/**
+	* The advice so far, the most time spent first.  The same index suggested for more than one
+	* query is listed once.
+	*/
+	public static Advice[] advise() {
+		LinkedHashMap<String,Advice> merged=new LinkedHashMap<String,Advice>();
+		synchronized (queries) {
+			for (Query q: queries.values()) {
+				for (String[] f: q.found) {
+					Advice a=new Advice(f[0],q.sql,f[1],q.count,q.nanos/1e6/q.count,q.rows);
+					Advice b=merged.get(a.sql);
+					if (b==null || b.getTotalMillis()<a.getTotalMillis()) {
+						merged.put(a.sql,a);
+					}
+				}
+			}
+		}
+		ArrayList<Advice> list=new ArrayList<Advice>(merged.values());
+		Collections.sort(list,new Comparator<Advice>() {
+			public int compare(Advice a,Advice b) {
+				return Double.compare(b.getTotalMillis(),a.getTotalMillis());
+			}
+		});
+		return list.toArray(new Advice[list.size()]);
+	}
+
+	/**
+	* Forget the plans and advice for the table, so its queries are explained again.  Called by
+	* TransactionObject when a table or its index is created or dropped.
+	*/
+	static void forget(String table) {
+		synchronized (queries) {
+			Iterator<Query> it=queries.values().iterator();
+			while (it.hasNext()) {
+				Query q=it.next();
+				if (q.table.equalsIgnoreCase(table)) {
+					q.plan=null;
+					q.found=new ArrayList<String[]>();
+				}
+			}
+		}
+	}
+
+	public static void clear() {
+		synchronized (queries) {
+			queries.clear();
+		}
+	}
+}
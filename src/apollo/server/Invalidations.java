@@ -0,0 +1,73 @@
+package apollo.server;
+import apollo.iface.InvalidationListener;
+import apollo.iface.Key;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+* This sends the keys of changed rows to everyone who has subscribed.  TransactionObject
+* collects the keys with the update hook and publishes them when it commits.  Rolled back
+* changes are never published.
+*
+* The keys are sent from one background thread, so a commit doesn't wait on the clients.
+* A listener that throws RemoteException is assumed to be gone and is dropped.
+*/
+public class Invalidations implements Runnable {
+	private static Invalidations instance;
+
+	private CopyOnWriteArrayList<InvalidationListener> listeners=new CopyOnWriteArrayList<InvalidationListener>();
+	private LinkedBlockingQueue<Key[]> queue=new LinkedBlockingQueue<Key[]>();
+
+	public synchronized static Invalidations instance() {
+		if (instance==null) {
+			instance=new Invalidations();
+			Thread t=new Thread(instance,"invalidations");
+			t.setDaemon(true);
+			t.start();
+		}
+		return instance;
+	}
+
+	public void subscribe(InvalidationListener l) {
+		listeners.addIfAbsent(l);
+	}
+
+	public void unsubscribe(InvalidationListener l) {
+		listeners.remove(l);
+	}
+
+	public int getListenerCount() {
+		return listeners.size();
+	}
+
+	public void publish(Key[] keys) {
+		if (keys.length>0) {
+			queue.add(keys);
+		}
+	}
+
+	public void run() {
+		while (true) {
+			Key[] keys;
+			try {
+				keys=queue.take();
+			} catch (InterruptedException x) {
+				return;
+			}
+			Iterator<InvalidationListener> it=listeners.iterator();
+			while (it.hasNext()) {
+				InvalidationListener l=it.next();
+				try {
+					l.invalidated(keys);
+				} catch (RemoteException x) {
+					System.out.println("dropping invalidation listener: "+x.getMessage());
+					listeners.remove(l);
+				} catch (RuntimeException x) {
+					System.out.println("warning: invalidation listener threw "+x);
+				}
+			}
+		}
+	}
+}
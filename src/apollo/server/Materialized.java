@@ -0,0 +1,674 @@
+package apollo.server;
+import apollo.iface.DataStoreException;
+import apollo.iface.MaterializedView;
+import apollo.iface.ViewObject;
+import apollo.util.Credentials;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+* Materialized keeps the tables behind MaterializedViews up to date.
+*
+* A view named V is stored in the table _mv_V, and V itself becomes a plain view over that table,
+* so DataStore.view() reads it the same way as before.  The views are listed in _materialized,
+* so they are still maintained after a restart.
+*
+* The SQL of the view decides how it is maintained:
+*	FILTER		SELECT list FROM table [WHERE ...]
+*				_mv_V has the source rowid in _src.  The changed rows are deleted and selected again.
+*	AGGREGATE	SELECT list FROM table [WHERE ...] GROUP BY g1,g2
+*				_mv_V has the group values in _g0, _g1.  Each source row's group is kept in _mv_V_rows,
+*				so the groups a change left and joined are both known, and only they are recomputed.
+*				Without GROUP BY, the one row is recomputed.
+*	FULL		anything else, including ORDER BY, LIMIT, DISTINCT, HAVING and joins.  The view is
+*				marked dirty when a table it reads changes, and rebuilt by a background thread
+*				every REFRESH_INTERVAL, with the credentials of the last transaction that changed it.
+*
+* TransactionObject collects the rowids changed in the source tables with the update hook, and
+* calls maintain() just before it commits, so the view changes in the same transaction as the
+* rows.  If a view can't be updated, commit() rolls back and throws.  Only changes made through this
+* server are seen.
+*/
+public class Materialized implements Runnable {
+	public static long REFRESH_INTERVAL=5*1000;
+	//if more rows than this change in a table in one transaction, the view is rebuilt instead
+	public static int MAX_ROWS=10000;
+	//the most rowids in one IN list
+	final static int CHUNK=500;
+
+	final static int FILTER=1;
+	final static int AGGREGATE=2;
+	final static int FULL=3;
+
+	private final static String[] AGGREGATES={"count","sum","min","max","avg","total","group_concat"};
+
+	static class View {
+		String name;
+		String sql;
+		String backing;
+		String rows;
+		int shape=FULL;
+		//for FILTER and AGGREGATE
+		String table;
+		String from;
+		String qualifier;
+		String list;
+		String where;
+		String[] groupBy=new String[0];
+		//the columns of the view, and the tables it reads, lower case
+		String[] columns;
+		Set<String> depends;
+
+		//for FULL
+		volatile boolean dirty;
+		volatile Credentials user;
+
+		//the where clause with more conditions added
+		String where(String extra) {
+			if (where==null) {return " WHERE "+extra;}
+			return " WHERE ("+where+") AND "+extra;
+		}
+
+		String groups() {
+			StringBuilder sb=new StringBuilder();
+			for (int i=0;i<groupBy.length;i++) {
+				sb.append(groupBy[i]).append(",");
+			}
+			return sb.toString();
+		}
+
+		String groupColumns() {
+			StringBuilder sb=new StringBuilder();
+			for (int i=0;i<groupBy.length;i++) {
+				sb.append("_g"+i).append(",");
+			}
+			return sb.toString();
+		}
+
+		String quotedColumns() {
+			StringBuilder sb=new StringBuilder();
+			for (int i=0;i<columns.length;i++) {
+				if (i>0) {sb.append(",");}
+				sb.append(quote(columns[i]));
+			}
+			return sb.toString();
+		}
+	}
+
+	private static Materialized instance;
+
+	private HashMap<String,View> views=new HashMap<String,View>();
+	//the source tables of the FILTER and AGGREGATE views, lower case.  Replaced, never changed
+	private volatile Set<String> watched=new HashSet<String>();
+	private boolean loaded=false;
+	private Thread refresher;
+
+	public synchronized static Materialized instance() {
+		if (instance==null) {
+			instance=new Materialized();
+		}
+		return instance;
+	}
+
+	/**
+	* Read the list of views the first time.  This is called by TransactionObject.begin().
+	*/
+	synchronized void load(Connection conn) throws DataStoreException {
+		if (loaded) {return;}
+		Statement st=new Statement(conn,"SELECT name FROM sqlite_master WHERE type='table' AND name='_materialized'");
+		boolean exists=st.step();
+		st.close();
+		ArrayList<String[]> list=new ArrayList<String[]>();
+		if (exists) {
+			st=new Statement(conn,"SELECT name,sql FROM _materialized");
+			while (st.step()) {
+				list.add(new String[]{text(st,0),text(st,1)});
+			}
+			st.close();
+		}
+		for (String[] v: list) {
+			View view=analyze(conn,v[0],v[1]);
+			views.put(v[0].toLowerCase(),view);
+		}
+		loaded=true;
+		rewatch();
+		if (views.size()>0) {
+			System.out.println("loaded "+views.size()+" materialized views");
+		}
+	}
+
+	/**
+	* Forget what was loaded, so it is read again.  Used when a transaction that created or
+	* dropped a view is rolled back.
+	*/
+	synchronized void forget() {
+		views.clear();
+		loaded=false;
+		rewatch();
+	}
+
+	//true if changes to the table need to be collected
+	boolean watches(String table) {
+		Set<String> w=watched;
+		return !w.isEmpty() && w.contains(table.toLowerCase());
+	}
+
+	boolean isMaterialized(String name) {
+		synchronized (this) {
+			return views.containsKey(name.toLowerCase());
+		}
+	}
+
+	private void rewatch() {
+		HashSet<String> w=new HashSet<String>();
+		for (View v: views.values()) {
+			if (v.shape!=FULL) {
+				w.add(v.table.toLowerCase());
+			}
+		}
+		watched=w;
+	}
+
+	//-----------------------------------------------
+	/**
+	* Create the table, fill it, and replace the view with one that reads the table.
+	*/
+	synchronized void create(Connection conn,ViewObject mv) throws DataStoreException {
+		String name=mv.getViewName();
+		Aggregation.check(name);
+		if (views.containsKey(name.toLowerCase())) {
+			//like CREATE VIEW IF NOT EXISTS
+			return;
+		}
+		View v=analyze(conn,name,mv.getSQL());
+		conn.exec("CREATE TABLE IF NOT EXISTS _materialized (name TEXT PRIMARY KEY,sql TEXT)");
+		StringBuilder cols=new StringBuilder("_seq INTEGER PRIMARY KEY");
+		if (v.shape==FILTER) {
+			cols.append(",_src INTEGER");
+		}
+		for (int i=0;i<v.groupBy.length;i++) {
+			cols.append(",_g"+i);
+		}
+		cols.append(",").append(v.quotedColumns());
+		conn.exec("CREATE TABLE "+v.backing+" ("+cols+")");
+		if (v.shape==FILTER) {
+			conn.exec("CREATE INDEX "+v.backing+"_src ON "+v.backing+"(_src)");
+		} else if (v.shape==AGGREGATE && v.groupBy.length>0) {
+			String g=v.groupColumns();
+			g=g.substring(0,g.length()-1);
+			conn.exec("CREATE INDEX "+v.backing+"_g ON "+v.backing+"("+g+")");
+			conn.exec("CREATE TABLE "+v.rows+" (_src INTEGER PRIMARY KEY,"+g+")");
+		}
+		rebuild(conn,v);
+		String order=(v.shape==FILTER)?"_src":"_seq";
+		conn.exec("CREATE VIEW "+name+" AS SELECT "+v.quotedColumns()+" FROM "+v.backing+" ORDER BY "+order);
+		run(conn,"INSERT INTO _materialized (name,sql) VALUES (?,?)",new Object[]{name,v.sql});
+		views.put(name.toLowerCase(),v);
+		rewatch();
+	}
+
+	/**
+	* Drop the view and its tables.  False if it isn't materialized.
+	*/
+	synchronized boolean drop(Connection conn,String name) throws DataStoreException {
+		View v=views.remove(name.toLowerCase());
+		if (v==null) {return false;}
+		conn.exec("DROP VIEW IF EXISTS "+v.name);
+		conn.exec("DROP TABLE IF EXISTS "+v.backing);
+		conn.exec("DROP TABLE IF EXISTS "+v.rows);
+		run(conn,"DELETE FROM _materialized WHERE name=?",new Object[]{v.name});
+		rewatch();
+		return true;
+	}
+
+	/**
+	* Called before the transaction commits.  rows has the changed rowids of the watched tables,
+	* or null for a table with more than MAX_ROWS changes.  tables has every table that changed.
+	*
+	* If a view can't be updated, this throws and the transaction must not commit, because the rows
+	* and the views change together.  Connection.exec() closes the connection when it fails, which
+	* has already rolled it back.
+	*/
+	synchronized void maintain(Credentials user,Connection conn,Map<String,HashSet<Long>> rows,Collection<String> tables) throws DataStoreException {
+		HashSet<String> changed=new HashSet<String>();
+		for (String t: tables) {
+			changed.add(t.toLowerCase());
+		}
+		for (View v: views.values()) {
+			if (v.shape==FULL) {
+				for (String t: v.depends) {
+					if (changed.contains(t)) {
+						v.user=user;
+						v.dirty=true;
+						startRefresher();
+						break;
+					}
+				}
+				continue;
+			}
+			String t=v.table.toLowerCase();
+			if (!rows.containsKey(t)) {
+				continue;
+			}
+			try {
+				HashSet<Long> ids=rows.get(t);
+				if (ids==null || (v.shape==AGGREGATE && v.groupBy.length==0)) {
+					rebuild(conn,v);
+				} else if (v.shape==FILTER) {
+					applyFilter(conn,v,ids);
+				} else {
+					applyAggregate(conn,v,ids);
+				}
+			} catch (DataStoreException dx) {
+				throw new DataStoreException("can't update materialized view "+v.name+": "+dx.getMessage(),dx.getErrCode());
+			}
+		}
+	}
+
+	private void applyFilter(Connection conn,View v,HashSet<Long> ids) throws DataStoreException {
+		for (String in: inLists(ids)) {
+			conn.exec("DELETE FROM "+v.backing+" WHERE _src IN "+in);
+			conn.exec("INSERT INTO "+v.backing+" (_src,"+v.quotedColumns()+") SELECT "+v.qualifier+".rowid,"+v.list
+				+" FROM "+v.from+v.where(v.qualifier+".rowid IN "+in));
+		}
+	}
+
+	private void applyAggregate(Connection conn,View v,HashSet<Long> ids) throws DataStoreException {
+		int k=v.groupBy.length;
+		String g=v.groupColumns();
+		g=g.substring(0,g.length()-1);
+		String gx=v.groups();
+		gx=gx.substring(0,gx.length()-1);
+		//the groups the rows were in, and are in now
+		LinkedHashSet<List<Object>> groups=new LinkedHashSet<List<Object>>();
+		for (String in: inLists(ids)) {
+			select(conn,"SELECT "+g+" FROM "+v.rows+" WHERE _src IN "+in,k,groups);
+			select(conn,"SELECT "+gx+" FROM "+v.from+v.where(v.qualifier+".rowid IN "+in),k,groups);
+			conn.exec("DELETE FROM "+v.rows+" WHERE _src IN "+in);
+			conn.exec("INSERT INTO "+v.rows+" (_src,"+g+") SELECT "+v.qualifier+".rowid,"+gx
+				+" FROM "+v.from+v.where(v.qualifier+".rowid IN "+in));
+		}
+		StringBuilder match=new StringBuilder();
+		StringBuilder matchSource=new StringBuilder();
+		for (int i=0;i<k;i++) {
+			if (i>0) {
+				match.append(" AND ");
+				matchSource.append(" AND ");
+			}
+			match.append("_g"+i+" IS ?");
+			matchSource.append("("+v.groupBy[i]+") IS ?");
+		}
+		String delete="DELETE FROM "+v.backing+" WHERE "+match;
+		String insert="INSERT INTO "+v.backing+" ("+g+","+v.quotedColumns()+") SELECT "+gx+","+v.list
+			+" FROM "+v.from+v.where(matchSource.toString())+" GROUP BY "+gx;
+		for (List<Object> group: groups) {
+			Object[] values=group.toArray();
+			run(conn,delete,values);
+			run(conn,insert,values);
+		}
+	}
+
+	/**
+	* Empty the table and fill it from the view's SQL.
+	*/
+	void rebuild(Connection conn,View v) throws DataStoreException {
+		//WHERE 1 turns off the truncate optimization, which doesn't call the update hook, so the
+		//transaction wouldn't know the view changed and the ResultCache would keep the old rows
+		conn.exec("DELETE FROM "+v.backing+" WHERE 1");
+		String cols=v.quotedColumns();
+		if (v.shape==FILTER) {
+			conn.exec("INSERT INTO "+v.backing+" (_src,"+cols+") SELECT "+v.qualifier+".rowid,"+v.list
+				+" FROM "+v.from+(v.where==null?"":" WHERE "+v.where));
+		} else if (v.shape==AGGREGATE) {
+			String g=v.groupColumns();
+			String gx=v.groups();
+			String groupBy="";
+			if (v.groupBy.length>0) {
+				groupBy=" GROUP BY "+gx.substring(0,gx.length()-1);
+				conn.exec("DELETE FROM "+v.rows);
+				conn.exec("INSERT INTO "+v.rows+" (_src,"+g.substring(0,g.length()-1)+") SELECT "+v.qualifier+".rowid,"
+					+gx.substring(0,gx.length()-1)+" FROM "+v.from+(v.where==null?"":" WHERE "+v.where));
+			}
+			conn.exec("INSERT INTO "+v.backing+" ("+g+cols+") SELECT "+gx+v.list
+				+" FROM "+v.from+(v.where==null?"":" WHERE "+v.where)+groupBy);
+		} else {
+			conn.exec("INSERT INTO "+v.backing+" ("+cols+") "+v.sql);
+		}
+	}
+
+	/**
+	* Rebuild the dirty views with these names.  Called by TransactionObject.refreshViews().
+	*/
+	synchronized void refresh(Connection conn,String[] names) throws DataStoreException {
+		for (String name: names) {
+			View v=views.get(name.toLowerCase());
+			if (v!=null && v.dirty) {
+				//a change from now on marks it dirty again
+				v.dirty=false;
+				rebuild(conn,v);
+			}
+		}
+	}
+
+	//-----------------------------------------------
+	/**
+	* Work out how the view can be maintained.  The SQL is prepared to get its columns and the
+	* tables it reads.
+	*/
+	View analyze(Connection conn,String name,String sql) throws DataStoreException {
+		View v=new View();
+		v.name=name;
+		v.sql=sql.trim();
+		v.backing="_mv_"+name;
+		v.rows="_mv_"+name+"_rows";
+		Authorizer.Reads reads=new Authorizer.Reads();
+		Authorizer.set(conn.getHandle(),reads);
+		Statement st;
+		try {
+			st=new Statement(conn,v.sql);
+		} finally {
+			Authorizer.set(conn.getHandle(),null);
+		}
+		v.columns=new String[st.getColumnCount()];
+		for (int j=0;j<v.columns.length;j++) {
+			v.columns[j]=st.getColumnName(j);
+		}
+		st.close();
+		v.depends=reads.tables;
+		parse(v);
+		if (v.shape!=FULL) {
+			//it must read just the one table, and the rewritten SQL must prepare
+			TreeSet<String> only=new TreeSet<String>();
+			only.add(v.table.toLowerCase());
+			try {
+				if (!only.equals(v.depends)) {
+					throw new DataStoreException("reads more than "+v.table,0);
+				}
+				String gx=v.groups();
+				String check="SELECT "+v.qualifier+".rowid,"+gx+v.list+" FROM "+v.from+v.where("1");
+				if (v.groupBy.length>0) {
+					check+=" GROUP BY "+gx.substring(0,gx.length()-1);
+				}
+				new Statement(conn,check).close();
+			} catch (DataStoreException dx) {
+				v.shape=FULL;
+				v.groupBy=new String[0];
+			}
+		}
+		return v;
+	}
+
+	/**
+	* Split the SQL at its top level keywords to find the shape.  Anything that isn't clearly
+	* FILTER or AGGREGATE is FULL.
+	*/
+	static void parse(View v) {
+		String sql=v.sql;
+		ArrayList<String> words=new ArrayList<String>();
+		ArrayList<Integer> starts=new ArrayList<Integer>();
+		ArrayList<Integer> ends=new ArrayList<Integer>();
+		int depth=0;
+		char quote=0;
+		int i=0;
+		while (i<sql.length()) {
+			char c=sql.charAt(i);
+			if (quote!=0) {
+				if (c==quote) {quote=0;}
+				i++;
+			} else if (c=='\'' || c=='"' || c=='`') {
+				quote=c;
+				i++;
+			} else if (c=='[') {
+				quote=']';
+				i++;
+			} else if (c=='(') {
+				depth++;
+				i++;
+			} else if (c==')') {
+				depth--;
+				i++;
+			} else if (Character.isLetter(c) || c=='_') {
+				int j=i;
+				while (j<sql.length() && (Character.isLetterOrDigit(sql.charAt(j)) || sql.charAt(j)=='_')) {j++;}
+				if (depth==0) {
+					words.add(sql.substring(i,j).toUpperCase());
+					starts.add(i);
+					ends.add(j);
+				}
+				i=j;
+			} else if (c==';') {
+				return;
+			} else {
+				i++;
+			}
+		}
+		if (words.size()<2 || !words.get(0).equals("SELECT") || words.get(1).equals("DISTINCT") || words.get(1).equals("ALL")) {
+			return;
+		}
+		int from=-1, where=-1, group=-1;
+		for (int w=1;w<words.size();w++) {
+			String word=words.get(w);
+			if (word.equals("FROM") && from<0) {
+				from=w;
+			} else if (word.equals("WHERE") && from>=0 && where<0) {
+				where=w;
+			} else if (word.equals("GROUP") && from>=0 && group<0 && w+1<words.size() && words.get(w+1).equals("BY")) {
+				group=w;
+			} else if (word.equals("HAVING") || word.equals("ORDER") || word.equals("LIMIT") || word.equals("JOIN")
+				|| word.equals("UNION") || word.equals("INTERSECT") || word.equals("EXCEPT")
+				|| word.equals("WINDOW") || word.equals("OVER") || word.equals("VALUES")) {
+				return;
+			}
+		}
+		if (from<0 || (where>=0 && group>=0 && group<where)) {
+			return;
+		}
+		String list=sql.substring(ends.get(0),starts.get(from)).trim();
+		int fromEnd=(where>=0)?starts.get(where):(group>=0?starts.get(group):sql.length());
+		String fromClause=sql.substring(ends.get(from),fromEnd).trim();
+		String whereClause=null;
+		if (where>=0) {
+			whereClause=sql.substring(ends.get(where),group>=0?starts.get(group):sql.length()).trim();
+		}
+		//one table, with an optional alias
+		String[] parts=fromClause.split("\\s+");
+		String table=parts[0];
+		String qualifier=table;
+		if (parts.length==2) {
+			qualifier=parts[1];
+		} else if (parts.length==3 && parts[1].equalsIgnoreCase("AS")) {
+			qualifier=parts[2];
+		} else if (parts.length!=1) {
+			return;
+		}
+		try {
+			Aggregation.check(table);
+			Aggregation.check(qualifier);
+		} catch (DataStoreException dx) {
+			return;
+		}
+		v.table=table;
+		v.from=fromClause;
+		v.qualifier=qualifier;
+		v.list=list;
+		v.where=whereClause;
+		if (group>=0) {
+			String g=sql.substring(ends.get(group+1)).trim();
+			v.groupBy=split(g);
+			v.shape=AGGREGATE;
+		} else if (hasAggregate(list)) {
+			v.shape=AGGREGATE;
+		} else {
+			v.shape=FILTER;
+		}
+	}
+
+	//split at the commas that aren't in parentheses or quotes
+	static String[] split(String s) {
+		ArrayList<String> parts=new ArrayList<String>();
+		int depth=0;
+		char quote=0;
+		int start=0;
+		for (int i=0;i<s.length();i++) {
+			char c=s.charAt(i);
+			if (quote!=0) {
+				if (c==quote) {quote=0;}
+			} else if (c=='\'' || c=='"') {
+				quote=c;
+			} else if (c=='(') {
+				depth++;
+			} else if (c==')') {
+				depth--;
+			} else if (c==',' && depth==0) {
+				parts.add(s.substring(start,i).trim());
+				start=i+1;
+			}
+		}
+		parts.add(s.substring(start).trim());
+		return parts.toArray(new String[parts.size()]);
+	}
+
+	static boolean hasAggregate(String list) {
+		String s=list.toLowerCase();
+		for (String f: AGGREGATES) {
+			int i=s.indexOf(f);
+			while (i>=0) {
+				boolean start=(i==0) || !Character.isLetterOrDigit(s.charAt(i-1)) && s.charAt(i-1)!='_';
+				int j=i+f.length();
+				while (j<s.length() && s.charAt(j)==' ') {j++;}
+				if (start && j<s.length() && s.charAt(j)=='(') {
+					return true;
+				}
+				i=s.indexOf(f,i+1);
+			}
+		}
+		return false;
+	}
+
+	//-----------------------------------------------
+	//the background rebuild of dirty FULL views
+	private synchronized void startRefresher() {
+		if (refresher==null) {
+			refresher=new Thread(this,"materialized-refresh");
+			refresher.setDaemon(true);
+			refresher.start();
+		}
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(REFRESH_INTERVAL);
+			} catch (InterruptedException x) {
+				return;
+			}
+			//group the dirty views by the credentials to use
+			HashMap<Credentials,ArrayList<String>> dirty=new HashMap<Credentials,ArrayList<String>>();
+			synchronized (this) {
+				for (View v: views.values()) {
+					if (v.dirty && v.user!=null) {
+						ArrayList<String> names=dirty.get(v.user);
+						if (names==null) {
+							names=new ArrayList<String>();
+							dirty.put(v.user,names);
+						}
+						names.add(v.name);
+					}
+				}
+			}
+			for (Map.Entry<Credentials,ArrayList<String>> e: dirty.entrySet()) {
+				try {
+					TransactionObject tx=new TransactionObject(e.getKey());
+					tx.begin();
+					tx.refreshViews(e.getValue().toArray(new String[e.getValue().size()]));
+				} catch (Exception x) {
+					//the password may have changed or the session ended.  The next change will try again
+					System.out.println("warning: could not refresh "+e.getValue()+": "+x);
+				}
+			}
+		}
+	}
+
+	//-----------------------------------------------
+	//helpers
+	static String quote(String name) {
+		return "\""+name.replace("\"","\"\"")+"\"";
+	}
+
+	//the rowids as lists like (1,2,3), up to CHUNK in each
+	static ArrayList<String> inLists(Collection<Long> ids) {
+		ArrayList<String> lists=new ArrayList<String>();
+		StringBuilder sb=null;
+		int n=0;
+		for (Long id: ids) {
+			if (sb==null) {
+				sb=new StringBuilder("(");
+			} else {
+				sb.append(",");
+			}
+			sb.append(id);
+			if (++n==CHUNK) {
+				lists.add(sb.append(")").toString());
+				sb=null;
+				n=0;
+			}
+		}
+		if (sb!=null) {
+			lists.add(sb.append(")").toString());
+		}
+		return lists;
+	}
+
+	static void run(Connection conn,String sql,Object[] params) throws DataStoreException {
+		Statement st=new Statement(conn,sql);
+		try {
+			for (int i=0;i<params.length;i++) {
+				st.bind(i+1,params[i]);
+			}
+			st.step();
+		} finally {
+			st.close();
+		}
+	}
+
+	//add each row of k values to the set
+	private static void select(Connection conn,String sql,int k,Set<List<Object>> into) throws DataStoreException {
+		Statement st=new Statement(conn,sql);
+		try {
+			while (st.step()) {
+				Object[] row=new Object[k];
+				for (int j=0;j<k;j++) {
+					row[j]=value(st,j);
+				}
+				into.add(Arrays.asList(row));
+			}
+		} finally {
+			st.close();
+		}
+	}
+
+	//the value as it was stored, so binding it again matches exactly
+	static Object value(Statement st,int j) {
+		switch (st.getColumnType(j)) {
+			case 1: return st.getLong(j);
+			case 2: return st.getDouble(j);
+			case 5: return null;
+			default: return text(st,j);
+		}
+	}
+
+	//text isn't trimmed, and is decoded the way Connection.getByteArray() encodes it
+	static String text(Statement st,int j) {
+		byte[] b=st.getTextBytes(j);
+		return (b==null)?null:new String(b,StandardCharsets.ISO_8859_1);
+	}
+}
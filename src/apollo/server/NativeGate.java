@@ -0,0 +1,73 @@
+package apollo.server;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* NativeGate limits how many requests can be inside SQLite at once.  This matters when requests
+* run on virtual threads.  A native call through JNA pins the virtual thread to its carrier thread
+* until it returns, and a big query or commit can take a long time.  (There is no busy handler, so
+* a locked database returns SQLITE_BUSY right away instead of waiting.)  If every carrier is
+* pinned, no other virtual thread can run, not even to read a socket.  With the gate, at most
+* getPermits() carriers are pinned, and the rest stay free.
+*
+* It also keeps the numbers: how long requests were inside the gate and how long they waited to
+* get in.  The time inside is the whole request, including the java work around the native calls,
+* so it is the most the carriers could have been pinned, not the time they were.
+*/
+public class NativeGate {
+	private final Semaphore permits;
+	private final int size;
+
+	private final AtomicLong calls=new AtomicLong();
+	private final AtomicLong insideNanos=new AtomicLong();
+	private final AtomicLong maxInsideNanos=new AtomicLong();
+	private final AtomicLong waitNanos=new AtomicLong();
+
+	public NativeGate(int permits) {
+		size=permits;
+		this.permits=new Semaphore(permits,true);
+	}
+
+	/**
+	* Wait for a permit.  Returns the time it was granted, to be passed to exit().
+	*/
+	public long enter() throws InterruptedException {
+		long start=System.nanoTime();
+		permits.acquire();
+		long now=System.nanoTime();
+		waitNanos.addAndGet(now-start);
+		return now;
+	}
+
+	public void exit(long entered) {
+		long t=System.nanoTime()-entered;
+		permits.release();
+		calls.incrementAndGet();
+		insideNanos.addAndGet(t);
+		long max=maxInsideNanos.get();
+		while (t>max && !maxInsideNanos.compareAndSet(max,t)) {
+			max=maxInsideNanos.get();
+		}
+	}
+
+	public int getPermits() {return size;}
+
+	public int getActive() {return size-permits.availablePermits();}
+
+	public int getWaiting() {return permits.getQueueLength();}
+
+	public long getCalls() {return calls.get();}
+
+	public long getInsideMillis() {return insideNanos.get()/1000000;}
+
+	public long getMaxInsideMillis() {return maxInsideNanos.get()/1000000;}
+
+	public long getWaitMillis() {return waitNanos.get()/1000000;}
+
+	public String stats() {
+		long n=calls.get();
+		return "native gate: permits="+size+", active="+getActive()+", waiting="+getWaiting()+", calls="+n
+			+", inside="+getInsideMillis()+"ms (avg "+(n==0?0:insideNanos.get()/n/1000)+"us, max "+getMaxInsideMillis()+"ms)"
+			+", waited="+getWaitMillis()+"ms";
+	}
+}
@@ -0,0 +1,189 @@
+package apollo.server;
+import apollo.iface.DataObject;
+import apollo.iface.DataStoreException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* ReadAhead steps a CursorObject's Statement in a background thread, so the rows are already
+* mapped by the time the client asks for them.  Without this, the disk reads and the mapping
+* happen while the client is waiting on the RMI call.
+*
+* The buffer is bounded three ways:
+*	- by the number of rows passed to the constructor
+*	- by CURSOR_BYTES for this cursor
+*	- by GLOBAL_BYTES for all cursors in the server
+* When any of these is full, the worker waits until the client drains some rows.
+*
+* Once this is started, only the worker thread touches the Statement.  The sizes are the rough
+* row sizes from CursorObject.readRow(), not real memory use, but they are close enough.
+*/
+public class ReadAhead implements Runnable {
+	public static long CURSOR_BYTES=4*1024*1024;
+	public static long GLOBAL_BYTES=64*1024*1024;
+	private static AtomicLong globalBytes=new AtomicLong();
+
+	private CursorObject cursor;
+	private int maxRows;
+	private ArrayDeque<DataObject> rows=new ArrayDeque<DataObject>();
+	private ArrayDeque<Integer> sizes=new ArrayDeque<Integer>();
+	private long bytes=0;
+	private boolean done=false;
+	//true only if the statement ran to the end, so the rows are all there
+	private boolean complete=false;
+	private boolean closed=false;
+	private DataStoreException error;
+	private Thread worker;
+
+	public ReadAhead(CursorObject c,int maxRows) {
+		cursor=c;
+		this.maxRows=maxRows;
+	}
+
+	//total bytes buffered by all cursors
+	public static long getGlobalBytes() {
+		return globalBytes.get();
+	}
+
+	public void start() {
+		worker=new Thread(this,"readahead-"+cursor.conn.getId());
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	public void run() {
+		try {
+			while (true) {
+				synchronized (this) {
+					while (!closed && isFull()) {
+						//the global limit can be freed by another cursor, so don't wait forever
+						wait(50);
+					}
+					if (closed) {return;}
+				}
+				//step outside the lock so the client can drain rows while we read
+				if (!cursor.stmt.step()) {
+					synchronized (this) {
+						complete=true;
+					}
+					break;
+				}
+				DataObject o=cursor.readRow();
+				int size=cursor.rowBytes;
+				synchronized (this) {
+					if (closed) {return;}
+					rows.add(o);
+					sizes.add(size);
+					bytes+=size;
+					globalBytes.addAndGet(size);
+					notifyAll();
+				}
+			}
+		} catch (DataStoreException dx) {
+			synchronized (this) {
+				error=dx;
+			}
+		} catch (InterruptedException ix) {
+			//close() interrupted us
+		} finally {
+			synchronized (this) {
+				done=true;
+				notifyAll();
+			}
+		}
+	}
+
+	private boolean isFull() {
+		if (rows.size()>=maxRows) {return true;}
+		//always allow at least one row, or a huge row would block forever
+		if (rows.size()>0 && bytes>=CURSOR_BYTES) {return true;}
+		if (rows.size()>0 && globalBytes.get()>=GLOBAL_BYTES) {return true;}
+		return false;
+	}
+
+	//wait until there is a row or the worker is done.  Returns false if there are no more rows
+	public synchronized boolean hasNext() throws DataStoreException {
+		while (rows.isEmpty() && !done) {
+			try {
+				wait();
+			} catch (InterruptedException ix) {
+				throw new DataStoreException("interrupted while waiting for rows",0);
+			}
+		}
+		if (rows.isEmpty() && error!=null) {
+			throw error;
+		}
+		if (rows.isEmpty() && !complete) {
+			//stopped without an error, which only happens when it is closed
+			throw new DataStoreException("read ahead stopped before the end of the rows",0);
+		}
+		return !rows.isEmpty();
+	}
+
+	public synchronized DataObject next() throws DataStoreException {
+		if (!hasNext()) {return null;}
+		return remove();
+	}
+
+	/**
+	* Return the rows that are ready, up to max.  This waits for the first row but not the
+	* rest, so the client gets whatever the worker has done so far.
+	*/
+	public synchronized ArrayList<DataObject> drain(int max,long maxBytes) throws DataStoreException {
+		ArrayList<DataObject> list=new ArrayList<DataObject>();
+		long b=0;
+		while (list.size()<max && b<maxBytes && !rows.isEmpty()) {
+			b+=sizes.peek();
+			list.add(remove());
+		}
+		if (list.isEmpty() && hasNext()) {
+			list.add(remove());
+		}
+		return list;
+	}
+
+	//true if the worker read every row and everything has been drained.  If it failed, this
+	//stays false, and the next drain() throws the error
+	public synchronized boolean isFinished() {
+		return done && complete && rows.isEmpty();
+	}
+
+	private DataObject remove() {
+		int size=sizes.remove();
+		bytes-=size;
+		globalBytes.addAndGet(-size);
+		notifyAll();
+		return rows.remove();
+	}
+
+	/**
+	* Stop the worker and free the buffer.  If the worker is in the middle of a long step,
+	* the connection is interrupted so it comes back right away.  Returns true if the worker
+	* has stopped, which means the Statement can be closed.
+	*/
+	public boolean close() {
+		synchronized (this) {
+			closed=true;
+			globalBytes.addAndGet(-bytes);
+			bytes=0;
+			rows.clear();
+			sizes.clear();
+			notifyAll();
+		}
+		if (worker!=null && worker.isAlive()) {
+			cursor.conn.interrupt();
+			worker.interrupt();
+			try {
+				worker.join(5000);
+			} catch (InterruptedException ix) {
+				//give up waiting
+			}
+			if (worker.isAlive()) {
+				System.out.println("warning: readahead worker for connection #"+cursor.conn.getId()+" did not stop");
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,265 @@
+package apollo.server;
+import apollo.iface.DataObject;
+import apollo.util.RowCodec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+* ResultCache keeps the rows of view() and selectWhere() cursors, so a dashboard that runs the
+* same query every few seconds doesn't go to SQLite each time.  The key is the class, the SQL with
+* its whitespace normalized, and the parameters.  The rows are kept encoded with RowCodec, so every
+* cursor gets its own copies.
+*
+* Each entry knows the tables and views it read, which the Authorizer reports when the statement
+* is prepared.  TransactionObject calls invalidate() with the tables it changed when it commits,
+* and every entry that read one of them is dropped.  Each table also has a version, which is
+* taken when the query is prepared.  If the table changes before the last row is read, the rows
+* are not stored, because they may be from before the change.
+*
+* Only changes made through this server are seen.  Don't turn this on if something else writes
+* to the database file.
+*
+* The cache is an LRU, bounded by MAX_ENTRIES and MAX_BYTES.  A result bigger than MAX_ENTRY_BYTES
+* isn't cached at all.
+*/
+public class ResultCache {
+	public static boolean ENABLED=!"false".equals(System.getProperty("apollo.result.cache"));
+	public static int MAX_ENTRIES=1000;
+	public static long MAX_BYTES=32*1024*1024;
+	public static int MAX_ENTRY_BYTES=1024*1024;
+
+	private static ResultCache instance;
+
+	static class Entry {
+		final String key;
+		final String[] tables;
+		final int count;
+		final byte[] rows;
+
+		Entry(String key,String[] tables,int count,byte[] rows) {
+			this.key=key;
+			this.tables=tables;
+			this.count=count;
+			this.rows=rows;
+		}
+	}
+
+	private LinkedHashMap<String,Entry> entries=new LinkedHashMap<String,Entry>(64,0.75f,true);
+	//the keys of the entries that read each table
+	private HashMap<String,HashSet<String>> byTable=new HashMap<String,HashSet<String>>();
+	private HashMap<String,Long> versions=new HashMap<String,Long>();
+	private long bytes;
+	private long hits;
+	private long misses;
+	private long stored;
+	private long dropped;
+
+	public synchronized static ResultCache instance() {
+		if (instance==null) {
+			instance=new ResultCache();
+		}
+		return instance;
+	}
+
+	/**
+	* The key for a query.  Runs of whitespace outside of quotes become one space, so the same
+	* query written on more lines is still a hit.
+	*/
+	public static String key(Class<?> klaz,String sql,Object[] params) {
+		StringBuilder sb=new StringBuilder(klaz.getName()).append('\n');
+		char quote=0;
+		boolean space=false;
+		for (int i=0;i<sql.length();i++) {
+			char c=sql.charAt(i);
+			if (quote==0 && Character.isWhitespace(c)) {
+				space=true;
+				continue;
+			}
+			if (space && sb.charAt(sb.length()-1)!='\n') {
+				sb.append(' ');
+			}
+			space=false;
+			if (quote==0 && (c=='\'' || c=='"')) {
+				quote=c;
+			} else if (c==quote) {
+				quote=0;
+			}
+			sb.append(c);
+		}
+		if (params!=null) {
+			for (Object o: params) {
+				//the class, so 1 and '1' are different
+				sb.append('\n').append(o==null?"null":o.getClass().getName()+":"+o);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	* The rows for the key, or null if they aren't cached.
+	*/
+	public DataObject[] get(String key) {
+		Entry e;
+		synchronized (this) {
+			e=entries.get(key);
+			if (e==null) {
+				misses++;
+				return null;
+			}
+			hits++;
+		}
+		try {
+			DataInputStream in=new DataInputStream(new ByteArrayInputStream(e.rows));
+			RowCodec.Reader r=new RowCodec.Reader();
+			DataObject[] rows=new DataObject[e.count];
+			for (int i=0;i<rows.length;i++) {
+				rows[i]=r.read(in);
+			}
+			return rows;
+		} catch (IOException x) {
+			//it was written by us, so this shouldn't happen
+			remove(key);
+			return null;
+		}
+	}
+
+	//the current version of each table, to pass back to put()
+	public synchronized long[] versions(String[] tables) {
+		long[] v=new long[tables.length];
+		for (int i=0;i<tables.length;i++) {
+			Long l=versions.get(tables[i]);
+			v[i]=(l==null)?0:l;
+		}
+		return v;
+	}
+
+	/**
+	* Store the rows, unless one of the tables has changed since the versions were taken.
+	*/
+	public synchronized void put(String key,String[] tables,long[] taken,int count,byte[] rows) {
+		if (!java.util.Arrays.equals(taken,versions(tables))) {
+			return;
+		}
+		remove(key);
+		Entry e=new Entry(key,tables,count,rows);
+		entries.put(key,e);
+		bytes+=rows.length;
+		for (String t: tables) {
+			HashSet<String> keys=byTable.get(t);
+			if (keys==null) {
+				keys=new HashSet<String>();
+				byTable.put(t,keys);
+			}
+			keys.add(key);
+		}
+		stored++;
+		//evict the least recently used
+		Iterator<Map.Entry<String,Entry>> it=entries.entrySet().iterator();
+		while ((entries.size()>MAX_ENTRIES || bytes>MAX_BYTES) && it.hasNext()) {
+			Entry old=it.next().getValue();
+			it.remove();
+			unlink(old);
+		}
+	}
+
+	/**
+	* The tables changed.  Drop every entry that read them.
+	*/
+	public synchronized void invalidate(Collection<String> tables) {
+		for (String t: tables) {
+			t=t.toLowerCase();
+			Long v=versions.get(t);
+			versions.put(t,(v==null)?1:v+1);
+			HashSet<String> keys=byTable.remove(t);
+			if (keys==null) {continue;}
+			for (String key: keys) {
+				if (remove(key)) {
+					dropped++;
+				}
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		byTable.clear();
+		bytes=0;
+	}
+
+	private synchronized boolean remove(String key) {
+		Entry e=entries.remove(key);
+		if (e==null) {return false;}
+		unlink(e);
+		return true;
+	}
+
+	private void unlink(Entry e) {
+		bytes-=e.rows.length;
+		for (String t: e.tables) {
+			HashSet<String> keys=byTable.get(t);
+			if (keys!=null) {
+				keys.remove(e.key);
+				if (keys.isEmpty()) {byTable.remove(t);}
+			}
+		}
+	}
+
+	public synchronized String stats() {
+		return "entries="+entries.size()+" bytes="+bytes+" hits="+hits+" misses="+misses
+			+" stored="+stored+" invalidated="+dropped;
+	}
+
+	//==============================================
+	/**
+	* Encodes the rows of a cursor as they are read, then stores them at the end.  It gives up if
+	* the rows get bigger than MAX_ENTRY_BYTES.
+	*/
+	static class Recorder {
+		final String key;
+		final String[] tables;
+		final long[] taken;
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		DataOutputStream out=new DataOutputStream(bos);
+		RowCodec.Writer w=new RowCodec.Writer();
+		int count;
+		boolean full;
+
+		Recorder(String key,String[] tables) {
+			this.key=key;
+			this.tables=tables;
+			taken=instance().versions(tables);
+		}
+
+		void add(DataObject d) {
+			if (full) {return;}
+			try {
+				w.write(out,d);
+				count++;
+			} catch (IOException x) {
+				full=true;
+			}
+			if (bos.size()>MAX_ENTRY_BYTES) {
+				full=true;
+				bos=null;
+				out=null;
+			}
+		}
+
+		//all the rows have been read
+		void finish() {
+			if (!full) {
+				instance().put(key,tables,taken,count,bos.toByteArray());
+			}
+			full=true;
+		}
+	}
+}
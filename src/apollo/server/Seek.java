@@ -0,0 +1,196 @@
+package apollo.server;
+import apollo.iface.DataObject;
+import apollo.iface.DataStoreException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+
+/**
+* Seek builds the SQL for keyset pagination, which is used by DataStore.selectPage().  Instead of
+* OFFSET, which reads and throws away every earlier row, each page starts where the last one ended:
+*	SELECT * FROM t WHERE (date,time,rowid)>(?,?,?) ORDER BY date,time,rowid LIMIT n
+* SQLite finds the start in the idx_ index, so every page costs the same, however deep it is.
+*
+* The continuation token holds the index() values and rowid of the last row, with the table and
+* index so a token can't be used for a different query.  The values are always bound, never put in
+* the SQL.
+*
+* The row value form only works when every column is ascending and none of the values is NULL.
+* Otherwise this spells it out, column by column:
+*	(date>?) OR (date IS ? AND time>?) OR (date IS ? AND time IS ? AND rowid>?)
+* where NULL sorts first, so "greater than NULL" is IS NOT NULL.
+*/
+class Seek {
+	public static int DEFAULT_LIMIT=100;
+	//so one call can't read the whole table into a Page
+	public static int MAX_LIMIT=1000;
+	private final String table;
+	private final String index;
+	private final String[] cols;
+	private final boolean[] desc;
+
+	Seek(DataObject d) {
+		table=d.getTableName();
+		index=(d.index()==null)?"":d.index();
+		ArrayList<String> c=new ArrayList<String>();
+		ArrayList<Boolean> dir=new ArrayList<Boolean>();
+		for (String part:index.split(",")) {
+			String[] words=part.trim().split("\\s+");
+			if (words[0].length()==0 || words[0].equalsIgnoreCase("rowid")) {continue;}
+			c.add(words[0]);
+			dir.add(words.length>1 && words[words.length-1].equalsIgnoreCase("DESC"));
+		}
+		//rowid makes every position unique
+		c.add("rowid");
+		dir.add(false);
+		cols=c.toArray(new String[c.size()]);
+		desc=new boolean[cols.length];
+		for (int i=0;i<desc.length;i++) {
+			desc[i]=dir.get(i);
+		}
+	}
+
+	String[] getColumns() {return cols;}
+
+	/**
+	* The SQL for the page after the values, or the first page if values is null.  The parameters to
+	* bind are added to params.  This selects one extra row, to find out if there is another page.
+	*/
+	String sql(Object[] values,int limit,ArrayList<Object> params) {
+		StringBuilder sb=new StringBuilder("SELECT * FROM "+table);
+		if (values!=null) {
+			sb.append(" WHERE ");
+			if (simple(values)) {
+				sb.append("(");
+				sb.append(String.join(",",cols));
+				sb.append(")>(");
+				for (int i=0;i<cols.length;i++) {
+					sb.append(i==0?"?":",?");
+					params.add(values[i]);
+				}
+				sb.append(")");
+			} else {
+				for (int i=0;i<cols.length;i++) {
+					sb.append(i==0?"(":" OR (");
+					for (int j=0;j<i;j++) {
+						sb.append(cols[j]+" IS ? AND ");
+						params.add(values[j]);
+					}
+					sb.append(after(i,values[i],params));
+					sb.append(")");
+				}
+			}
+		}
+		sb.append(" ORDER BY ");
+		for (int i=0;i<cols.length;i++) {
+			if (i>0) {sb.append(",");}
+			sb.append(cols[i]);
+			if (desc[i]) {sb.append(" DESC");}
+		}
+		sb.append(" LIMIT "+(limit+1));
+		return sb.toString();
+	}
+
+	private boolean simple(Object[] values) {
+		for (int i=0;i<cols.length;i++) {
+			if (desc[i] || values[i]==null) {return false;}
+		}
+		return true;
+	}
+
+	//the condition for coming after v in column i
+	private String after(int i,Object v,ArrayList<Object> params) {
+		if (desc[i]) {
+			//NULL is last when descending, so nothing comes after it
+			if (v==null) {return "0";}
+			params.add(v);
+			return "("+cols[i]+"<? OR "+cols[i]+" IS NULL)";
+		}
+		if (v==null) {return cols[i]+" IS NOT NULL";}
+		params.add(v);
+		return cols[i]+">?";
+	}
+
+	/**
+	* Read the seek columns of the current row, as stored.
+	*/
+	Object[] values(Statement st) {
+		Object[] v=new Object[cols.length];
+		int n=st.getColumnCount();
+		for (int i=0;i<cols.length;i++) {
+			for (int j=0;j<n;j++) {
+				if (st.getColumnName(j).equalsIgnoreCase(cols[i])) {
+					switch (st.getColumnType(j)) {
+						case 1: v[i]=st.getLong(j); break;
+						case 2: v[i]=st.getDouble(j); break;
+						case 5: v[i]=null; break;
+						default: v[i]=st.getString(j);
+					}
+					break;
+				}
+			}
+		}
+		return v;
+	}
+
+	//-----------------------------------------
+	String encode(Object[] values) {
+		try {
+			ByteArrayOutputStream bos=new ByteArrayOutputStream();
+			DataOutputStream out=new DataOutputStream(bos);
+			out.writeUTF(table);
+			out.writeUTF(index);
+			out.writeByte(values.length);
+			for (Object v:values) {
+				if (v==null) {
+					out.writeByte(0);
+				} else if (v instanceof Long) {
+					out.writeByte(1);
+					out.writeLong((Long)v);
+				} else if (v instanceof Double) {
+					out.writeByte(2);
+					out.writeDouble((Double)v);
+				} else {
+					out.writeByte(3);
+					out.writeUTF(v.toString());
+				}
+			}
+			out.close();
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(bos.toByteArray());
+		} catch (IOException x) {
+			//not possible with a byte array
+			throw new IllegalStateException(x.toString());
+		}
+	}
+
+	Object[] decode(String token) throws DataStoreException {
+		try {
+			DataInputStream in=new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(token)));
+			if (!in.readUTF().equals(table) || !in.readUTF().equals(index)) {
+				throw new DataStoreException("the continuation token is for a different query",0);
+			}
+			int n=in.readByte();
+			if (n!=cols.length) {
+				throw new DataStoreException("the continuation token is for a different query",0);
+			}
+			Object[] v=new Object[n];
+			for (int i=0;i<n;i++) {
+				switch (in.readByte()) {
+					case 0: v[i]=null; break;
+					case 1: v[i]=in.readLong(); break;
+					case 2: v[i]=in.readDouble(); break;
+					default: v[i]=in.readUTF();
+				}
+			}
+			return v;
+		} catch (IOException x) {
+			throw new DataStoreException("bad continuation token",0);
+		} catch (IllegalArgumentException x) {
+			throw new DataStoreException("bad continuation token",0);
+		}
+	}
+}
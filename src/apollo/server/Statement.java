@@ -26,9 +26,13 @@ public class Statement {
 	}
 
 	public static SQLITE_API api;
+	//tells sqlite to make its own copy of bound text
+	final static long SQLITE_TRANSIENT=-1;
 	private Connection conn;
 	private Handle stmtHandle;
 	private boolean closed=false;
+	//the time spent in step(), for the IndexAdvisor
+	private long stepNanos;
 
 	/**
 	* Create a new Statement, given the connection and the sql.
@@ -88,7 +92,9 @@ public class Statement {
 	*/
 	public boolean step() throws DataStoreException {
 		boolean result=false;
+		long start=System.nanoTime();
 		int rc=api.sqlite3_step(stmtHandle.getPointer());
+		stepNanos+=System.nanoTime()-start;
 		if (rc==api.SQLITE_ROW) {result=true;}
 		else if (rc==api.SQLITE_DONE) {result=false;}
 		else if (rc==api.SQLITE_BUSY) {
@@ -101,6 +107,10 @@ public class Statement {
 	}
 
 
+	public long getStepNanos() {
+		return stepNanos;
+	}
+
 	//returns true is the statement has stepped at least once
 	//but not run until completion.
 	public boolean isBusy() {
@@ -108,6 +118,61 @@ public class Statement {
 		return (i==1)?true:false;
 	}
 
+	//-----------------------------------------------
+	//bind parameters.  The index starts at 1, like in SQLite.
+	//a statement can be run again with new values by calling reset() and binding them
+	public void bindNull(int i) throws DataStoreException {
+		check(api.sqlite3_bind_null(stmtHandle.getPointer(),i),i);
+	}
+
+	public void bindLong(int i,long v) throws DataStoreException {
+		check(api.sqlite3_bind_int64(stmtHandle.getPointer(),i,v),i);
+	}
+
+	public void bindDouble(int i,double v) throws DataStoreException {
+		check(api.sqlite3_bind_double(stmtHandle.getPointer(),i,v),i);
+	}
+
+	//uses the same encoding as the sql passed to Connection.exec(), so the data is stored the same way
+	public void bindString(int i,String v) throws DataStoreException {
+		if (v==null) {
+			bindNull(i);
+		} else {
+			byte[] b=Connection.getByteArray(v);
+			check(api.sqlite3_bind_text(stmtHandle.getPointer(),i,b,b.length-1,SQLITE_TRANSIENT),i);
+		}
+	}
+
+	/**
+	* Bind a value based on its class: null, Integer or Long, Float or Double, otherwise
+	* it is bound as the String from toString().
+	*/
+	public void bind(int i,Object v) throws DataStoreException {
+		if (v==null) {
+			bindNull(i);
+		} else if (v instanceof Integer || v instanceof Long) {
+			bindLong(i,((Number)v).longValue());
+		} else if (v instanceof Float || v instanceof Double) {
+			bindDouble(i,((Number)v).doubleValue());
+		} else {
+			bindString(i,v.toString());
+		}
+	}
+
+	private void check(int rc,int i) throws DataStoreException {
+		if (rc!=0) {
+			throw new DataStoreException("error binding parameter "+i,rc);
+		}
+	}
+
+	/**
+	* Reset the statement so it can be stepped again.  The bindings are kept unless
+	* they are bound again.
+	*/
+	public void reset() {
+		api.sqlite3_reset(stmtHandle.getPointer());
+	}
+
 	//-----------------------------------------------
 	public int getInt(int columnIndex) {
 		return api.sqlite3_column_int(stmtHandle.getPointer(), columnIndex);
@@ -133,6 +198,20 @@ public class Statement {
 		}
 	}
 
+	/**
+	* The column as UTF-8, straight from SQLite without making a String.  It isn't trimmed.
+	* Null if the column is null.
+	*/
+	public byte[] getTextBytes(int columnIndex) {
+		Pointer p=api.sqlite3_column_text(stmtHandle.getPointer(),columnIndex);
+		if (p==null) {
+			return null;
+		}
+		//the length must be read after the text, so it is the length of the UTF-8 form
+		int n=api.sqlite3_column_bytes(stmtHandle.getPointer(),columnIndex);
+		return p.getByteArray(0,n);
+	}
+
 	public int getColumnCount() {
 		return api.sqlite3_column_count(stmtHandle.getPointer());
 	}
@@ -202,6 +281,9 @@ public class Statement {
 		//return a pointer to the text
 		public Pointer sqlite3_column_text(Pointer pstmt, int iCol);
 
+		//int sqlite3_column_bytes(sqlite3_stmt*, int iCol);
+		public int sqlite3_column_bytes(Pointer pstmt, int iCol);
+
 		//get the column_type
 		//int sqlite3_column_type(sqlite3_stmt*, int iCol);
 		public int sqlite3_column_type(Pointer pstmt, int iCol);
@@ -209,5 +291,14 @@ public class Statement {
 		public int sqlite3_column_count(Pointer pStmt);
 
 		public Pointer sqlite3_column_name(Pointer pstmt, int N);
+
+		//int sqlite3_reset(sqlite3_stmt *pStmt);
+		public int sqlite3_reset(Pointer pStmt);
+
+		//the destructor is passed as a long so we can use SQLITE_TRANSIENT (-1)
+		public int sqlite3_bind_null(Pointer pStmt, int i);
+		public int sqlite3_bind_int64(Pointer pStmt, int i, long value);
+		public int sqlite3_bind_double(Pointer pStmt, int i, double value);
+		public int sqlite3_bind_text(Pointer pStmt, int i, byte[] value, int n, long xDel);
 	}
 }
\ No newline at end of file
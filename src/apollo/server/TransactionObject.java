@@ -4,6 +4,12 @@ import java.lang.reflect.*;
 import java.rmi.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.Random;
+import java.util.List;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.HashSet;
+import com.sun.jna.Pointer;
+import java.rmi.server.Unreferenced;
 import java.util.Date;
 import apollo.util.DateYMD;
 import apollo.util.DateYM;
@@ -22,12 +28,27 @@ import apollo.util.Credentials;
 *
 * To make sure that the connection runs in its own thread, the connection isn't created until begin() is called.
 */
-public class TransactionObject implements Transaction {
+public class TransactionObject implements Transaction, Exports.Leased, Unreferenced {
 	private Credentials user;
 	private Connection conn;
 	private static AtomicInteger counter=new AtomicInteger(randomTwoDigit());
 	private int id;
 
+	//keys of rows changed in this transaction, published to Invalidations on commit
+	//if more than MAX_KEYS rows change, the rest are sent as whole-table keys instead
+	public static int MAX_KEYS=10000;
+	private HashSet<Key> changed=new HashSet<Key>();
+	//every table changed, including by inserts, for the ResultCache
+	private HashSet<String> tables=new HashSet<String>();
+	//rowids changed in the source tables of materialized views, or null if there were too many
+	private HashMap<String,HashSet<Long>> sourceRows=new HashMap<String,HashSet<Long>>();
+	//true if a materialized view was created or dropped
+	private boolean viewsChanged=false;
+	//keep a reference so the callback isn't garbage collected while sqlite has it
+	private UpdateHook.FunctionCallback hook;
+
+	private volatile long lastUsed=System.currentTimeMillis();
+
 	public TransactionObject(Credentials user) throws DataStoreException {
 		this.user=user;
 		id=counter.incrementAndGet();	//equivalent of ++counter;
@@ -52,36 +73,136 @@ public class TransactionObject implements Transaction {
 	* file until it is released by committing the transaction.
 	*/
 	public void begin() throws RemoteException, DataStoreException, Unauthorized {
+		lastUsed=System.currentTimeMillis();
 		conn=new Connection(user);
+		changed.clear();
+		tables.clear();
+		sourceRows.clear();
+		viewsChanged=false;
+		Materialized.instance().load(conn);
+		hook=new UpdateHook.FunctionCallback() {
+			public void callback(Pointer userData, int type, String dbname, String tbl_name,long rowid) {
+				rowChanged(type,tbl_name,rowid);
+			}
+		};
+		UpdateHook.hook(conn.getHandle(),hook,null);
 		conn.exec("--begin transaction '"+getID()+"'");
 		conn.exec("BEGIN IMMEDIATE TRANSACTION");
 	}
 
+	//called by sqlite for every row changed.  New rows can't be in anyone's cache, so
+	//inserts are skipped, and so are the system tables like _audit
+	void rowChanged(int type,String table,long rowid) {
+		tables.add(table);
+		if (Materialized.instance().watches(table)) {
+			String t=table.toLowerCase();
+			HashSet<Long> ids=sourceRows.get(t);
+			if (ids==null) {
+				if (sourceRows.containsKey(t)) {
+					//already too many
+				} else {
+					ids=new HashSet<Long>();
+					sourceRows.put(t,ids);
+				}
+			}
+			if (ids!=null) {
+				ids.add(rowid);
+				if (ids.size()>Materialized.MAX_ROWS) {
+					sourceRows.put(t,null);
+				}
+			}
+		}
+		if (type==UpdateHook.SQLITE_INSERT || table.startsWith("_")) {
+			return;
+		}
+		if (changed.size()<MAX_KEYS) {
+			changed.add(new Key(table,rowid));
+		} else {
+			changed.add(new Key(table,0));
+		}
+	}
+
 	/**
-	* This both commits the transaction and closes the connection.
+	* This both commits the transaction and closes the connection.  If it was exported,
+	* it is unexported too, so the client can't use it again.
 	*/
 	public void commit() throws RemoteException, DataStoreException {
-		conn.exec("COMMIT TRANSACTION");
-		conn.exec("--commit transaction '"+getID()+"'");
-		conn.close();
+		try {
+			if (!tables.isEmpty()) {
+				//bring the materialized views up to date in this transaction
+				try {
+					Materialized.instance().maintain(user,conn,sourceRows,tables);
+				} catch (DataStoreException dx) {
+					rollback();
+					throw new DataStoreException("rolled back: "+dx.getMessage(),dx.getErrCode());
+				}
+			}
+			conn.exec("COMMIT TRANSACTION");
+			conn.exec("--commit transaction '"+getID()+"'");
+			conn.close();
+			Invalidations.instance().publish(changed.toArray(new Key[changed.size()]));
+			changed.clear();
+			ResultCache.instance().invalidate(tables);
+			tables.clear();
+		} finally {
+			Exports.unexport(this);
+		}
 	}
 
 	/**
-	* This both rollsback the transaction and closes the connection.
+	* This both rollsback the transaction and closes the connection.  If it was exported,
+	* it is unexported too.
 	*/
 	public void rollback() throws RemoteException, DataStoreException {
-		conn.exec("ROLLBACK TRANSACTION");
-		conn.exec("--rollback transaction '"+getID()+"'");
-		conn.close();
+		try {
+			changed.clear();
+			tables.clear();
+			sourceRows.clear();
+			if (viewsChanged) {
+				Materialized.instance().forget();
+			}
+			//a failed exec() has closed the connection, which rolled it back
+			if (!conn.isClosed()) {
+				conn.exec("ROLLBACK TRANSACTION");
+				conn.exec("--rollback transaction '"+getID()+"'");
+				conn.close();
+			}
+		} finally {
+			Exports.unexport(this);
+		}
+	}
+
+	//------------------------------------
+	//used by Exports
+	public long getLastUsed() {return lastUsed;}
+
+	public long getLease() {return Exports.TRANSACTION_LEASE;}
+
+	//roll back if the transaction is still open
+	public void expire() {
+		if (conn!=null && !conn.isClosed()) {
+			conn.interrupt();
+			try {
+				rollback();
+			} catch (Exception x) {
+				System.out.println("warning: "+x+" rolling back expired transaction "+id);
+			}
+		}
+	}
+
+	//called by RMI when no client has a reference any more
+	public void unreferenced() {
+		Exports.expire(this);
 	}
 
 	/**
 	* Create a table based on the fields in the DataObject.  This is done so that we don't have to check if the
 	* table exists every time an insert is done.  It doesn't hurt to call this more than once because
 	* it creates the table only if it doesn't exist.
-	* This also creates an index on the table.
+	* This also creates an index on the table, and a full-text index if it is Searchable.
 	*/
 	public void createTable(DataObject d) throws RemoteException,DataStoreException {
+		lastUsed=System.currentTimeMillis();
 		if (d==null) throw new DataStoreException("DataObject is null",0);
 		try {
 			Class k=d.getClass();
@@ -121,6 +242,12 @@ public class TransactionObject implements Transaction {
 				conn.exec(sql2);
 			}
 
+			//and the full-text index, if it has one
+			if (d instanceof Searchable) {
+				FullText.create(conn,(Searchable)d);
+			}
+			IndexAdvisor.forget(d.getTableName());
+
 			//also index by key
 			//String sql3="CREATE UNIQUE INDEX IF NOT EXISTS idx_"+d.getTableName()+"_key ON "+d.getTableName()+"("+"_key"+")";
 			//System.out.println(sql3);
@@ -186,6 +313,7 @@ public class TransactionObject implements Transaction {
 	* This will drop the table only if it is empty.  If there are records in it, it will throw an exception
 	*/
 	public void dropTable(DataObject d) throws RemoteException,DataStoreException {
+		lastUsed=System.currentTimeMillis();
 		System.out.println("DEBUG: in TransactionObject.dropTable");
 
 		//first, check the number of rows in it
@@ -209,9 +337,13 @@ public class TransactionObject implements Transaction {
 
 		//now actually drop it
 		conn.exec(sql2);
+		changed.add(new Key(d.getTableName(),0));
+		tables.add(d.getTableName());
 
 		String sql3="DROP INDEX IF EXISTS idx_"+d.getTableName();
 		conn.exec(sql3);
+		FullText.drop(conn,d.getTableName());
+		IndexAdvisor.forget(d.getTableName());
 
 		//also index by key
 		//String sql4="DROP INDEX IF EXISTS idx_"+d.getTableName()+"_key";
@@ -227,6 +359,7 @@ public class TransactionObject implements Transaction {
 	* Insert a dataobject into the DataStore
 	*/
 	public Key insert(DataObject d) throws RemoteException,DataStoreException {
+		lastUsed=System.currentTimeMillis();
 		if (d==null) {
 			System.out.println("[DEBUG] in TransactionObject.insert, DataObject is null");
 			throw new DataStoreException("trying to insert a null data object",0);
@@ -243,6 +376,12 @@ public class TransactionObject implements Transaction {
 	}
 
 	public void update(DataObject old,DataObject nu) throws RemoteException,DataStoreException {
+		lastUsed=System.currentTimeMillis();
+		doUpdate(old,nu);
+	}
+
+	//returns the number of rows changed
+	private int doUpdate(DataObject old,DataObject nu) throws DataStoreException {
 		if (nu==null || nu.getID()<1) {
 			throw new DataStoreException("cannot update because id is "+nu.getID(),0);
 		}
@@ -260,11 +399,17 @@ public class TransactionObject implements Transaction {
 		if (rows!=1) {
 			System.out.println("WARNING: the command "+updateSql+" updated "+rows+" rows");
 		}
+		return rows;
 	}
 
 	//record audit info before deleting
 	//this requires the old state of the object before deleting
 	public void delete(DataObject old)  throws RemoteException,DataStoreException {
+		lastUsed=System.currentTimeMillis();
+		doDelete(old);
+	}
+
+	private int doDelete(DataObject old) throws DataStoreException {
 		//double check audit info
 		if (old==null || old.getID()<1) {
 			throw new DataStoreException("must provide old state of object before delete is allowed",0);
@@ -280,10 +425,102 @@ public class TransactionObject implements Transaction {
 		if (rows!=1) {
 			System.out.println("WARNING: the command "+deleteSql+" deleted "+rows+" rows");
 		}
+		return rows;
+	}
+
+	/**
+	* Run the operations in order.  Inserts are prepared once per table and then just bound
+	* and stepped for every row.  Updates and deletes go through the same code as update()
+	* and delete(), because they have to write the audit record.
+	*/
+	public BatchResult executeBatch(List<Operation> ops) throws RemoteException,DataStoreException {
+		lastUsed=System.currentTimeMillis();
+		if (ops==null) {
+			throw new DataStoreException("list of operations is null",0);
+		}
+		Key[] keys=new Key[ops.size()];
+		int[] counts=new int[ops.size()];
+		//prepared insert statements by table name
+		HashMap<String,Statement> plans=new HashMap<String,Statement>();
+		try {
+			for (int i=0;i<ops.size();i++) {
+				Operation op=ops.get(i);
+				try {
+					if (op.type==Operation.INSERT) {
+						keys[i]=insertPrepared(plans,op.nu);
+						counts[i]=1;
+					} else if (op.type==Operation.UPDATE) {
+						counts[i]=doUpdate(op.old,op.nu);
+					} else if (op.type==Operation.DELETE) {
+						counts[i]=doDelete(op.old);
+					} else {
+						throw new DataStoreException("unknown operation type "+op.type,0);
+					}
+				} catch (DataStoreException dx) {
+					throw new DataStoreException("operation "+i+": "+dx.getMessage(),dx.getErrCode());
+				}
+			}
+		} finally {
+			Iterator<Statement> it=plans.values().iterator();
+			while (it.hasNext()) {
+				it.next().close();
+			}
+		}
+		return new BatchResult(keys,counts);
+	}
+
+	private Key insertPrepared(HashMap<String,Statement> plans,DataObject d) throws DataStoreException {
+		if (d==null) {
+			throw new DataStoreException("trying to insert a null data object",0);
+		}
+		Statement st=plans.get(d.getTableName());
+		if (st==null) {
+			st=new Statement(conn,DynamicSql.generateInsertTemplate(d));
+			plans.put(d.getTableName(),st);
+		}
+		Object[] values=DynamicSql.getFieldValues(d);
+		for (int i=0;i<values.length;i++) {
+			st.bind(i+1,values[i]);
+		}
+		st.step();
+		st.reset();
+		return new Key(d.getTableName(),conn.lastInsertRowID());
+	}
+
+	public BatchResult executeAndCommit(List<Operation> ops) throws RemoteException,DataStoreException, Unauthorized {
+		if (conn!=null && !conn.isClosed()) {
+			//a second BEGIN would leave the first connection holding the write lock
+			throw new DataStoreException("transaction "+id+" has already begun, use executeBatch() and commit()",0);
+		}
+		begin();
+		boolean committed=false;
+		try {
+			BatchResult result=executeBatch(ops);
+			commit();
+			committed=true;
+			return result;
+		} finally {
+			//on any failure, including a RuntimeException from a bad Operation, so the write
+			//lock isn't held until the lease runs out.  exec() closes the connection when it
+			//fails, so it may already be gone
+			if (!committed && !conn.isClosed()) {
+				try {
+					rollback();
+				} catch (DataStoreException dx) {
+					System.out.println("warning: rollback failed after executeAndCommit: "+dx);
+				}
+			}
+		}
 	}
 
 	//a view is kind of like a table
 	public void createView(ViewObject v) throws RemoteException,DataStoreException {
+		lastUsed=System.currentTimeMillis();
+		if (v instanceof MaterializedView) {
+			viewsChanged=true;
+			Materialized.instance().create(conn,v);
+			return;
+		}
 		StringBuilder sql=new StringBuilder("CREATE VIEW IF NOT EXISTS "+v.getViewName()+" AS ");
 		sql.append(v.getSQL());
 		conn.exec(sql.toString());
@@ -291,7 +528,27 @@ public class TransactionObject implements Transaction {
 
 	//this doesn't affect any data
 	public void dropView(ViewObject v) throws RemoteException,DataStoreException {
+		lastUsed=System.currentTimeMillis();
+		if (Materialized.instance().isMaterialized(v.getViewName())) {
+			viewsChanged=true;
+			Materialized.instance().drop(conn,v.getViewName());
+		}
 		String sql="DROP VIEW IF EXISTS "+v.getViewName();
 		conn.exec(sql);
+		tables.add(v.getViewName());
+	}
+
+	/**
+	* Rebuild materialized views that couldn't be kept up to date row by row, and commit.
+	* Used by the Materialized refresher, with a transaction that was just begun.
+	*/
+	void refreshViews(String[] names) throws RemoteException, DataStoreException {
+		try {
+			Materialized.instance().refresh(conn,names);
+		} catch (DataStoreException dx) {
+			rollback();
+			throw dx;
+		}
+		commit();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,143 @@
+package apollo.test;
+import apollo.iface.*;
+import apollo.net.NioClient;
+import apollo.net.NioServer;
+import apollo.net.Payload;
+import apollo.net.Protocol;
+import apollo.net.ShmChannel;
+import apollo.util.Credentials;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.concurrent.CompletableFuture;
+
+/**
+* Compare RMI and the NIO protocol.  Start the server with apollo.net.NioServer, which binds both.
+* This inserts some events, then times the same work over each one:
+*	- get() one row at a time, for latency
+*	- reading the whole table with nextBatch(), for throughput
+* and for NIO only, the same gets pipelined on one socket.  If the server was started with
+* -Dapollo.socket=true or -Dapollo.shm=true, the unix domain socket or shared memory transport is
+* timed too.
+*
+* args: host password [rows]
+*/
+public class Test6 {
+	public static int GETS=2000;
+
+	public static class Event implements DataObject {
+		private final static long serialVersionUID=1L;
+		public long rowid;
+		public String name;
+		public apollo.util.DateYMD date;
+		public String time;
+
+		public String[] fields() {
+			return new String[]{"rowid","name","date","time"};
+		}
+		public String[] displayNames() {
+			return new String[]{"ID","Name","Date","Time"};
+		}
+		public String getTableName() {return "Event";}
+		public String index() {return "date,time";}
+		public long getID() {return rowid;}
+		public DataObject clone() {
+			Event e=new Event();
+			e.rowid=rowid;
+			e.name=name;
+			e.date=(date==null)?null:date.clone();
+			e.time=time;
+			return e;
+		}
+	}
+
+    public static void main(String[] args) {
+        String host = (args.length < 1) ? "localhost" : args[0];
+        int password = (args.length < 2) ? 1234 : Integer.parseInt(args[1]);
+        int rows = (args.length < 3) ? 10000 : Integer.parseInt(args[2]);
+        try {
+            Registry registry = LocateRegistry.getRegistry(host);
+            DataStore rmi = (DataStore) registry.lookup("DataStore");
+            NioClient nio = new NioClient(host,NioServer.DEFAULT_PORT);
+            String pk = apollo.kernel.Kernel.instance().getPublicKey();
+            Credentials user = Credentials.encrypt(pk,"root",null,password);
+
+			//load the table
+			Transaction tx=rmi.createTransaction(user);
+			tx.begin();
+			tx.createTable(new Event());
+			Key first=null;
+			for (int i=0;i<rows;i++) {
+				Event ev=new Event();
+				ev.name="event "+i;
+				ev.date=new apollo.util.DateYMD(2016,1+(i%12),1+(i%28));
+				ev.time="12:00";
+				Key k=tx.insert(ev);
+				if (first==null) {first=k;}
+			}
+			tx.commit();
+
+			System.out.println("transport  gets/sec  avg get ms  scan rows/sec");
+			run("RMI",rmi,user,first);
+			run("NIO",nio,user,first);
+			//these only work on the same host, with -Dapollo.socket=true and -Dapollo.shm=true on the server
+			try {
+				NioClient uds=new NioClient(NioServer.defaultSocketFile());
+				run("UDS",uds,user,first);
+				uds.close();
+			} catch (java.io.IOException x) {
+				System.out.println("UDS        skipped: "+x.getMessage());
+			}
+			try {
+				NioClient shm=new NioClient(ShmChannel.connect());
+				run("SHM",shm,user,first);
+				shm.close();
+			} catch (java.io.IOException x) {
+				System.out.println("SHM        skipped: "+x.getMessage());
+			}
+
+			//pipelined: send them all, then wait for them all
+			long start=System.nanoTime();
+			CompletableFuture<?>[] fs=new CompletableFuture<?>[GETS];
+			for (int i=0;i<GETS;i++) {
+				fs[i]=nio.send(nio.request(Protocol.GET).putCredentials(user).putKey(first));
+			}
+			CompletableFuture.allOf(fs).get();
+			long nanos=System.nanoTime()-start;
+			System.out.println("NIO pipelined gets/sec: "+(long)(GETS/(nanos/1e9)));
+
+			nio.close();
+            System.out.println("SUCCESS");
+        } catch (Exception e) {
+            System.err.println("Client exception: " + e.toString());
+            e.printStackTrace();
+            System.out.println("FAIL");
+        }
+    }
+
+	static void run(String name,DataStore ds,Credentials user,Key k) throws Exception {
+		//warm up
+		for (int i=0;i<100;i++) {
+			ds.get(user,k);
+		}
+		long start=System.nanoTime();
+		for (int i=0;i<GETS;i++) {
+			ds.get(user,k);
+		}
+		long getNanos=System.nanoTime()-start;
+
+		start=System.nanoTime();
+		Cursor c=ds.selectAll(user,new Event(),Integer.MAX_VALUE,0);
+		c.open();
+		int count=0;
+		RowBatch b;
+		do {
+			b=c.nextBatch(1000);
+			count+=b.size();
+		} while (!b.endOfData);
+		c.close();
+		long scanNanos=System.nanoTime()-start;
+
+		System.out.println(String.format("%-10s %8d %11.3f %14d",name,(long)(GETS/(getNanos/1e9)),
+			getNanos/1e6/GETS,(long)(count/(scanNanos/1e9))));
+	}
+}
@@ -0,0 +1,167 @@
+package apollo.test;
+import apollo.iface.*;
+import apollo.net.NioClient;
+import apollo.net.NioServer;
+import apollo.net.Workers;
+import apollo.server.DataStoreEngine;
+import apollo.server.NativeGate;
+import apollo.util.Credentials;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+* Load test for the NIO server, with the requests on platform threads and then on virtual threads.
+* This runs the engine in this process, embedded, without RMI.  Each client has its own socket and mostly
+* waits, then does a get() or, every tenth time, a rows() that scans the table.  For each number
+* of clients it prints the requests per second, the latency, and the number of platform threads
+* the server side had.  Virtual mode needs java 21 or later.
+*
+* args: password [maxClients] [seconds] [thinkMillis]
+*/
+public class Test7 {
+	public static int ROWS=2000;
+
+	public static void main(String[] args) {
+		int password=(args.length<1)?1234:Integer.parseInt(args[0]);
+		int maxClients=(args.length<2)?2000:Integer.parseInt(args[1]);
+		int seconds=(args.length<3)?10:Integer.parseInt(args[2]);
+		long think=(args.length<4)?100:Long.parseLong(args[3]);
+		try {
+			String pk=apollo.kernel.Kernel.instance().getPublicKey();
+			Credentials user=Credentials.encrypt(pk,"root",null,password);
+			DataStoreEngine engine=DataStoreEngine.embedded(user);
+
+			//load the table
+			Transaction tx=engine.createTransaction(user);
+			tx.begin();
+			tx.createTable(new Test6.Event());
+			Key first=null;
+			for (int i=0;i<ROWS;i++) {
+				Test6.Event ev=new Test6.Event();
+				ev.name="event "+i;
+				ev.date=new apollo.util.DateYMD(2016,1+(i%12),1+(i%28));
+				ev.time="12:00";
+				Key k=tx.insert(ev);
+				if (first==null) {first=k;}
+			}
+			tx.commit();
+
+			String[] modes={Workers.PLATFORM,Workers.VIRTUAL};
+			int port=NioServer.DEFAULT_PORT+10;
+			System.out.println("mode      clients  req/sec  avg ms  p99 ms  errors  threads");
+			for (String mode:modes) {
+				if (mode.equals(Workers.VIRTUAL) && !Workers.hasVirtualThreads()) {
+					System.out.println("virtual threads need java 21, skipping");
+					continue;
+				}
+				NioServer ns=NioServer.start(engine,port++,mode);
+				for (int n=100;n<=maxClients;n*=2) {
+					run(mode,ns.getPort(),n,seconds,think,user,first);
+				}
+				NativeGate gate=ns.getDispatcher().getGate();
+				if (gate!=null) {
+					System.out.println(gate.stats());
+				}
+				ns.stop();
+			}
+			System.out.println("SUCCESS");
+		} catch (Exception e) {
+			System.err.println("exception: "+e.toString());
+			e.printStackTrace();
+			System.out.println("FAIL");
+		}
+		System.exit(0);
+	}
+
+	static void run(String mode,int port,int clients,int seconds,final long think,final Credentials user,final Key first) throws Exception {
+		final NioClient[] conns=new NioClient[clients];
+		for (int i=0;i<clients;i++) {
+			conns[i]=new NioClient("localhost",port);
+		}
+		final AtomicBoolean stop=new AtomicBoolean(false);
+		final long[][] lat=new long[clients][];
+		final int[] counts=new int[clients];
+		final int[] errors=new int[clients];
+		final CountDownLatch done=new CountDownLatch(clients);
+		//the client side uses virtual threads too if it can, so it isn't the bottleneck
+		ExecutorService ex=Workers.virtualThreads();
+		if (ex==null) {
+			ex=Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					return new Thread(r,"load-client");
+				}
+			});
+		}
+		for (int i=0;i<clients;i++) {
+			final int c=i;
+			ex.execute(new Runnable() {
+				public void run() {
+					Random r=new Random(c);
+					long[] l=new long[1024];
+					int n=0;
+					try {
+						while (!stop.get()) {
+							Thread.sleep(r.nextInt((int)think+1));
+							long start=System.nanoTime();
+							try {
+								if (n%10==9) {
+									conns[c].rows(user,"Event");
+								} else {
+									conns[c].get(user,new Key(first.tableName,first.rowid+r.nextInt(ROWS)));
+								}
+							} catch (Exception x) {
+								errors[c]++;
+							}
+							if (n==l.length) {l=Arrays.copyOf(l,n*2);}
+							l[n++]=System.nanoTime()-start;
+						}
+					} catch (InterruptedException x) {
+						//stop
+					}
+					lat[c]=Arrays.copyOf(l,n);
+					counts[c]=n;
+					done.countDown();
+				}
+			});
+		}
+		//count the platform threads halfway through, leaving out the ones for the clients
+		Thread.sleep(seconds*500L);
+		int threads=0;
+		for (Thread t:Thread.getAllStackTraces().keySet()) {
+			if (!t.getName().equals("nio-client-reader") && !t.getName().equals("load-client")) {
+				threads++;
+			}
+		}
+		Thread.sleep(seconds*500L);
+		stop.set(true);
+		done.await();
+		ex.shutdown();
+		for (int i=0;i<clients;i++) {
+			conns[i].close();
+		}
+
+		int total=0;
+		int errs=0;
+		for (int i=0;i<clients;i++) {
+			total+=counts[i];
+			errs+=errors[i];
+		}
+		long[] all=new long[total];
+		int k=0;
+		long sum=0;
+		for (int i=0;i<clients;i++) {
+			System.arraycopy(lat[i],0,all,k,lat[i].length);
+			k+=lat[i].length;
+		}
+		Arrays.sort(all);
+		for (int i=0;i<total;i++) {sum+=all[i];}
+		double avg=(total==0)?0:sum/1e6/total;
+		double p99=(total==0)?0:all[(int)(total*0.99)]/1e6;
+		System.out.println(String.format("%-9s %7d %8d %7.2f %7.2f %7d %8d",mode,clients,(long)(total/(double)seconds),avg,p99,errs,threads));
+	}
+}
@@ -0,0 +1,302 @@
+package apollo.test;
+import apollo.iface.*;
+import apollo.server.DataStoreEngine;
+import apollo.server.Materialized;
+import apollo.util.Credentials;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+* Checks the materialized views against the SQL they are made from, and selectPage() against
+* selectWhere().  This runs the engine in this process, embedded, without RMI.
+*
+* There is one view of each shape: Big is a filter, ByRegion is a GROUP BY, and Top has ORDER BY
+* and LIMIT, so it is rebuilt in the background.  The region is NULL in a quarter of the rows, so
+* ByRegion has a NULL group.  After the inserts, the updates and the deletes, each view must have
+* the same rows as its SQL run as a subquery, which is not materialized.
+*
+* Sale has the index region DESC,qty.  The pages of selectPage(), walked to the end, must be the
+* rows of ORDER BY region DESC,qty,rowid, which puts the NULL regions last.
+*
+* args: password
+*/
+public class Test8 {
+	public static int ROWS=40;
+	public static int PAGE=7;
+	//how long to wait for Top to be rebuilt
+	public static long WAIT=10*1000;
+	private static String[] REGIONS={"north","south",null,"east"};
+
+	public static void main(String[] args) {
+		int password=(args.length<1)?1234:Integer.parseInt(args[0]);
+		try {
+			Materialized.REFRESH_INTERVAL=200;
+			String pk=apollo.kernel.Kernel.instance().getPublicKey();
+			Credentials user=Credentials.encrypt(pk,"root",null,password);
+			DataStoreEngine engine=DataStoreEngine.embedded(user);
+			Shape[] views={new Big(),new ByRegion(),new Top()};
+
+			Transaction tx=engine.createTransaction(user);
+			tx.begin();
+			tx.createTable(new Sale());
+			tx.commit();
+			//the rows from a run that failed
+			tx.begin();
+			for (DataObject o: rows(engine.selectWhere(user,new Sale(),""))) {
+				tx.delete(o);
+			}
+			for (Shape v: views) {
+				tx.dropView(v);
+				tx.createView(v);
+			}
+			tx.commit();
+
+			tx.begin();
+			for (int i=0;i<ROWS;i++) {
+				Sale s=new Sale();
+				s.region=REGIONS[i%REGIONS.length];
+				s.item="item "+i;
+				s.qty=(i*7)%10;
+				tx.insert(s);
+			}
+			tx.commit();
+			check(engine,user,views,"insert");
+			checkPages(engine,user);
+
+			//move rows into and out of the NULL group, and change qty
+			tx.begin();
+			int n=0;
+			for (DataObject o: rows(engine.selectWhere(user,new Sale(),"ORDER BY rowid"))) {
+				Sale old=(Sale)o;
+				Sale nu=(Sale)old.clone();
+				if (n%5==0) {
+					nu.region=(old.region==null)?"west":null;
+				} else if (n%5==1) {
+					nu.qty=old.qty+3;
+				}
+				if (n%5<2) {
+					tx.update(old,nu);
+				}
+				n++;
+			}
+			tx.commit();
+			check(engine,user,views,"update");
+			checkPages(engine,user);
+
+			//all of east, so its group goes away, and every third NULL
+			tx.begin();
+			n=0;
+			for (DataObject o: rows(engine.selectWhere(user,new Sale(),"ORDER BY rowid"))) {
+				Sale s=(Sale)o;
+				if ("east".equals(s.region) || (s.region==null && n++%3==0)) {
+					tx.delete(s);
+				}
+			}
+			tx.commit();
+			check(engine,user,views,"delete");
+			checkPages(engine,user);
+
+			//and the rest
+			tx.begin();
+			for (DataObject o: rows(engine.selectWhere(user,new Sale(),""))) {
+				tx.delete(o);
+			}
+			tx.commit();
+			check(engine,user,views,"delete all");
+			checkPages(engine,user);
+
+			tx.begin();
+			for (Shape v: views) {
+				tx.dropView(v);
+			}
+			tx.dropTable(new Sale());
+			tx.commit();
+			System.out.println("SUCCESS");
+		} catch (Exception e) {
+			System.err.println("exception: "+e.toString());
+			e.printStackTrace();
+			System.out.println("FAIL");
+		}
+		System.exit(0);
+	}
+
+	//each view must have the rows of its SQL.  Top may take a while to be rebuilt
+	private static void check(DataStore ds,Credentials user,Shape[] views,String step) throws Exception {
+		for (Shape v: views) {
+			Shape plain=(Shape)v.clone();
+			plain.plain=true;
+			List<String> want=strings(rows(ds.selectWhere(user,plain,"")));
+			List<String> got=strings(rows(ds.view(user,v)));
+			long end=System.currentTimeMillis()+WAIT;
+			while (!got.equals(want) && v instanceof Top && System.currentTimeMillis()<end) {
+				Thread.sleep(100);
+				got=strings(rows(ds.view(user,v)));
+			}
+			if (!got.equals(want)) {
+				throw new Exception(v.getViewName()+" after "+step+" is "+got+", the SQL gives "+want);
+			}
+			System.out.println(v.getViewName()+" after "+step+": "+got.size()+" rows");
+		}
+	}
+
+	//walk the pages and compare them with the whole table in index order
+	private static void checkPages(DataStore ds,Credentials user) throws Exception {
+		List<String> want=strings(rows(ds.selectWhere(user,new Sale(),"ORDER BY region DESC,qty,rowid")));
+		List<String> got=new ArrayList<String>();
+		String next=null;
+		int pages=0;
+		do {
+			Page p=ds.selectPage(user,new Sale(),PAGE,next);
+			for (DataObject o: p.rows) {
+				got.add(string(o));
+			}
+			next=p.next;
+			if (++pages>ROWS) {
+				throw new Exception("selectPage doesn't end");
+			}
+		} while (next!=null);
+		if (!got.equals(want)) {
+			throw new Exception("the pages are "+got+", ORDER BY gives "+want);
+		}
+		System.out.println("selectPage: "+got.size()+" rows in "+pages+" pages");
+	}
+
+	private static List<DataObject> rows(Cursor c) throws Exception {
+		ArrayList<DataObject> list=new ArrayList<DataObject>();
+		try {
+			c.open();
+			while (c.hasNext()) {
+				list.add(c.next());
+			}
+		} finally {
+			c.close();
+		}
+		return list;
+	}
+
+	//the views are compared sorted, because a view has no order
+	private static List<String> strings(List<DataObject> rows) throws Exception {
+		ArrayList<String> list=new ArrayList<String>();
+		for (DataObject o: rows) {
+			list.add(string(o));
+		}
+		if (rows.size()>0 && rows.get(0) instanceof Shape) {
+			Collections.sort(list);
+		}
+		return list;
+	}
+
+	private static String string(DataObject o) throws Exception {
+		StringBuilder sb=new StringBuilder("(");
+		for (String f: o.fields()) {
+			Field field=o.getClass().getDeclaredField(f);
+			if (sb.length()>1) {sb.append(',');}
+			sb.append(field.get(o));
+		}
+		return sb.append(')').toString();
+	}
+
+	public static class Sale implements DataObject {
+		private final static long serialVersionUID=1L;
+		public long rowid;
+		public String region;
+		public String item;
+		public int qty;
+
+		public String[] fields() {
+			return new String[]{"rowid","region","item","qty"};
+		}
+		public String[] displayNames() {
+			return new String[]{"ID","Region","Item","Qty"};
+		}
+		public String getTableName() {return "Sale";}
+		public String index() {return "region DESC,qty";}
+		public long getID() {return rowid;}
+		public DataObject clone() {
+			Sale s=new Sale();
+			s.rowid=rowid;
+			s.region=region;
+			s.item=item;
+			s.qty=qty;
+			return s;
+		}
+	}
+
+	/**
+	* A view that, when plain is set, reads its SQL as a subquery with selectWhere() instead of
+	* reading the view.  The readers find the fields in the subclass.
+	*/
+	public static abstract class Shape implements MaterializedView, Cloneable {
+		private final static long serialVersionUID=1L;
+		transient boolean plain;
+
+		public String getTableName() {
+			return plain?"("+getSQL()+")":getViewName();
+		}
+		public String[] displayNames() {return fields();}
+		public String index() {return null;}
+		public long getID() {return 0;}
+		public DataObject clone() {
+			try {
+				return (DataObject)super.clone();
+			} catch (CloneNotSupportedException x) {
+				throw new RuntimeException(x);
+			}
+		}
+	}
+
+	//FILTER
+	public static class Big extends Shape {
+		private final static long serialVersionUID=1L;
+		public long id;
+		public String region;
+		public String item;
+		public int qty;
+
+		public String[] fields() {
+			return new String[]{"id","region","item","qty"};
+		}
+		public String getViewName() {return "BigSale";}
+		public String getSQL() {
+			return "SELECT rowid AS id, region AS region, item AS item, qty AS qty FROM Sale WHERE qty>=5";
+		}
+	}
+
+	//AGGREGATE, with a NULL group
+	public static class ByRegion extends Shape {
+		private final static long serialVersionUID=1L;
+		public String region;
+		public long n;
+		public long total;
+		public long low;
+		public long high;
+		public double mean;
+
+		public String[] fields() {
+			return new String[]{"region","n","total","low","high","mean"};
+		}
+		public String getViewName() {return "SaleByRegion";}
+		public String getSQL() {
+			return "SELECT region AS region, count(*) AS n, sum(qty) AS total, min(qty) AS low, max(qty) AS high, "
+				+"avg(qty) AS mean FROM Sale GROUP BY region";
+		}
+	}
+
+	//FULL, because of ORDER BY and LIMIT
+	public static class Top extends Shape {
+		private final static long serialVersionUID=1L;
+		public long id;
+		public String region;
+		public int qty;
+
+		public String[] fields() {
+			return new String[]{"id","region","qty"};
+		}
+		public String getViewName() {return "TopSale";}
+		public String getSQL() {
+			return "SELECT rowid AS id, region AS region, qty AS qty FROM Sale ORDER BY qty DESC, rowid LIMIT 5";
+		}
+	}
+}
@@ -0,0 +1,292 @@
+package apollo.util;
+import apollo.iface.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+* AsyncDataStore is a client-side wrapper that makes the DataStore calls return a
+* CompletableFuture instead of blocking.  It works with the RMI stub or with NioClient.
+* A dashboard that needs 30 rows can start all 30 gets at once and wait for them together,
+* instead of waiting for each one in turn.
+*
+* The calls run on a bounded pool.  If the queue is full, the future fails right away with
+* RejectedExecutionException, instead of piling up more work than the server can do.
+*
+* Every call can have a deadline in milliseconds (0 means none).  When the deadline passes, the
+* future fails with TimeoutException and the worker thread is interrupted.  Cancelling the
+* future does the same thing.  A blocking RMI call may not notice the interrupt until it returns,
+* but a select stops between batches and closes its cursor.
+*/
+public class AsyncDataStore {
+	public static int DEFAULT_THREADS=16;
+	public static int DEFAULT_QUEUE=1000;
+
+	private DataStore ds;
+	private ThreadPoolExecutor pool;
+	private ScheduledExecutorService timer;
+	private long timeout=0;
+
+	public AsyncDataStore(DataStore ds) {
+		this(ds,DEFAULT_THREADS,DEFAULT_QUEUE);
+	}
+
+	public AsyncDataStore(DataStore ds,int threads,int queueSize) {
+		this.ds=ds;
+		pool=new ThreadPoolExecutor(threads,threads,60,TimeUnit.SECONDS,new ArrayBlockingQueue<Runnable>(queueSize),
+			daemons("async-datastore"));
+		pool.allowCoreThreadTimeOut(true);
+		timer=Executors.newSingleThreadScheduledExecutor(daemons("async-datastore-timer"));
+	}
+
+	//daemon threads, so a client that never calls shutdown() can still exit
+	private static ThreadFactory daemons(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t=new Thread(r,name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	* The deadline used by the methods that don't take one.  0 means no deadline.
+	*/
+	public void setTimeout(long millis) {
+		timeout=millis;
+	}
+
+	public DataStore getDataStore() {return ds;}
+
+	public void shutdown() {
+		pool.shutdown();
+		timer.shutdown();
+	}
+
+	/**
+	* Run any call on the pool, with a deadline.  The other methods all use this.
+	*/
+	public <T> CompletableFuture<T> submit(final Callable<T> call,long timeoutMillis) {
+		final CompletableFuture<T> cf=new CompletableFuture<T>();
+		final Future<?> task;
+		try {
+			task=pool.submit(new Runnable() {
+				public void run() {
+					if (cf.isDone()) {return;}	//cancelled or timed out while in the queue
+					try {
+						cf.complete(call.call());
+					} catch (Throwable x) {
+						cf.completeExceptionally(x);
+					}
+				}
+			});
+		} catch (RejectedExecutionException x) {
+			cf.completeExceptionally(x);
+			return cf;
+		}
+		final ScheduledFuture<?> deadline;
+		if (timeoutMillis>0) {
+			deadline=timer.schedule(new Runnable() {
+				public void run() {
+					cf.completeExceptionally(new TimeoutException("no reply after "+timeoutMillis+" ms"));
+				}
+			},timeoutMillis,TimeUnit.MILLISECONDS);
+		} else {
+			deadline=null;
+		}
+		cf.whenComplete(new BiConsumer<T,Throwable>() {
+			public void accept(T result,Throwable x) {
+				if (deadline!=null) {
+					deadline.cancel(false);
+				}
+				//if it didn't finish on its own, stop the worker
+				if (x instanceof TimeoutException || x instanceof CancellationException) {
+					task.cancel(true);
+				}
+			}
+		});
+		return cf;
+	}
+
+	public <T> CompletableFuture<T> submit(Callable<T> call) {
+		return submit(call,timeout);
+	}
+
+	//======================================================
+	public CompletableFuture<DataObject> get(final Credentials user,final Key k) {
+		return submit(new Callable<DataObject>() {
+			public DataObject call() throws Exception {
+				return ds.get(user,k);
+			}
+		});
+	}
+
+	/**
+	* Start a get for every key at once.  The list is in the same order as the keys.
+	* If any of them fails, the whole thing fails.
+	*/
+	public CompletableFuture<List<DataObject>> getAll(Credentials user,List<Key> keys) {
+		final List<CompletableFuture<DataObject>> fs=new ArrayList<CompletableFuture<DataObject>>();
+		for (int i=0;i<keys.size();i++) {
+			fs.add(get(user,keys.get(i)));
+		}
+		return CompletableFuture.allOf(fs.toArray(new CompletableFuture<?>[fs.size()])).thenApply(
+			new java.util.function.Function<Void,List<DataObject>>() {
+				public List<DataObject> apply(Void v) {
+					List<DataObject> list=new ArrayList<DataObject>();
+					for (int i=0;i<fs.size();i++) {
+						list.add(fs.get(i).join());
+					}
+					return list;
+				}
+			});
+	}
+
+	public CompletableFuture<Integer> rows(final Credentials user,final String tableName) {
+		return submit(new Callable<Integer>() {
+			public Integer call() throws Exception {
+				return ds.rows(user,tableName);
+			}
+		});
+	}
+
+	public CompletableFuture<String[]> listTables(final Credentials user) {
+		return submit(new Callable<String[]>() {
+			public String[] call() throws Exception {
+				return ds.listTables(user);
+			}
+		});
+	}
+
+	public CompletableFuture<List<DataObject>> selectAll(final Credentials user,final DataObject d,final int limit,final int offset) {
+		return submit(new Callable<List<DataObject>>() {
+			public List<DataObject> call() throws Exception {
+				return readAll(ds.selectAll(user,d,limit,offset));
+			}
+		});
+	}
+
+	public CompletableFuture<List<DataObject>> selectWhere(final Credentials user,final DataObject d,final String whereClause) {
+		return submit(new Callable<List<DataObject>>() {
+			public List<DataObject> call() throws Exception {
+				return readAll(ds.selectWhere(user,d,whereClause));
+			}
+		});
+	}
+
+	public CompletableFuture<List<DataObject>> view(final Credentials user,final ViewObject v) {
+		return submit(new Callable<List<DataObject>>() {
+			public List<DataObject> call() throws Exception {
+				return readAll(ds.view(user,v));
+			}
+		});
+	}
+
+	public CompletableFuture<AggregateResult> aggregate(final Credentials user,final Aggregate a) {
+		return submit(new Callable<AggregateResult>() {
+			public AggregateResult call() throws Exception {
+				return ds.aggregate(user,a);
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> exists(final Credentials user,final String tableName,final String whereClause,final Object[] params) {
+		return submit(new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				return ds.exists(user,tableName,whereClause,params);
+			}
+		});
+	}
+
+	public CompletableFuture<SearchHit[]> search(final Credentials user,final Searchable d,final String query,final int limit,final boolean objects) {
+		return submit(new Callable<SearchHit[]>() {
+			public SearchHit[] call() throws Exception {
+				return ds.search(user,d,query,limit,objects);
+			}
+		});
+	}
+
+	public CompletableFuture<Long> exportToFile(final Credentials user,final DataObject d,final String whereClause,final int format,final String fileName) {
+		return submit(new Callable<Long>() {
+			public Long call() throws Exception {
+				return ds.exportToFile(user,d,whereClause,format,fileName);
+			}
+		});
+	}
+
+	/**
+	* Create a transaction and run the batch in it, with begin and commit on the server.
+	*/
+	public CompletableFuture<BatchResult> executeAndCommit(final Credentials user,final List<Operation> ops) {
+		return submit(new Callable<BatchResult>() {
+			public BatchResult call() throws Exception {
+				Transaction tx=ds.createTransaction(user);
+				return tx.executeAndCommit(ops);
+			}
+		});
+	}
+
+	/**
+	* Run any work that needs a transaction.  The transaction is begun before work is called,
+	* committed if it returns, and rolled back if it throws.
+	*/
+	public <T> CompletableFuture<T> inTransaction(final Credentials user,final TransactionWork<T> work) {
+		return submit(new Callable<T>() {
+			public T call() throws Exception {
+				Transaction tx=ds.createTransaction(user);
+				tx.begin();
+				T result;
+				try {
+					result=work.run(tx);
+				} catch (Exception x) {
+					try {
+						tx.rollback();
+					} catch (Exception x2) {
+						//the connection may already be closed
+					}
+					throw x;
+				}
+				tx.commit();
+				return result;
+			}
+		});
+	}
+
+	public interface TransactionWork<T> {
+		public T run(Transaction tx) throws Exception;
+	}
+
+	//open the cursor and read all the rows in batches.  Stops if the thread is interrupted
+	private List<DataObject> readAll(Cursor c) throws Exception {
+		List<DataObject> list=new ArrayList<DataObject>();
+		c.open();
+		try {
+			RowBatch b;
+			do {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedException("select was cancelled");
+				}
+				b=c.nextBatch(500);
+				list.addAll(Arrays.asList(b.rows));
+			} while (!b.endOfData);
+		} finally {
+			c.close();
+		}
+		return list;
+	}
+}
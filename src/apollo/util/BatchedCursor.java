@@ -0,0 +1,91 @@
+package apollo.util;
+import apollo.iface.Cursor;
+import apollo.iface.DataObject;
+import apollo.iface.DataStoreException;
+import apollo.iface.RowBatch;
+import java.rmi.RemoteException;
+
+/**
+* This is a client-side helper that reads a Cursor in batches, but gives you one row
+* at a time, like the Cursor itself.  Use it like this:
+*	BatchedCursor bc=new BatchedCursor(cursor);
+*	while (bc.hasNext()) {
+*		DataObject d=bc.next();
+*	}
+*	bc.close();
+*
+* The batch size adapts as it goes.  The server tells us how many rows fit in its byte
+* limit (based on row size), and we time every round trip.  If a batch comes back quickly
+* the batch size is doubled, and if it is slow it is cut in half.  On a fast network this
+* ends up near the server's suggestion, and on a slow one it stays small enough that the
+* first rows show up quickly.
+*
+* The Cursor must already be open.
+*/
+public class BatchedCursor {
+	//we want every round trip to take about this long
+	public static long TARGET_MILLIS=200;
+	public static int MIN_BATCH=16;
+
+	private Cursor cursor;
+	private int batchSize;
+	private RowBatch batch;
+	private int pos;
+	private boolean end=false;
+	private long lastMillis;
+
+	public BatchedCursor(Cursor c) {
+		this(c,64);
+	}
+
+	public BatchedCursor(Cursor c,int firstBatch) {
+		cursor=c;
+		batchSize=firstBatch;
+	}
+
+	public boolean hasNext() throws RemoteException, DataStoreException {
+		while (batch==null || pos>=batch.size()) {
+			if (end) {return false;}
+			fetch();
+		}
+		return true;
+	}
+
+	public DataObject next() throws RemoteException, DataStoreException {
+		if (!hasNext()) {
+			return null;
+		}
+		return batch.rows[pos++];
+	}
+
+	public int getBatchSize() {return batchSize;}
+
+	//time of the last round trip
+	public long getLastMillis() {return lastMillis;}
+
+	private void fetch() throws RemoteException, DataStoreException {
+		long start=System.currentTimeMillis();
+		batch=cursor.nextBatch(batchSize);
+		lastMillis=System.currentTimeMillis()-start;
+		pos=0;
+		end=batch.endOfData;
+		adjust();
+	}
+
+	//grow if the round trip was quick and the batch was full, shrink if it was slow
+	private void adjust() {
+		int limit=batch.suggestedSize;
+		if (limit<MIN_BATCH) {limit=MIN_BATCH;}
+		if (lastMillis<TARGET_MILLIS && batch.size()>=batchSize) {
+			batchSize=batchSize*2;
+		} else if (lastMillis>TARGET_MILLIS*2) {
+			batchSize=batchSize/2;
+		}
+		if (batchSize>limit) {batchSize=limit;}
+		if (batchSize<MIN_BATCH) {batchSize=MIN_BATCH;}
+	}
+
+	public void close() throws RemoteException {
+		cursor.close();
+	}
+}
@@ -0,0 +1,135 @@
+package apollo.util;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+* Compression of row batches and bulk payloads with the JDK Deflater.  It is used by RowBatch
+* and OperationList, both over RMI and NIO.
+*
+* It is negotiated per session: the client sets Session.compressAbove before using the Session,
+* and the server compresses a batch only if its encoded size is at least that many bytes.  The
+* server never goes below MIN_THRESHOLD, so point lookups and small batches are never compressed,
+* and it can be turned off for everyone with ENABLED.
+*
+* The data is sent as a flag byte, and if it is compressed, the original length and the deflated
+* bytes.  BEST_SPEED is used because text compresses well even at the fastest level, and the
+* server's cpu matters more than the last few percent.
+*/
+public class Compression {
+	public static boolean ENABLED=true;
+	public static int MIN_THRESHOLD=4096;
+	public static int LEVEL=Deflater.BEST_SPEED;
+	//the biggest block unpack() will inflate, the same as the biggest frame
+	public static int MAX_RAW=apollo.net.Protocol.MAX_FRAME;
+
+	//before and after, for everything compressed in this process
+	private static AtomicLong rawBytes=new AtomicLong();
+	private static AtomicLong compressedBytes=new AtomicLong();
+
+	/**
+	* The threshold to use for this user, or 0 if they didn't ask for compression.
+	*/
+	public static int threshold(Credentials user) {
+		if (!ENABLED || !(user instanceof Session)) {
+			return 0;
+		}
+		int t=((Session)user).compressAbove;
+		if (t<=0) {return 0;}
+		return Math.max(t,MIN_THRESHOLD);
+	}
+
+	/**
+	* Returns the block to send: the raw bytes, or compressed bytes if that is smaller.
+	*/
+	public static byte[] pack(byte[] raw,int threshold) {
+		if (threshold>0 && raw.length>=threshold) {
+			byte[] deflated=deflate(raw);
+			if (deflated.length<raw.length) {
+				rawBytes.addAndGet(raw.length);
+				compressedBytes.addAndGet(deflated.length);
+				ByteArrayOutputStream bos=new ByteArrayOutputStream(deflated.length+6);
+				bos.write(1);
+				writeInt(bos,raw.length);
+				bos.write(deflated,0,deflated.length);
+				return bos.toByteArray();
+			}
+		}
+		byte[] b=new byte[raw.length+1];
+		b[0]=0;
+		System.arraycopy(raw,0,b,1,raw.length);
+		return b;
+	}
+
+	/**
+	* The reverse of pack().
+	*/
+	public static byte[] unpack(byte[] block) throws IOException {
+		if (block==null || block.length==0) {
+			throw new IOException("empty block");
+		}
+		if (block[0]==0) {
+			byte[] raw=new byte[block.length-1];
+			System.arraycopy(block,1,raw,0,raw.length);
+			return raw;
+		}
+		if (block[0]!=1 || block.length<5) {
+			throw new IOException("bad block header");
+		}
+		int len=((block[1]&0xff)<<24)|((block[2]&0xff)<<16)|((block[3]&0xff)<<8)|(block[4]&0xff);
+		//the length comes from the other side, so don't trust it with memory
+		if (len<0 || len>MAX_RAW) {
+			throw new IOException("compressed block claims "+len+" bytes");
+		}
+		Inflater inf=new Inflater();
+		try {
+			inf.setInput(block,5,block.length-5);
+			byte[] raw=new byte[len];
+			int n=0;
+			while (n<len && !inf.finished()) {
+				int r=inf.inflate(raw,n,len-n);
+				if (r==0 && (inf.needsInput() || inf.needsDictionary())) {break;}
+				n+=r;
+			}
+			if (n!=len) {
+				throw new IOException("compressed block is short: "+n+" of "+len+" bytes");
+			}
+			return raw;
+		} catch (DataFormatException x) {
+			throw new IOException("bad compressed block: "+x.getMessage());
+		} finally {
+			inf.end();
+		}
+	}
+
+	static byte[] deflate(byte[] raw) {
+		Deflater def=new Deflater(LEVEL);
+		try {
+			def.setInput(raw);
+			def.finish();
+			ByteArrayOutputStream bos=new ByteArrayOutputStream(raw.length/4+64);
+			byte[] buf=new byte[32*1024];
+			while (!def.finished()) {
+				int n=def.deflate(buf);
+				bos.write(buf,0,n);
+			}
+			return bos.toByteArray();
+		} finally {
+			def.end();
+		}
+	}
+
+	private static void writeInt(ByteArrayOutputStream bos,int i) {
+		bos.write(i>>>24);
+		bos.write(i>>>16);
+		bos.write(i>>>8);
+		bos.write(i);
+	}
+
+	public static long getRawBytes() {return rawBytes.get();}
+
+	public static long getCompressedBytes() {return compressedBytes.get();}
+}
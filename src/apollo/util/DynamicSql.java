@@ -37,6 +37,90 @@ public class DynamicSql {
 
 
 
+	/**
+	* Generate an insert statement with a ? for every value, to be prepared once and
+	* run many times.  The values, in the same order, come from getFieldValues().
+	*/
+	public static String generateInsertTemplate(DataObject d) {
+		String[] fields=d.fields();
+		StringBuilder sql=new StringBuilder();
+		sql.append("INSERT INTO "+d.getTableName()+" ");
+		sql.append("("+fieldNames(d)+") VALUES (");
+		boolean first=true;
+		for (int i=0;i<fields.length;i++) {
+			if (fields[i].equalsIgnoreCase("rowid") || fields[i].equalsIgnoreCase("oid") ) {
+				continue;
+			}
+			if (first) {
+				first=false;
+			} else {
+				sql.append(",");
+			}
+			sql.append("?");
+		}
+		sql.append(")");
+		return sql.toString();
+	}
+
+	/**
+	* Get the values of the fields to insert, in the same order as generateInsertTemplate().
+	* Each value is null, a Long, a Double or a String, stored the same way as getFieldValue().
+	* The values are bound, not pasted into the sql, but single quotes in String, TextArea and Choice
+	* fields are still changed to backticks, so a row is stored the same by insert() and
+	* executeBatch().
+	*/
+	public static Object[] getFieldValues(DataObject d) throws DataStoreException {
+		String[] fields=d.fields();
+		java.util.ArrayList<Object> values=new java.util.ArrayList<Object>();
+		for (int i=0;i<fields.length;i++) {
+			if (fields[i].equalsIgnoreCase("rowid") || fields[i].equalsIgnoreCase("oid") ) {
+				continue;
+			}
+			values.add(getFieldObject(d,fields[i]));
+		}
+		return values.toArray();
+	}
+
+	private static Object getFieldObject(DataObject d,String fieldName) throws DataStoreException {
+		try {
+			Field f=d.getClass().getDeclaredField(fieldName);
+			f.setAccessible(true);  //turn off security checks
+			String ft=f.getType().getName();
+			if (ft.equals("int") || ft.equals("long")) {
+				return Long.valueOf(f.getLong(d));
+			} else if (ft.equals("float")) {
+				//through the String, like getFieldValue(), so 0.1f is stored as 0.1 and not 0.10000000149011612
+				return Double.valueOf(Double.parseDouble(String.valueOf(f.getFloat(d))));
+			} else if (ft.equals("double")) {
+				return Double.valueOf(f.getDouble(d));
+			} else if (ft.equals("boolean")) {
+				return String.valueOf(f.getBoolean(d));
+			}
+			Object v=f.get(d);
+			if (v==null) {
+				return null;
+			} else if (ft.equals("java.lang.String")) {
+				return ((String)v).replaceAll("'","`");
+			} else if (ft.equals("java.util.Date") || ft.equals("java.sql.Timestamp")
+				|| ft.equals("apollo.util.DateYMD") || ft.equals("apollo.util.DateYM")) {
+				return v.toString();
+			} else if (ft.equals("java.math.BigDecimal")) {
+				return ((BigDecimal)v).toPlainString();
+			} else if (ft.equals("java.awt.TextArea")) {
+				return ((TextArea)v).getText().replaceAll("'","`");
+			} else if (ft.equals("java.awt.Choice")) {
+				String selected=((Choice)v).getSelectedItem();
+				return (selected==null)?null:selected.replaceAll("'","`");
+			} else {
+				throw new DataStoreException("unknown type "+ft,0);
+			}
+		} catch (DataStoreException dx) {
+			throw dx;
+		} catch (Exception x) {
+			throw new DataStoreException(x.getClass().getName()+": "+x.getMessage()+", when getting the value of the field "+fieldName,0);
+		}
+	}
+
 	/**
 	* Return a String, which is the list of field names, separated by a comma.
 	* We get this from DataObject, but check the names, because we DON'T insert a rowid.
@@ -162,10 +246,12 @@ public class DynamicSql {
 				}
 			} else if (ft.equals("java.awt.Choice")) {
 				Choice ch=(Choice)f.get(d);
-				if (ch==null) {
+				if (ch==null || ch.getSelectedItem()==null) {
+					//nothing selected is NULL, not the text 'null'
 					return null;
 				} else {
 					String selected=ch.getSelectedItem();
+					selected=selected.replaceAll("'","`");
 					return "'"+selected+"'";
 				}
 			} else if (ft.equals("int")) {
@@ -0,0 +1,114 @@
+package apollo.util;
+import apollo.iface.DataObject;
+import apollo.iface.Key;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+* NearCache is a small LRU cache of DataObjects by Key, kept on the client.  It is used by
+* NearCachingDataStore, which fills it from get() and empties it from the invalidations the
+* server pushes after each commit.
+*
+* Entries also have a maximum age, as a safety net in case an invalidation is lost, for example
+* while the subscription is being reconnected.  0 means no maximum age.
+*
+* There is a race between a get() and a commit that changes the same row: the get may read the
+* old value, and the invalidation may arrive before the get puts it in the cache.  To avoid
+* caching the old value, each invalidation bumps a counter, and put() is refused if the counter
+* changed since the read started.
+*/
+public class NearCache {
+	private final int maxEntries;
+	private final long maxAge;
+	private final LinkedHashMap<Key,Entry> map;
+	private long epoch=0;
+	private long hits=0;
+	private long misses=0;
+
+	static class Entry {
+		DataObject value;
+		long time;
+	}
+
+	public NearCache(int maxEntries,long maxAgeMillis) {
+		this.maxEntries=maxEntries;
+		this.maxAge=maxAgeMillis;
+		//true means access order, so the eldest entry is the least recently used
+		map=new LinkedHashMap<Key,Entry>(16,0.75f,true) {
+			protected boolean removeEldestEntry(Map.Entry<Key,Entry> eldest) {
+				return size()>NearCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	* Call this before reading from the server, and pass the result to put().
+	*/
+	public synchronized long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	* Returns a copy of the cached object, or null if it isn't cached.
+	*/
+	public synchronized DataObject get(Key k) {
+		Entry e=map.get(k);
+		if (e!=null && maxAge>0 && System.currentTimeMillis()-e.time>maxAge) {
+			map.remove(k);
+			e=null;
+		}
+		if (e==null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return e.value.clone();
+	}
+
+	/**
+	* Returns false if the object wasn't cached because something was invalidated after
+	* the epoch was read.
+	*/
+	public synchronized boolean put(Key k,DataObject d,long readEpoch) {
+		if (readEpoch!=epoch || d==null) {
+			return false;
+		}
+		Entry e=new Entry();
+		e.value=d.clone();
+		e.time=System.currentTimeMillis();
+		map.put(k,e);
+		return true;
+	}
+
+	/**
+	* A Key with a rowid of 0 removes every entry for that table.
+	*/
+	public synchronized void invalidate(Key[] keys) {
+		epoch++;
+		for (int i=0;i<keys.length;i++) {
+			Key k=keys[i];
+			if (k.rowid==0) {
+				Iterator<Key> it=map.keySet().iterator();
+				while (it.hasNext()) {
+					if (it.next().tableName.equals(k.tableName)) {
+						it.remove();
+					}
+				}
+			} else {
+				map.remove(k);
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		epoch++;
+		map.clear();
+	}
+
+	public synchronized int size() {return map.size();}
+
+	public synchronized long getHits() {return hits;}
+
+	public synchronized long getMisses() {return misses;}
+}
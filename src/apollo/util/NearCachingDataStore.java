@@ -0,0 +1,243 @@
+package apollo.util;
+import apollo.iface.*;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.rmi.server.RemoteObject;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+* NearCachingDataStore wraps a DataStore (the RMI stub or NioClient) and keeps the objects
+* returned by get() in a NearCache, so hot reference rows are read locally.  It is opt-in:
+*	DataStore ds=new NearCachingDataStore(stub,user,10000,60000);
+*
+* It subscribes with the server for invalidations, which are sent after every commit that
+* changes a row.  Changes made through this client's own transactions are also removed from
+* the cache as soon as they commit, without waiting for the server.
+*
+* Only get() is cached.  Cursors always go to the server.  Call close() to unsubscribe.
+*/
+public class NearCachingDataStore implements DataStore {
+	private DataStore ds;
+	private Credentials user;
+	private NearCache cache;
+	//called by the server.  This is what is exported, not the whole DataStore
+	private InvalidationListener receiver=new InvalidationListener() {
+		public void invalidated(Key[] keys) {
+			cache.invalidate(keys);
+		}
+	};
+	//what was passed to subscribe(); a stub if the server is remote
+	private InvalidationListener listener;
+
+	public NearCachingDataStore(DataStore ds,Credentials user,int maxEntries,long maxAgeMillis)
+		throws RemoteException, DataStoreException, Unauthorized {
+		this.ds=ds;
+		this.user=user;
+		cache=new NearCache(maxEntries,maxAgeMillis);
+		//an RMI server can only call us back through an exported object
+		if (Proxy.isProxyClass(ds.getClass()) || ds instanceof RemoteObject) {
+			listener=(InvalidationListener)UnicastRemoteObject.exportObject(receiver,0);
+		} else {
+			listener=receiver;
+		}
+		ds.subscribe(user,listener);
+	}
+
+	public NearCache getCache() {return cache;}
+
+	public void close() throws RemoteException {
+		ds.unsubscribe(user,listener);
+		if (listener!=receiver) {
+			UnicastRemoteObject.unexportObject(receiver,true);
+		}
+		cache.clear();
+	}
+
+	//=====================================
+	public DataObject get(Credentials user,Key k) throws RemoteException,DataStoreException, Unauthorized {
+		DataObject d=cache.get(k);
+		if (d!=null) {return d;}
+		long epoch=cache.getEpoch();
+		d=ds.get(user,k);
+		cache.put(k,d,epoch);
+		return d;
+	}
+
+	public Transaction createTransaction(Credentials user) throws RemoteException,DataStoreException, Unauthorized {
+		return new CachingTransaction(ds.createTransaction(user));
+	}
+
+	public int getLibVersionNumber() throws RemoteException {
+		return ds.getLibVersionNumber();
+	}
+
+	public String getDatabaseFileName() throws RemoteException, DataStoreException {
+		return ds.getDatabaseFileName();
+	}
+
+	public String[] listTables(Credentials user) throws RemoteException,DataStoreException, Unauthorized {
+		return ds.listTables(user);
+	}
+
+	public int rows(Credentials user,String tableName) throws RemoteException,DataStoreException, Unauthorized {
+		return ds.rows(user,tableName);
+	}
+
+	public Cursor selectAll(Credentials user,DataObject d) throws RemoteException,DataStoreException, Unauthorized {
+		return ds.selectAll(user,d);
+	}
+
+	public Cursor selectAll(Credentials user,DataObject d,int limit,int offset) throws RemoteException,
+		DataStoreException, Unauthorized {
+		return ds.selectAll(user,d,limit,offset);
+	}
+
+	public Page selectPage(Credentials user,DataObject d,int limit,String continuation) throws RemoteException,
+		DataStoreException, Unauthorized {
+		return ds.selectPage(user,d,limit,continuation);
+	}
+
+	public Cursor view(Credentials user,ViewObject v) throws RemoteException, DataStoreException, Unauthorized {
+		return ds.view(user,v);
+	}
+
+	public Cursor selectWhere(Credentials user,DataObject d,String whereClause) throws RemoteException, DataStoreException, Unauthorized {
+		return ds.selectWhere(user,d,whereClause);
+	}
+
+	public AggregateResult aggregate(Credentials user,Aggregate a) throws RemoteException, DataStoreException, Unauthorized {
+		return ds.aggregate(user,a);
+	}
+
+	public boolean exists(Credentials user,String tableName,String whereClause,Object[] params) throws RemoteException, DataStoreException, Unauthorized {
+		return ds.exists(user,tableName,whereClause,params);
+	}
+
+	public SearchHit[] search(Credentials user,Searchable d,String query,int limit,boolean objects) throws RemoteException, DataStoreException, Unauthorized {
+		return ds.search(user,d,query,limit,objects);
+	}
+
+	public ExportStream export(Credentials user,DataObject d,String whereClause,int format) throws RemoteException, DataStoreException, Unauthorized {
+		return ds.export(user,d,whereClause,format);
+	}
+
+	public long exportToFile(Credentials user,DataObject d,String whereClause,int format,String fileName) throws RemoteException, DataStoreException, Unauthorized {
+		return ds.exportToFile(user,d,whereClause,format,fileName);
+	}
+
+	public void subscribe(Credentials user,InvalidationListener l) throws RemoteException, DataStoreException, Unauthorized {
+		ds.subscribe(user,l);
+	}
+
+	public void unsubscribe(Credentials user,InvalidationListener l) throws RemoteException {
+		ds.unsubscribe(user,l);
+	}
+
+	public Session login(Credentials user) throws RemoteException, DataStoreException, Unauthorized {
+		return ds.login(user);
+	}
+
+	public void logout(Session s) throws RemoteException, DataStoreException {
+		ds.logout(s);
+	}
+
+	//=====================================
+	/**
+	* Remembers the rows this transaction changes, and drops them from the cache when it
+	* commits or rolls back.
+	*/
+	class CachingTransaction implements Transaction {
+		private Transaction tx;
+		private List<Key> changed=new ArrayList<Key>();
+
+		CachingTransaction(Transaction tx) {
+			this.tx=tx;
+		}
+
+		private void changed(DataObject d) {
+			changed.add(new Key(d.getTableName(),d.getID()));
+		}
+
+		private void changed(List<Operation> ops) {
+			for (Operation op:ops) {
+				if (op.type!=Operation.INSERT) {
+					changed(op.old);
+				}
+			}
+		}
+
+		private void flush() {
+			cache.invalidate(changed.toArray(new Key[changed.size()]));
+			changed.clear();
+		}
+
+		public long getID() throws RemoteException {return tx.getID();}
+
+		public void begin() throws RemoteException, DataStoreException, Unauthorized {
+			tx.begin();
+		}
+
+		public void commit() throws RemoteException, DataStoreException {
+			try {
+				tx.commit();
+			} finally {
+				flush();
+			}
+		}
+
+		public void rollback() throws RemoteException, DataStoreException {
+			try {
+				tx.rollback();
+			} finally {
+				flush();
+			}
+		}
+
+		public void createTable(DataObject d) throws RemoteException,DataStoreException {
+			tx.createTable(d);
+		}
+
+		public void dropTable(DataObject d) throws RemoteException,DataStoreException {
+			tx.dropTable(d);
+			changed.add(new Key(d.getTableName(),0));
+		}
+
+		public Key insert(DataObject d) throws RemoteException,DataStoreException {
+			return tx.insert(d);
+		}
+
+		public void update(DataObject old,DataObject nu) throws RemoteException,DataStoreException {
+			changed(old);
+			tx.update(old,nu);
+		}
+
+		public void delete(DataObject old) throws RemoteException,DataStoreException {
+			changed(old);
+			tx.delete(old);
+		}
+
+		public BatchResult executeBatch(List<Operation> ops) throws RemoteException,DataStoreException {
+			changed(ops);
+			return tx.executeBatch(ops);
+		}
+
+		public BatchResult executeAndCommit(List<Operation> ops) throws RemoteException,DataStoreException, Unauthorized {
+			changed(ops);
+			try {
+				return tx.executeAndCommit(ops);
+			} finally {
+				flush();
+			}
+		}
+
+		public void createView(ViewObject v) throws RemoteException,DataStoreException {
+			tx.createView(v);
+		}
+
+		public void dropView(ViewObject v) throws RemoteException,DataStoreException {
+			tx.dropView(v);
+		}
+	}
+}
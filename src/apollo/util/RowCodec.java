@@ -0,0 +1,535 @@
+package apollo.util;
+import apollo.iface.DataObject;
+import java.awt.TextArea;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+* RowCodec is a compact way to send DataObjects, instead of plain java serialization.  Java
+* serialization sends the class description and the field names with every stream, and every
+* DateYMD and BigDecimal is a whole object graph.  Here the schema (class name, field names and
+* types) is written once per stream, and after that every row is just the schema id, a bitmap of
+* the null fields, and the packed values.
+*
+* Ints and longs are written as zig-zag varints, so small numbers take one byte.  DateYMD is
+* written as the number yyyymmdd, DateYM as yyyymm, and BigDecimal as its unscaled bytes and scale.
+*
+* A Writer and a Reader each remember the schemas they have seen, so use one of each per stream.
+* If a class has a field type that isn't handled here (like java.awt.Choice), that object is
+* written with java serialization instead.
+*
+* Only classes that implement DataObject are created when reading.  An object sent with java
+* serialization is read through FILTER, which only allows the DataObject and its field types.
+*/
+public class RowCodec {
+	//tags in front of every object
+	final static int NULL=0;
+	final static int ROW=1;
+	final static int SCHEMA=2;
+	final static int JAVA=3;
+
+	//field types
+	final static int T_STRING=1;
+	final static int T_INT=2;
+	final static int T_LONG=3;
+	final static int T_DOUBLE=4;
+	final static int T_FLOAT=5;
+	final static int T_BOOLEAN=6;
+	final static int T_DATEYMD=7;
+	final static int T_DATEYM=8;
+	final static int T_DECIMAL=9;
+	final static int T_TEXTAREA=10;
+	final static int T_DATE=11;
+
+	/**
+	* The fields of one class, in the order they are written.  This is built once per class
+	* and shared by every stream.  If supported is false, the class is sent with java serialization.
+	*/
+	static class Schema {
+		Class<?> klaz;
+		String[] names;
+		int[] types;
+		Field[] fields;
+		boolean supported=true;
+	}
+
+	private static ConcurrentHashMap<Class<?>,Schema> schemas=new ConcurrentHashMap<Class<?>,Schema>();
+
+	static Schema schemaFor(DataObject d) {
+		Class<?> k=d.getClass();
+		Schema s=schemas.get(k);
+		if (s==null) {
+			s=buildSchema(k,d.fields());
+			schemas.put(k,s);
+		}
+		return s;
+	}
+
+	//rowid is always first, even if fields() doesn't list it
+	static Schema buildSchema(Class<?> k,String[] list) {
+		ArrayList<String> names=new ArrayList<String>();
+		if (hasField(k,"rowid")) {
+			names.add("rowid");
+		}
+		for (int i=0;i<list.length;i++) {
+			if (!list[i].equalsIgnoreCase("rowid")) {
+				names.add(list[i]);
+			}
+		}
+		Schema s=new Schema();
+		s.klaz=k;
+		s.names=names.toArray(new String[names.size()]);
+		s.types=new int[s.names.length];
+		s.fields=new Field[s.names.length];
+		for (int i=0;i<s.names.length;i++) {
+			try {
+				Field f=k.getDeclaredField(s.names[i]);
+				f.setAccessible(true);  //turn off security checks
+				s.fields[i]=f;
+				s.types[i]=typeOf(f.getType().getName());
+			} catch (Exception x) {
+				s.types[i]=0;
+			}
+			if (s.types[i]==0) {
+				s.supported=false;
+			}
+		}
+		return s;
+	}
+
+	static boolean hasField(Class<?> k,String name) {
+		try {
+			k.getDeclaredField(name);
+			return true;
+		} catch (NoSuchFieldException x) {
+			return false;
+		}
+	}
+
+	//return 0 if we don't handle this type
+	static int typeOf(String ft) {
+		if (ft.equals("java.lang.String")) {return T_STRING;}
+		else if (ft.equals("int")) {return T_INT;}
+		else if (ft.equals("long")) {return T_LONG;}
+		else if (ft.equals("double")) {return T_DOUBLE;}
+		else if (ft.equals("float")) {return T_FLOAT;}
+		else if (ft.equals("boolean")) {return T_BOOLEAN;}
+		else if (ft.equals("apollo.util.DateYMD")) {return T_DATEYMD;}
+		else if (ft.equals("apollo.util.DateYM")) {return T_DATEYM;}
+		else if (ft.equals("java.math.BigDecimal")) {return T_DECIMAL;}
+		else if (ft.equals("java.awt.TextArea")) {return T_TEXTAREA;}
+		else if (ft.equals("java.util.Date")) {return T_DATE;}
+		else {return 0;}
+	}
+
+	//======================================================
+	/**
+	* Writes DataObjects to one stream.
+	*/
+	public static class Writer {
+		private HashMap<Class<?>,Integer> ids=new HashMap<Class<?>,Integer>();
+
+		public void write(DataOutput out,DataObject d) throws IOException {
+			if (d==null) {
+				out.writeByte(NULL);
+				return;
+			}
+			Schema s=schemaFor(d);
+			if (!s.supported) {
+				out.writeByte(JAVA);
+				writeJava(out,d);
+				return;
+			}
+			Integer id=ids.get(s.klaz);
+			if (id==null) {
+				id=ids.size();
+				ids.put(s.klaz,id);
+				out.writeByte(SCHEMA);
+				writeVarInt(out,id);
+				writeString(out,s.klaz.getName());
+				writeVarInt(out,s.names.length);
+				for (int i=0;i<s.names.length;i++) {
+					writeString(out,s.names[i]);
+					out.writeByte(s.types[i]);
+				}
+			} else {
+				out.writeByte(ROW);
+				writeVarInt(out,id);
+			}
+			try {
+				writeValues(out,s,d);
+			} catch (IllegalAccessException x) {
+				throw new IOException("IllegalAccessException: "+x.getMessage()+" when writing "+s.klaz.getName());
+			}
+		}
+
+		private void writeValues(DataOutput out,Schema s,DataObject d) throws IOException, IllegalAccessException {
+			int n=s.fields.length;
+			Object[] values=new Object[n];
+			byte[] nulls=new byte[(n+7)/8];
+			for (int i=0;i<n;i++) {
+				values[i]=s.fields[i].get(d);
+				if (values[i]==null) {
+					nulls[i/8]|=(1<<(i%8));
+				}
+			}
+			out.write(nulls);
+			for (int i=0;i<n;i++) {
+				Object v=values[i];
+				if (v==null) {continue;}
+				switch (s.types[i]) {
+					case T_STRING:
+						writeString(out,(String)v);
+						break;
+					case T_INT:
+						writeVarLong(out,((Integer)v).intValue());
+						break;
+					case T_LONG:
+						writeVarLong(out,((Long)v).longValue());
+						break;
+					case T_DOUBLE:
+						out.writeDouble(((Double)v).doubleValue());
+						break;
+					case T_FLOAT:
+						out.writeFloat(((Float)v).floatValue());
+						break;
+					case T_BOOLEAN:
+						out.writeBoolean(((Boolean)v).booleanValue());
+						break;
+					case T_DATEYMD: {
+						DateYMD date=(DateYMD)v;
+						writeVarInt(out,date.year*10000+date.month*100+date.day);
+						break;
+					}
+					case T_DATEYM: {
+						DateYM date=(DateYM)v;
+						writeVarInt(out,date.year*100+date.month);
+						break;
+					}
+					case T_DECIMAL: {
+						BigDecimal bd=(BigDecimal)v;
+						byte[] b=bd.unscaledValue().toByteArray();
+						writeVarInt(out,b.length);
+						out.write(b);
+						writeVarLong(out,bd.scale());
+						break;
+					}
+					case T_TEXTAREA:
+						writeString(out,((TextArea)v).getText());
+						break;
+					case T_DATE:
+						writeVarLong(out,((java.util.Date)v).getTime());
+						break;
+				}
+			}
+		}
+	}
+
+	//======================================================
+	/**
+	* Reads DataObjects from one stream.
+	*/
+	public static class Reader {
+		private ArrayList<Schema> seen=new ArrayList<Schema>();
+
+		public DataObject read(DataInput in) throws IOException {
+			int tag=in.readUnsignedByte();
+			if (tag==NULL) {
+				return null;
+			} else if (tag==JAVA) {
+				return readJava(in);
+			}
+			int id=readVarInt(in);
+			Schema s;
+			if (tag==SCHEMA) {
+				s=readSchema(in);
+				if (id!=seen.size()) {
+					throw new IOException("schema "+id+" out of order");
+				}
+				seen.add(s);
+			} else if (tag==ROW) {
+				if (id>=seen.size()) {
+					throw new IOException("unknown schema "+id);
+				}
+				s=seen.get(id);
+			} else {
+				throw new IOException("bad tag "+tag);
+			}
+			try {
+				return readValues(in,s);
+			} catch (IOException x) {
+				throw x;
+			} catch (Exception x) {
+				throw new IOException(x.getClass().getName()+": "+x.getMessage()+" when reading "+s.klaz.getName());
+			}
+		}
+
+		//the field list comes from the stream, so the writer's order is used even if the classes differ a little
+		private Schema readSchema(DataInput in) throws IOException {
+			String className=readString(in);
+			Class<?> k;
+			try {
+				//don't run the static initializer of a class that isn't a DataObject
+				ClassLoader loader=RowCodec.class.getClassLoader();
+				k=Class.forName(className,false,loader);
+				if (!DataObject.class.isAssignableFrom(k)) {
+					throw new IOException(className+" is not a DataObject");
+				}
+				k=Class.forName(className,true,loader);
+			} catch (ClassNotFoundException x) {
+				throw new IOException("class not found: "+className);
+			}
+			//a name and a type for each field
+			int n=readLength(in,2);
+			Schema s=new Schema();
+			s.klaz=k;
+			s.names=new String[n];
+			s.types=new int[n];
+			s.fields=new Field[n];
+			for (int i=0;i<n;i++) {
+				s.names[i]=readString(in);
+				s.types[i]=in.readUnsignedByte();
+				try {
+					s.fields[i]=k.getDeclaredField(s.names[i]);
+					s.fields[i].setAccessible(true);
+				} catch (NoSuchFieldException x) {
+					//the value is read and thrown away
+					s.fields[i]=null;
+				}
+			}
+			return s;
+		}
+
+		private DataObject readValues(DataInput in,Schema s) throws Exception {
+			Object o=s.klaz.getDeclaredConstructor().newInstance();
+			int n=s.fields.length;
+			byte[] nulls=new byte[(n+7)/8];
+			in.readFully(nulls);
+			for (int i=0;i<n;i++) {
+				if ((nulls[i/8]&(1<<(i%8)))!=0) {continue;}
+				Object v=null;
+				switch (s.types[i]) {
+					case T_STRING:
+						v=readString(in);
+						break;
+					case T_INT:
+						v=Integer.valueOf((int)readVarLong(in));
+						break;
+					case T_LONG:
+						v=Long.valueOf(readVarLong(in));
+						break;
+					case T_DOUBLE:
+						v=Double.valueOf(in.readDouble());
+						break;
+					case T_FLOAT:
+						v=Float.valueOf(in.readFloat());
+						break;
+					case T_BOOLEAN:
+						v=Boolean.valueOf(in.readBoolean());
+						break;
+					case T_DATEYMD: {
+						int ymd=readVarInt(in);
+						v=new DateYMD(ymd/10000,(ymd/100)%100,ymd%100);
+						break;
+					}
+					case T_DATEYM: {
+						int ym=readVarInt(in);
+						v=new DateYM(ym/100,ym%100);
+						break;
+					}
+					case T_DECIMAL: {
+						byte[] b=new byte[readLength(in,1)];
+						in.readFully(b);
+						int scale=(int)readVarLong(in);
+						v=new BigDecimal(new BigInteger(b),scale);
+						break;
+					}
+					case T_TEXTAREA: {
+						TextArea ta=new TextArea(readString(in),3,40,TextArea.SCROLLBARS_VERTICAL_ONLY);
+						ta.setName(s.names[i]);
+						v=ta;
+						break;
+					}
+					case T_DATE:
+						v=new java.util.Date(readVarLong(in));
+						break;
+					default:
+						throw new IOException("unknown type "+s.types[i]+" for field "+s.names[i]);
+				}
+				if (s.fields[i]!=null) {
+					//Field.set unwraps the primitive types for us
+					s.fields[i].set(o,v);
+				}
+			}
+			return (DataObject)o;
+		}
+	}
+
+	//======================================================
+	//convenience methods for a whole array, with the schemas scoped to the array
+	public static void writeRows(DataOutput out,DataObject[] rows) throws IOException {
+		Writer w=new Writer();
+		writeVarInt(out,rows.length);
+		for (int i=0;i<rows.length;i++) {
+			w.write(out,rows[i]);
+		}
+	}
+
+	public static DataObject[] readRows(DataInput in) throws IOException {
+		Reader r=new Reader();
+		int n=readLength(in,1);
+		DataObject[] rows=new DataObject[n];
+		for (int i=0;i<n;i++) {
+			rows[i]=r.read(in);
+		}
+		return rows;
+	}
+
+	//======================================================
+	//low level helpers
+	static void writeJava(DataOutput out,DataObject d) throws IOException {
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		ObjectOutputStream oos=new ObjectOutputStream(bos);
+		oos.writeObject(d);
+		oos.close();
+		byte[] b=bos.toByteArray();
+		writeVarInt(out,b.length);
+		out.write(b);
+	}
+
+	/**
+	* The classes java serialization may create when reading a DataObject: the DataObject itself,
+	* the field types DynamicSql can store, and the parts of a TextArea and Choice that are sent
+	* with them.  Everything else is rejected before it is created.  A component with its own
+	* font, cursor or listeners is rejected too, because those are for display, not data.
+	*/
+	private final static HashSet<String> ALLOWED=new HashSet<String>(Arrays.asList(
+		"java.lang.String","java.lang.Integer","java.lang.Long","java.lang.Double","java.lang.Float",
+		"java.lang.Boolean","java.lang.Number","java.math.BigDecimal","java.math.BigInteger",
+		"java.util.Date","java.sql.Timestamp","apollo.util.DateYMD","apollo.util.DateYM",
+		"java.awt.TextArea","java.awt.TextComponent","java.awt.Choice","java.awt.Component",
+		"java.awt.ComponentOrientation","java.awt.Dimension","java.awt.Color","java.util.Locale",
+		//the items of a Choice, and the Object[] inside the Vector
+		"java.util.Vector","java.lang.Object"));
+
+	final static ObjectInputFilter FILTER=new ObjectInputFilter() {
+		public Status checkInput(FilterInfo info) {
+			if (info.depth()>MAX_DEPTH || info.references()>MAX_REFERENCES || info.arrayLength()>MAX_ARRAY_LENGTH) {
+				return Status.REJECTED;
+			}
+			Class<?> k=info.serialClass();
+			if (k==null) {return Status.UNDECIDED;}
+			while (k.isArray()) {k=k.getComponentType();}
+			if (k.isPrimitive() || DataObject.class.isAssignableFrom(k) || ALLOWED.contains(k.getName())) {
+				return Status.ALLOWED;
+			}
+			return Status.REJECTED;
+		}
+	};
+	public static int MAX_DEPTH=20;
+	public static int MAX_ARRAY_LENGTH=100000;
+	public static int MAX_REFERENCES=10000;
+
+	static DataObject readJava(DataInput in) throws IOException {
+		byte[] b=new byte[readLength(in,1)];
+		in.readFully(b);
+		ObjectInputStream ois=new ObjectInputStream(new ByteArrayInputStream(b));
+		ois.setObjectInputFilter(FILTER);
+		try {
+			Object o=ois.readObject();
+			if (!(o instanceof DataObject)) {
+				throw new IOException((o==null?"null":o.getClass().getName())+" is not a DataObject");
+			}
+			return (DataObject)o;
+		} catch (ClassNotFoundException x) {
+			throw new IOException("class not found: "+x.getMessage());
+		} finally {
+			ois.close();
+		}
+	}
+
+	public static void writeString(DataOutput out,String s) throws IOException {
+		byte[] b=s.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out,b.length);
+		out.write(b);
+	}
+
+	public static String readString(DataInput in) throws IOException {
+		byte[] b=new byte[readLength(in,1)];
+		in.readFully(b);
+		return new String(b,StandardCharsets.UTF_8);
+	}
+
+	//unsigned varint, 7 bits at a time.  Use for lengths and counts
+	public static void writeVarInt(DataOutput out,int i) throws IOException {
+		while ((i&~0x7F)!=0) {
+			out.writeByte((i&0x7F)|0x80);
+			i>>>=7;
+		}
+		out.writeByte(i);
+	}
+
+	public static int readVarInt(DataInput in) throws IOException {
+		int i=0;
+		for (int shift=0;shift<35;shift+=7) {
+			int b=in.readUnsignedByte();
+			i|=(b&0x7F)<<shift;
+			if ((b&0x80)==0) {return i;}
+		}
+		throw new IOException("bad varint");
+	}
+
+	/**
+	* Read a length or count of items that each take at least min bytes.  The rows come from the
+	* other side, so it is checked against the bytes left before anything is allocated.  The
+	* streams here are read from a byte array, where available() is exactly the bytes left.
+	*/
+	public static int readLength(DataInput in,int min) throws IOException {
+		int n=readVarInt(in);
+		if (n<0) {
+			throw new IOException("bad length "+n);
+		}
+		if (in instanceof InputStream && n>((InputStream)in).available()/min) {
+			throw new IOException("length "+n+" is more than the "+((InputStream)in).available()+" bytes left");
+		}
+		return n;
+	}
+
+	//zig-zag, so small negative numbers are small too
+	public static void writeVarLong(DataOutput out,long l) throws IOException {
+		long z=(l<<1)^(l>>63);
+		while ((z&~0x7FL)!=0) {
+			out.writeByte((int)((z&0x7F)|0x80));
+			z>>>=7;
+		}
+		out.writeByte((int)z);
+	}
+
+	public static long readVarLong(DataInput in) throws IOException {
+		long z=0;
+		for (int shift=0;shift<70;shift+=7) {
+			int b=in.readUnsignedByte();
+			z|=(long)(b&0x7F)<<shift;
+			if ((b&0x80)==0) {
+				return (z>>>1)^-(z&1);
+			}
+		}
+		throw new IOException("bad varint");
+	}
+}
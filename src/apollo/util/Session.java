@@ -0,0 +1,35 @@
+package apollo.util;
+
+/**
+* A Session is returned by DataStore.login().  It can be passed anywhere Credentials are
+* expected.  Instead of the password, it carries a token signed by the server, which is
+* checked in memory without looking up the user.  It stops working when it expires or when
+* it is passed to DataStore.logout().
+*/
+public class Session extends Credentials {
+	private final static long serialVersionUID=1L;
+	public long id;
+	//in milliseconds since 1970
+	public long expires;
+	//HMAC of the other fields, in base-16 format
+	public String signature;
+
+	//set this to ask the server to compress cursor batches bigger than this many bytes.
+	//0 means don't compress.  It isn't signed, because it is only a preference.  See Compression
+	public int compressAbove=0;
+
+	public Session(String username,long id,long expires,String signature) {
+		super(username,null,null);
+		this.id=id;
+		this.expires=expires;
+		this.signature=signature;
+	}
+
+	public boolean isExpired() {
+		return System.currentTimeMillis()>expires;
+	}
+
+	public String toString() {
+		return "session #"+id+" for "+username;
+	}
+}